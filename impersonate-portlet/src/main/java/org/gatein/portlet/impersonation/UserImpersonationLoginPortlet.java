@@ -24,7 +24,9 @@
 package org.gatein.portlet.impersonation;
 
 import java.io.IOException;
-import java.net.URLEncoder;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.portlet.ActionRequest;
 import javax.portlet.ActionResponse;
@@ -33,19 +35,32 @@ import javax.portlet.PortletException;
 import javax.portlet.PortletRequestDispatcher;
 import javax.portlet.RenderRequest;
 import javax.portlet.RenderResponse;
+import javax.portlet.ResourceRequest;
+import javax.portlet.ResourceResponse;
+
+import org.exoplatform.container.ExoContainer;
+import org.exoplatform.container.ExoContainerContext;
+import org.exoplatform.container.PortalContainer;
+import org.exoplatform.portal.application.PortalRequestContext;
+import org.exoplatform.portal.webui.util.Util;
+import org.exoplatform.services.organization.OrganizationService;
+import org.exoplatform.services.security.ConversationState;
+import org.exoplatform.services.security.Identity;
 
 import org.gatein.api.PortalRequest;
-import org.gatein.api.navigation.NodePath;
-import org.gatein.api.site.SiteId;
 import org.gatein.common.logging.Logger;
 import org.gatein.common.logging.LoggerFactory;
-import org.gatein.web.security.impersonation.ImpersonationServlet;
+import org.gatein.web.security.impersonation.ImpersonatedIdentity;
+import org.gatein.web.security.impersonation.ImpersonationException;
+import org.gatein.web.security.impersonation.ImpersonationPolicy;
+import org.gatein.web.security.impersonation.ImpersonationServices;
+import org.gatein.web.security.impersonation.Impersonator;
 
 /**
  * User Impersonation Login Portlet
  *    - Currently logged in user is provided a form 
  *    - Enters name of user to impersonate and clicks Impersonate
- *    - User is now redirected to given page 
+ *    - User is now redirected to default site of impersonated user or to page configured in preference {@link #PREF_TARGET_NODE}
  *    
  * @author <a href="mailto:ocarr@redhat.com">Oliver Carr</a>
  * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
@@ -57,20 +72,238 @@ public class UserImpersonationLoginPortlet extends GenericPortlet
    private static final Logger log = LoggerFactory.getLogger(UserImpersonationLoginPortlet.class);
 
    private static final String ERROR_MESSAGE = "errorMessage";
+
+   /**
+    * Preference with path of node in current site, where user is redirected after start of impersonation. Default site of
+    * impersonated user is used by default, because page of admin user is usually not accessible to impersonated user
+    */
+   public static final String PREF_TARGET_NODE = "targetNode";
+
+   /** Value of preference {@link #PREF_TARGET_NODE}, which redirects user to current page */
+   public static final String TARGET_CURRENT_PAGE = ".";
+
+   /** Resource ID used for type-ahead search of users */
+   public static final String RESOURCE_SEARCH_USERS = "searchUsers";
+
+   /** Request parameter with prefix of username to search */
+   public static final String PARAM_PREFIX = "prefix";
+
+   /** Resource ID used to prefetch identity of user, whose name was typed, while admin user didn't submit form yet */
+   public static final String RESOURCE_PREFETCH_USER = "prefetchUser";
+
+   /** Request parameter with name of user to prefetch */
+   public static final String PARAM_USERNAME = "username";
+
+   /** Max count of usernames returned by search */
+   private static final int SEARCH_LIMIT = 10;
+
+   /** Max count of usernames checked against target rules of impersonation policy during search */
+   private static final int SEARCH_CANDIDATES = 50;
+
+   /** Max count of identities, which are not in identity cache, loaded during one search */
+   private static final int SEARCH_LOADS = 2;
+
+   private final UserPrefixIndex userIndex = new UserPrefixIndex();
+
+   private final Object indexLock = new Object();
+
+   // Set when building of index is started during first search
+   private volatile OrganizationService organizationService;
+
+   private boolean destroyed;
+
+   /**
+    * {@inheritDoc}
+    */
+   public void destroy()
+   {
+      synchronized (indexLock)
+      {
+         destroyed = true;
+         if (organizationService != null)
+         {
+            userIndex.stop(organizationService);
+         }
+      }
+   }
+
+   /**
+    * Start building of index of users in background thread during first search. Portal container may not be available yet
+    * when portlet is initialized
+    */
+   private UserPrefixIndex getUserIndex()
+   {
+      if (organizationService == null)
+      {
+         synchronized (indexLock)
+         {
+            if (organizationService == null && !destroyed)
+            {
+               final ExoContainer container = ExoContainerContext.getCurrentContainer();
+               final OrganizationService organizationService =
+                     (OrganizationService)container.getComponentInstanceOfType(OrganizationService.class);
+
+               Thread indexBuilder = new Thread("ImpersonationUserIndexBuilder")
+               {
+                  @Override
+                  public void run()
+                  {
+                     userIndex.build(container, organizationService);
+                  }
+               };
+               indexBuilder.setDaemon(true);
+               indexBuilder.start();
+               this.organizationService = organizationService;
+            }
+         }
+      }
+      return userIndex;
+   }
+
+   /**
+    * Serve type-ahead search of users and prefetch of identities. Search returns JSON array with usernames starting with given
+    * prefix, which current user is allowed to impersonate. Prefetch returns JSON boolean, which is true if identity of user is
+    * loaded in background. Users, who can't impersonate anyone, get status 403
+    *
+    * {@inheritDoc}
+    */
+   public void serveResource(ResourceRequest request, ResourceResponse response) throws PortletException, IOException
+   {
+      // Don't provide usernames to anonymous users
+      if (request.getRemoteUser() == null)
+      {
+         return;
+      }
+
+      // Don't provide usernames to users, who can't impersonate
+      Impersonator impersonator = Impersonator.getInstance();
+      ConversationState state = ConversationState.getCurrent();
+      Identity currentIdentity = state != null ? state.getIdentity() : null;
+      if (currentIdentity == null || !impersonator.getPolicy().canImpersonate(currentIdentity))
+      {
+         log.debug("User " + request.getRemoteUser() + " is not allowed to search users for impersonation");
+         response.setProperty(ResourceResponse.HTTP_STATUS_CODE, "403");
+         return;
+      }
+
+      if (RESOURCE_PREFETCH_USER.equals(request.getResourceID()))
+      {
+         prefetchUser(request, response);
+         return;
+      }
+      if (!RESOURCE_SEARCH_USERS.equals(request.getResourceID()))
+      {
+         return;
+      }
+
+      List<String> usernames = searchAllowedUsers(impersonator, currentIdentity, request.getParameter(PARAM_PREFIX));
+
+      response.setContentType("application/json");
+      PrintWriter writer = response.getWriter();
+      writer.write('[');
+      for (int i = 0; i < usernames.size(); i++)
+      {
+         if (i > 0)
+         {
+            writer.write(',');
+         }
+         writeJSONString(writer, usernames.get(i));
+      }
+      writer.write(']');
+   }
    
+   /**
+    * Search users with given prefix, who can be impersonated by given admin user. If admin user can't impersonate everyone,
+    * identities of candidates are checked against target rules of impersonation policy. Search is called for each typed
+    * character, so identities are taken from {@link org.gatein.web.security.impersonation.IdentityCache} and at most
+    * {@link #SEARCH_LOADS} missing identities are loaded from directory. Other candidates are skipped until they are cached
+    */
+   private List<String> searchAllowedUsers(Impersonator impersonator, Identity adminIdentity, String prefix)
+   {
+      UserPrefixIndex userIndex = getUserIndex();
+      ImpersonationPolicy policy = impersonator.getPolicy();
+      if (policy.canImpersonateAnyone(adminIdentity))
+      {
+         return userIndex.search(prefix, SEARCH_LIMIT);
+      }
+
+      ImpersonationServices services = null;
+      int loads = 0;
+      List<String> result = new ArrayList<String>();
+      for (String username : userIndex.search(prefix, SEARCH_CANDIDATES))
+      {
+         try
+         {
+            Identity identity = impersonator.getIdentityCache().getCachedIdentity(username);
+            if (identity == null)
+            {
+               if (loads == SEARCH_LOADS)
+               {
+                  continue;
+               }
+               loads++;
+               if (services == null)
+               {
+                  services = impersonator.getServices(PortalContainer.getInstance());
+               }
+               identity = impersonator.createIdentity(services, username);
+            }
+            if (identity != null && policy.isAllowed(adminIdentity, identity))
+            {
+               result.add(username);
+               if (result.size() == SEARCH_LIMIT)
+               {
+                  break;
+               }
+            }
+         }
+         catch (Exception e)
+         {
+            log.debug("Identity of user " + username + " not created during search", e);
+         }
+      }
+      return result;
+   }
+
+   /**
+    * Start loading of identity of given user, so start of impersonation doesn't need to wait for it. Name is validated
+    * against index of users, so users, which don't exist, are not looked up in directory
+    */
+   private void prefetchUser(ResourceRequest request, ResourceResponse response) throws IOException
+   {
+      String username = request.getParameter(PARAM_USERNAME);
+      boolean prefetched = false;
+      UserPrefixIndex userIndex = getUserIndex();
+      if (username != null && username.length() > 0 && (!userIndex.isComplete() || userIndex.contains(username)))
+      {
+         Impersonator impersonator = Impersonator.getInstance();
+         prefetched = impersonator.prefetchIdentity(impersonator.getServices(PortalContainer.getInstance()),
+               ConversationState.getCurrent(), username);
+      }
+
+      response.setContentType("application/json");
+      response.getWriter().write(String.valueOf(prefetched));
+   }
+
    /**
     * {@inheritDoc}
     */
    public void doView(RenderRequest request, RenderResponse response) throws PortletException, IOException 
    {
       response.setContentType("text/html");
+      String errorMessage = request.getParameter(ERROR_MESSAGE);
+      if (errorMessage != null)
+      {
+         request.setAttribute(ERROR_MESSAGE, escapeHTML(errorMessage));
+      }
       PortletRequestDispatcher prd = getPortletContext().getRequestDispatcher("/jsp/userimpersonatelogin.jsp");
       prd.include(request, response);
    }
 
    /**
-    * Process actions for edit and view portlet modes. In view mode it is for impersonating a user and
-    * the edit mode is setting the role needed for impersonation and redirect URL.
+    * Process actions for edit and view portlet modes. In view mode it is for impersonating a user. User and permission are
+    * validated here, so invalid request is rejected without any redirect. Impersonation is started in this request and browser
+    * is redirected directly to target page
     * 
     * {@inheritDoc}
     */
@@ -82,39 +315,161 @@ public class UserImpersonationLoginPortlet extends GenericPortlet
       if (usernameToImpersonate == null || usernameToImpersonate.length() == 0)
       {
          log.error("Username must be filled!");
+         response.setRenderParameter(ERROR_MESSAGE, "Username must be filled!");
          return;
       }
 
       PortalRequest portalRequest = PortalRequest.getInstance();
 
-      // Obtain current URL. We will need to send it to ImpersonationServlet
-      SiteId siteId = portalRequest.getSiteId();
-      NodePath nodePath = portalRequest.getNodePath();
-      String currentURI = portalRequest.getURIResolver().resolveURI(siteId) + nodePath.toString();
-
-      // We just need context like '/portal'
-      String uriPrefix = portalRequest.getURIResolver().resolveURI(new SiteId("k"));
-      String portalContext = uriPrefix.substring(0, uriPrefix.length() - 2);
-      String redirectURI = portalContext + ImpersonationServlet.IMPERSONATE_URL_SUFIX;
-
-      // Attach params
-      redirectURI = new StringBuilder(redirectURI)
-            .append("?")
-            .append(ImpersonationServlet.PARAM_ACTION)
-            .append("=")
-            .append(ImpersonationServlet.PARAM_ACTION_START_IMPERSONATION)
-            .append("&")
-            .append(ImpersonationServlet.PARAM_USERNAME)
-            .append("=")
-            .append(URLEncoder.encode(usernameToImpersonate, "UTF-8"))
-            .append("&")
-            .append(ImpersonationServlet.PARAM_RETURN_IMPERSONATION_URI)
-            .append("=")
-            .append(URLEncoder.encode(currentURI, "UTF-8"))
-            .toString();
-
-      // Redirect to impersonation servlet
-      response.sendRedirect(redirectURI);
+      // Obtain current URL. Admin user will return to it after impersonation session is finished
+      String siteURI = portalRequest.getURIResolver().resolveURI(portalRequest.getSiteId());
+      String currentURI = siteURI + portalRequest.getNodePath().toString();
+
+      long start = System.nanoTime();
+      Impersonator impersonator = Impersonator.getInstance();
+      PortalRequestContext prContext = Util.getPortalRequestContext();
+      String targetURI = getTargetURI(request, prContext.getRequest().getContextPath(), siteURI, currentURI);
+      try
+      {
+         ImpersonationServices services = impersonator.getServices(PortalContainer.getInstance());
+         ImpersonatedIdentity impersonatedIdentity;
+         try
+         {
+            impersonatedIdentity = impersonator.createImpersonatedIdentity(services, ConversationState.getCurrent(), usernameToImpersonate);
+         }
+         catch (ImpersonationException ie)
+         {
+            log.error(ie.getMessage());
+            response.setRenderParameter(ERROR_MESSAGE, getErrorMessage(ie.getReason(), usernameToImpersonate));
+            return;
+         }
+         catch (Exception e)
+         {
+            throw new PortletException(e);
+         }
+
+         impersonatedIdentity.setReturnURI(currentURI);
+         try
+         {
+            // Repeated submit of the form doesn't start impersonation again and it just redirects to target page
+            if (impersonator.startImpersonation(services, prContext.getRequest(), prContext.getResponse(), impersonatedIdentity))
+            {
+               impersonator.warmUp(services, impersonatedIdentity, prContext.getRequest(), targetURI);
+            }
+         }
+         catch (ImpersonationException ie)
+         {
+            log.debug(ie.getMessage());
+            response.setRenderParameter(ERROR_MESSAGE, getErrorMessage(ie.getReason(), usernameToImpersonate));
+            return;
+         }
+      }
+      finally
+      {
+         impersonator.getMetrics().recordStartImpersonation(System.nanoTime() - start);
+      }
+
+      // Redirect to target page, which will be already rendered for impersonated user. Portal context is resolved by portal
+      // to default site of impersonated user
+      if (log.isTraceEnabled())
+      {
+         log.trace("Impersonated as user " + usernameToImpersonate + ". Redirecting to " + targetURI);
+      }
+      response.sendRedirect(targetURI);
+   }
+
+   /**
+    * @param request current request
+    * @param portalContext context path of portal
+    * @param siteURI URI of current site
+    * @param currentURI URI of current page
+    * @return URI of node configured in preference {@link #PREF_TARGET_NODE}, current page if it's configured with
+    * {@link #TARGET_CURRENT_PAGE} or portal context if preference is empty
+    */
+   private static String getTargetURI(ActionRequest request, String portalContext, String siteURI, String currentURI)
+   {
+      String targetNode = request.getPreferences().getValue(PREF_TARGET_NODE, null);
+      if (targetNode == null || targetNode.trim().length() == 0)
+      {
+         return portalContext;
+      }
+
+      targetNode = targetNode.trim();
+      if (TARGET_CURRENT_PAGE.equals(targetNode))
+      {
+         return currentURI;
+      }
+      return targetNode.startsWith("/") ? siteURI + targetNode : siteURI + "/" + targetNode;
+   }
+
+   private static String getErrorMessage(ImpersonationException.Reason reason, String username)
+   {
+      switch (reason)
+      {
+         case USER_NOT_FOUND:
+            return "User " + username + " not found";
+         case ALREADY_IMPERSONATED:
+            return "You are already impersonated";
+         case FORBIDDEN:
+            return "You don't have permission to impersonate as user " + username;
+         case CONFLICT:
+            return "Impersonation is being started or finished in another request. Please try again";
+         default:
+            return "Impersonation as user " + username + " is not available now. Please try again later";
+      }
+   }
+
+   private static String escapeHTML(String value)
+   {
+      StringBuilder builder = new StringBuilder(value.length());
+      for (int i = 0; i < value.length(); i++)
+      {
+         char c = value.charAt(i);
+         switch (c)
+         {
+            case '<':
+               builder.append("&lt;");
+               break;
+            case '>':
+               builder.append("&gt;");
+               break;
+            case '&':
+               builder.append("&amp;");
+               break;
+            case '"':
+               builder.append("&quot;");
+               break;
+            case '\'':
+               builder.append("&#39;");
+               break;
+            default:
+               builder.append(c);
+         }
+      }
+      return builder.toString();
+   }
+
+   private static void writeJSONString(PrintWriter writer, String value)
+   {
+      writer.write('"');
+      for (int i = 0; i < value.length(); i++)
+      {
+         char c = value.charAt(i);
+         if (c == '"' || c == '\\')
+         {
+            writer.write('\\');
+            writer.write(c);
+         }
+         else if (c < 0x20 || c == '<' || c == '>')
+         {
+            writer.write(String.format("\\u%04x", (int)c));
+         }
+         else
+         {
+            writer.write(c);
+         }
+      }
+      writer.write('"');
    }
    
 }
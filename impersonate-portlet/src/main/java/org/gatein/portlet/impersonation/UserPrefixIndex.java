@@ -0,0 +1,491 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2012, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.portlet.impersonation;
+
+import org.exoplatform.commons.utils.ListAccess;
+import org.exoplatform.container.ExoContainer;
+import org.exoplatform.container.component.RequestLifeCycle;
+import org.exoplatform.services.organization.OrganizationService;
+import org.exoplatform.services.organization.User;
+import org.exoplatform.services.organization.UserEventListener;
+import org.gatein.common.logging.Logger;
+import org.gatein.common.logging.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Sorted in-memory index of usernames for type-ahead search of user to impersonate. Index is built incrementally by loading
+ * pages of users from {@link OrganizationService} and it's kept up to date by {@link UserEventListener}. Users can be
+ * searched while index is still being built.
+ *
+ * Usernames are kept in one sorted char array with offsets (about 20 bytes per user instead of 100 bytes for String in
+ * skip list), so index of millions of users is small. Users created or deleted later are kept in small sorted sets of
+ * changes, which are merged into new array when they grow. Lookup of first N users with given prefix needs O(log n) binary
+ * search to find first match and then O(N) to read matches
+ */
+public class UserPrefixIndex
+{
+   private static final Logger log = LoggerFactory.getLogger(UserPrefixIndex.class);
+
+   /** Count of users loaded from organization service at once */
+   private static final int PAGE_SIZE = 500;
+
+   /** Min count of loaded users merged into index at once during build. Bigger index is merged when loaded users double it */
+   private static final int MIN_MERGE_SIZE = 10000;
+
+   /** Max count of created and deleted users kept outside of sorted array */
+   static final int MAX_CHANGES = 1024;
+
+   private volatile SortedNames names = SortedNames.EMPTY;
+
+   // Changes not merged into names yet. User is never in both sets
+   private final NavigableSet<String> added = new ConcurrentSkipListSet<String>();
+   private final Set<String> removed = new ConcurrentSkipListSet<String>();
+
+   private final Object mergeLock = new Object();
+
+   private final UserEventListener listener = new UserEventListener()
+   {
+      @Override
+      public void postSave(User user, boolean isNew) throws Exception
+      {
+         if (isNew)
+         {
+            add(user.getUserName());
+         }
+      }
+
+      @Override
+      public void postDelete(User user) throws Exception
+      {
+         remove(user.getUserName());
+      }
+   };
+
+   private volatile boolean complete;
+   private volatile boolean stopped;
+
+   /**
+    * Register listener and load all users from organization service page by page. This could take long time for big
+    * count of users, so it's expected to be called from background thread
+    *
+    * @param container container used to start request lifecycle of organization service
+    * @param organizationService organization service
+    */
+   public void build(ExoContainer container, OrganizationService organizationService)
+   {
+      // Listener registered first, so users created during build are not missed
+      organizationService.getUserHandler().addUserEventListener(listener);
+
+      long start = System.currentTimeMillis();
+      try
+      {
+         ListAccess<User> users;
+         int size;
+         RequestLifeCycle.begin(container);
+         try
+         {
+            users = organizationService.getUserHandler().findAllUsers();
+            size = users.getSize();
+         }
+         finally
+         {
+            RequestLifeCycle.end();
+         }
+
+         List<String> loaded = new ArrayList<String>();
+         for (int index = 0; index < size && !stopped; index += PAGE_SIZE)
+         {
+            User[] page;
+            RequestLifeCycle.begin(container);
+            try
+            {
+               page = users.load(index, Math.min(PAGE_SIZE, size - index));
+            }
+            finally
+            {
+               RequestLifeCycle.end();
+            }
+
+            for (User user : page)
+            {
+               if (user != null)
+               {
+                  loaded.add(user.getUserName());
+               }
+            }
+
+            // Loaded users are searchable soon, while whole build copies each username just a few times
+            if (loaded.size() >= Math.max(MIN_MERGE_SIZE, names.size()))
+            {
+               merge(loaded);
+               loaded = new ArrayList<String>();
+            }
+         }
+         merge(loaded);
+
+         complete = !stopped;
+         log.debug("Index of " + names.size() + " users built in " + (System.currentTimeMillis() - start) + " ms");
+      }
+      catch (Exception e)
+      {
+         log.error("Unable to build index of users. Search of users will return just partial results", e);
+      }
+   }
+
+   /**
+    * Stop building of index and unregister listener
+    *
+    * @param organizationService organization service
+    */
+   public void stop(OrganizationService organizationService)
+   {
+      stopped = true;
+      organizationService.getUserHandler().removeUserEventListener(listener);
+   }
+
+   /**
+    * @param prefix prefix of username
+    * @param limit max count of returned usernames
+    * @return sorted list of first usernames starting with given prefix
+    */
+   public List<String> search(String prefix, int limit)
+   {
+      if (prefix == null || prefix.length() == 0 || limit <= 0)
+      {
+         return Collections.emptyList();
+      }
+
+      SortedNames names = this.names;
+      int index = names.lowerBound(prefix);
+      Iterator<String> addedIterator = added.tailSet(prefix, true).iterator();
+      String nextAdded = nextWithPrefix(addedIterator, prefix);
+
+      List<String> result = new ArrayList<String>(Math.min(limit, 16));
+      while (result.size() < limit)
+      {
+         boolean inNames = index < names.size() && names.startsWith(index, prefix);
+         String username;
+         if (!inNames)
+         {
+            if (nextAdded == null)
+            {
+               break;
+            }
+            username = nextAdded;
+            nextAdded = nextWithPrefix(addedIterator, prefix);
+         }
+         else
+         {
+            int comparison = nextAdded != null ? names.compare(index, nextAdded) : -1;
+            if (comparison > 0)
+            {
+               username = nextAdded;
+               nextAdded = nextWithPrefix(addedIterator, prefix);
+            }
+            else
+            {
+               // User deleted and created again during merge could be in both
+               if (comparison == 0)
+               {
+                  nextAdded = nextWithPrefix(addedIterator, prefix);
+               }
+               username = names.get(index++);
+            }
+         }
+
+         if (!removed.contains(username))
+         {
+            result.add(username);
+         }
+      }
+      return result;
+   }
+
+   /**
+    * @param username username
+    * @return true if user with given name is in index
+    */
+   public boolean contains(String username)
+   {
+      return (added.contains(username) || names.contains(username)) && !removed.contains(username);
+   }
+
+   /**
+    * @return true if all users were already loaded to index
+    */
+   public boolean isComplete()
+   {
+      return complete;
+   }
+
+   /**
+    * @return approximate count of users in index
+    */
+   public int size()
+   {
+      return Math.max(names.size() + added.size() - removed.size(), 0);
+   }
+
+   /**
+    * @param username name of created user
+    */
+   void add(String username)
+   {
+      removed.remove(username);
+      added.add(username);
+      mergeChangesIfNeeded();
+   }
+
+   /**
+    * @param username name of deleted user
+    */
+   void remove(String username)
+   {
+      added.remove(username);
+      removed.add(username);
+      mergeChangesIfNeeded();
+   }
+
+   private static String nextWithPrefix(Iterator<String> iterator, String prefix)
+   {
+      if (iterator.hasNext())
+      {
+         String username = iterator.next();
+         if (username.startsWith(prefix))
+         {
+            return username;
+         }
+      }
+      return null;
+   }
+
+   private void mergeChangesIfNeeded()
+   {
+      if (added.size() + removed.size() > MAX_CHANGES)
+      {
+         merge(new ArrayList<String>());
+      }
+   }
+
+   /**
+    * Create new sorted array from current one, given loaded usernames and pending changes. Merged changes are removed from
+    * sets of changes after new array is published, so searches see each user all the time
+    *
+    * @param loaded usernames to add. List is sorted by this method
+    */
+   void merge(List<String> loaded)
+   {
+      synchronized (mergeLock)
+      {
+         List<String> addedChanges = new ArrayList<String>(added);
+         List<String> removedChanges = new ArrayList<String>(removed);
+         if (loaded.isEmpty() && addedChanges.isEmpty() && removedChanges.isEmpty())
+         {
+            return;
+         }
+
+         loaded.addAll(addedChanges);
+         Collections.sort(loaded);
+         Collections.sort(removedChanges);
+         names = SortedNames.merge(names, loaded, removedChanges);
+
+         added.removeAll(addedChanges);
+         removed.removeAll(removedChanges);
+      }
+   }
+
+   /**
+    * Immutable sorted usernames stored in one char array. Username with index i is stored between offsets[i] and offsets[i + 1]
+    */
+   private static class SortedNames
+   {
+      private static final SortedNames EMPTY = new SortedNames(new char[0], new int[1], 0);
+
+      private final char[] chars;
+      private final int[] offsets;
+      private final int size;
+
+      private SortedNames(char[] chars, int[] offsets, int size)
+      {
+         this.chars = chars;
+         this.offsets = offsets;
+         this.size = size;
+      }
+
+      private int size()
+      {
+         return size;
+      }
+
+      private String get(int index)
+      {
+         return new String(chars, offsets[index], offsets[index + 1] - offsets[index]);
+      }
+
+      /**
+       * @return result of comparison of username with given index to given string with same meaning as {@link String#compareTo(String)}
+       */
+      private int compare(int index, String value)
+      {
+         int start = offsets[index];
+         int length = offsets[index + 1] - start;
+         int common = Math.min(length, value.length());
+         for (int i = 0; i < common; i++)
+         {
+            char c = chars[start + i];
+            char v = value.charAt(i);
+            if (c != v)
+            {
+               return c - v;
+            }
+         }
+         return length - value.length();
+      }
+
+      private boolean startsWith(int index, String prefix)
+      {
+         int start = offsets[index];
+         if (offsets[index + 1] - start < prefix.length())
+         {
+            return false;
+         }
+         for (int i = 0; i < prefix.length(); i++)
+         {
+            if (chars[start + i] != prefix.charAt(i))
+            {
+               return false;
+            }
+         }
+         return true;
+      }
+
+      /**
+       * @return index of first username, which is not lower than given value. Size if there is no such username
+       */
+      private int lowerBound(String value)
+      {
+         int low = 0;
+         int high = size;
+         while (low < high)
+         {
+            int middle = (low + high) >>> 1;
+            if (compare(middle, value) < 0)
+            {
+               low = middle + 1;
+            }
+            else
+            {
+               high = middle;
+            }
+         }
+         return low;
+      }
+
+      private boolean contains(String value)
+      {
+         int index = lowerBound(value);
+         return index < size && compare(index, value) == 0;
+      }
+
+      /**
+       * @param base current usernames
+       * @param additions sorted usernames to add. It could contain duplicates or usernames already in base
+       * @param removals sorted usernames to remove
+       * @return new sorted usernames
+       */
+      private static SortedNames merge(SortedNames base, List<String> additions, List<String> removals)
+      {
+         int maxChars = base.offsets[base.size];
+         for (String username : additions)
+         {
+            maxChars += username.length();
+         }
+         char[] chars = new char[maxChars];
+         int[] offsets = new int[base.size + additions.size() + 1];
+         int size = 0;
+         int position = 0;
+
+         int baseIndex = 0;
+         int additionIndex = 0;
+         int removalIndex = 0;
+         String last = null;
+         while (baseIndex < base.size || additionIndex < additions.size())
+         {
+            String username;
+            if (additionIndex == additions.size())
+            {
+               username = base.get(baseIndex++);
+            }
+            else if (baseIndex == base.size)
+            {
+               username = additions.get(additionIndex++);
+            }
+            else
+            {
+               int comparison = base.compare(baseIndex, additions.get(additionIndex));
+               username = comparison <= 0 ? base.get(baseIndex++) : additions.get(additionIndex++);
+            }
+
+            if (username.equals(last))
+            {
+               continue;
+            }
+            last = username;
+
+            while (removalIndex < removals.size() && removals.get(removalIndex).compareTo(username) < 0)
+            {
+               removalIndex++;
+            }
+            if (removalIndex < removals.size() && removals.get(removalIndex).equals(username))
+            {
+               continue;
+            }
+
+            username.getChars(0, username.length(), chars, position);
+            offsets[size++] = position;
+            position += username.length();
+         }
+         offsets[size] = position;
+
+         // Trim arrays if some usernames were duplicated or removed
+         if (position < chars.length)
+         {
+            chars = Arrays.copyOf(chars, position);
+         }
+         if (size + 1 < offsets.length)
+         {
+            offsets = Arrays.copyOf(offsets, size + 1);
+         }
+         return new SortedNames(chars, offsets, size);
+      }
+   }
+}
@@ -1,4 +1,5 @@
 <%@ taglib uri="http://java.sun.com/portlet_2_0" prefix="portlet" %>
+<portlet:defineObjects/>
 
 <div class="portlet-section-header">Welcome !</div>
 
@@ -6,11 +7,84 @@
 
 <div class="portlet-font">User Impersonate Login Form<br/>
 
+	<% if (renderRequest.getAttribute("errorMessage") != null) { %>
+	<div class="portlet-msg-error"><%= renderRequest.getAttribute("errorMessage") %></div>
+	<% } %>
+
 	<portlet:actionURL var="impersonateLoginActionURL"/>
+	<portlet:resourceURL var="searchUsersURL" id="searchUsers" escapeXml="false"/>
+	<portlet:resourceURL var="prefetchUserURL" id="prefetchUser" escapeXml="false"/>
 	<form action="<%= impersonateLoginActionURL %>" method="POST">
          <span class="portlet-form-field-label">User name:</span>
-         <input class="portlet-form-input-field" type="text" name="username"/>
+         <input class="portlet-form-input-field" type="text" name="username" autocomplete="off"
+                id="<portlet:namespace/>username" list="<portlet:namespace/>usernames"/>
+         <datalist id="<portlet:namespace/>usernames"></datalist>
 		 <input type="submit" value="Impersonate User"/>
 	</form>
 
+	<script type="text/javascript">
+	(function() {
+	   var input = document.getElementById("<portlet:namespace/>username");
+	   var list = document.getElementById("<portlet:namespace/>usernames");
+	   var timer = null;
+	   var lastPrefix = null;
+	   var lastPrefetched = null;
+	   var lastUsernames = [];
+
+	   // Admin user will likely impersonate existing user, whose name is typed. Server loads his identity meanwhile
+	   var prefetch = function(usernames) {
+	      var username = input.value;
+	      if (username == lastPrefetched) {
+	         return;
+	      }
+	      for (var i = 0; i < usernames.length; i++) {
+	         if (usernames[i] == username) {
+	            lastPrefetched = username;
+	            var xhr = new XMLHttpRequest();
+	            xhr.open("POST", "<%= prefetchUserURL %>&username=" + encodeURIComponent(username), true);
+	            xhr.send(null);
+	            return;
+	         }
+	      }
+	   };
+
+	   // Search users after short pause in typing, so server isn't asked for each keystroke
+	   input.onkeyup = function() {
+	      if (timer) {
+	         clearTimeout(timer);
+	      }
+	      timer = setTimeout(function() {
+	         var prefix = input.value;
+	         if (prefix.length == 0) {
+	            return;
+	         }
+	         if (prefix == lastPrefix) {
+	            // Name could be selected from list without typing
+	            prefetch(lastUsernames);
+	            return;
+	         }
+	         lastPrefix = prefix;
+
+	         var xhr = new XMLHttpRequest();
+	         xhr.open("GET", "<%= searchUsersURL %>&prefix=" + encodeURIComponent(prefix), true);
+	         xhr.onreadystatechange = function() {
+	            if (xhr.readyState == 4 && xhr.status == 200 && prefix == input.value) {
+	               var usernames = JSON.parse(xhr.responseText);
+	               lastUsernames = usernames;
+	               prefetch(usernames);
+	               list.innerHTML = "";
+	               for (var i = 0; i < usernames.length; i++) {
+	                  var option = document.createElement("option");
+	                  option.value = usernames[i];
+	                  list.appendChild(option);
+	               }
+	            }
+	         };
+	         xhr.send(null);
+	      }, 150);
+	   };
+	   input.onchange = input.onkeyup;
+	})();
+	</script>
+
 </div>
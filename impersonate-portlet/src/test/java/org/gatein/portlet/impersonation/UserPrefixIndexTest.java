@@ -0,0 +1,167 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.portlet.impersonation;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test of search in {@link UserPrefixIndex}
+ */
+public class UserPrefixIndexTest
+{
+   @Test
+   public void testSearch()
+   {
+      UserPrefixIndex index = new UserPrefixIndex();
+      index.merge(new ArrayList<String>(Arrays.asList("mary", "john", "marc", "mark", "martin", "demo", "root", "ma")));
+
+      assertEquals(Arrays.asList("ma", "marc", "mark", "martin", "mary"), index.search("ma", 10));
+      assertEquals(Arrays.asList("marc", "mark"), index.search("mar", 2));
+      assertEquals(Arrays.asList("root"), index.search("root", 10));
+      assertEquals(Collections.<String>emptyList(), index.search("rooty", 10));
+      assertEquals(Collections.<String>emptyList(), index.search("z", 10));
+      assertEquals(Collections.<String>emptyList(), index.search("", 10));
+      assertEquals(Collections.<String>emptyList(), index.search(null, 10));
+      assertEquals(Collections.<String>emptyList(), index.search("ma", 0));
+
+      assertTrue(index.contains("mark"));
+      assertFalse(index.contains("mar"));
+      assertEquals(8, index.size());
+   }
+
+   @Test
+   public void testChanges()
+   {
+      UserPrefixIndex index = new UserPrefixIndex();
+      index.merge(new ArrayList<String>(Arrays.asList("mary", "john", "mark")));
+
+      // Changes are searchable before they are merged
+      index.add("marc");
+      index.remove("mark");
+      index.add("mary");
+      assertEquals(Arrays.asList("marc", "mary"), index.search("ma", 10));
+      assertTrue(index.contains("marc"));
+      assertFalse(index.contains("mark"));
+
+      index.remove("marc");
+      index.add("mark");
+      assertEquals(Arrays.asList("mark", "mary"), index.search("ma", 10));
+
+      index.merge(new ArrayList<String>(Arrays.asList("martin")));
+      assertEquals(Arrays.asList("mark", "martin", "mary"), index.search("ma", 10));
+      assertFalse(index.contains("marc"));
+      assertEquals(4, index.size());
+   }
+
+   @Test
+   public void testSameAsSortedSet()
+   {
+      UserPrefixIndex index = new UserPrefixIndex();
+      TreeSet<String> expected = new TreeSet<String>();
+      Set<String> seen = new HashSet<String>();
+      Random random = new Random(42);
+
+      // Enough changes to merge them into sorted array several times
+      for (int round = 0; round < 20; round++)
+      {
+         // Directory returns just users, which were not deleted meanwhile
+         List<String> loaded = new ArrayList<String>();
+         for (int i = 0; i < 500; i++)
+         {
+            String username = randomUsername(random);
+            if (seen.add(username))
+            {
+               loaded.add(username);
+               expected.add(username);
+            }
+         }
+         index.merge(loaded);
+
+         for (int i = 0; i < UserPrefixIndex.MAX_CHANGES / 4; i++)
+         {
+            String username = randomUsername(random);
+            seen.add(username);
+            if (random.nextBoolean())
+            {
+               index.add(username);
+               expected.add(username);
+            }
+            else
+            {
+               index.remove(username);
+               expected.remove(username);
+            }
+         }
+
+         for (int i = 0; i < 100; i++)
+         {
+            String prefix = randomUsername(random);
+            prefix = prefix.substring(0, Math.min(prefix.length(), 1 + random.nextInt(3)));
+            int limit = 1 + random.nextInt(20);
+            assertEquals("Search of " + prefix, search(expected, prefix, limit), index.search(prefix, limit));
+
+            String username = randomUsername(random);
+            assertEquals("User " + username, expected.contains(username), index.contains(username));
+         }
+      }
+   }
+
+   private static List<String> search(TreeSet<String> usernames, String prefix, int limit)
+   {
+      List<String> result = new ArrayList<String>();
+      for (String username : usernames.tailSet(prefix))
+      {
+         if (!username.startsWith(prefix) || result.size() == limit)
+         {
+            break;
+         }
+         result.add(username);
+      }
+      return result;
+   }
+
+   private static String randomUsername(Random random)
+   {
+      int length = 1 + random.nextInt(7);
+      StringBuilder builder = new StringBuilder(length);
+      for (int i = 0; i < length; i++)
+      {
+         builder.append((char)('a' + random.nextInt(6)));
+      }
+      return builder.toString();
+   }
+}
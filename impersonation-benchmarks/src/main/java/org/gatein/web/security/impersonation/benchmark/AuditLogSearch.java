@@ -0,0 +1,100 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.web.security.impersonation.benchmark;
+
+import org.gatein.web.security.impersonation.audit.AuditEvent;
+import org.gatein.web.security.impersonation.audit.AuditLogReader;
+
+import java.io.File;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.TimeZone;
+
+/**
+ * Command line search in audit log written by {@link org.gatein.web.security.impersonation.audit.ImpersonationAuditLog}:
+ *
+ * java -cp impersonation-benchmarks/target/benchmarks.jar org.gatein.web.security.impersonation.benchmark.AuditLogSearch directory
+ *    [--admin user] [--user user] [--type STARTED|STOPPED|REJECTED|TERMINATED|DROPPED] [--from time] [--to time]
+ *
+ * Time is in UTC in format yyyy-MM-dd or yyyy-MM-dd'T'HH:mm:ss
+ */
+public class AuditLogSearch
+{
+   public static void main(String[] args) throws Exception
+   {
+      if (args.length == 0 || args.length % 2 == 0)
+      {
+         System.err.println("Usage: AuditLogSearch directory [--admin user] [--user user] [--type type] [--from time] [--to time]");
+         System.exit(1);
+      }
+
+      String adminUser = null;
+      String impersonatedUser = null;
+      AuditEvent.Type type = null;
+      long from = 0;
+      long to = Long.MAX_VALUE;
+      for (int i = 1; i < args.length; i += 2)
+      {
+         String option = args[i];
+         String value = args[i + 1];
+         if ("--admin".equals(option))
+         {
+            adminUser = value;
+         }
+         else if ("--user".equals(option))
+         {
+            impersonatedUser = value;
+         }
+         else if ("--type".equals(option))
+         {
+            type = AuditEvent.Type.valueOf(value.toUpperCase());
+         }
+         else if ("--from".equals(option))
+         {
+            from = parseTime(value);
+         }
+         else if ("--to".equals(option))
+         {
+            to = parseTime(value);
+         }
+         else
+         {
+            System.err.println("Unknown option: " + option);
+            System.exit(1);
+         }
+      }
+
+      for (AuditEvent event : new AuditLogReader(new File(args[0])).search(adminUser, impersonatedUser, type, from, to))
+      {
+         System.out.println(event);
+      }
+   }
+
+   private static long parseTime(String value) throws ParseException
+   {
+      SimpleDateFormat format = new SimpleDateFormat(value.indexOf('T') == -1 ? "yyyy-MM-dd" : "yyyy-MM-dd'T'HH:mm:ss");
+      format.setTimeZone(TimeZone.getTimeZone("UTC"));
+      return format.parse(value).getTime();
+   }
+}
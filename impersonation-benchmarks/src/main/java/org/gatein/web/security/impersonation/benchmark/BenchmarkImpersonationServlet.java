@@ -0,0 +1,63 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.web.security.impersonation.benchmark;
+
+import org.gatein.web.security.impersonation.ImpersonationServices;
+import org.gatein.web.security.impersonation.ImpersonationServlet;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * {@link ImpersonationServlet} with services provided from in-memory stand-ins instead of eXo container
+ */
+public class BenchmarkImpersonationServlet extends ImpersonationServlet
+{
+   private final ImpersonationServices services;
+
+   public BenchmarkImpersonationServlet(ImpersonationServices services)
+   {
+      this.services = services;
+   }
+
+   @Override
+   protected ImpersonationServices getServices()
+   {
+      return services;
+   }
+
+   @Override
+   public void startImpersonation(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException
+   {
+      super.startImpersonation(req, resp);
+   }
+
+   @Override
+   public void stopImpersonation(HttpServletRequest req, HttpServletResponse resp) throws IOException
+   {
+      super.stopImpersonation(req, resp);
+   }
+}
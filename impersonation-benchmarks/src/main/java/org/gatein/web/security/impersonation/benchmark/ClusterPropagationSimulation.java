@@ -0,0 +1,147 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.web.security.impersonation.benchmark;
+
+import org.exoplatform.services.security.ConversationState;
+import org.gatein.web.security.impersonation.ActiveImpersonation;
+import org.gatein.web.security.impersonation.IdentityCache;
+import org.gatein.web.security.impersonation.ImpersonatedIdentity;
+import org.gatein.web.security.impersonation.ImpersonationPolicy;
+import org.gatein.web.security.impersonation.Impersonator;
+import org.gatein.web.security.impersonation.cluster.ClusterBroadcaster;
+import org.gatein.web.security.impersonation.cluster.LoopbackChannel;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Simulates cluster of nodes connected by {@link LoopbackChannel} and measures how long it takes until termination of users
+ * issued on one node reaches impersonation sessions on all other nodes. Every user is terminated twice to show coalescing
+ * of events waiting for broadcast.
+ *
+ * Run with "java -cp impersonation-benchmarks/target/benchmarks.jar org.gatein.web.security.impersonation.benchmark.ClusterPropagationSimulation
+ * [nodes] [sessionsPerNode] [terminatedUsers] [latencyMillis] [flushIntervalMillis]"
+ */
+public class ClusterPropagationSimulation
+{
+   public static void main(String[] args) throws Exception
+   {
+      int nodeCount = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+      int sessionsPerNode = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+      int terminatedUsers = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+      long latencyMillis = args.length > 3 ? Long.parseLong(args[3]) : 1;
+      long flushIntervalMillis = args.length > 4 ? Long.parseLong(args[4]) : 20;
+
+      System.out.println("Nodes: " + nodeCount + ", sessions per node: " + sessionsPerNode + ", terminated users: " + terminatedUsers
+            + ", latency: " + latencyMillis + " ms, flush interval: " + flushIntervalMillis + " ms");
+
+      LoopbackChannel.Hub hub = new LoopbackChannel.Hub(latencyMillis);
+      Impersonator[] nodes = new Impersonator[nodeCount];
+      ClusterBroadcaster[] broadcasters = new ClusterBroadcaster[nodeCount];
+      ConversationState adminState = new ConversationState(StandIns.newIdentity("root"));
+      for (int i = 0; i < nodeCount; i++)
+      {
+         nodes[i] = new Impersonator(new IdentityCache(0, 0), new ImpersonationPolicy(ImpersonationPolicy.DEFAULT_RULES));
+         broadcasters[i] = new ClusterBroadcaster(new LoopbackChannel(hub), nodes[i], "node" + i, flushIntervalMillis, 500);
+         nodes[i].setBroadcaster(broadcasters[i]);
+         broadcasters[i].start();
+
+         // Sessions of same users are active on all nodes
+         for (int j = 0; j < sessionsPerNode; j++)
+         {
+            ImpersonatedIdentity identity = new ImpersonatedIdentity(StandIns.newIdentity("user" + j), adminState);
+            nodes[i].getIndex().createSessionEntry(identity, "10.0.0." + i).valueBound(null);
+         }
+      }
+
+      long start = System.nanoTime();
+      for (int round = 0; round < 2; round++)
+      {
+         for (int j = 0; j < terminatedUsers; j++)
+         {
+            nodes[0].terminateUser("user" + j);
+         }
+      }
+      long issued = System.nanoTime();
+
+      long[] propagation = new long[nodeCount - 1];
+      boolean[] done = new boolean[nodeCount];
+      int remaining = nodeCount - 1;
+      long timeout = start + TimeUnit.SECONDS.toNanos(30);
+      while (remaining > 0 && System.nanoTime() < timeout)
+      {
+         for (int i = 1; i < nodeCount; i++)
+         {
+            if (!done[i] && isTerminated(nodes[i], terminatedUsers))
+            {
+               done[i] = true;
+               propagation[i - 1] = System.nanoTime() - start;
+               remaining--;
+            }
+         }
+         LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+      }
+
+      for (ClusterBroadcaster broadcaster : broadcasters)
+      {
+         broadcaster.stop();
+      }
+
+      if (remaining > 0)
+      {
+         System.out.println("Termination didn't reach " + remaining + " nodes in 30 seconds");
+         return;
+      }
+
+      Arrays.sort(propagation);
+      System.out.println(String.format("Issuing %d terminations on node0: %.2f ms", terminatedUsers * 2, millis(issued - start)));
+      System.out.println(String.format("Propagation to all sessions of other nodes [ms]: min %.2f, median %.2f, max %.2f",
+            millis(propagation[0]), millis(propagation[propagation.length / 2]), millis(propagation[propagation.length - 1])));
+      ClusterBroadcaster origin = broadcasters[0];
+      System.out.println("Events published: " + origin.getPublishedEvents() + ", coalesced: " + origin.getCoalescedEvents()
+            + ", sent: " + origin.getSentEvents() + " in " + origin.getSentBatches() + " batches");
+      System.out.println("Events received by node1: " + broadcasters[1].getReceivedEvents());
+   }
+
+   private static boolean isTerminated(Impersonator node, int terminatedUsers)
+   {
+      for (int j = terminatedUsers - 1; j >= 0; j--)
+      {
+         for (ActiveImpersonation impersonation : node.getIndex().getByImpersonatedUser("user" + j))
+         {
+            if (!impersonation.isTerminating())
+            {
+               return false;
+            }
+         }
+      }
+      return true;
+   }
+
+   private static double millis(long nanos)
+   {
+      return nanos / 1000000.0;
+   }
+}
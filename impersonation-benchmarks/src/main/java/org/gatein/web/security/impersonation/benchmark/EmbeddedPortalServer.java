@@ -0,0 +1,600 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.web.security.impersonation.benchmark;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.exoplatform.container.ExoContainer;
+import org.exoplatform.services.security.ConversationState;
+import org.exoplatform.services.security.Identity;
+import org.exoplatform.services.security.IdentityConstants;
+import org.exoplatform.services.security.StateKey;
+import org.exoplatform.services.security.web.HttpSessionStateKey;
+import org.gatein.web.security.impersonation.CancelImpersonationFilter;
+import org.gatein.web.security.impersonation.ImpersonatedIdentity;
+import org.gatein.web.security.impersonation.ImpersonationFilter;
+import org.gatein.web.security.impersonation.ImpersonationServices;
+import org.gatein.web.security.impersonation.ImpersonationServlet;
+import org.gatein.web.security.impersonation.Impersonator;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpSessionBindingEvent;
+import javax.servlet.http.HttpSessionBindingListener;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Minimal servlet container serving portal context over HTTP with JDK {@link HttpServer}. Every request goes through same
+ * chain as in GateIn: simulated SetCurrentIdentityFilter, {@link CancelImpersonationFilter}, {@link ImpersonationFilter} and
+ * then {@link ImpersonationServlet} or simple portal page. eXo services are in-memory stand-ins from {@link StandIns}.
+ *
+ * Sessions are tracked with cookie. Container authentication is simulated by login page, which remembers name of user for
+ * the session. Paths:
+ * <ul>
+ * <li>/portal/login?username=xy - Authenticate session as given user</li>
+ * <li>/portal/impersonate - {@link ImpersonationServlet}</li>
+ * <li>/portal/logout - Logout of impersonated user. It requests cancel of impersonation session, which is finished by
+ * CancelImpersonationFilter during next request</li>
+ * <li>Any other path - Portal page, which stores last visited page into session and renders name of current user</li>
+ * </ul>
+ */
+public class EmbeddedPortalServer
+{
+   public static final String SESSION_COOKIE = "JSESSIONID";
+
+   public static final String LOGIN_PATH = StandIns.CONTEXT_PATH + "/login";
+
+   public static final String LOGOUT_PATH = StandIns.CONTEXT_PATH + "/logout";
+
+   public static final String IMPERSONATE_PATH = StandIns.CONTEXT_PATH + ImpersonationServlet.IMPERSONATE_URL_SUFIX;
+
+   public static final String PARAM_LOGIN_USERNAME = "username";
+
+   /** Prefix of body of portal page. It's followed by name of current user */
+   public static final String PAGE_USER_PREFIX = "user=";
+
+   private static final String ATTR_LAST_PAGE = "portal.lastPage";
+
+   private final HttpServer server;
+   private final ExecutorService executor;
+   private final ImpersonationServices services;
+   private final BenchmarkImpersonationServlet servlet;
+   private final Filter[] filters;
+   private final int sessionAttributes;
+
+   private final ConcurrentMap<String, ServerSession> sessions = new ConcurrentHashMap<String, ServerSession>();
+   private final AtomicLong sessionCounter = new AtomicLong();
+   private final AtomicLong serverErrors = new AtomicLong();
+
+   /**
+    * @param services stand-ins of eXo services
+    * @param port port to listen on. Value 0 chooses free port
+    * @param threads count of threads processing requests
+    * @param sessionAttributes count of attributes, which portal stores into session during login
+    */
+   public EmbeddedPortalServer(ImpersonationServices services, int port, int threads, int sessionAttributes) throws IOException
+   {
+      this.services = services;
+      this.servlet = new BenchmarkImpersonationServlet(services);
+      this.filters = new Filter[] {new StandaloneCancelImpersonationFilter(), new ImpersonationFilter()};
+      this.sessionAttributes = sessionAttributes;
+
+      // Filters find services through impersonator instead of eXo container
+      Impersonator.getInstance().setServices(services);
+
+      this.executor = Executors.newFixedThreadPool(threads);
+      this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 1024);
+      this.server.setExecutor(executor);
+      this.server.createContext(StandIns.CONTEXT_PATH, new HttpHandler()
+      {
+         public void handle(HttpExchange exchange) throws IOException
+         {
+            EmbeddedPortalServer.this.handle(exchange);
+         }
+      });
+   }
+
+   public void start()
+   {
+      server.start();
+   }
+
+   public void stop()
+   {
+      server.stop(0);
+      executor.shutdownNow();
+   }
+
+   /**
+    * @return URL of server without context path like "http://127.0.0.1:8080"
+    */
+   public String getBaseURL()
+   {
+      InetSocketAddress address = server.getAddress();
+      return "http://" + address.getHostName() + ":" + address.getPort();
+   }
+
+   /**
+    * @return count of requests failed with unexpected exception
+    */
+   public long getServerErrors()
+   {
+      return serverErrors.get();
+   }
+
+   public int getSessionCount()
+   {
+      return sessions.size();
+   }
+
+   private void handle(HttpExchange exchange) throws IOException
+   {
+      Exchange ex = new Exchange(exchange);
+      try
+      {
+         ex.session = findSession(exchange);
+         HttpServletRequest request = ex.newRequest();
+         HttpServletResponse response = ex.newResponse();
+
+         // SetCurrentIdentityFilter
+         ConversationState.setCurrent(getConversationState(ex.session));
+         new Chain(ex, 0).doFilter(request, response);
+      }
+      catch (Throwable t)
+      {
+         if (serverErrors.incrementAndGet() == 1)
+         {
+            t.printStackTrace();
+         }
+         ex.status = HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+      }
+      finally
+      {
+         ConversationState.setCurrent(null);
+      }
+      ex.send();
+   }
+
+   private ServerSession findSession(HttpExchange exchange)
+   {
+      String cookies = exchange.getRequestHeaders().getFirst("Cookie");
+      if (cookies == null)
+      {
+         return null;
+      }
+      for (String cookie : cookies.split(";"))
+      {
+         String[] nameAndValue = cookie.trim().split("=", 2);
+         if (nameAndValue.length == 2 && SESSION_COOKIE.equals(nameAndValue[0]))
+         {
+            return sessions.get(nameAndValue[1]);
+         }
+      }
+      return null;
+   }
+
+   private ConversationState getConversationState(ServerSession serverSession)
+   {
+      if (serverSession == null || serverSession.remoteUser == null)
+      {
+         return new ConversationState(new Identity(IdentityConstants.ANONIM));
+      }
+
+      StateKey stateKey = new HttpSessionStateKey(serverSession.session);
+      ConversationState state = services.getConversationRegistry().getState(stateKey);
+      if (state == null)
+      {
+         state = new ConversationState(services.getIdentityRegistry().getIdentity(serverSession.remoteUser));
+         services.getConversationRegistry().register(stateKey, state);
+      }
+      return state;
+   }
+
+   // Authentication of user like container does it
+   private void login(Exchange ex, HttpServletRequest request) throws Exception
+   {
+      String username = request.getParameter(PARAM_LOGIN_USERNAME);
+      if (username == null || services.getOrganizationService().getUserHandler().findUserByName(username) == null)
+      {
+         ex.status = HttpServletResponse.SC_FORBIDDEN;
+         return;
+      }
+
+      Identity identity = services.getAuthenticator().createIdentity(username);
+      services.getIdentityRegistry().register(identity);
+
+      HttpSession session = request.getSession(true);
+      ex.session.remoteUser = username;
+      services.getConversationRegistry().register(new HttpSessionStateKey(session), new ConversationState(identity));
+      for (int i = 0; i < sessionAttributes; i++)
+      {
+         session.setAttribute("portal.attribute." + i, "value" + i);
+      }
+      ex.body.write(PAGE_USER_PREFIX + username);
+   }
+
+   private void renderPage(Exchange ex, HttpServletRequest request)
+   {
+      HttpSession session = request.getSession(false);
+      if (session != null)
+      {
+         session.setAttribute(ATTR_LAST_PAGE, request.getRequestURI());
+      }
+      ex.body.write(PAGE_USER_PREFIX + request.getRemoteUser());
+   }
+
+   // Same as ImpersonationLogoutLifecycle without PortalRequestContext. Session is finished by CancelImpersonationFilter
+   private void logout(Exchange ex)
+   {
+      Identity identity = ConversationState.getCurrent().getIdentity();
+      if (identity instanceof ImpersonatedIdentity)
+      {
+         ((ImpersonatedIdentity)identity).requestCancel();
+      }
+      ex.body.write(PAGE_USER_PREFIX + identity.getUserId());
+   }
+
+   /**
+    * Filter chain of portal context
+    */
+   private class Chain implements FilterChain
+   {
+      private final Exchange ex;
+      private final int index;
+
+      Chain(Exchange ex, int index)
+      {
+         this.ex = ex;
+         this.index = index;
+      }
+
+      public void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException
+      {
+         if (index < filters.length)
+         {
+            filters[index].doFilter(request, response, new Chain(ex, index + 1));
+            return;
+         }
+
+         HttpServletRequest httpRequest = (HttpServletRequest)request;
+         String path = httpRequest.getRequestURI();
+         try
+         {
+            if (IMPERSONATE_PATH.equals(path))
+            {
+               servlet.service(request, response);
+            }
+            else if (LOGIN_PATH.equals(path))
+            {
+               login(ex, httpRequest);
+            }
+            else if (LOGOUT_PATH.equals(path))
+            {
+               logout(ex);
+            }
+            else
+            {
+               renderPage(ex, httpRequest);
+            }
+         }
+         catch (IOException ioe)
+         {
+            throw ioe;
+         }
+         catch (ServletException se)
+         {
+            throw se;
+         }
+         catch (Exception e)
+         {
+            throw new ServletException(e);
+         }
+      }
+   }
+
+   /**
+    * State of single HTTP request and its response
+    */
+   private class Exchange
+   {
+      private final HttpExchange exchange;
+      private final Map<String, String> parameters = new HashMap<String, String>();
+      private final Map<String, Object> attributes = new HashMap<String, Object>();
+      private final Map<String, String> headers = new HashMap<String, String>();
+      private final List<String> cookies = new ArrayList<String>();
+      private final StringWriter bodyBuffer = new StringWriter();
+      private final PrintWriter body = new PrintWriter(bodyBuffer);
+
+      private ServerSession session;
+      private int status = HttpServletResponse.SC_OK;
+      private String location;
+
+      Exchange(HttpExchange exchange) throws IOException
+      {
+         this.exchange = exchange;
+         String query = exchange.getRequestURI().getRawQuery();
+         if (query != null)
+         {
+            for (String param : query.split("&"))
+            {
+               String[] nameAndValue = param.split("=", 2);
+               parameters.put(URLDecoder.decode(nameAndValue[0], "UTF-8"),
+                     nameAndValue.length == 2 ? URLDecoder.decode(nameAndValue[1], "UTF-8") : "");
+            }
+         }
+      }
+
+      HttpSession getSession(boolean create)
+      {
+         if (session == null && create)
+         {
+            String id = "session" + sessionCounter.incrementAndGet();
+            session = new ServerSession(new BindingHttpSession(id));
+            sessions.put(id, session);
+            cookies.add(SESSION_COOKIE + "=" + id + "; Path=" + StandIns.CONTEXT_PATH);
+         }
+         return session != null ? session.session : null;
+      }
+
+      HttpServletRequest newRequest()
+      {
+         return StandIns.proxy(HttpServletRequest.class, new InvocationHandler()
+         {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+            {
+               String name = method.getName();
+               if ("getParameter".equals(name))
+               {
+                  return parameters.get((String)args[0]);
+               }
+               else if ("getSession".equals(name))
+               {
+                  return getSession(args == null || (Boolean)args[0]);
+               }
+               else if ("getRemoteUser".equals(name))
+               {
+                  return session != null ? session.remoteUser : null;
+               }
+               else if ("getContextPath".equals(name))
+               {
+                  return StandIns.CONTEXT_PATH;
+               }
+               else if ("getRequestURI".equals(name))
+               {
+                  return exchange.getRequestURI().getRawPath();
+               }
+               else if ("getQueryString".equals(name))
+               {
+                  return exchange.getRequestURI().getRawQuery();
+               }
+               else if ("getMethod".equals(name))
+               {
+                  return exchange.getRequestMethod();
+               }
+               else if ("getRemoteAddr".equals(name))
+               {
+                  return exchange.getRemoteAddress().getAddress().getHostAddress();
+               }
+               else if ("getHeader".equals(name))
+               {
+                  return exchange.getRequestHeaders().getFirst((String)args[0]);
+               }
+               else if ("getCookies".equals(name))
+               {
+                  return parseCookies(exchange.getRequestHeaders().getFirst("Cookie"));
+               }
+               else if ("getAttribute".equals(name))
+               {
+                  return attributes.get((String)args[0]);
+               }
+               else if ("setAttribute".equals(name))
+               {
+                  attributes.put((String)args[0], args[1]);
+                  return null;
+               }
+               else if ("removeAttribute".equals(name))
+               {
+                  attributes.remove((String)args[0]);
+                  return null;
+               }
+               return StandIns.defaultValue(proxy, method, args);
+            }
+         });
+      }
+
+      HttpServletResponse newResponse()
+      {
+         return StandIns.proxy(HttpServletResponse.class, new InvocationHandler()
+         {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+            {
+               String name = method.getName();
+               if ("sendRedirect".equals(name))
+               {
+                  status = HttpServletResponse.SC_MOVED_TEMPORARILY;
+                  location = (String)args[0];
+                  return null;
+               }
+               else if ("sendError".equals(name) || "setStatus".equals(name))
+               {
+                  status = (Integer)args[0];
+                  return null;
+               }
+               else if ("addCookie".equals(name))
+               {
+                  Cookie cookie = (Cookie)args[0];
+                  cookies.add(cookie.getName() + "=" + cookie.getValue() + "; Path=" + StandIns.CONTEXT_PATH);
+                  return null;
+               }
+               else if ("setHeader".equals(name))
+               {
+                  headers.put((String)args[0], (String)args[1]);
+                  return null;
+               }
+               else if ("getWriter".equals(name))
+               {
+                  return body;
+               }
+               return StandIns.defaultValue(proxy, method, args);
+            }
+         });
+      }
+
+      void send() throws IOException
+      {
+         for (String cookie : cookies)
+         {
+            exchange.getResponseHeaders().add("Set-Cookie", cookie);
+         }
+         for (Map.Entry<String, String> header : headers.entrySet())
+         {
+            exchange.getResponseHeaders().set(header.getKey(), header.getValue());
+         }
+         if (location != null)
+         {
+            exchange.getResponseHeaders().set("Location", location);
+         }
+
+         body.flush();
+         byte[] bytes = bodyBuffer.toString().getBytes("UTF-8");
+         exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+         exchange.sendResponseHeaders(status, bytes.length > 0 ? bytes.length : -1);
+         if (bytes.length > 0)
+         {
+            OutputStream out = exchange.getResponseBody();
+            out.write(bytes);
+         }
+         exchange.close();
+      }
+   }
+
+   private static Cookie[] parseCookies(String header)
+   {
+      if (header == null)
+      {
+         return null;
+      }
+      List<Cookie> cookies = new ArrayList<Cookie>();
+      for (String cookie : header.split(";"))
+      {
+         String[] nameAndValue = cookie.trim().split("=", 2);
+         if (nameAndValue.length == 2)
+         {
+            cookies.add(new Cookie(nameAndValue[0], nameAndValue[1]));
+         }
+      }
+      return cookies.toArray(new Cookie[cookies.size()]);
+   }
+
+   /**
+    * Session of servlet container with name of authenticated user. User is not saved in session attributes, so it's not
+    * hidden during impersonation like in real container
+    */
+   private static class ServerSession
+   {
+      private final HttpSession session;
+      private volatile String remoteUser;
+
+      ServerSession(HttpSession session)
+      {
+         this.session = session;
+      }
+   }
+
+   /**
+    * Session, which notifies {@link HttpSessionBindingListener} attributes like real servlet container
+    */
+   private static class BindingHttpSession extends InMemoryHttpSession
+   {
+      BindingHttpSession(String id)
+      {
+         super(id);
+      }
+
+      @Override
+      public void setAttribute(String name, Object value)
+      {
+         Object oldValue = getAttribute(name);
+         super.setAttribute(name, value);
+         if (oldValue != value)
+         {
+            if (value instanceof HttpSessionBindingListener)
+            {
+               ((HttpSessionBindingListener)value).valueBound(new HttpSessionBindingEvent(this, name, value));
+            }
+            if (oldValue instanceof HttpSessionBindingListener)
+            {
+               ((HttpSessionBindingListener)oldValue).valueUnbound(new HttpSessionBindingEvent(this, name, oldValue));
+            }
+         }
+      }
+
+      @Override
+      public void removeAttribute(String name)
+      {
+         Object oldValue = getAttribute(name);
+         super.removeAttribute(name);
+         if (oldValue instanceof HttpSessionBindingListener)
+         {
+            ((HttpSessionBindingListener)oldValue).valueUnbound(new HttpSessionBindingEvent(this, name, oldValue));
+         }
+      }
+   }
+
+   /**
+    * Filter without eXo container. Services are provided by {@link Impersonator#setServices(ImpersonationServices)}
+    */
+   private static class StandaloneCancelImpersonationFilter extends CancelImpersonationFilter
+   {
+      @Override
+      protected ExoContainer getContainer()
+      {
+         return null;
+      }
+   }
+}
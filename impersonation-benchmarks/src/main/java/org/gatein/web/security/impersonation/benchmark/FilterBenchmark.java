@@ -0,0 +1,109 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.web.security.impersonation.benchmark;
+
+import org.exoplatform.services.security.ConversationState;
+import org.gatein.web.security.impersonation.CancelImpersonationFilter;
+import org.gatein.web.security.impersonation.ImpersonatedIdentity;
+import org.gatein.web.security.impersonation.ImpersonationFilter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.servlet.ServletRequest;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-request overhead of {@link ImpersonationFilter} and {@link CancelImpersonationFilter} for normal and impersonated users
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FilterBenchmark
+{
+   @Param({"false", "true"})
+   public boolean impersonated;
+
+   private ImpersonationFilter impersonationFilter;
+   private CancelImpersonationFilter cancelImpersonationFilter;
+   private HttpServletRequest request;
+   private HttpServletResponse response;
+   private StandIns.RecordingFilterChain chain;
+
+   @Setup
+   public void setup()
+   {
+      ConversationState adminState = new ConversationState(StandIns.newIdentity("root"));
+      if (impersonated)
+      {
+         ImpersonatedIdentity identity = new ImpersonatedIdentity(StandIns.newIdentity("mary"), adminState);
+         ConversationState.setCurrent(new ConversationState(identity));
+      }
+      else
+      {
+         ConversationState.setCurrent(adminState);
+      }
+
+      impersonationFilter = new ImpersonationFilter();
+      cancelImpersonationFilter = new CancelImpersonationFilter();
+      request = StandIns.newRequest(new InMemoryHttpSession("session1"), "root");
+      response = StandIns.newResponse();
+      chain = new StandIns.RecordingFilterChain();
+   }
+
+   @Benchmark
+   public ServletRequest impersonationFilter() throws Exception
+   {
+      impersonationFilter.doFilter(request, response, chain);
+      return chain.getLastRequest();
+   }
+
+   @Benchmark
+   public ServletRequest cancelImpersonationFilter() throws Exception
+   {
+      cancelImpersonationFilter.doFilter(request, response, chain);
+      return chain.getLastRequest();
+   }
+
+   @Benchmark
+   public ServletRequest filterChain() throws Exception
+   {
+      cancelImpersonationFilter.doFilter(request, response, chain);
+      impersonationFilter.doFilter(chain.getLastRequest(), response, chain);
+      return chain.getLastRequest();
+   }
+}
@@ -0,0 +1,137 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.web.security.impersonation.benchmark;
+
+import org.exoplatform.services.security.ConversationState;
+import org.exoplatform.services.security.Identity;
+import org.exoplatform.services.security.MembershipEntry;
+import org.gatein.web.security.impersonation.ImpersonatedIdentity;
+import org.gatein.web.security.impersonation.SharedIdentitySets;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Compares heap retained by impersonation sessions of many admin users, who impersonate same user with many memberships.
+ * Previous approach copied memberships and roles into each identity. Now identities share {@link SharedIdentitySets}.
+ * Each session gets fresh identity of impersonated user (like from Authenticator), so memberships are equal, but not same
+ * objects. After all sessions are finished, interned sets are collected.
+ *
+ * Run with "java -cp impersonation-benchmarks/target/benchmarks.jar org.gatein.web.security.impersonation.benchmark.IdentityFootprintSimulation
+ * [sessions] [memberships] [roles]"
+ */
+public class IdentityFootprintSimulation
+{
+   public static void main(String[] args) throws Exception
+   {
+      int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 300;
+      int memberships = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+      int roles = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+
+      System.out.println("Sessions: " + sessions + ", memberships: " + memberships + ", roles: " + roles);
+      ConversationState adminState = new ConversationState(StandIns.newIdentity("root"));
+
+      long baseline = usedHeap();
+      List<Object> copied = new ArrayList<Object>(sessions);
+      for (int i = 0; i < sessions; i++)
+      {
+         Identity identity = newTenantIdentity(memberships, roles);
+         copied.add(new CopyingIdentity(identity));
+      }
+      long copiedBytes = usedHeap() - baseline;
+      copied.clear();
+
+      baseline = usedHeap();
+      List<ImpersonatedIdentity> shared = new ArrayList<ImpersonatedIdentity>(sessions);
+      for (int i = 0; i < sessions; i++)
+      {
+         Identity identity = newTenantIdentity(memberships, roles);
+         shared.add(new ImpersonatedIdentity(identity, adminState));
+      }
+      long sharedBytes = usedHeap() - baseline;
+      int internedWhileActive = SharedIdentitySets.getInternedCount();
+
+      System.out.println(String.format("%-16s %14s %16s", "mode", "total [B]", "per session [B]"));
+      System.out.println(String.format("%-16s %14d %16d", "copied", copiedBytes, copiedBytes / sessions));
+      System.out.println(String.format("%-16s %14d %16d", "shared", sharedBytes, sharedBytes / sessions));
+      System.out.println("Interned sets while sessions are active: " + internedWhileActive + " (identities check "
+            + (shared.get(0).getMemberships() == shared.get(sessions - 1).getMemberships() ? "same" : "different") + " sets)");
+
+      shared.clear();
+      usedHeap();
+      System.out.println("Interned sets after sessions are finished: " + SharedIdentitySets.getInternedCount());
+   }
+
+   // Identity from Authenticator has its own membership objects even if user didn't change
+   private static Identity newTenantIdentity(int memberships, int roles)
+   {
+      List<MembershipEntry> membershipList = new ArrayList<MembershipEntry>(memberships);
+      for (int i = 0; i < memberships; i++)
+      {
+         membershipList.add(new MembershipEntry(new String("/tenants/large/space" + i), new String("member")));
+      }
+      List<String> roleList = new ArrayList<String>(roles);
+      for (int i = 0; i < roles; i++)
+      {
+         roleList.add(new String("role" + i));
+      }
+      return new Identity("tenantuser", membershipList, roleList);
+   }
+
+   private static long usedHeap() throws InterruptedException
+   {
+      Runtime runtime = Runtime.getRuntime();
+      long used = Long.MAX_VALUE;
+      // Repeat until heap doesn't shrink anymore, so also weak references are cleared
+      for (int i = 0; i < 10; i++)
+      {
+         System.gc();
+         Thread.sleep(50);
+         long current = runtime.totalMemory() - runtime.freeMemory();
+         if (current >= used)
+         {
+            break;
+         }
+         used = current;
+      }
+      return used;
+   }
+
+   /**
+    * Layout of identity before sets were shared. Memberships and roles were copied by Identity and roles once more for
+    * checks of roles
+    */
+   private static class CopyingIdentity extends Identity
+   {
+      private final Set<String> roleSet;
+
+      private CopyingIdentity(Identity identity)
+      {
+         super(identity.getUserId(), identity.getMemberships(), identity.getRoles());
+         this.roleSet = new HashSet<String>(identity.getRoles());
+      }
+   }
+}
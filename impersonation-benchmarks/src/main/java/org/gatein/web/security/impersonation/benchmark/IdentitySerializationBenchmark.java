@@ -0,0 +1,189 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.web.security.impersonation.benchmark;
+
+import org.exoplatform.services.security.ConversationState;
+import org.exoplatform.services.security.Identity;
+import org.exoplatform.services.security.MembershipEntry;
+import org.gatein.web.security.impersonation.ImpersonatedIdentity;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.security.auth.Subject;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares compact serialized form of {@link ImpersonatedIdentity} with default serialization of whole graph including
+ * conversation state of admin user. Graph is represented by {@link FullGraph}, which contains same data as default
+ * serialization would write. Sizes of both forms are printed by {@link #main(String[])}
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class IdentitySerializationBenchmark
+{
+   private ImpersonatedIdentity identity;
+   private FullGraph fullGraph;
+   private byte[] compactBytes;
+   private byte[] fullGraphBytes;
+
+   public static void main(String[] args) throws Exception
+   {
+      IdentitySerializationBenchmark benchmark = new IdentitySerializationBenchmark();
+      benchmark.setup();
+      System.out.println("Compact form:    " + benchmark.compactBytes.length + " bytes");
+      System.out.println("Full graph form: " + benchmark.fullGraphBytes.length + " bytes");
+   }
+
+   @Setup
+   public void setup() throws IOException
+   {
+      Identity adminIdentity = StandIns.newIdentity("root");
+      ConversationState adminState = new ConversationState(adminIdentity);
+      adminState.setAttribute(ConversationState.SUBJECT, new Subject());
+      adminState.setAttribute("UserProfile", "root;Root;Root;root@localhost;en");
+
+      identity = new ImpersonatedIdentity(StandIns.newIdentity("mary"), adminState);
+      identity.setReturnURI("/portal/classic/administration/impersonation");
+      fullGraph = new FullGraph(identity, adminState);
+
+      compactBytes = serialize(identity);
+      fullGraphBytes = serialize(fullGraph);
+   }
+
+   @Benchmark
+   public byte[] serializeCompact() throws IOException
+   {
+      return serialize(identity);
+   }
+
+   @Benchmark
+   public byte[] serializeFullGraph() throws IOException
+   {
+      return serialize(fullGraph);
+   }
+
+   @Benchmark
+   public Object deserializeCompact() throws Exception
+   {
+      return deserialize(compactBytes);
+   }
+
+   @Benchmark
+   public Object deserializeFullGraph() throws Exception
+   {
+      return deserialize(fullGraphBytes);
+   }
+
+   private static byte[] serialize(Object object) throws IOException
+   {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+      ObjectOutputStream out = new ObjectOutputStream(bytes);
+      out.writeObject(object);
+      out.close();
+      return bytes.toByteArray();
+   }
+
+   private static Object deserialize(byte[] bytes) throws IOException, ClassNotFoundException
+   {
+      ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+      try
+      {
+         return in.readObject();
+      }
+      finally
+      {
+         in.close();
+      }
+   }
+
+   /**
+    * Same data like default serialization of impersonated identity with conversation state of admin user
+    */
+   static class FullGraph implements Serializable
+   {
+      private static final long serialVersionUID = 1L;
+
+      private final IdentityGraph impersonatedIdentity;
+      private final IdentityGraph adminIdentity;
+      private final Set<String> roleSet;
+      private final String principalName;
+      private final String returnURI;
+      private final boolean cancelRequested;
+      private final boolean stopped;
+      private final Map<String, Serializable> adminAttributes = new HashMap<String, Serializable>();
+
+      FullGraph(ImpersonatedIdentity identity, ConversationState adminState)
+      {
+         this.impersonatedIdentity = new IdentityGraph(identity);
+         this.adminIdentity = new IdentityGraph(adminState.getIdentity());
+         this.roleSet = new HashSet<String>(identity.getRoles());
+         this.principalName = identity.getUserId();
+         this.returnURI = identity.getReturnURI();
+         this.cancelRequested = identity.isCancelRequested();
+         this.stopped = identity.isStopped();
+         for (String name : adminState.getAttributeNames())
+         {
+            adminAttributes.put(name, (Serializable)adminState.getAttribute(name));
+         }
+      }
+   }
+
+   static class IdentityGraph implements Serializable
+   {
+      private static final long serialVersionUID = 1L;
+
+      private final String userId;
+      private final Set<MembershipEntry> memberships;
+      private final Set<String> roles;
+
+      IdentityGraph(Identity identity)
+      {
+         this.userId = identity.getUserId();
+         this.memberships = new HashSet<MembershipEntry>(identity.getMemberships());
+         this.roles = new HashSet<String>(identity.getRoles());
+      }
+   }
+}
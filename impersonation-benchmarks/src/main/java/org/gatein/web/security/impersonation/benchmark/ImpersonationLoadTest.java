@@ -0,0 +1,444 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.web.security.impersonation.benchmark;
+
+import org.exoplatform.services.security.IdentityRegistry;
+import org.gatein.web.security.impersonation.ImpersonationServices;
+import org.gatein.web.security.impersonation.ImpersonationServlet;
+import org.gatein.web.security.impersonation.Impersonator;
+import org.gatein.web.security.impersonation.LatencyHistogram;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * End-to-end load test of impersonation. {@link EmbeddedPortalServer} runs {@link ImpersonationServlet} and impersonation
+ * filters with organization service of synthetic users and authenticator with configurable latency. Client threads log in
+ * many admin sessions and drive each of them through cycles of start of impersonation, browsing of portal pages as
+ * impersonated user and stop of impersonation. Every second cycle is finished by logout instead of stop action. Steps of
+ * all sessions of client are interleaved, so all admin sessions are impersonated at the same time.
+ *
+ * Responses are verified, so request is counted as error also if page is rendered for wrong user. Throughput, latency
+ * percentiles and error rate are printed at the end. Process exits with status 1 if any of optional thresholds is
+ * exceeded, so it can be used as regression gate.
+ *
+ * Run with "java -cp impersonation-benchmarks/target/benchmarks.jar org.gatein.web.security.impersonation.benchmark.ImpersonationLoadTest
+ * [adminSessions] [clientThreads] [cycles] [pagesPerCycle] [users] [authenticatorLatencyMicros] [serverThreads]
+ * [minCyclesPerSecond] [maxP99Millis] [maxErrorRate]"
+ */
+public class ImpersonationLoadTest
+{
+   private static final String RETURN_URI = StandIns.CONTEXT_PATH + "/classic/home";
+
+   private static final String TARGET_URI = StandIns.CONTEXT_PATH + "/classic/sitemap";
+
+   /** Requests of one impersonation cycle */
+   private enum Operation
+   {
+      LOGIN, START, BROWSE, STOP, LOGOUT, CANCEL, RETURN
+   }
+
+   private final String baseURL;
+   private final int pagesPerCycle;
+   private final int users;
+
+   private final LatencyHistogram[] latencies = new LatencyHistogram[Operation.values().length];
+   private final AtomicLong[] errors = new AtomicLong[Operation.values().length];
+   private final AtomicLong completedCycles = new AtomicLong();
+   private final AtomicLong firstError = new AtomicLong();
+
+   ImpersonationLoadTest(String baseURL, int pagesPerCycle, int users)
+   {
+      this.baseURL = baseURL;
+      this.pagesPerCycle = pagesPerCycle;
+      this.users = users;
+      for (int i = 0; i < latencies.length; i++)
+      {
+         latencies[i] = new LatencyHistogram();
+         errors[i] = new AtomicLong();
+      }
+   }
+
+   public static void main(String[] args) throws Exception
+   {
+      int adminSessions = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+      int clientThreads = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+      int cycles = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+      int pagesPerCycle = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+      int users = args.length > 4 ? Integer.parseInt(args[4]) : 100000;
+      long authenticatorLatencyMicros = args.length > 5 ? Long.parseLong(args[5]) : 1000;
+      int serverThreads = args.length > 6 ? Integer.parseInt(args[6]) : 64;
+      double minCyclesPerSecond = args.length > 7 ? Double.parseDouble(args[7]) : 0;
+      double maxP99Millis = args.length > 8 ? Double.parseDouble(args[8]) : 0;
+      double maxErrorRate = args.length > 9 ? Double.parseDouble(args[9]) : 0.001;
+
+      System.out.println("Admin sessions: " + adminSessions + ", client threads: " + clientThreads + ", cycles: " + cycles
+            + ", pages per cycle: " + pagesPerCycle + ", users: " + users + ", authenticator latency: "
+            + authenticatorLatencyMicros + " us, server threads: " + serverThreads);
+
+      // Connections are kept alive for all client threads
+      System.setProperty("http.maxConnections", String.valueOf(clientThreads));
+      System.setProperty("sun.net.httpserver.maxIdleConnections", String.valueOf(clientThreads));
+
+      List<String> usernames = new ArrayList<String>(users + adminSessions);
+      for (int i = 0; i < users; i++)
+      {
+         usernames.add("user" + i);
+      }
+      for (int i = 0; i < adminSessions; i++)
+      {
+         usernames.add(StandIns.ADMIN_PREFIX + i);
+      }
+      IdentityRegistry identityRegistry = StandIns.newIdentityRegistry();
+      ImpersonationServices services = new ImpersonationServices(null, StandIns.newOrganizationService(usernames), null,
+            StandIns.newAuthenticator(authenticatorLatencyMicros), StandIns.newConversationRegistry(identityRegistry),
+            identityRegistry);
+
+      EmbeddedPortalServer server = new EmbeddedPortalServer(services, 0, serverThreads, 20);
+      server.start();
+      ImpersonationLoadTest test = new ImpersonationLoadTest(server.getBaseURL(), pagesPerCycle, users);
+      long duration;
+      try
+      {
+         duration = test.run(adminSessions, clientThreads, cycles);
+      }
+      finally
+      {
+         server.stop();
+      }
+
+      boolean passed = test.report(duration, server.getServerErrors(), minCyclesPerSecond, maxP99Millis, maxErrorRate);
+      System.out.println(Impersonator.getInstance().getMetrics());
+      System.exit(passed ? 0 : 1);
+   }
+
+   /**
+    * @return duration of test in nanoseconds
+    */
+   long run(int adminSessions, int clientThreads, final int cycles) throws InterruptedException
+   {
+      final CountDownLatch done = new CountDownLatch(clientThreads);
+      long start = System.nanoTime();
+      for (int c = 0; c < clientThreads; c++)
+      {
+         final List<AdminSession> owned = new ArrayList<AdminSession>();
+         for (int i = c; i < adminSessions; i += clientThreads)
+         {
+            owned.add(new AdminSession(StandIns.ADMIN_PREFIX + i));
+         }
+         final Random random = new Random(c);
+
+         Thread client = new Thread(new Runnable()
+         {
+            public void run()
+            {
+               try
+               {
+                  for (AdminSession session : owned)
+                  {
+                     login(session);
+                  }
+                  for (int cycle = 0; cycle < cycles; cycle++)
+                  {
+                     runCycle(owned, random, cycle % 2 == 1);
+                  }
+               }
+               finally
+               {
+                  done.countDown();
+               }
+            }
+         }, "LoadTestClient-" + c);
+         client.start();
+      }
+      done.await();
+      return System.nanoTime() - start;
+   }
+
+   // Each step is done for all sessions before next step, so all sessions are impersonated at once
+   private void runCycle(List<AdminSession> sessions, Random random, boolean logout)
+   {
+      for (AdminSession session : sessions)
+      {
+         session.impersonatedUser = "user" + random.nextInt(users);
+         session.impersonating = start(session);
+      }
+      for (int page = 0; page < pagesPerCycle; page++)
+      {
+         for (AdminSession session : sessions)
+         {
+            if (session.impersonating)
+            {
+               browse(session, StandIns.CONTEXT_PATH + "/classic/page" + page);
+            }
+         }
+      }
+      for (AdminSession session : sessions)
+      {
+         if (session.impersonating)
+         {
+            boolean stopped = logout ? logout(session) : stop(session);
+            if (stopped && returnToPortal(session))
+            {
+               completedCycles.incrementAndGet();
+            }
+         }
+      }
+   }
+
+   private void login(AdminSession session)
+   {
+      Response response = request(Operation.LOGIN, EmbeddedPortalServer.LOGIN_PATH + "?" + EmbeddedPortalServer.PARAM_LOGIN_USERNAME
+            + "=" + session.adminUser, null);
+      if (response != null && response.sessionCookie != null)
+      {
+         session.cookie = response.sessionCookie;
+      }
+      expect(Operation.LOGIN, response, 200, null, session.adminUser);
+   }
+
+   private boolean start(AdminSession session)
+   {
+      String uri = EmbeddedPortalServer.IMPERSONATE_PATH + "?" + ImpersonationServlet.PARAM_ACTION + "="
+            + ImpersonationServlet.PARAM_ACTION_START_IMPERSONATION + "&" + ImpersonationServlet.PARAM_USERNAME + "="
+            + session.impersonatedUser + "&" + ImpersonationServlet.PARAM_RETURN_IMPERSONATION_URI + "=" + encode(RETURN_URI)
+            + "&" + ImpersonationServlet.PARAM_TARGET_URI + "=" + encode(TARGET_URI);
+      return expect(Operation.START, request(Operation.START, uri, session.cookie), 302, TARGET_URI, null);
+   }
+
+   private void browse(AdminSession session, String uri)
+   {
+      expect(Operation.BROWSE, request(Operation.BROWSE, uri, session.cookie), 200, null, session.impersonatedUser);
+   }
+
+   private boolean stop(AdminSession session)
+   {
+      String uri = EmbeddedPortalServer.IMPERSONATE_PATH + "?" + ImpersonationServlet.PARAM_ACTION + "="
+            + ImpersonationServlet.PARAM_ACTION_STOP_IMPERSONATION;
+      return expect(Operation.STOP, request(Operation.STOP, uri, session.cookie), 302, RETURN_URI, null);
+   }
+
+   // Logout requests cancel of impersonation session, which is finished by CancelImpersonationFilter in next request
+   private boolean logout(AdminSession session)
+   {
+      return expect(Operation.LOGOUT, request(Operation.LOGOUT, EmbeddedPortalServer.LOGOUT_PATH, session.cookie), 200, null,
+            session.impersonatedUser)
+            && expect(Operation.CANCEL, request(Operation.CANCEL, TARGET_URI, session.cookie), 302, RETURN_URI, null);
+   }
+
+   private boolean returnToPortal(AdminSession session)
+   {
+      return expect(Operation.RETURN, request(Operation.RETURN, RETURN_URI, session.cookie), 200, null, session.adminUser);
+   }
+
+   /**
+    * @return true if response has expected status, redirect location and user rendered in page
+    */
+   private boolean expect(Operation operation, Response response, int status, String location, String user)
+   {
+      String problem = null;
+      if (response == null)
+      {
+         problem = "no response";
+      }
+      else if (response.status != status)
+      {
+         problem = "status " + response.status;
+      }
+      else if (location != null && !location.equals(response.location))
+      {
+         problem = "redirect to " + response.location;
+      }
+      else if (user != null && !(EmbeddedPortalServer.PAGE_USER_PREFIX + user).equals(response.body))
+      {
+         problem = "page rendered for " + response.body + " instead of " + user;
+      }
+
+      if (problem == null)
+      {
+         return true;
+      }
+      errors[operation.ordinal()].incrementAndGet();
+      if (firstError.compareAndSet(0, 1))
+      {
+         System.out.println("First error: " + operation + " - " + problem);
+      }
+      return false;
+   }
+
+   /**
+    * @return response or null if request failed with exception
+    */
+   private Response request(Operation operation, String uri, String cookie)
+   {
+      long start = System.nanoTime();
+      try
+      {
+         HttpURLConnection connection = (HttpURLConnection)new URL(baseURL + uri).openConnection();
+         connection.setInstanceFollowRedirects(false);
+         if (cookie != null)
+         {
+            connection.setRequestProperty("Cookie", cookie);
+         }
+
+         Response response = new Response();
+         response.status = connection.getResponseCode();
+         response.location = connection.getHeaderField("Location");
+         String setCookie = connection.getHeaderField("Set-Cookie");
+         if (setCookie != null && setCookie.startsWith(EmbeddedPortalServer.SESSION_COOKIE + "="))
+         {
+            response.sessionCookie = setCookie.substring(0, setCookie.indexOf(';'));
+         }
+         response.body = read(response.status >= 400 ? connection.getErrorStream() : connection.getInputStream());
+         return response;
+      }
+      catch (IOException ioe)
+      {
+         return null;
+      }
+      finally
+      {
+         latencies[operation.ordinal()].record(System.nanoTime() - start);
+      }
+   }
+
+   /**
+    * @return true if all thresholds were met
+    */
+   boolean report(long durationNanos, long serverErrors, double minCyclesPerSecond, double maxP99Millis, double maxErrorRate)
+   {
+      double seconds = durationNanos / 1000000000d;
+      long requests = 0;
+      long failed = 0;
+      double p99 = 0;
+      System.out.println(String.format("%-8s %10s %8s %10s %10s %10s %10s", "request", "count", "errors", "mean[ms]",
+            "median[ms]", "p99[ms]", "max[ms]"));
+      for (Operation operation : Operation.values())
+      {
+         LatencyHistogram histogram = latencies[operation.ordinal()];
+         long errorCount = errors[operation.ordinal()].get();
+         requests += histogram.getCount();
+         failed += errorCount;
+         if (operation != Operation.LOGIN)
+         {
+            p99 = Math.max(p99, histogram.getPercentileMillis(99));
+         }
+         System.out.println(String.format("%-8s %10d %8d %10.2f %10.2f %10.2f %10.2f", operation, histogram.getCount(), errorCount,
+               histogram.getMeanMillis(), histogram.getPercentileMillis(50), histogram.getPercentileMillis(99),
+               histogram.getMaxMillis()));
+      }
+
+      double cyclesPerSecond = completedCycles.get() / seconds;
+      double errorRate = requests == 0 ? 0 : (double)failed / requests;
+      System.out.println(String.format("Duration: %.2f s, requests: %d (%.0f/s), completed cycles: %d (%.1f/s)", seconds, requests,
+            requests / seconds, completedCycles.get(), cyclesPerSecond));
+      System.out.println(String.format("Error rate: %.4f%%, server errors: %d", errorRate * 100, serverErrors));
+
+      boolean passed = true;
+      if (minCyclesPerSecond > 0 && cyclesPerSecond < minCyclesPerSecond)
+      {
+         System.out.println(String.format("FAILED: throughput %.1f cycles/s is lower than %.1f", cyclesPerSecond, minCyclesPerSecond));
+         passed = false;
+      }
+      if (maxP99Millis > 0 && p99 > maxP99Millis)
+      {
+         System.out.println(String.format("FAILED: p99 latency %.2f ms is higher than %.2f ms", p99, maxP99Millis));
+         passed = false;
+      }
+      if (errorRate > maxErrorRate)
+      {
+         System.out.println(String.format("FAILED: error rate %.4f%% is higher than %.4f%%", errorRate * 100, maxErrorRate * 100));
+         passed = false;
+      }
+      return passed;
+   }
+
+   private static String read(InputStream in) throws IOException
+   {
+      if (in == null)
+      {
+         return "";
+      }
+      try
+      {
+         ByteArrayOutputStream out = new ByteArrayOutputStream();
+         byte[] buffer = new byte[256];
+         int read;
+         while ((read = in.read(buffer)) != -1)
+         {
+            out.write(buffer, 0, read);
+         }
+         return out.toString("UTF-8");
+      }
+      finally
+      {
+         in.close();
+      }
+   }
+
+   private static String encode(String value)
+   {
+      try
+      {
+         return URLEncoder.encode(value, "UTF-8");
+      }
+      catch (IOException ioe)
+      {
+         throw new IllegalStateException(ioe);
+      }
+   }
+
+   /**
+    * Browser of one admin user
+    */
+   private static class AdminSession
+   {
+      private final String adminUser;
+      private String cookie;
+      private String impersonatedUser;
+      private boolean impersonating;
+
+      AdminSession(String adminUser)
+      {
+         this.adminUser = adminUser;
+      }
+   }
+
+   private static class Response
+   {
+      private int status;
+      private String location;
+      private String sessionCookie;
+      private String body;
+   }
+}
@@ -0,0 +1,453 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.web.security.impersonation.benchmark;
+
+import org.exoplatform.services.security.ConversationRegistry;
+import org.exoplatform.services.security.ConversationState;
+import org.exoplatform.services.security.Identity;
+import org.exoplatform.services.security.IdentityRegistry;
+import org.exoplatform.services.security.StateKey;
+import org.exoplatform.services.security.web.HttpSessionStateKey;
+import org.gatein.web.security.impersonation.IdentityCache;
+import org.gatein.web.security.impersonation.ImpersonatedHttpSession;
+import org.gatein.web.security.impersonation.ImpersonatedIdentity;
+import org.gatein.web.security.impersonation.ImpersonationException;
+import org.gatein.web.security.impersonation.ImpersonationPolicy;
+import org.gatein.web.security.impersonation.ImpersonationServices;
+import org.gatein.web.security.impersonation.ImpersonationSessionState;
+import org.gatein.web.security.impersonation.Impersonator;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stress test of concurrent start and stop of impersonation in same HTTP session, like double click or two browser tabs.
+ * First phase sends same start and then same stop request from all threads of session at once, so exactly one of them must
+ * succeed. Second phase runs random mix of start as one of two users, browsing as impersonated user and stop. Requests
+ * read conversation state at their beginning like SetCurrentIdentityFilter, so they often act on state, which was changed by
+ * other thread meanwhile.
+ *
+ * At the end it verifies that every session is in stable state matching its conversation state, that each successful start
+ * was matched by one successful stop and that attributes of admin user are unchanged and no attribute of impersonated user
+ * stayed in admin session. Process exits with status 1 if any check fails.
+ *
+ * Run with "java -cp impersonation-benchmarks/target/benchmarks.jar org.gatein.web.security.impersonation.benchmark.ImpersonationStateStress
+ * [sessions] [threadsPerSession] [operationsPerThread]"
+ */
+public class ImpersonationStateStress
+{
+   private static final int ADMIN_ATTRIBUTES = 20;
+
+   private final Impersonator impersonator;
+   private final ImpersonationServices services;
+   private final ConversationRegistry conversationRegistry;
+
+   private final AtomicLong started = new AtomicLong();
+   private final AtomicLong duplicateStarts = new AtomicLong();
+   private final AtomicLong rejectedStarts = new AtomicLong();
+   private final AtomicLong stopped = new AtomicLong();
+   private final AtomicLong skippedStops = new AtomicLong();
+   private final AtomicLong browsed = new AtomicLong();
+   private final AtomicLong unexpectedErrors = new AtomicLong();
+   private final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+
+   ImpersonationStateStress()
+   {
+      List<String> usernames = new ArrayList<String>();
+      usernames.add("root");
+      usernames.add("user0");
+      usernames.add("user1");
+      IdentityRegistry identityRegistry = StandIns.newIdentityRegistry();
+      conversationRegistry = StandIns.newConversationRegistry(identityRegistry);
+      services = new ImpersonationServices(null, StandIns.newOrganizationService(usernames), null, StandIns.newAuthenticator(0),
+            conversationRegistry, identityRegistry);
+      impersonator = new Impersonator(new IdentityCache(100, 60000), new ImpersonationPolicy(ImpersonationPolicy.DEFAULT_RULES));
+      identityRegistry.register(StandIns.newIdentity("root"));
+   }
+
+   public static void main(String[] args) throws Exception
+   {
+      int sessionCount = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+      int threadsPerSession = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+      int operations = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+
+      System.out.println("Sessions: " + sessionCount + ", threads per session: " + threadsPerSession + ", operations per thread: "
+            + operations);
+
+      ImpersonationStateStress stress = new ImpersonationStateStress();
+      List<AdminSession> sessions = new ArrayList<AdminSession>();
+      for (int i = 0; i < sessionCount; i++)
+      {
+         sessions.add(stress.new AdminSession("session" + i));
+      }
+
+      stress.runDoubleClicks(sessions, threadsPerSession);
+      long start = System.nanoTime();
+      stress.runRandomMix(sessions, threadsPerSession, operations);
+      double seconds = (System.nanoTime() - start) / 1000000000d;
+      for (AdminSession session : sessions)
+      {
+         stress.verify(session);
+      }
+
+      long total = (long)sessionCount * threadsPerSession * operations;
+      System.out.println(String.format("Random mix: %d operations in %.2f s (%.0f/s)", total, seconds, total / seconds));
+      System.out.println("Starts: " + stress.started + ", duplicate starts: " + stress.duplicateStarts + ", rejected starts: "
+            + stress.rejectedStarts + ", stops: " + stress.stopped + ", skipped stops: " + stress.skippedStops + ", browsed: "
+            + stress.browsed + ", unexpected errors: " + stress.unexpectedErrors);
+      if (stress.started.get() != stress.stopped.get())
+      {
+         stress.failures.add("Started " + stress.started + " impersonation sessions, but stopped " + stress.stopped);
+      }
+      if (stress.unexpectedErrors.get() > 0)
+      {
+         stress.failures.add(stress.unexpectedErrors + " unexpected errors");
+      }
+
+      if (stress.failures.isEmpty())
+      {
+         System.out.println("All checks passed");
+         System.exit(0);
+      }
+      for (String failure : stress.failures)
+      {
+         System.out.println("FAILED: " + failure);
+      }
+      System.exit(1);
+   }
+
+   // Same start request and then same stop request sent by all threads of session at once
+   private void runDoubleClicks(List<AdminSession> sessions, int threadsPerSession) throws InterruptedException
+   {
+      for (final AdminSession session : sessions)
+      {
+         final AtomicInteger startedNow = new AtomicInteger();
+         final ImpersonatedIdentity[] identity = new ImpersonatedIdentity[1];
+         runAtOnce(threadsPerSession, new Runnable()
+         {
+            public void run()
+            {
+               ImpersonatedIdentity created = start(session, session.adminState, "user0");
+               if (created != null)
+               {
+                  startedNow.incrementAndGet();
+                  identity[0] = created;
+               }
+            }
+         });
+         if (startedNow.get() != 1)
+         {
+            failures.add("Double click started " + startedNow + " impersonation sessions in " + session.id);
+            continue;
+         }
+
+         final AtomicInteger stoppedNow = new AtomicInteger();
+         runAtOnce(threadsPerSession, new Runnable()
+         {
+            public void run()
+            {
+               if (stop(session, identity[0]))
+               {
+                  stoppedNow.incrementAndGet();
+               }
+            }
+         });
+         if (stoppedNow.get() != 1)
+         {
+            failures.add("Double click stopped " + stoppedNow + " impersonation sessions in " + session.id);
+         }
+      }
+   }
+
+   private void runRandomMix(List<AdminSession> sessions, int threadsPerSession, final int operations) throws InterruptedException
+   {
+      List<Thread> threads = new ArrayList<Thread>();
+      int seed = 0;
+      for (final AdminSession session : sessions)
+      {
+         for (int i = 0; i < threadsPerSession; i++)
+         {
+            final Random random = new Random(seed++);
+            threads.add(new Thread(new Runnable()
+            {
+               public void run()
+               {
+                  for (int j = 0; j < operations; j++)
+                  {
+                     randomOperation(session, random);
+                  }
+               }
+            }));
+         }
+      }
+      for (Thread thread : threads)
+      {
+         thread.start();
+      }
+      for (Thread thread : threads)
+      {
+         thread.join();
+      }
+   }
+
+   private void randomOperation(AdminSession session, Random random)
+   {
+      // SetCurrentIdentityFilter
+      ConversationState current = conversationRegistry.getState(session.stateKey);
+      Identity identity = current.getIdentity();
+      switch (random.nextInt(3))
+      {
+         case 0:
+            // Start request, which began while admin user was not impersonated yet
+            start(session, session.adminState, "user" + random.nextInt(2));
+            break;
+         case 1:
+            if (identity instanceof ImpersonatedIdentity)
+            {
+               ImpersonatedHttpSession view = ImpersonatedHttpSession.wrap(session.session, 1);
+               view.setAttribute("impersonated.attribute." + random.nextInt(5), identity.getUserId());
+               view.getAttribute("impersonated.attribute." + random.nextInt(5));
+               browsed.incrementAndGet();
+            }
+            break;
+         default:
+            if (identity instanceof ImpersonatedIdentity)
+            {
+               stop(session, (ImpersonatedIdentity)identity);
+            }
+      }
+   }
+
+   /**
+    * @return identity of started impersonation session or null if it was not started by this call
+    */
+   private ImpersonatedIdentity start(AdminSession session, ConversationState adminState, String username)
+   {
+      try
+      {
+         ImpersonatedIdentity identity = impersonator.createImpersonatedIdentity(services, adminState, username);
+         if (impersonator.startImpersonation(services, session.newRequest(), session.response, identity))
+         {
+            started.incrementAndGet();
+            return identity;
+         }
+         duplicateStarts.incrementAndGet();
+      }
+      catch (ImpersonationException ie)
+      {
+         if (ie.getReason() != ImpersonationException.Reason.CONFLICT)
+         {
+            unexpected(ie);
+         }
+         rejectedStarts.incrementAndGet();
+      }
+      catch (Throwable t)
+      {
+         unexpected(t);
+      }
+      return null;
+   }
+
+   private boolean stop(AdminSession session, ImpersonatedIdentity identity)
+   {
+      try
+      {
+         if (impersonator.stopImpersonation(services, session.newRequest(), session.response, identity))
+         {
+            stopped.incrementAndGet();
+            return true;
+         }
+         skippedStops.incrementAndGet();
+      }
+      catch (Throwable t)
+      {
+         unexpected(t);
+      }
+      return false;
+   }
+
+   private void verify(AdminSession session)
+   {
+      ImpersonationSessionState sessionState = impersonator.getSessionState(services, session.newRequest());
+      ConversationState current = conversationRegistry.getState(session.stateKey);
+      if (sessionState.getPhase() == ImpersonationSessionState.Phase.IMPERSONATING)
+      {
+         if (!(current.getIdentity() instanceof ImpersonatedIdentity) || !sessionState.isStartedAs(current.getIdentity().getUserId()))
+         {
+            failures.add(session.id + " is in state " + sessionState + ", but conversation state is for user "
+                  + current.getIdentity().getUserId());
+            return;
+         }
+         stop(session, (ImpersonatedIdentity)current.getIdentity());
+         current = conversationRegistry.getState(session.stateKey);
+      }
+
+      if (sessionState.getPhase() != ImpersonationSessionState.Phase.NORMAL || current != session.adminState)
+      {
+         failures.add(session.id + " is in state " + sessionState + " with conversation state of user "
+               + current.getIdentity().getUserId() + " after stop");
+         return;
+      }
+
+      Set<String> expected = new HashSet<String>();
+      for (int i = 0; i < ADMIN_ATTRIBUTES; i++)
+      {
+         expected.add("admin.attribute." + i);
+         if (!("value" + i).equals(session.session.getAttribute("admin.attribute." + i)))
+         {
+            failures.add("Attribute admin.attribute." + i + " of admin user changed in " + session.id);
+         }
+      }
+      expected.add(ImpersonationSessionState.ATTR_SESSION_STATE);
+      Set<String> names = new HashSet<String>();
+      for (Enumeration<?> e = session.session.getAttributeNames(); e.hasMoreElements(); )
+      {
+         names.add((String)e.nextElement());
+      }
+      if (!names.equals(expected))
+      {
+         names.removeAll(expected);
+         failures.add("Attributes " + names + " left in admin session " + session.id);
+      }
+   }
+
+   private void unexpected(Throwable t)
+   {
+      if (unexpectedErrors.incrementAndGet() == 1)
+      {
+         t.printStackTrace();
+      }
+   }
+
+   private static void runAtOnce(int threadCount, final Runnable task) throws InterruptedException
+   {
+      final CountDownLatch ready = new CountDownLatch(1);
+      Thread[] threads = new Thread[threadCount];
+      for (int i = 0; i < threadCount; i++)
+      {
+         threads[i] = new Thread(new Runnable()
+         {
+            public void run()
+            {
+               try
+               {
+                  ready.await();
+               }
+               catch (InterruptedException ie)
+               {
+                  return;
+               }
+               task.run();
+            }
+         });
+         threads[i].start();
+      }
+      ready.countDown();
+      for (Thread thread : threads)
+      {
+         thread.join();
+      }
+   }
+
+   /**
+    * HTTP session of admin user shared by all threads
+    */
+   private class AdminSession
+   {
+      private final String id;
+      private final ConcurrentHttpSession session;
+      private final StateKey stateKey;
+      private final ConversationState adminState;
+      private final HttpServletResponse response = StandIns.newResponse();
+
+      AdminSession(String id)
+      {
+         this.id = id;
+         this.session = new ConcurrentHttpSession(id);
+         for (int i = 0; i < ADMIN_ATTRIBUTES; i++)
+         {
+            session.setAttribute("admin.attribute." + i, "value" + i);
+         }
+         this.stateKey = new HttpSessionStateKey(session);
+         this.adminState = new ConversationState(StandIns.newIdentity("root"));
+         conversationRegistry.register(stateKey, adminState);
+      }
+
+      HttpServletRequest newRequest()
+      {
+         return StandIns.newRequest(session, "root");
+      }
+   }
+
+   /**
+    * Session, which can be accessed by more threads at once like session of real servlet container
+    */
+   private static class ConcurrentHttpSession extends InMemoryHttpSession
+   {
+      ConcurrentHttpSession(String id)
+      {
+         super(id);
+      }
+
+      @Override
+      public synchronized Object getAttribute(String name)
+      {
+         return super.getAttribute(name);
+      }
+
+      @Override
+      public synchronized Enumeration getAttributeNames()
+      {
+         return super.getAttributeNames();
+      }
+
+      @Override
+      public synchronized void setAttribute(String name, Object value)
+      {
+         super.setAttribute(name, value);
+      }
+
+      @Override
+      public synchronized void removeAttribute(String name)
+      {
+         super.removeAttribute(name);
+      }
+
+      @Override
+      public synchronized void invalidate()
+      {
+         super.invalidate();
+      }
+   }
+}
@@ -0,0 +1,97 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.web.security.impersonation.benchmark;
+
+import org.exoplatform.services.security.ConversationState;
+import org.exoplatform.services.security.IdentityRegistry;
+import org.gatein.web.security.impersonation.IdentityCache;
+import org.gatein.web.security.impersonation.ImpersonationBatch;
+import org.gatein.web.security.impersonation.ImpersonationPolicy;
+import org.gatein.web.security.impersonation.ImpersonationServices;
+import org.gatein.web.security.impersonation.Impersonator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of opening and closing batch of impersonation sessions through {@link Impersonator}, like load generator does it
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ImpersonatorBenchmark
+{
+   @Param({"100", "1000", "5000"})
+   public int batchSize;
+
+   @Param({"0", "500"})
+   public int identityCacheSize;
+
+   private Impersonator impersonator;
+   private ImpersonationServices services;
+   private ConversationState adminState;
+   private List<String> usernames;
+
+   @Setup
+   public void setup()
+   {
+      usernames = new ArrayList<String>();
+      for (int i = 0; i < batchSize; i++)
+      {
+         usernames.add("user" + i);
+      }
+
+      List<String> allUsers = new ArrayList<String>(usernames);
+      allUsers.add("root");
+
+      IdentityRegistry identityRegistry = StandIns.newIdentityRegistry();
+      services = new ImpersonationServices(null, StandIns.newOrganizationService(allUsers), null,
+            StandIns.newAuthenticator(0), StandIns.newConversationRegistry(identityRegistry), identityRegistry);
+      impersonator = new Impersonator(new IdentityCache(identityCacheSize, TimeUnit.MINUTES.toMillis(5)),
+            new ImpersonationPolicy(ImpersonationPolicy.DEFAULT_RULES));
+      adminState = new ConversationState(StandIns.newIdentity("root"));
+   }
+
+   @Benchmark
+   public int openAndCloseBatch() throws Exception
+   {
+      ImpersonationBatch batch = impersonator.openAll(services, adminState, usernames);
+      return batch.closeAll();
+   }
+}
@@ -0,0 +1,154 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.web.security.impersonation.benchmark;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpSessionContext;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Simple in-memory {@link HttpSession} used instead of session of real servlet container
+ */
+@SuppressWarnings("deprecation")
+public class InMemoryHttpSession implements HttpSession
+{
+   private final String id;
+
+   private final long creationTime = System.currentTimeMillis();
+
+   private final Map<String, Object> attributes = new LinkedHashMap<String, Object>();
+
+   private int maxInactiveInterval = 1800;
+
+   public InMemoryHttpSession(String id)
+   {
+      this.id = id;
+   }
+
+   public long getCreationTime()
+   {
+      return creationTime;
+   }
+
+   public String getId()
+   {
+      return id;
+   }
+
+   public long getLastAccessedTime()
+   {
+      return creationTime;
+   }
+
+   public ServletContext getServletContext()
+   {
+      return null;
+   }
+
+   public void setMaxInactiveInterval(int interval)
+   {
+      this.maxInactiveInterval = interval;
+   }
+
+   public int getMaxInactiveInterval()
+   {
+      return maxInactiveInterval;
+   }
+
+   public HttpSessionContext getSessionContext()
+   {
+      return null;
+   }
+
+   public Object getAttribute(String name)
+   {
+      return attributes.get(name);
+   }
+
+   public Object getValue(String name)
+   {
+      return getAttribute(name);
+   }
+
+   public Enumeration getAttributeNames()
+   {
+      // Copy names, so callers can modify session while iterating like in real servlet containers
+      return Collections.enumeration(new ArrayList<String>(attributes.keySet()));
+   }
+
+   public String[] getValueNames()
+   {
+      return attributes.keySet().toArray(new String[attributes.size()]);
+   }
+
+   public void setAttribute(String name, Object value)
+   {
+      if (value == null)
+      {
+         removeAttribute(name);
+      }
+      else
+      {
+         attributes.put(name, value);
+      }
+   }
+
+   public void putValue(String name, Object value)
+   {
+      setAttribute(name, value);
+   }
+
+   public void removeAttribute(String name)
+   {
+      attributes.remove(name);
+   }
+
+   public void removeValue(String name)
+   {
+      removeAttribute(name);
+   }
+
+   public void invalidate()
+   {
+      attributes.clear();
+   }
+
+   public boolean isNew()
+   {
+      return false;
+   }
+
+   /**
+    * @return count of attributes in this session
+    */
+   public int size()
+   {
+      return attributes.size();
+   }
+}
@@ -0,0 +1,131 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.web.security.impersonation.benchmark;
+
+import org.exoplatform.services.security.ConversationRegistry;
+import org.exoplatform.services.security.ConversationState;
+import org.exoplatform.services.security.Identity;
+import org.exoplatform.services.security.IdentityRegistry;
+import org.exoplatform.services.security.StateKey;
+import org.exoplatform.services.security.web.HttpSessionStateKey;
+import org.gatein.web.security.impersonation.IdentityCache;
+import org.gatein.web.security.impersonation.ImpersonatedHttpSession;
+import org.gatein.web.security.impersonation.ImpersonatedIdentity;
+import org.gatein.web.security.impersonation.ImpersonationPolicy;
+import org.gatein.web.security.impersonation.ImpersonationServices;
+import org.gatein.web.security.impersonation.Impersonator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of start and finish of nested impersonation session (push and pop of level 2) depending on count of attributes of
+ * admin user and of impersonated user of level 1. It should stay constant regardless of size of lower levels
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NestedImpersonationBenchmark
+{
+   @State(Scope.Thread)
+   public static class StackState
+   {
+      @Param({"10", "1000", "10000"})
+      public int sessionAttributes;
+
+      @Param({"false", "true"})
+      public boolean sessionReplication;
+
+      Impersonator impersonator;
+      ImpersonationServices services;
+      ConversationRegistry conversationRegistry;
+      StateKey stateKey;
+      ConversationState level1State;
+      HttpServletRequest request;
+      HttpServletResponse response;
+
+      @Setup(Level.Trial)
+      public void setupTrial() throws Exception
+      {
+         IdentityRegistry identityRegistry = StandIns.newIdentityRegistry();
+         conversationRegistry = StandIns.newConversationRegistry(identityRegistry);
+         services = new ImpersonationServices(null, StandIns.newOrganizationService(Arrays.asList("root", "user1", "user2")),
+               null, StandIns.newAuthenticator(0), conversationRegistry, identityRegistry);
+         impersonator = new Impersonator(new IdentityCache(10, TimeUnit.HOURS.toMillis(1)),
+               new ImpersonationPolicy(ImpersonationPolicy.DEFAULT_RULES + "; manager:/organization/management/user1 => *"));
+         impersonator.setSessionReplication(sessionReplication);
+         impersonator.setMaxDepth(2);
+
+         Identity adminIdentity = StandIns.newIdentity("root");
+         identityRegistry.register(adminIdentity);
+         ConversationState adminState = new ConversationState(adminIdentity);
+
+         InMemoryHttpSession session = new InMemoryHttpSession("session1");
+         for (int i = 0; i < sessionAttributes; i++)
+         {
+            session.setAttribute("portal.attribute." + i, "value" + i);
+         }
+         stateKey = new HttpSessionStateKey(session);
+         conversationRegistry.register(stateKey, adminState);
+         request = StandIns.newRequest(session, "root");
+         response = StandIns.newResponse();
+
+         // Level 1 with as many attributes as admin user has
+         ImpersonatedIdentity level1 = impersonator.createImpersonatedIdentity(services, adminState, "user1");
+         impersonator.startImpersonation(services, request, response, level1);
+         level1State = conversationRegistry.getState(stateKey);
+         HttpSession level1Session = ImpersonatedHttpSession.wrap(session, 1);
+         for (int i = 0; i < sessionAttributes; i++)
+         {
+            level1Session.setAttribute("portal.attribute." + i, "value" + i);
+         }
+      }
+   }
+
+   @Benchmark
+   public void pushPop(StackState state) throws Exception
+   {
+      ImpersonatedIdentity level2 = state.impersonator.createImpersonatedIdentity(state.services, state.level1State, "user2");
+      state.impersonator.startImpersonation(state.services, state.request, state.response, level2);
+      ImpersonatedHttpSession.wrap(ImpersonatedHttpSession.getRealSession(state.request, true), 2).setAttribute("attribute", "value");
+      state.impersonator.stopImpersonation(state.services, state.request, state.response, level2);
+   }
+}
@@ -0,0 +1,108 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.web.security.impersonation.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * {@link InMemoryHttpSession}, which simulates attribute based session replication in cluster. Each call of
+ * {@link #setAttribute(String, Object)} replicates serialized attribute and each call of {@link #removeAttribute(String)}
+ * replicates name of removed attribute. Count of replicated bytes is tracked
+ */
+public class ReplicatingHttpSession extends InMemoryHttpSession
+{
+   private long replicatedBytes;
+   private long replicatedAttributes;
+
+   public ReplicatingHttpSession(String id)
+   {
+      super(id);
+   }
+
+   @Override
+   public void setAttribute(String name, Object value)
+   {
+      super.setAttribute(name, value);
+      if (value != null)
+      {
+         replicatedBytes += sizeOf(name) + sizeOf(value);
+         replicatedAttributes++;
+      }
+   }
+
+   @Override
+   public void removeAttribute(String name)
+   {
+      super.removeAttribute(name);
+      replicatedBytes += sizeOf(name);
+      replicatedAttributes++;
+   }
+
+   public long getReplicatedBytes()
+   {
+      return replicatedBytes;
+   }
+
+   public long getReplicatedAttributes()
+   {
+      return replicatedAttributes;
+   }
+
+   public void resetCounters()
+   {
+      replicatedBytes = 0;
+      replicatedAttributes = 0;
+   }
+
+   private static long sizeOf(String name)
+   {
+      try
+      {
+         return name.getBytes("UTF-8").length;
+      }
+      catch (UnsupportedEncodingException e)
+      {
+         throw new IllegalStateException(e);
+      }
+   }
+
+   private static long sizeOf(Object value)
+   {
+      try
+      {
+         ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+         ObjectOutputStream out = new ObjectOutputStream(bytes);
+         out.writeObject(value);
+         out.close();
+         return bytes.size();
+      }
+      catch (IOException e)
+      {
+         throw new IllegalStateException("Attribute not serializable: " + value, e);
+      }
+   }
+}
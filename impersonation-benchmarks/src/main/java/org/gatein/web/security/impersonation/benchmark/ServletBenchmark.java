@@ -0,0 +1,193 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.web.security.impersonation.benchmark;
+
+import org.exoplatform.services.security.ConversationRegistry;
+import org.exoplatform.services.security.ConversationState;
+import org.exoplatform.services.security.Identity;
+import org.exoplatform.services.security.IdentityRegistry;
+import org.exoplatform.services.security.StateKey;
+import org.exoplatform.services.security.web.HttpSessionStateKey;
+import org.gatein.web.security.impersonation.ImpersonationServices;
+import org.gatein.web.security.impersonation.ImpersonationServlet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of {@link ImpersonationServlet} start and stop of impersonation session depending on size of admin's HTTP session
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServletBenchmark
+{
+   @State(Scope.Thread)
+   public static class ServletState
+   {
+      @Param({"10", "100", "500"})
+      public int sessionAttributes;
+
+      @Param({"0"})
+      public long authenticatorLatencyMicros;
+
+      BenchmarkImpersonationServlet servlet;
+      ConversationRegistry conversationRegistry;
+      InMemoryHttpSession session;
+      StateKey stateKey;
+      ConversationState adminState;
+      HttpServletRequest startRequest;
+      HttpServletRequest stopRequest;
+      HttpServletResponse response;
+
+      @Setup(Level.Trial)
+      public void setupTrial()
+      {
+         List<String> usernames = new ArrayList<String>();
+         for (int i = 0; i < 1000; i++)
+         {
+            usernames.add("user" + i);
+         }
+         usernames.add("root");
+
+         IdentityRegistry identityRegistry = StandIns.newIdentityRegistry();
+         conversationRegistry = StandIns.newConversationRegistry(identityRegistry);
+         servlet = new BenchmarkImpersonationServlet(new ImpersonationServices(null,
+               StandIns.newOrganizationService(usernames), null, StandIns.newAuthenticator(authenticatorLatencyMicros),
+               conversationRegistry, identityRegistry));
+
+         Identity adminIdentity = StandIns.newIdentity("root");
+         identityRegistry.register(adminIdentity);
+         adminState = new ConversationState(adminIdentity);
+
+         session = new InMemoryHttpSession("session1");
+         for (int i = 0; i < sessionAttributes; i++)
+         {
+            session.setAttribute("portal.attribute." + i, "value" + i);
+         }
+         stateKey = new HttpSessionStateKey(session);
+
+         Map<String, String> startParams = new HashMap<String, String>();
+         startParams.put(ImpersonationServlet.PARAM_ACTION, ImpersonationServlet.PARAM_ACTION_START_IMPERSONATION);
+         startParams.put(ImpersonationServlet.PARAM_USERNAME, "user42");
+         startParams.put(ImpersonationServlet.PARAM_RETURN_IMPERSONATION_URI, StandIns.CONTEXT_PATH + "/classic/home");
+         startRequest = StandIns.newRequest(session, "root", startParams);
+
+         Map<String, String> stopParams = new HashMap<String, String>();
+         stopParams.put(ImpersonationServlet.PARAM_ACTION, ImpersonationServlet.PARAM_ACTION_STOP_IMPERSONATION);
+         stopRequest = StandIns.newRequest(session, "root", stopParams);
+
+         response = StandIns.newResponse();
+         becomeAdmin();
+      }
+
+      /** Simulates SetCurrentIdentityFilter for admin user */
+      void becomeAdmin()
+      {
+         conversationRegistry.register(stateKey, adminState);
+         ConversationState.setCurrent(adminState);
+      }
+
+      boolean isAdmin()
+      {
+         return conversationRegistry.getState(stateKey) == adminState;
+      }
+
+      /** Simulates SetCurrentIdentityFilter after impersonation was started */
+      void becomeImpersonated()
+      {
+         ConversationState.setCurrent(conversationRegistry.getState(stateKey));
+      }
+   }
+
+   @State(Scope.Thread)
+   public static class AdminState extends ServletState
+   {
+      @Setup(Level.Invocation)
+      public void setupInvocation() throws Exception
+      {
+         if (!isAdmin())
+         {
+            becomeImpersonated();
+            servlet.stopImpersonation(stopRequest, response);
+            becomeAdmin();
+         }
+      }
+   }
+
+   @State(Scope.Thread)
+   public static class ImpersonatedState extends ServletState
+   {
+      @Setup(Level.Invocation)
+      public void setupInvocation() throws Exception
+      {
+         if (isAdmin())
+         {
+            servlet.startImpersonation(startRequest, response);
+         }
+         becomeImpersonated();
+      }
+   }
+
+   @Benchmark
+   public void startImpersonation(AdminState state) throws Exception
+   {
+      state.servlet.startImpersonation(state.startRequest, state.response);
+   }
+
+   @Benchmark
+   public void stopImpersonation(ImpersonatedState state) throws Exception
+   {
+      state.servlet.stopImpersonation(state.stopRequest, state.response);
+      state.becomeAdmin();
+   }
+
+   @Benchmark
+   public void startStopCycle(ServletState state) throws Exception
+   {
+      state.servlet.startImpersonation(state.startRequest, state.response);
+      state.becomeImpersonated();
+      state.servlet.stopImpersonation(state.stopRequest, state.response);
+      state.becomeAdmin();
+   }
+}
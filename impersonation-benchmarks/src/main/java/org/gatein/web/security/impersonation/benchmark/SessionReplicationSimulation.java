@@ -0,0 +1,183 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.web.security.impersonation.benchmark;
+
+import org.gatein.web.security.impersonation.ImpersonatedHttpSession;
+
+import javax.servlet.http.HttpSession;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+
+/**
+ * Compares count of bytes replicated in cluster during start of impersonation, requests of impersonated user and stop of
+ * impersonation. Compared are local and replicated mode of {@link ImpersonatedHttpSession} and also previous approach, which
+ * copied every attribute of admin user under "_bck." prefix.
+ *
+ * Run with "java -cp impersonation-benchmarks/target/benchmarks.jar org.gatein.web.security.impersonation.benchmark.SessionReplicationSimulation [adminAttributes]"
+ */
+public class SessionReplicationSimulation
+{
+   private static final int REQUESTS = 20;
+
+   public static void main(String[] args)
+   {
+      int adminAttributes = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+
+      System.out.println("Admin session attributes: " + adminAttributes + ", requests of impersonated user: " + REQUESTS);
+      System.out.println(String.format("%-12s %14s %14s %14s %14s", "mode", "start [B]", "requests [B]", "stop [B]", "total [B]"));
+
+      Result legacy = simulateLegacy(adminAttributes);
+      Result local = simulate(adminAttributes, false);
+      Result replicated = simulate(adminAttributes, true);
+      print("legacy _bck.", legacy);
+      print("local", local);
+      print("replicated", replicated);
+
+      System.out.println();
+      System.out.println("Note: local mode doesn't replicate changes of impersonated user's attributes at all (they are mutated inside single attribute). "
+            + "Use replicated mode in cluster.");
+   }
+
+   private static Result simulate(int adminAttributes, boolean replicated)
+   {
+      ReplicatingHttpSession session = createAdminSession(adminAttributes);
+      Result result = new Result();
+
+      ImpersonatedHttpSession.start(session, replicated);
+      result.start = session.getReplicatedBytes();
+
+      session.resetCounters();
+      for (int i = 0; i < REQUESTS; i++)
+      {
+         HttpSession impersonatedSession = ImpersonatedHttpSession.wrap(session);
+         simulateRequest(impersonatedSession, i);
+      }
+      result.requests = session.getReplicatedBytes();
+
+      session.resetCounters();
+      ImpersonatedHttpSession.stop(session);
+      result.stop = session.getReplicatedBytes();
+      checkAdminSession(session, adminAttributes);
+      return result;
+   }
+
+   // Simulation of backup and restore with "_bck." prefix used by previous version of ImpersonationServlet
+   private static Result simulateLegacy(int adminAttributes)
+   {
+      ReplicatingHttpSession session = createAdminSession(adminAttributes);
+      Result result = new Result();
+
+      for (String name : names(session))
+      {
+         session.setAttribute("_bck." + name, session.getAttribute(name));
+         session.removeAttribute(name);
+      }
+      result.start = session.getReplicatedBytes();
+
+      session.resetCounters();
+      for (int i = 0; i < REQUESTS; i++)
+      {
+         simulateRequest(session, i);
+      }
+      result.requests = session.getReplicatedBytes();
+
+      session.resetCounters();
+      for (String name : names(session))
+      {
+         if (name.startsWith("_bck."))
+         {
+            session.setAttribute(name.substring(5), session.getAttribute(name));
+         }
+         session.removeAttribute(name);
+      }
+      result.stop = session.getReplicatedBytes();
+      checkAdminSession(session, adminAttributes);
+      return result;
+   }
+
+   // Impersonated user updates one attribute during each request and creates new one each 5th request
+   private static void simulateRequest(HttpSession session, int requestNumber)
+   {
+      session.setAttribute("portal.state", "state-" + requestNumber);
+      if (requestNumber % 5 == 0)
+      {
+         session.setAttribute("portlet.attribute." + requestNumber, new StringBuilder(createValue(requestNumber)).toString());
+      }
+   }
+
+   private static ReplicatingHttpSession createAdminSession(int adminAttributes)
+   {
+      ReplicatingHttpSession session = new ReplicatingHttpSession("session1");
+      for (int i = 0; i < adminAttributes; i++)
+      {
+         session.setAttribute("admin.attribute." + i, createValue(i));
+      }
+      session.resetCounters();
+      return session;
+   }
+
+   private static void checkAdminSession(HttpSession session, int adminAttributes)
+   {
+      List<String> names = names(session);
+      if (names.size() != adminAttributes)
+      {
+         throw new IllegalStateException("Admin session not restored correctly. Attributes: " + names);
+      }
+   }
+
+   private static String createValue(int index)
+   {
+      StringBuilder builder = new StringBuilder();
+      for (int i = 0; i < 20; i++)
+      {
+         builder.append("value-").append(index).append('-').append(i).append(';');
+      }
+      return builder.toString();
+   }
+
+   private static List<String> names(HttpSession session)
+   {
+      List<String> names = new ArrayList<String>();
+      Enumeration attrNames = session.getAttributeNames();
+      while (attrNames.hasMoreElements())
+      {
+         names.add((String)attrNames.nextElement());
+      }
+      return names;
+   }
+
+   private static void print(String mode, Result result)
+   {
+      System.out.println(String.format("%-12s %14d %14d %14d %14d", mode, result.start, result.requests, result.stop,
+            result.start + result.requests + result.stop));
+   }
+
+   private static class Result
+   {
+      private long start;
+      private long requests;
+      private long stop;
+   }
+}
@@ -0,0 +1,337 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.web.security.impersonation.benchmark;
+
+import org.exoplatform.container.ExoContainer;
+import org.exoplatform.container.ExoContainerContext;
+import org.exoplatform.services.listener.ListenerService;
+import org.exoplatform.services.organization.OrganizationService;
+import org.exoplatform.services.organization.User;
+import org.exoplatform.services.organization.UserHandler;
+import org.exoplatform.services.security.Authenticator;
+import org.exoplatform.services.security.ConversationRegistry;
+import org.exoplatform.services.security.Identity;
+import org.exoplatform.services.security.IdentityRegistry;
+import org.exoplatform.services.security.MembershipEntry;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Factory of in-memory stand-ins for eXo services and servlet API objects. Interfaces are implemented with dynamic proxies,
+ * so only methods used by impersonation code are backed by real data. Other methods return default values.
+ */
+public final class StandIns
+{
+   public static final String CONTEXT_PATH = "/portal";
+
+   /** Users with this prefix are administrators like user "root", so they are allowed to impersonate anyone */
+   public static final String ADMIN_PREFIX = "admin";
+
+   private StandIns()
+   {
+   }
+
+   /**
+    * @param usernames users available in organization service
+    * @return OrganizationService, which is able to find given users by name
+    */
+   public static OrganizationService newOrganizationService(Collection<String> usernames)
+   {
+      final Map<String, User> users = new ConcurrentHashMap<String, User>();
+      for (String username : usernames)
+      {
+         users.put(username, newUser(username));
+      }
+
+      final UserHandler userHandler = proxy(UserHandler.class, new InvocationHandler()
+      {
+         public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+         {
+            if ("findUserByName".equals(method.getName()))
+            {
+               return users.get((String)args[0]);
+            }
+            return defaultValue(proxy, method, args);
+         }
+      });
+
+      return proxy(OrganizationService.class, new InvocationHandler()
+      {
+         public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+         {
+            if ("getUserHandler".equals(method.getName()))
+            {
+               return userHandler;
+            }
+            return defaultValue(proxy, method, args);
+         }
+      });
+   }
+
+   public static User newUser(final String username)
+   {
+      return proxy(User.class, new InvocationHandler()
+      {
+         public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+         {
+            String name = method.getName();
+            if ("getUserName".equals(name) || "toString".equals(name))
+            {
+               return username;
+            }
+            return defaultValue(proxy, method, args);
+         }
+      });
+   }
+
+   /**
+    * @param latencyMicros simulated latency of directory lookup in {@link Authenticator#createIdentity(String)}
+    * @return Authenticator creating identities with memberships from {@link #newMemberships(String)}
+    */
+   public static Authenticator newAuthenticator(final long latencyMicros)
+   {
+      return proxy(Authenticator.class, new InvocationHandler()
+      {
+         public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+         {
+            if ("createIdentity".equals(method.getName()))
+            {
+               if (latencyMicros > 0)
+               {
+                  TimeUnit.MICROSECONDS.sleep(latencyMicros);
+               }
+               return newIdentity((String)args[0]);
+            }
+            return defaultValue(proxy, method, args);
+         }
+      });
+   }
+
+   public static Identity newIdentity(String username)
+   {
+      return new Identity(username, newMemberships(username), newRoles());
+   }
+
+   public static List<MembershipEntry> newMemberships(String username)
+   {
+      List<MembershipEntry> memberships = new ArrayList<MembershipEntry>();
+      memberships.add(new MembershipEntry("/platform/users", "member"));
+      if ("root".equals(username) || username.startsWith(ADMIN_PREFIX))
+      {
+         memberships.add(new MembershipEntry("/platform/administrators", "manager"));
+      }
+      memberships.add(new MembershipEntry("/organization/management/" + username, "manager"));
+      for (int i = 0; i < 8; i++)
+      {
+         memberships.add(new MembershipEntry("/organization/group" + i, "member"));
+      }
+      return memberships;
+   }
+
+   public static List<String> newRoles()
+   {
+      List<String> roles = new ArrayList<String>();
+      roles.add("users");
+      for (int i = 0; i < 8; i++)
+      {
+         roles.add("group" + i);
+      }
+      return roles;
+   }
+
+   public static IdentityRegistry newIdentityRegistry()
+   {
+      return new IdentityRegistry(null);
+   }
+
+   public static ConversationRegistry newConversationRegistry(IdentityRegistry identityRegistry)
+   {
+      ListenerService listenerService = new ListenerService(new ExoContainerContext((ExoContainer)null));
+      return new ConversationRegistry(null, identityRegistry, listenerService);
+   }
+
+   /**
+    * @param session session of request. May be null for requests without session
+    * @param remoteUser name of authenticated user
+    * @param params request parameters
+    * @return new request
+    */
+   public static HttpServletRequest newRequest(final InMemoryHttpSession session, final String remoteUser, Map<String, String> params)
+   {
+      final Map<String, String> parameters = new HashMap<String, String>(params);
+      final Map<String, Object> attributes = new HashMap<String, Object>();
+      return proxy(HttpServletRequest.class, new InvocationHandler()
+      {
+         public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+         {
+            String name = method.getName();
+            if ("getParameter".equals(name))
+            {
+               return parameters.get((String)args[0]);
+            }
+            else if ("getSession".equals(name))
+            {
+               return session;
+            }
+            else if ("getRemoteUser".equals(name))
+            {
+               return remoteUser;
+            }
+            else if ("getContextPath".equals(name))
+            {
+               return CONTEXT_PATH;
+            }
+            else if ("getRequestURI".equals(name))
+            {
+               return CONTEXT_PATH + "/classic";
+            }
+            else if ("getAttribute".equals(name))
+            {
+               return attributes.get((String)args[0]);
+            }
+            else if ("setAttribute".equals(name))
+            {
+               attributes.put((String)args[0], args[1]);
+               return null;
+            }
+            else if ("removeAttribute".equals(name))
+            {
+               attributes.remove((String)args[0]);
+               return null;
+            }
+            return defaultValue(proxy, method, args);
+         }
+      });
+   }
+
+   public static HttpServletRequest newRequest(InMemoryHttpSession session, String remoteUser)
+   {
+      return newRequest(session, remoteUser, Collections.<String, String>emptyMap());
+   }
+
+   /**
+    * @return response, which ignores redirects and errors
+    */
+   public static HttpServletResponse newResponse()
+   {
+      return proxy(HttpServletResponse.class, new InvocationHandler()
+      {
+         public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+         {
+            return defaultValue(proxy, method, args);
+         }
+      });
+   }
+
+   /**
+    * Filter chain, which remembers last request passed to it, so benchmarks can consume it
+    */
+   public static class RecordingFilterChain implements FilterChain
+   {
+      private ServletRequest lastRequest;
+
+      public void doFilter(ServletRequest request, ServletResponse response)
+      {
+         this.lastRequest = request;
+      }
+
+      public ServletRequest getLastRequest()
+      {
+         return lastRequest;
+      }
+   }
+
+   @SuppressWarnings("unchecked")
+   static <T> T proxy(Class<T> type, InvocationHandler handler)
+   {
+      return (T)Proxy.newProxyInstance(StandIns.class.getClassLoader(), new Class<?>[] {type}, handler);
+   }
+
+   static Object defaultValue(Object proxy, Method method, Object[] args)
+   {
+      String name = method.getName();
+      if ("equals".equals(name))
+      {
+         return proxy == args[0];
+      }
+      else if ("hashCode".equals(name))
+      {
+         return System.identityHashCode(proxy);
+      }
+      else if ("toString".equals(name))
+      {
+         return method.getDeclaringClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+      }
+
+      Class<?> returnType = method.getReturnType();
+      if (!returnType.isPrimitive() || returnType == void.class)
+      {
+         return null;
+      }
+      else if (returnType == boolean.class)
+      {
+         return Boolean.FALSE;
+      }
+      else if (returnType == long.class)
+      {
+         return 0L;
+      }
+      else if (returnType == int.class)
+      {
+         return 0;
+      }
+      else if (returnType == double.class)
+      {
+         return 0d;
+      }
+      else if (returnType == float.class)
+      {
+         return 0f;
+      }
+      else if (returnType == short.class)
+      {
+         return (short)0;
+      }
+      else if (returnType == byte.class)
+      {
+         return (byte)0;
+      }
+      return (char)0;
+   }
+}
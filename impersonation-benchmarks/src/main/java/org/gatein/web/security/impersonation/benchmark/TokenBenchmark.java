@@ -0,0 +1,89 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.web.security.impersonation.benchmark;
+
+import org.gatein.web.security.impersonation.ImpersonationToken;
+import org.gatein.web.security.impersonation.ImpersonationTokenService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of signing and verifying tokens of {@link ImpersonationTokenService}. Run it with "-prof gc" to see allocations
+ * per verification
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class TokenBenchmark
+{
+   private ImpersonationTokenService tokenService;
+   private String validToken;
+   private String forgedToken;
+
+   @Setup
+   public void setup() throws Exception
+   {
+      tokenService = new ImpersonationTokenService("benchmark-secret-0123456789".getBytes("UTF-8"), TimeUnit.HOURS.toMillis(1));
+      validToken = tokenService.encode(tokenService.createToken("root", "mary"));
+
+      // Same payload with different signature
+      ImpersonationTokenService otherService = new ImpersonationTokenService("another-secret-0123456789".getBytes("UTF-8"),
+            TimeUnit.HOURS.toMillis(1));
+      String otherToken = otherService.encode(otherService.createToken("root", "mary"));
+      forgedToken = validToken.substring(0, validToken.indexOf('.')) + otherToken.substring(otherToken.indexOf('.'));
+   }
+
+   @Benchmark
+   public String sign()
+   {
+      return tokenService.encode(tokenService.createToken("root", "mary"));
+   }
+
+   @Benchmark
+   public ImpersonationToken verifyValid()
+   {
+      return tokenService.verify(validToken);
+   }
+
+   @Benchmark
+   public ImpersonationToken verifyForged()
+   {
+      return tokenService.verify(forgedToken);
+   }
+}
@@ -0,0 +1,108 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.web.security.impersonation;
+
+/**
+ * Impersonation session registered in {@link ImpersonationIndex}
+ */
+public class ActiveImpersonation
+{
+   private final long id;
+   private final ImpersonatedIdentity identity;
+   private final long startTime;
+   private final String remoteAddr;
+
+   ActiveImpersonation(long id, ImpersonatedIdentity identity, String remoteAddr)
+   {
+      this.id = id;
+      this.identity = identity;
+      this.startTime = System.currentTimeMillis();
+      this.remoteAddr = remoteAddr;
+   }
+
+   /**
+    * @return identifier of impersonation session unique on this cluster node
+    */
+   public long getId()
+   {
+      return id;
+   }
+
+   public String getAdminUser()
+   {
+      return identity.getAdminUserId();
+   }
+
+   public String getImpersonatedUser()
+   {
+      return identity.getUserId();
+   }
+
+   /**
+    * @return time in milliseconds when session was started or restored on this node
+    */
+   public long getStartTime()
+   {
+      return startTime;
+   }
+
+   public String getRemoteAddr()
+   {
+      return remoteAddr;
+   }
+
+   public ImpersonatedIdentity getIdentity()
+   {
+      return identity;
+   }
+
+   /**
+    * @return true if session was terminated, but admin user didn't send any request since then
+    */
+   public boolean isTerminating()
+   {
+      return identity.isCancelRequested();
+   }
+
+   /**
+    * Terminate impersonation session. It's finished by {@link CancelImpersonationFilter} during next request of admin user
+    *
+    * @return true if session was terminated by this call
+    */
+   public boolean terminate()
+   {
+      if (identity.isCancelRequested() || identity.isStopped())
+      {
+         return false;
+      }
+      identity.requestCancel();
+      return true;
+   }
+
+   @Override
+   public String toString()
+   {
+      return "ActiveImpersonation[id=" + id + ", admin=" + getAdminUser() + ", user=" + getImpersonatedUser() + "]";
+   }
+}
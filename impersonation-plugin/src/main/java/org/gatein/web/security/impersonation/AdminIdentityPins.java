@@ -0,0 +1,261 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.web.security.impersonation;
+
+import org.exoplatform.services.security.Identity;
+import org.exoplatform.services.security.IdentityRegistry;
+
+import javax.servlet.http.HttpSessionBindingEvent;
+import javax.servlet.http.HttpSessionBindingListener;
+import java.io.Serializable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reference counted pins of identities of admin users, who are in the middle of impersonation session. Admin user could
+ * logout in another browser tab during impersonation, which removes his identity from IdentityRegistry. Pinned identity
+ * is registered again when impersonation session is finished, so it's never needed to create it by Authenticator on stop.
+ *
+ * Pins are lock-free. Count of each pin is changed by CAS and pin with count 0 is dead, so it's never reused by concurrent
+ * {@link #pin(Identity, IdentityRegistry)}. Pin of impersonation session is usually held by session attribute created by
+ * {@link #createSessionPin(Identity, IdentityRegistry)}, so it's released even if HTTP session expires during impersonation
+ *
+ * Pinned identity is shared by all sessions of same admin user. When his memberships are changed, pin is marked stale by
+ * {@link #invalidate(String)} and its identity is not used anymore, so identity with old memberships is never registered again
+ */
+public class AdminIdentityPins
+{
+   private final ConcurrentMap<String, Pin> pins = new ConcurrentHashMap<String, Pin>();
+
+   /**
+    * Pin identity of admin user for lifetime of one impersonation session. Identity is registered in IdentityRegistry if
+    * it's not there
+    *
+    * @param identity identity of admin user
+    * @param identityRegistry registry of current container
+    * @return pinned identity. It's identity pinned by another impersonation session of same user if there is such session
+    */
+   public Identity pin(Identity identity, IdentityRegistry identityRegistry)
+   {
+      String userId = identity.getUserId();
+      Pin pin;
+      while (true)
+      {
+         pin = pins.get(userId);
+         if (pin == null)
+         {
+            pin = new Pin(identity);
+            if (pins.putIfAbsent(userId, pin) == null)
+            {
+               break;
+            }
+         }
+         else if (pin.acquire())
+         {
+            break;
+         }
+         else
+         {
+            // Pin was released meanwhile. Replace it
+            pins.remove(userId, pin);
+         }
+      }
+
+      Identity pinnedIdentity = pin.stale ? identity : pin.identity;
+      if (identityRegistry.getIdentity(userId) == null)
+      {
+         identityRegistry.register(pinnedIdentity);
+      }
+      return pinnedIdentity;
+   }
+
+   /**
+    * Release pin of admin user acquired by {@link #pin(Identity, IdentityRegistry)}
+    *
+    * @param userId name of admin user
+    * @return pinned identity or null if user was not pinned
+    */
+   public Identity unpin(String userId)
+   {
+      Pin pin = pins.get(userId);
+      if (pin == null)
+      {
+         return null;
+      }
+      if (pin.release() == 0)
+      {
+         pins.remove(userId, pin);
+      }
+      return pin.stale ? null : pin.identity;
+   }
+
+   /**
+    * Stop using pinned identity of given user, because his memberships were changed. Pin itself stays until it's released by
+    * all impersonation sessions
+    *
+    * @param userId name of admin user
+    */
+   public void invalidate(String userId)
+   {
+      Pin pin = pins.get(userId);
+      if (pin != null)
+      {
+         pin.stale = true;
+      }
+   }
+
+   /**
+    * Stop using all pinned identities
+    */
+   public void invalidateAll()
+   {
+      for (Pin pin : pins.values())
+      {
+         pin.stale = true;
+      }
+   }
+
+   /**
+    * Create session attribute, which pins identity while it's bound to HTTP session. Pins are not replicated with session,
+    * so attribute deserialized on another cluster node doesn't pin anything there
+    *
+    * @param identity identity of admin user
+    * @param identityRegistry registry of current container
+    * @return value of session attribute
+    */
+   public HttpSessionBindingListener createSessionPin(Identity identity, IdentityRegistry identityRegistry)
+   {
+      return new SessionPin(this, identity, identityRegistry);
+   }
+
+   /**
+    * @param userId name of admin user
+    * @return pinned identity or null if user is not pinned or if his memberships were changed since identity was pinned
+    */
+   public Identity getPinned(String userId)
+   {
+      Pin pin = pins.get(userId);
+      return pin != null && pin.count.get() > 0 && !pin.stale ? pin.identity : null;
+   }
+
+   /**
+    * @param userId name of admin user
+    * @return count of impersonation sessions, which pin identity of given user
+    */
+   public int getPinCount(String userId)
+   {
+      Pin pin = pins.get(userId);
+      return pin != null ? Math.max(pin.count.get(), 0) : 0;
+   }
+
+   /**
+    * @return count of pinned users
+    */
+   public int size()
+   {
+      return pins.size();
+   }
+
+   private static class Pin
+   {
+      private final Identity identity;
+      private final AtomicInteger count = new AtomicInteger(1);
+
+      /** Set when memberships of user were changed since identity was pinned */
+      private volatile boolean stale;
+
+      private Pin(Identity identity)
+      {
+         this.identity = identity;
+      }
+
+      private boolean acquire()
+      {
+         while (true)
+         {
+            int current = count.get();
+            if (current <= 0)
+            {
+               return false;
+            }
+            if (count.compareAndSet(current, current + 1))
+            {
+               return true;
+            }
+         }
+      }
+
+      private int release()
+      {
+         while (true)
+         {
+            int current = count.get();
+            if (current <= 0)
+            {
+               return 0;
+            }
+            if (count.compareAndSet(current, current - 1))
+            {
+               return current - 1;
+            }
+         }
+      }
+   }
+
+   private static class SessionPin implements HttpSessionBindingListener, Serializable
+   {
+      private final transient AdminIdentityPins pins;
+      private final transient Identity identity;
+      private final transient IdentityRegistry identityRegistry;
+
+      /** Whether identity was pinned on this node */
+      private transient boolean pinned;
+
+      private SessionPin(AdminIdentityPins pins, Identity identity, IdentityRegistry identityRegistry)
+      {
+         this.pins = pins;
+         this.identity = identity;
+         this.identityRegistry = identityRegistry;
+      }
+
+      public synchronized void valueBound(HttpSessionBindingEvent event)
+      {
+         if (pins != null && !pinned)
+         {
+            pinned = true;
+            pins.pin(identity, identityRegistry);
+         }
+      }
+
+      public synchronized void valueUnbound(HttpSessionBindingEvent event)
+      {
+         if (pinned)
+         {
+            pinned = false;
+            pins.unpin(identity.getUserId());
+         }
+      }
+   }
+}
@@ -12,12 +12,11 @@ import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.servlet.http.HttpSession;
 import java.io.IOException;
 
 /**
- * Filter to check if admin user wants to stop impersonation. It's checked by presence of flag in session represented
- * by attribute {@link #ATTR_CANCEL_IMPERSONATION}
+ * Filter to check if admin user wants to stop impersonation. It's checked by flag on {@link ImpersonatedIdentity}, so
+ * session is not accessed during requests of impersonated user
  *
  * It should be in filter chain after {@link org.exoplatform.services.security.web.SetCurrentIdentityFilter}
  *
@@ -27,9 +26,6 @@ public class CancelImpersonationFilter extends AbstractFilter
 {
    private static final Logger log = LoggerFactory.getLogger(CancelImpersonationFilter.class);
 
-   // Flag to indicate that we want to cancel impersonation
-   public static final String ATTR_CANCEL_IMPERSONATION = "_cancelImpersonation";
-
    @Override
    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException
    {
@@ -39,7 +35,7 @@ public class CancelImpersonationFilter extends AbstractFilter
       Identity currentIdentity = ConversationState.getCurrent().getIdentity();
       if (currentIdentity instanceof ImpersonatedIdentity)
       {
-         if (checkCancelImpersonation(httpRequest, httpResponse))
+         if (checkCancelImpersonation(httpRequest, httpResponse, (ImpersonatedIdentity)currentIdentity))
          {
             return;
          }
@@ -55,44 +51,43 @@ public class CancelImpersonationFilter extends AbstractFilter
    }
 
    /**
-    * Check if admin user wants to cancel Impersonation session. Perform redirection to ImpersonationServlet if it's the case
+    * Check if admin user wants to cancel Impersonation session. Finish impersonation session and redirect admin user to
+    * return URI if it's the case. If cancel of lower level of nested impersonation session was requested, all levels above it
+    * are finished too
     *
     * @param req servlet request
     * @param resp servlet response
-    * @return true if impersonation was requested. In this case, response is already commited and redirected to ImpersonationServlet
+    * @param impersonatedIdentity identity of impersonated user
+    * @return true if cancel of impersonation was requested. In this case, response is already commited and redirected to return URI
     * @throws IOException
     */
-   protected boolean checkCancelImpersonation(HttpServletRequest req, HttpServletResponse resp) throws IOException
+   protected boolean checkCancelImpersonation(HttpServletRequest req, HttpServletResponse resp, ImpersonatedIdentity impersonatedIdentity) throws IOException
    {
-      HttpSession session = req.getSession(false);
-      if (session != null && session.getAttribute(ATTR_CANCEL_IMPERSONATION) != null)
+      // Find lowest level, which should be finished
+      ImpersonatedIdentity cancelledLevel = null;
+      for (ImpersonatedIdentity level = impersonatedIdentity; level != null; level = level.getParentImpersonatedIdentity())
       {
-         // Remove flag from session
-         session.removeAttribute(ATTR_CANCEL_IMPERSONATION);
-
-         // Redirect to ImpersonationServlet and trigger stop of Impersonation session
-         String redirectURI = req.getContextPath() + ImpersonationServlet.IMPERSONATE_URL_SUFIX;
-
-         // Attach params
-         redirectURI = new StringBuilder(redirectURI)
-               .append("?")
-               .append(ImpersonationServlet.PARAM_ACTION)
-               .append("=")
-               .append(ImpersonationServlet.PARAM_ACTION_STOP_IMPERSONATION)
-               .toString();
-
-         // Redirect to impersonation servlet
-         if (log.isTraceEnabled())
+         if (level.isCancelRequested())
          {
-            log.trace("Going to logout from impersonation session. Redirecting to: " + redirectURI);
+            cancelledLevel = level;
          }
-         resp.sendRedirect(redirectURI);
-
-         return true;
       }
-      else
+      if (cancelledLevel == null)
       {
          return false;
       }
+
+      Impersonator impersonator = impersonatedIdentity.getImpersonator();
+      impersonator.unwindImpersonation(impersonator.getServices(getContainer()), req, resp, impersonatedIdentity,
+            cancelledLevel.getDepth());
+
+      String redirectURI = ImpersonationServlet.getReturnURI(req, cancelledLevel);
+      if (log.isTraceEnabled())
+      {
+         log.trace("Impersonation session cancelled. Redirecting to: " + redirectURI);
+      }
+      resp.sendRedirect(redirectURI);
+
+      return true;
    }
 }
@@ -0,0 +1,374 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.web.security.impersonation;
+
+import org.gatein.common.logging.Logger;
+import org.gatein.common.logging.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed timer wheel with single worker thread. Scheduling and cancel of timeout are O(1) and don't take any lock, so
+ * it's suitable for thousands of timeouts, which are mostly cancelled before they expire. Precision of timeouts is one tick.
+ *
+ * New and cancelled timeouts are passed to worker thread through lock-free queues. Buckets of wheel are doubly linked lists
+ * accessed only by worker thread
+ */
+public class HashedTimerWheel
+{
+   private static final Logger log = LoggerFactory.getLogger(HashedTimerWheel.class);
+
+   private static final int STATE_INIT = 0;
+   private static final int STATE_CANCELLED = 1;
+   private static final int STATE_EXPIRED = 2;
+
+   private final String name;
+   private final long tickNanos;
+   private final int mask;
+   private final Bucket[] wheel;
+
+   private final Queue<Timeout> scheduled = new ConcurrentLinkedQueue<Timeout>();
+   private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<Timeout>();
+
+   private final long startTime = System.nanoTime();
+
+   /** Tick processed by worker thread */
+   private volatile long currentTick;
+
+   private volatile boolean running;
+   private Thread worker;
+
+   /**
+    * @param name name of worker thread
+    * @param tickDuration duration of one tick
+    * @param unit unit of tick duration
+    * @param ticksPerWheel count of buckets. It's rounded up to power of two
+    */
+   public HashedTimerWheel(String name, long tickDuration, TimeUnit unit, int ticksPerWheel)
+   {
+      if (tickDuration <= 0 || ticksPerWheel <= 0)
+      {
+         throw new IllegalArgumentException("Tick duration and ticks per wheel must be positive");
+      }
+      this.name = name;
+      this.tickNanos = unit.toNanos(tickDuration);
+      int size = 1;
+      while (size < ticksPerWheel)
+      {
+         size <<= 1;
+      }
+      this.mask = size - 1;
+      this.wheel = new Bucket[size];
+      for (int i = 0; i < size; i++)
+      {
+         wheel[i] = new Bucket();
+      }
+   }
+
+   public synchronized void start()
+   {
+      if (worker != null)
+      {
+         return;
+      }
+      running = true;
+      worker = new Thread(new Runnable()
+      {
+         public void run()
+         {
+            work();
+         }
+      }, name);
+      worker.setDaemon(true);
+      worker.start();
+   }
+
+   public synchronized void stop()
+   {
+      if (worker == null)
+      {
+         return;
+      }
+      running = false;
+      LockSupport.unpark(worker);
+      try
+      {
+         worker.join(TimeUnit.SECONDS.toMillis(10));
+      }
+      catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+      }
+      worker = null;
+   }
+
+   /**
+    * Schedule task, which will be executed by worker thread after given delay. Task should be fast, because it blocks
+    * expiration of other timeouts
+    *
+    * @param task task to execute
+    * @param delay delay after which task is executed
+    * @param unit unit of delay
+    * @return handle, which can be used to cancel task
+    */
+   public Timeout schedule(Task task, long delay, TimeUnit unit)
+   {
+      long deadline = System.nanoTime() - startTime + Math.max(unit.toNanos(delay), 0);
+      Timeout timeout = new Timeout(this, task, deadline);
+      scheduled.add(timeout);
+      return timeout;
+   }
+
+   /**
+    * @return time in milliseconds since start of wheel at last processed tick. It's cheap coarse clock for callers, which
+    * don't need better precision than one tick
+    */
+   public long getCurrentTimeMillis()
+   {
+      return TimeUnit.NANOSECONDS.toMillis(currentTick * tickNanos);
+   }
+
+   /**
+    * @return count of timeouts waiting for transfer to wheel
+    */
+   public int getPendingTimeouts()
+   {
+      return scheduled.size();
+   }
+
+   private void work()
+   {
+      long tick = 0;
+      while (running)
+      {
+         long deadline = (tick + 1) * tickNanos;
+         long sleep = deadline - (System.nanoTime() - startTime);
+         if (sleep > 0)
+         {
+            LockSupport.parkNanos(this, sleep);
+            continue;
+         }
+
+         tick++;
+         removeCancelled();
+         transferScheduled(tick);
+         expire(wheel[(int)(tick & mask)], deadline);
+         currentTick = tick;
+      }
+   }
+
+   private void removeCancelled()
+   {
+      Timeout timeout;
+      while ((timeout = cancelled.poll()) != null)
+      {
+         if (timeout.bucket != null)
+         {
+            timeout.bucket.remove(timeout);
+         }
+      }
+   }
+
+   private void transferScheduled(long tick)
+   {
+      // Limit count of transferred timeouts, so tick is not delayed too much by burst of new timeouts
+      for (int i = 0; i < 100000; i++)
+      {
+         Timeout timeout = scheduled.poll();
+         if (timeout == null)
+         {
+            break;
+         }
+         if (timeout.state.get() == STATE_CANCELLED)
+         {
+            continue;
+         }
+
+         long deadlineTick = Math.max((timeout.deadline + tickNanos - 1) / tickNanos, tick);
+         timeout.remainingRounds = (deadlineTick - tick) / wheel.length;
+         wheel[(int)(deadlineTick & mask)].add(timeout);
+      }
+   }
+
+   private void expire(Bucket bucket, long deadline)
+   {
+      Timeout timeout = bucket.head;
+      while (timeout != null)
+      {
+         Timeout next = timeout.next;
+         if (timeout.remainingRounds <= 0)
+         {
+            bucket.remove(timeout);
+            if (timeout.deadline <= deadline)
+            {
+               timeout.expire();
+            }
+            else
+            {
+               // Can't happen as timeouts are placed to bucket of their deadline
+               log.warn("Timeout " + timeout + " placed to wrong bucket");
+            }
+         }
+         else if (timeout.state.get() == STATE_CANCELLED)
+         {
+            bucket.remove(timeout);
+         }
+         else
+         {
+            timeout.remainingRounds--;
+         }
+         timeout = next;
+      }
+   }
+
+   /**
+    * Task executed by worker thread of wheel
+    */
+   public interface Task
+   {
+      void run(Timeout timeout);
+   }
+
+   /**
+    * Handle of scheduled task
+    */
+   public static final class Timeout
+   {
+      private final HashedTimerWheel wheel;
+      private final Task task;
+      private final long deadline;
+      private final AtomicInteger state = new AtomicInteger(STATE_INIT);
+
+      // Accessed only by worker thread
+      private long remainingRounds;
+      private Bucket bucket;
+      private Timeout next;
+      private Timeout prev;
+
+      private Timeout(HashedTimerWheel wheel, Task task, long deadline)
+      {
+         this.wheel = wheel;
+         this.task = task;
+         this.deadline = deadline;
+      }
+
+      /**
+       * Cancel task if it was not executed yet
+       *
+       * @return true if task was cancelled by this call
+       */
+      public boolean cancel()
+      {
+         if (!state.compareAndSet(STATE_INIT, STATE_CANCELLED))
+         {
+            return false;
+         }
+         wheel.cancelled.add(this);
+         return true;
+      }
+
+      public boolean isCancelled()
+      {
+         return state.get() == STATE_CANCELLED;
+      }
+
+      public boolean isExpired()
+      {
+         return state.get() == STATE_EXPIRED;
+      }
+
+      public Task getTask()
+      {
+         return task;
+      }
+
+      private void expire()
+      {
+         if (!state.compareAndSet(STATE_INIT, STATE_EXPIRED))
+         {
+            return;
+         }
+         try
+         {
+            task.run(this);
+         }
+         catch (Throwable t)
+         {
+            log.error("Task " + task + " of timer wheel " + wheel.name + " failed", t);
+         }
+      }
+   }
+
+   private static final class Bucket
+   {
+      private Timeout head;
+      private Timeout tail;
+
+      private void add(Timeout timeout)
+      {
+         timeout.bucket = this;
+         if (head == null)
+         {
+            head = tail = timeout;
+         }
+         else
+         {
+            tail.next = timeout;
+            timeout.prev = tail;
+            tail = timeout;
+         }
+      }
+
+      private void remove(Timeout timeout)
+      {
+         if (timeout.bucket != this)
+         {
+            return;
+         }
+         if (timeout.prev != null)
+         {
+            timeout.prev.next = timeout.next;
+         }
+         else
+         {
+            head = timeout.next;
+         }
+         if (timeout.next != null)
+         {
+            timeout.next.prev = timeout.prev;
+         }
+         else
+         {
+            tail = timeout.prev;
+         }
+         timeout.next = null;
+         timeout.prev = null;
+         timeout.bucket = null;
+      }
+   }
+}
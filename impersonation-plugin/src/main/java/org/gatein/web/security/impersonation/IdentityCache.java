@@ -0,0 +1,404 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.web.security.impersonation;
+
+import org.exoplatform.services.organization.Group;
+import org.exoplatform.services.organization.GroupEventListener;
+import org.exoplatform.services.organization.Membership;
+import org.exoplatform.services.organization.MembershipEventListener;
+import org.exoplatform.services.organization.OrganizationService;
+import org.exoplatform.services.organization.User;
+import org.exoplatform.services.organization.UserEventListener;
+import org.exoplatform.services.security.Authenticator;
+import org.exoplatform.services.security.Identity;
+import org.exoplatform.services.security.MembershipEntry;
+import org.gatein.common.logging.Logger;
+import org.gatein.common.logging.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size and time bounded LRU cache of identities created by {@link Authenticator#createIdentity(String)}. Creating of identity
+ * could be expensive (For example LDAP lookup of memberships), so identities of users, who are impersonated often, are cached.
+ *
+ * Cached entries are invalidated when memberships or user are changed through {@link OrganizationService}. Listeners are
+ * registered by {@link #registerListeners(OrganizationService)}
+ *
+ * Identity is mutable and callers register it to IdentityRegistry, so cache keeps just snapshot of name, memberships and roles
+ * and each call returns new identity created from it. Concurrent misses of same user wait for single load
+ */
+public class IdentityCache
+{
+   private static final Logger log = LoggerFactory.getLogger(IdentityCache.class);
+
+   private final int maxSize;
+   private final long timeToLiveMillis;
+
+   // Access ordered map, so eldest entry is always least recently used
+   private final LinkedHashMap<String, Entry> entries;
+
+   // Incremented with each invalidation. Identity loaded concurrently with invalidation won't be cached
+   private final AtomicLong invalidationCounter = new AtomicLong();
+
+   // Loads running now by user. Other callers missing same user wait for them
+   private final ConcurrentMap<String, FutureTask<Snapshot>> loading = new ConcurrentHashMap<String, FutureTask<Snapshot>>();
+
+   private final AtomicLong hits = new AtomicLong();
+   private final AtomicLong misses = new AtomicLong();
+   private final AtomicLong evictions = new AtomicLong();
+   private final AtomicLong expirations = new AtomicLong();
+   private final AtomicLong invalidations = new AtomicLong();
+
+   private final UserEventListener userListener = new UserEventListener()
+   {
+      @Override
+      public void postSave(User user, boolean isNew) throws Exception
+      {
+         invalidate(user.getUserName());
+      }
+
+      @Override
+      public void postDelete(User user) throws Exception
+      {
+         invalidate(user.getUserName());
+      }
+   };
+
+   private final MembershipEventListener membershipListener = new MembershipEventListener()
+   {
+      @Override
+      public void postSave(Membership membership, boolean isNew) throws Exception
+      {
+         invalidate(membership.getUserName());
+      }
+
+      @Override
+      public void postDelete(Membership membership) throws Exception
+      {
+         invalidate(membership.getUserName());
+      }
+   };
+
+   // Removing of group removes memberships of many users, so just clear whole cache
+   private final GroupEventListener groupListener = new GroupEventListener()
+   {
+      @Override
+      public void postDelete(Group group) throws Exception
+      {
+         invalidateAll();
+      }
+   };
+
+   /**
+    * @param maxSize max count of cached identities. Value 0 or lower disables caching
+    * @param timeToLiveMillis time after which cached identity expires
+    */
+   public IdentityCache(final int maxSize, long timeToLiveMillis)
+   {
+      this.maxSize = maxSize;
+      this.timeToLiveMillis = timeToLiveMillis;
+      this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true)
+      {
+         @Override
+         protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest)
+         {
+            if (size() > maxSize)
+            {
+               evictions.incrementAndGet();
+               return true;
+            }
+            return false;
+         }
+      };
+   }
+
+   /**
+    * Return cached identity of given user or create new identity with authenticator
+    *
+    * @param username user
+    * @param authenticator authenticator used to create identity if it's not in cache
+    * @return identity of user
+    * @throws Exception if identity can't be created
+    */
+   public Identity getIdentity(final String username, final Authenticator authenticator) throws Exception
+   {
+      if (maxSize <= 0)
+      {
+         misses.incrementAndGet();
+         return authenticator.createIdentity(username);
+      }
+
+      final long now = System.currentTimeMillis();
+      synchronized (entries)
+      {
+         Entry entry = entries.get(username);
+         if (entry != null)
+         {
+            if (entry.expiration > now)
+            {
+               hits.incrementAndGet();
+               return entry.snapshot.createIdentity();
+            }
+
+            entries.remove(username);
+            expirations.incrementAndGet();
+         }
+      }
+
+      misses.incrementAndGet();
+      FutureTask<Snapshot> load = loading.get(username);
+      if (load == null)
+      {
+         FutureTask<Snapshot> newLoad = new FutureTask<Snapshot>(new Callable<Snapshot>()
+         {
+            public Snapshot call() throws Exception
+            {
+               return load(username, authenticator, now);
+            }
+         });
+         load = loading.putIfAbsent(username, newLoad);
+         if (load == null)
+         {
+            load = newLoad;
+            try
+            {
+               newLoad.run();
+            }
+            finally
+            {
+               loading.remove(username, newLoad);
+            }
+         }
+      }
+
+      Snapshot snapshot;
+      try
+      {
+         snapshot = load.get();
+      }
+      catch (ExecutionException ee)
+      {
+         Throwable cause = ee.getCause();
+         if (cause instanceof Exception)
+         {
+            throw (Exception)cause;
+         }
+         throw (Error)cause;
+      }
+      return snapshot != null ? snapshot.createIdentity() : null;
+   }
+
+   /**
+    * Return cached identity of given user without loading it. Statistics of hits and misses are not changed
+    *
+    * @param username user
+    * @return identity of user or null if it's not in cache or if it expired
+    */
+   public Identity getCachedIdentity(String username)
+   {
+      long now = System.currentTimeMillis();
+      synchronized (entries)
+      {
+         Entry entry = entries.get(username);
+         return entry != null && entry.expiration > now ? entry.snapshot.createIdentity() : null;
+      }
+   }
+
+   private Snapshot load(String username, Authenticator authenticator, long now) throws Exception
+   {
+      long counter = invalidationCounter.get();
+      Identity identity = authenticator.createIdentity(username);
+      if (identity == null)
+      {
+         return null;
+      }
+
+      Snapshot snapshot = new Snapshot(identity);
+      synchronized (entries)
+      {
+         // Don't cache identity, which might be already stale due to concurrent change of memberships
+         if (counter == invalidationCounter.get())
+         {
+            entries.put(username, new Entry(snapshot, now + timeToLiveMillis));
+         }
+      }
+      return snapshot;
+   }
+
+   /**
+    * Remove identity of given user from cache
+    *
+    * @param username user
+    */
+   public void invalidate(String username)
+   {
+      invalidationCounter.incrementAndGet();
+      // Callers coming from now load fresh identity instead of waiting for running load
+      loading.remove(username);
+      synchronized (entries)
+      {
+         if (entries.remove(username) != null)
+         {
+            invalidations.incrementAndGet();
+         }
+      }
+
+      if (log.isTraceEnabled())
+      {
+         log.trace("Invalidated cached identity of user " + username);
+      }
+   }
+
+   /**
+    * Remove all identities from cache
+    */
+   public void invalidateAll()
+   {
+      invalidationCounter.incrementAndGet();
+      loading.clear();
+      synchronized (entries)
+      {
+         invalidations.addAndGet(entries.size());
+         entries.clear();
+      }
+   }
+
+   /**
+    * Register listeners to given organization service, so cached identities will be invalidated when user or his memberships are changed
+    *
+    * @param organizationService organization service
+    */
+   public void registerListeners(OrganizationService organizationService)
+   {
+      organizationService.getUserHandler().addUserEventListener(userListener);
+      organizationService.getMembershipHandler().addMembershipEventListener(membershipListener);
+      organizationService.getGroupHandler().addGroupEventListener(groupListener);
+   }
+
+   /**
+    * Unregister listeners registered by {@link #registerListeners(OrganizationService)}
+    *
+    * @param organizationService organization service
+    */
+   public void unregisterListeners(OrganizationService organizationService)
+   {
+      organizationService.getUserHandler().removeUserEventListener(userListener);
+      organizationService.getMembershipHandler().removeMembershipEventListener(membershipListener);
+      organizationService.getGroupHandler().removeGroupEventListener(groupListener);
+   }
+
+   public int getSize()
+   {
+      synchronized (entries)
+      {
+         return entries.size();
+      }
+   }
+
+   public int getMaxSize()
+   {
+      return maxSize;
+   }
+
+   public long getTimeToLiveMillis()
+   {
+      return timeToLiveMillis;
+   }
+
+   public long getHits()
+   {
+      return hits.get();
+   }
+
+   public long getMisses()
+   {
+      return misses.get();
+   }
+
+   public long getEvictions()
+   {
+      return evictions.get();
+   }
+
+   public long getExpirations()
+   {
+      return expirations.get();
+   }
+
+   public long getInvalidations()
+   {
+      return invalidations.get();
+   }
+
+   @Override
+   public String toString()
+   {
+      return "IdentityCache[size=" + getSize() + ", maxSize=" + maxSize + ", hits=" + getHits() + ", misses=" + getMisses()
+            + ", evictions=" + getEvictions() + ", expirations=" + getExpirations() + ", invalidations=" + getInvalidations() + "]";
+   }
+
+   private static class Entry
+   {
+      private final Snapshot snapshot;
+      private final long expiration;
+
+      private Entry(Snapshot snapshot, long expiration)
+      {
+         this.snapshot = snapshot;
+         this.expiration = expiration;
+      }
+   }
+
+   /**
+    * Immutable copy of identity. Memberships are immutable, so they can be shared by all identities created from snapshot
+    */
+   private static class Snapshot
+   {
+      private final String userId;
+      private final Collection<MembershipEntry> memberships;
+      private final Collection<String> roles;
+
+      private Snapshot(Identity identity)
+      {
+         this.userId = identity.getUserId();
+         this.memberships = new ArrayList<MembershipEntry>(identity.getMemberships());
+         this.roles = new ArrayList<String>(identity.getRoles());
+      }
+
+      // Identity copies given collections, so snapshot stays untouched by changes of returned identity
+      private Identity createIdentity()
+      {
+         return new Identity(userId, memberships, roles);
+      }
+   }
+}
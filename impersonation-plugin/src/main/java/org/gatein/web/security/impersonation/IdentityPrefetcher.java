@@ -0,0 +1,417 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.web.security.impersonation;
+
+import org.exoplatform.services.organization.Group;
+import org.exoplatform.services.organization.GroupEventListener;
+import org.exoplatform.services.organization.Membership;
+import org.exoplatform.services.organization.MembershipEventListener;
+import org.exoplatform.services.organization.OrganizationService;
+import org.exoplatform.services.organization.User;
+import org.exoplatform.services.organization.UserEventListener;
+import org.exoplatform.services.security.Identity;
+import org.gatein.common.logging.Logger;
+import org.gatein.common.logging.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads user and identity of user, who is likely to be impersonated soon (for example admin user typed his name into
+ * impersonation portlet), so start of impersonation doesn't need to wait for directory lookups.
+ *
+ * Loads run on bounded executor. Concurrent prefetches of same user share single load and prefetch is skipped if executor
+ * or count of prefetched users is full, as it's just speculation. Prefetched result is consumed by {@link #take(String)}.
+ * Result loaded before change of memberships or older than time to live is never returned
+ */
+public class IdentityPrefetcher
+{
+   private static final Logger log = LoggerFactory.getLogger(IdentityPrefetcher.class);
+
+   private final ThreadPoolExecutor executor;
+   private final int capacity;
+   private final long timeToLiveMillis;
+
+   private final ConcurrentMap<String, Prefetch> prefetches = new ConcurrentHashMap<String, Prefetch>();
+
+   // Incremented with each invalidation. Results of loads started before invalidation are not returned
+   private final AtomicLong generation = new AtomicLong();
+
+   private final AtomicLong scheduled = new AtomicLong();
+   private final AtomicLong deduplicated = new AtomicLong();
+   private final AtomicLong rejected = new AtomicLong();
+   private final AtomicLong hits = new AtomicLong();
+   private final AtomicLong misses = new AtomicLong();
+
+   private final UserEventListener userListener = new UserEventListener()
+   {
+      @Override
+      public void postSave(User user, boolean isNew) throws Exception
+      {
+         invalidateAll();
+      }
+
+      @Override
+      public void postDelete(User user) throws Exception
+      {
+         invalidateAll();
+      }
+   };
+
+   private final MembershipEventListener membershipListener = new MembershipEventListener()
+   {
+      @Override
+      public void postSave(Membership membership, boolean isNew) throws Exception
+      {
+         invalidateAll();
+      }
+
+      @Override
+      public void postDelete(Membership membership) throws Exception
+      {
+         invalidateAll();
+      }
+   };
+
+   private final GroupEventListener groupListener = new GroupEventListener()
+   {
+      @Override
+      public void postDelete(Group group) throws Exception
+      {
+         invalidateAll();
+      }
+   };
+
+   /**
+    * @param threads count of threads loading identities
+    * @param capacity max count of users, which are loaded or wait for {@link #take(String)}
+    * @param timeToLiveMillis time after which prefetched result is not used
+    */
+   public IdentityPrefetcher(int threads, int capacity, long timeToLiveMillis)
+   {
+      this.capacity = capacity;
+      this.timeToLiveMillis = timeToLiveMillis;
+      this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(capacity),
+            new ThreadFactory()
+            {
+               private final AtomicInteger counter = new AtomicInteger();
+
+               public Thread newThread(Runnable runnable)
+               {
+                  Thread thread = new Thread(runnable, "ImpersonationIdentityPrefetch-" + counter.incrementAndGet());
+                  thread.setDaemon(true);
+                  return thread;
+               }
+            });
+      this.executor.allowCoreThreadTimeOut(true);
+   }
+
+   public void stop()
+   {
+      executor.shutdownNow();
+      prefetches.clear();
+   }
+
+   /**
+    * Start loading of user and identity of given user unless it's loaded already
+    *
+    * @param username name of user
+    * @param loader loads user and identity. It's called in thread of executor
+    * @return true if user is loaded now or it was loaded already. False if prefetch was skipped
+    */
+   public boolean prefetch(String username, Callable<Prefetched> loader)
+   {
+      long now = System.currentTimeMillis();
+      Prefetch existing = prefetches.get(username);
+      if (existing != null && existing.isUsable(now))
+      {
+         deduplicated.incrementAndGet();
+         return true;
+      }
+
+      if (prefetches.size() >= capacity && !removeExpired(now))
+      {
+         rejected.incrementAndGet();
+         return false;
+      }
+
+      Prefetch prefetch = new Prefetch(username, loader, generation.get(), now + timeToLiveMillis);
+      if (existing != null ? !prefetches.replace(username, existing, prefetch) : prefetches.putIfAbsent(username, prefetch) != null)
+      {
+         // Another thread started prefetch of same user meanwhile
+         deduplicated.incrementAndGet();
+         return true;
+      }
+
+      try
+      {
+         executor.execute(prefetch);
+      }
+      catch (RejectedExecutionException ree)
+      {
+         prefetches.remove(username, prefetch);
+         rejected.incrementAndGet();
+         return false;
+      }
+
+      scheduled.incrementAndGet();
+      if (log.isTraceEnabled())
+      {
+         log.trace("Scheduled prefetch of identity of user " + username);
+      }
+      return true;
+   }
+
+   /**
+    * Obtain prefetched user and identity. Prefetch is consumed, so next call returns null. If load is still running, caller
+    * waits for it as it would need to do same lookups otherwise. If load was not started yet, it's cancelled
+    *
+    * @param username name of user
+    * @return prefetched user and identity or null if caller needs to load them himself
+    */
+   public Prefetched take(String username)
+   {
+      Prefetch prefetch = prefetches.remove(username);
+      if (prefetch == null)
+      {
+         misses.incrementAndGet();
+         return null;
+      }
+
+      // Claim of load, which didn't start yet, cancels it
+      if (prefetch.claim())
+      {
+         executor.remove(prefetch);
+         misses.incrementAndGet();
+         return null;
+      }
+
+      Prefetched result;
+      try
+      {
+         result = prefetch.get();
+      }
+      catch (InterruptedException ie)
+      {
+         Thread.currentThread().interrupt();
+         misses.incrementAndGet();
+         return null;
+      }
+      catch (ExecutionException ee)
+      {
+         log.debug("Prefetch of identity of user " + username + " failed", ee.getCause());
+         misses.incrementAndGet();
+         return null;
+      }
+
+      // Memberships could be changed while identity was loaded or waiting
+      if (!prefetch.isUsable(System.currentTimeMillis()) || result == null)
+      {
+         misses.incrementAndGet();
+         return null;
+      }
+
+      hits.incrementAndGet();
+      return result;
+   }
+
+   /**
+    * Forget prefetched identities, as user or memberships of some user were changed
+    */
+   public void invalidateAll()
+   {
+      generation.incrementAndGet();
+      prefetches.clear();
+   }
+
+   /**
+    * Register listeners to given organization service, so prefetched identities are forgotten when some user or membership
+    * is changed. Changes are rare compared to prefetches, so all prefetched identities are forgotten
+    *
+    * @param organizationService organization service
+    */
+   public void registerListeners(OrganizationService organizationService)
+   {
+      organizationService.getUserHandler().addUserEventListener(userListener);
+      organizationService.getMembershipHandler().addMembershipEventListener(membershipListener);
+      organizationService.getGroupHandler().addGroupEventListener(groupListener);
+   }
+
+   /**
+    * Unregister listeners registered by {@link #registerListeners(OrganizationService)}
+    *
+    * @param organizationService organization service
+    */
+   public void unregisterListeners(OrganizationService organizationService)
+   {
+      organizationService.getUserHandler().removeUserEventListener(userListener);
+      organizationService.getMembershipHandler().removeMembershipEventListener(membershipListener);
+      organizationService.getGroupHandler().removeGroupEventListener(groupListener);
+   }
+
+   public int getSize()
+   {
+      return prefetches.size();
+   }
+
+   public long getScheduled()
+   {
+      return scheduled.get();
+   }
+
+   public long getDeduplicated()
+   {
+      return deduplicated.get();
+   }
+
+   public long getRejected()
+   {
+      return rejected.get();
+   }
+
+   public long getHits()
+   {
+      return hits.get();
+   }
+
+   public long getMisses()
+   {
+      return misses.get();
+   }
+
+   @Override
+   public String toString()
+   {
+      return "IdentityPrefetcher[size=" + getSize() + ", scheduled=" + getScheduled() + ", deduplicated=" + getDeduplicated()
+            + ", rejected=" + getRejected() + ", hits=" + getHits() + ", misses=" + getMisses() + "]";
+   }
+
+   private boolean removeExpired(long now)
+   {
+      boolean removed = false;
+      for (Iterator<Prefetch> iterator = prefetches.values().iterator(); iterator.hasNext(); )
+      {
+         if (!iterator.next().isUsable(now))
+         {
+            iterator.remove();
+            removed = true;
+         }
+      }
+      return removed;
+   }
+
+   /**
+    * User and identity loaded by prefetch
+    */
+   public static class Prefetched
+   {
+      private final User user;
+      private final Identity identity;
+
+      public Prefetched(User user, Identity identity)
+      {
+         this.user = user;
+         this.identity = identity;
+      }
+
+      /**
+       * @return found user or null if user doesn't exist
+       */
+      public User getUser()
+      {
+         return user;
+      }
+
+      /**
+       * @return identity of user or null if user doesn't exist
+       */
+      public Identity getIdentity()
+      {
+         return identity;
+      }
+   }
+
+   private class Prefetch extends FutureTask<Prefetched>
+   {
+      private final String username;
+      private final long generation;
+      private final long expiration;
+
+      // Either executor or consumer, which doesn't want to wait for executor, claims the load
+      private final AtomicBoolean claimed = new AtomicBoolean();
+
+      private Prefetch(String username, Callable<Prefetched> loader, long generation, long expiration)
+      {
+         super(loader);
+         this.username = username;
+         this.generation = generation;
+         this.expiration = expiration;
+      }
+
+      @Override
+      public void run()
+      {
+         if (claim())
+         {
+            super.run();
+         }
+      }
+
+      boolean claim()
+      {
+         return claimed.compareAndSet(false, true);
+      }
+
+      boolean isUsable(long now)
+      {
+         return generation == IdentityPrefetcher.this.generation.get() && now < expiration;
+      }
+
+      // Failed load is forgotten, so user can be prefetched again
+      @Override
+      protected void done()
+      {
+         try
+         {
+            get();
+         }
+         catch (Exception e)
+         {
+            prefetches.remove(username, this);
+         }
+      }
+   }
+}
@@ -0,0 +1,170 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.web.security.impersonation;
+
+import org.exoplatform.services.security.ConversationRegistry;
+import org.exoplatform.services.security.ConversationState;
+import org.exoplatform.services.security.StateKey;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Impersonation session opened programmatically through {@link Impersonator}. It's not bound to any HTTP session. Its
+ * {@link ConversationState} is registered in {@link ConversationRegistry} under synthetic key until {@link #close()} is called.
+ * Caller can use it for the work done on behalf of impersonated user, for example by {@link ConversationState#setCurrent(ConversationState)}
+ *
+ * Session is in {@link ImpersonationIndex} like sessions of browser flow, so it's closed when it's terminated by administrator
+ * or when it's not allowed by policy anymore. It's closed by {@link ImpersonationExpiry} too if expiry is enabled. Each call of
+ * {@link #getConversationState()} counts as access for idle timeout
+ */
+public class ImpersonatedConversation
+{
+   private static final AtomicLong keySequence = new AtomicLong();
+
+   private final StateKey stateKey = new ConversationKey(keySequence.incrementAndGet());
+   private final ConversationState conversationState;
+   private final ConversationRegistry conversationRegistry;
+   private final Impersonator impersonator;
+   private final ImpersonationExpiry expiry;
+   private final ActiveImpersonation impersonation;
+   private final AtomicBoolean closed = new AtomicBoolean();
+
+   ImpersonatedConversation(ImpersonatedIdentity identity, ConversationRegistry conversationRegistry, Impersonator impersonator)
+   {
+      this.conversationState = new ConversationState(identity);
+      this.conversationRegistry = conversationRegistry;
+      this.impersonator = impersonator;
+      this.expiry = impersonator.getExpiry();
+      this.impersonation = impersonator.getIndex().createImpersonation(identity);
+      identity.setConversation(this);
+      conversationRegistry.register(stateKey, conversationState);
+      impersonator.getMetrics().sessionStarted();
+
+      // Session can be terminated as soon as it's in index
+      impersonator.getIndex().add(impersonation);
+      if (expiry != null)
+      {
+         expiry.schedule(identity, 0);
+      }
+   }
+
+   /**
+    * @return conversation state of impersonated user
+    */
+   public ConversationState getConversationState()
+   {
+      if (expiry != null)
+      {
+         expiry.touch(getIdentity());
+      }
+      return conversationState;
+   }
+
+   /**
+    * @return key under which conversation state is registered in {@link ConversationRegistry}
+    */
+   public StateKey getStateKey()
+   {
+      return stateKey;
+   }
+
+   /**
+    * @return name of impersonated user
+    */
+   public String getUsername()
+   {
+      return conversationState.getIdentity().getUserId();
+   }
+
+   public ImpersonatedIdentity getIdentity()
+   {
+      return (ImpersonatedIdentity)conversationState.getIdentity();
+   }
+
+   public boolean isClosed()
+   {
+      return closed.get();
+   }
+
+   /**
+    * Finish impersonation session and unregister conversation state. Calling this method more times has no effect
+    *
+    * @return true if session was closed by this call
+    */
+   public boolean close()
+   {
+      if (!closed.compareAndSet(false, true))
+      {
+         return false;
+      }
+
+      ImpersonatedIdentity identity = getIdentity();
+      identity.markStopped();
+      if (expiry != null)
+      {
+         expiry.cancel(identity);
+      }
+      impersonator.getIndex().remove(impersonation);
+      conversationRegistry.unregister(stateKey);
+      impersonator.getMetrics().sessionFinished();
+      impersonator.getAuditLog().stopped(getIdentity().getAdminUserId(), getUsername(),
+            stateKey.toString());
+      return true;
+   }
+
+   @Override
+   public String toString()
+   {
+      return "ImpersonatedConversation[username=" + getUsername() + ", key=" + stateKey + ", closed=" + isClosed() + "]";
+   }
+
+   private static class ConversationKey implements StateKey
+   {
+      private final long id;
+
+      private ConversationKey(long id)
+      {
+         this.id = id;
+      }
+
+      @Override
+      public boolean equals(Object o)
+      {
+         return o instanceof ConversationKey && ((ConversationKey)o).id == id;
+      }
+
+      @Override
+      public int hashCode()
+      {
+         return (int)(id ^ (id >>> 32));
+      }
+
+      @Override
+      public String toString()
+      {
+         return "impersonation-" + id;
+      }
+   }
+}
@@ -0,0 +1,645 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.web.security.impersonation;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpSessionBindingEvent;
+import javax.servlet.http.HttpSessionBindingListener;
+import javax.servlet.http.HttpSessionContext;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * View of {@link HttpSession} used by impersonated user. Attributes of admin user stay untouched in real session, so start and
+ * stop of impersonation don't need to copy them regardless of count of attributes in admin's session. Attributes of
+ * impersonated user are kept in one of two ways:
+ *
+ * <ul>
+ * <li>{@link LocalAttributes} - All attributes are in single object saved in real session under key {@link #ATTR_IMPERSONATED_SESSION}.
+ * Start and stop of impersonation needs to set or remove just this one attribute. Suitable for non-clustered environment</li>
+ * <li>{@link ReplicatedAttributes} - Each attribute is saved in real session under key with prefix {@link #REPLICATED_ATTR_PREFIX},
+ * so servlet container replicates just changed attributes. Under key {@link #ATTR_IMPERSONATED_SESSION} is saved just small
+ * marker with names of those attributes, which is replicated only when some attribute is added or removed</li>
+ * </ul>
+ *
+ * Nested impersonation sessions keep attributes of each level separately. Level 1 uses keys described above and level N uses
+ * same keys with suffix or prefix containing N (See {@link #getLevelAttributeName(String, int)}). Start and finish of nested
+ * session therefore don't touch attributes of lower levels.
+ *
+ * Request could reach session of other web application too (for example session of portlet application during cross-context
+ * dispatch). Impersonation was not started there, so attributes in such session are saved under keys containing name of
+ * impersonated user and the session is recorded in {@link ImpersonatedIdentity}. Finish of impersonation session clears them
+ * (See {@link #stop(HttpSession, ImpersonatedIdentity)}).
+ *
+ * Other methods are delegated to real session. Only exception is {@link #invalidate()}, which clears just attributes of
+ * impersonated user, as real session still belongs to admin user
+ *
+ * @see ImpersonationFilter.ImpersonatedHttpServletRequestWrapper
+ */
+@SuppressWarnings("deprecation")
+public class ImpersonatedHttpSession implements HttpSession
+{
+   /** Session attribute where attributes of impersonated user (or marker with their names in replicated mode) are stored */
+   public static final String ATTR_IMPERSONATED_SESSION = "_impersonatedSession";
+
+   /** Prefix of real session attributes, which are used to save attributes of impersonated user in replicated mode */
+   public static final String REPLICATED_ATTR_PREFIX = "_imp.";
+
+   private final HttpSession delegate;
+   private final Attributes attributes;
+
+   private ImpersonatedHttpSession(HttpSession delegate, Attributes attributes)
+   {
+      this.delegate = delegate;
+      this.attributes = attributes;
+   }
+
+   /**
+    * Create empty attributes of impersonated user in given real session
+    *
+    * @param realSession real HTTP session of admin user
+    * @param replicated whether to save each attribute separately, so that servlet container replicates just changed attributes
+    */
+   public static void start(HttpSession realSession, boolean replicated)
+   {
+      start(realSession, replicated, 1);
+   }
+
+   /**
+    * Create empty attributes of impersonated user of given level in given real session
+    *
+    * @param realSession real HTTP session of admin user
+    * @param replicated whether to save each attribute separately, so that servlet container replicates just changed attributes
+    * @param depth level of impersonation session
+    */
+   public static void start(HttpSession realSession, boolean replicated, int depth)
+   {
+      realSession.setAttribute(getLevelAttributeName(ATTR_IMPERSONATED_SESSION, depth), createAttributes(replicated, depth, null));
+   }
+
+   /**
+    * Remove all attributes of impersonated user from given real session
+    *
+    * @param realSession real HTTP session of admin user
+    */
+   public static void stop(HttpSession realSession)
+   {
+      stop(realSession, 1);
+   }
+
+   /**
+    * Remove all attributes of impersonated user of given level from given real session. Attributes of other levels are untouched
+    *
+    * @param realSession real HTTP session of admin user
+    * @param depth level of impersonation session
+    */
+   public static void stop(HttpSession realSession, int depth)
+   {
+      clear(realSession, getLevelAttributeName(ATTR_IMPERSONATED_SESSION, depth));
+   }
+
+   /**
+    * Remove all attributes of given impersonation session from given real session and from sessions of other web applications,
+    * which were reached by requests of impersonated user
+    *
+    * @param realSession real HTTP session of admin user
+    * @param identity identity of finished impersonation session
+    */
+   public static void stop(HttpSession realSession, ImpersonatedIdentity identity)
+   {
+      stop(realSession, identity.getDepth());
+      for (HttpSession foreignSession : identity.removeForeignSessions())
+      {
+         try
+         {
+            clear(foreignSession, getAttributeName(identity.getDepth(), identity.getUserId()));
+         }
+         catch (IllegalStateException ise)
+         {
+            // Session was invalidated already, so there is nothing to clear
+         }
+      }
+   }
+
+   private static void clear(HttpSession realSession, String attributeName)
+   {
+      Attributes attributes = (Attributes)realSession.getAttribute(attributeName);
+      if (attributes != null)
+      {
+         // Request, which finished impersonation, could still write through its view. Writes are ignored from now, so nothing
+         // written during removal of attributes below leaks to admin session
+         attributes.detached = true;
+
+         // Remove marker first, so it's not replicated again after removal of each attribute in replicated mode
+         realSession.removeAttribute(attributeName);
+         new ImpersonatedHttpSession(realSession, attributes).invalidate();
+      }
+   }
+
+   /**
+    * Return view of given real session for impersonated user
+    *
+    * @param realSession real HTTP session of admin user
+    * @return impersonated view of session
+    */
+   public static ImpersonatedHttpSession wrap(HttpSession realSession)
+   {
+      return wrap(realSession, 1);
+   }
+
+   /**
+    * Return view of given real session for impersonated user of given level. Attributes are never created in real session here.
+    * If {@link #start(HttpSession, boolean, int)} was not called for the level, view has just attributes of current request
+    *
+    * @param realSession real HTTP session of admin user
+    * @param depth level of impersonation session
+    * @return impersonated view of session
+    */
+   public static ImpersonatedHttpSession wrap(HttpSession realSession, int depth)
+   {
+      Attributes attributes = (Attributes)realSession.getAttribute(getLevelAttributeName(ATTR_IMPERSONATED_SESSION, depth));
+      if (attributes == null)
+      {
+         attributes = new LocalAttributes(depth);
+      }
+      return new ImpersonatedHttpSession(realSession, attributes);
+   }
+
+   /**
+    * Return view of given real session for given impersonation session. Real session is either the one where impersonation
+    * was started or session of other web application reached by the request
+    *
+    * @param realSession real HTTP session
+    * @param identity identity of impersonated user
+    * @param replicated whether to save each attribute separately if attributes need to be created in real session
+    * @return impersonated view of session
+    */
+   public static ImpersonatedHttpSession wrap(HttpSession realSession, ImpersonatedIdentity identity, boolean replicated)
+   {
+      int depth = identity.getDepth();
+      ImpersonationSessionState sessionState =
+            (ImpersonationSessionState)realSession.getAttribute(ImpersonationSessionState.ATTR_SESSION_STATE);
+      String owner = sessionState != null ? null : identity.getUserId();
+      String attributeName = getAttributeName(depth, owner);
+      Attributes attributes = (Attributes)realSession.getAttribute(attributeName);
+      if (attributes != null)
+      {
+         return new ImpersonatedHttpSession(realSession, attributes);
+      }
+
+      attributes = createAttributes(replicated, depth, owner);
+      if (sessionState != null)
+      {
+         // Attributes could be missing after restore of session from token on other cluster node
+         if (sessionState.isActive(depth))
+         {
+            realSession.setAttribute(attributeName, attributes);
+         }
+
+         // Request could still run after other request finished this level. Its attributes must not stay in admin session
+         if (!sessionState.isActive(depth))
+         {
+            detach(realSession, attributeName, attributes);
+         }
+      }
+      else if (!identity.isStopped())
+      {
+         // Session is recorded before attributes are saved, so finish of impersonation session either clears them or they
+         // are detached here
+         identity.addForeignSession(realSession);
+         realSession.setAttribute(attributeName, attributes);
+         if (identity.isStopped())
+         {
+            detach(realSession, attributeName, attributes);
+         }
+      }
+      else
+      {
+         attributes.detached = true;
+      }
+      return new ImpersonatedHttpSession(realSession, attributes);
+   }
+
+   private static void detach(HttpSession realSession, String attributeName, Attributes attributes)
+   {
+      attributes.detached = true;
+      if (realSession.getAttribute(attributeName) == attributes)
+      {
+         realSession.removeAttribute(attributeName);
+      }
+   }
+
+   private static Attributes createAttributes(boolean replicated, int depth, String owner)
+   {
+      return replicated ? new ReplicatedAttributes(depth, owner) : new LocalAttributes(depth, owner);
+   }
+
+   // Attributes in session of other web application contain name of impersonated user, so they are never seen by other user
+   private static String getAttributeName(int depth, String owner)
+   {
+      String attributeName = getLevelAttributeName(ATTR_IMPERSONATED_SESSION, depth);
+      return owner == null ? attributeName : attributeName + "@" + owner;
+   }
+
+   /**
+    * @param name name of real session attribute used by impersonation session of level 1
+    * @param depth level of impersonation session
+    * @return name of same attribute for given level
+    */
+   public static String getLevelAttributeName(String name, int depth)
+   {
+      return depth <= 1 ? name : name + "." + depth;
+   }
+
+   /**
+    * Return real session of given request even if request is wrapped for impersonated user
+    *
+    * @param req servlet request
+    * @param create whether to create new session if it doesn't exist
+    * @return real HTTP session
+    */
+   public static HttpSession getRealSession(HttpServletRequest req, boolean create)
+   {
+      HttpSession session = req.getSession(create);
+      if (session instanceof ImpersonatedHttpSession)
+      {
+         return ((ImpersonatedHttpSession)session).getDelegate();
+      }
+      return session;
+   }
+
+   public HttpSession getDelegate()
+   {
+      return delegate;
+   }
+
+   public long getCreationTime()
+   {
+      return delegate.getCreationTime();
+   }
+
+   public String getId()
+   {
+      return delegate.getId();
+   }
+
+   public long getLastAccessedTime()
+   {
+      return delegate.getLastAccessedTime();
+   }
+
+   public ServletContext getServletContext()
+   {
+      return delegate.getServletContext();
+   }
+
+   public void setMaxInactiveInterval(int interval)
+   {
+      delegate.setMaxInactiveInterval(interval);
+   }
+
+   public int getMaxInactiveInterval()
+   {
+      return delegate.getMaxInactiveInterval();
+   }
+
+   public HttpSessionContext getSessionContext()
+   {
+      return delegate.getSessionContext();
+   }
+
+   public Object getAttribute(String name)
+   {
+      return attributes.get(delegate, name);
+   }
+
+   public Object getValue(String name)
+   {
+      return getAttribute(name);
+   }
+
+   public Enumeration getAttributeNames()
+   {
+      return Collections.enumeration(attributes.getNames());
+   }
+
+   public String[] getValueNames()
+   {
+      List<String> names = attributes.getNames();
+      return names.toArray(new String[names.size()]);
+   }
+
+   public void setAttribute(String name, Object value)
+   {
+      if (value == null)
+      {
+         removeAttribute(name);
+         return;
+      }
+
+      if (attributes.detached)
+      {
+         return;
+      }
+
+      // Binding events of attributes saved directly in real session are fired by servlet container
+      boolean fireEvents = !attributes.isSavedInRealSession();
+      if (fireEvents && value instanceof HttpSessionBindingListener)
+      {
+         ((HttpSessionBindingListener)value).valueBound(new HttpSessionBindingEvent(this, name, value));
+      }
+
+      Object oldValue = attributes.set(delegate, name, value);
+      if (fireEvents && oldValue != value && oldValue instanceof HttpSessionBindingListener)
+      {
+         ((HttpSessionBindingListener)oldValue).valueUnbound(new HttpSessionBindingEvent(this, name, oldValue));
+      }
+   }
+
+   public void putValue(String name, Object value)
+   {
+      setAttribute(name, value);
+   }
+
+   public void removeAttribute(String name)
+   {
+      Object oldValue = attributes.remove(delegate, name);
+      if (!attributes.isSavedInRealSession() && oldValue instanceof HttpSessionBindingListener)
+      {
+         ((HttpSessionBindingListener)oldValue).valueUnbound(new HttpSessionBindingEvent(this, name, oldValue));
+      }
+   }
+
+   public void removeValue(String name)
+   {
+      removeAttribute(name);
+   }
+
+   /**
+    * Real session belongs to admin user, so only attributes of impersonated user are cleared
+    */
+   public void invalidate()
+   {
+      for (String name : attributes.getNames())
+      {
+         removeAttribute(name);
+      }
+   }
+
+   public boolean isNew()
+   {
+      return delegate.isNew();
+   }
+
+   /**
+    * Attributes of impersonated user
+    */
+   public abstract static class Attributes implements Serializable
+   {
+      private static final long serialVersionUID = 1L;
+
+      /** True if impersonation session was finished and attributes are not part of real session anymore */
+      transient volatile boolean detached;
+
+      /** Level of impersonation session, which owns attributes */
+      int depth;
+
+      /** Impersonated user if attributes are in session of other web application. Null in session where impersonation started */
+      String owner;
+
+      Attributes(int depth, String owner)
+      {
+         this.depth = depth;
+         this.owner = owner;
+      }
+
+      abstract Object get(HttpSession realSession, String name);
+
+      /**
+       * @return previous value of attribute if it's known without additional lookup
+       */
+      abstract Object set(HttpSession realSession, String name, Object value);
+
+      /**
+       * @return previous value of attribute if it's known without additional lookup
+       */
+      abstract Object remove(HttpSession realSession, String name);
+
+      /**
+       * @return copy of names of all attributes
+       */
+      abstract List<String> getNames();
+
+      /**
+       * @return true if values are saved directly in real session and servlet container takes care of them
+       */
+      abstract boolean isSavedInRealSession();
+
+      public int size()
+      {
+         return getNames().size();
+      }
+   }
+
+   /**
+    * All attributes are saved in this object
+    */
+   public static class LocalAttributes extends Attributes
+   {
+      private static final long serialVersionUID = 1L;
+
+      private final Map<String, Object> map = new ConcurrentHashMap<String, Object>();
+
+      public LocalAttributes()
+      {
+         this(1);
+      }
+
+      public LocalAttributes(int depth)
+      {
+         this(depth, null);
+      }
+
+      public LocalAttributes(int depth, String owner)
+      {
+         super(depth, owner);
+      }
+
+      Object get(HttpSession realSession, String name)
+      {
+         return map.get(name);
+      }
+
+      Object set(HttpSession realSession, String name, Object value)
+      {
+         return map.put(name, value);
+      }
+
+      Object remove(HttpSession realSession, String name)
+      {
+         return map.remove(name);
+      }
+
+      List<String> getNames()
+      {
+         return new ArrayList<String>(map.keySet());
+      }
+
+      boolean isSavedInRealSession()
+      {
+         return false;
+      }
+   }
+
+   /**
+    * Values are saved in real session and this object is just marker with their names. Marker is saved to real session again
+    * (and hence replicated) only when some name is added or removed
+    */
+   public static class ReplicatedAttributes extends Attributes implements Externalizable
+   {
+      private static final long serialVersionUID = 1L;
+
+      private final Set<String> names = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+      /** Prefix of real session attributes with values. It depends on level, so levels don't overwrite values of each other */
+      private transient String prefix;
+
+      public ReplicatedAttributes()
+      {
+         this(1);
+      }
+
+      public ReplicatedAttributes(int depth)
+      {
+         this(depth, null);
+      }
+
+      public ReplicatedAttributes(int depth, String owner)
+      {
+         super(depth, owner);
+         this.prefix = getPrefix(depth, owner);
+      }
+
+      // Marker is replicated often, so just names are written without descriptor of set implementation. Negative depth means
+      // that owner follows, so markers without owner keep format of previous versions
+      public void writeExternal(ObjectOutput out) throws IOException
+      {
+         if (owner == null)
+         {
+            out.writeInt(depth);
+         }
+         else
+         {
+            out.writeInt(-depth);
+            out.writeUTF(owner);
+         }
+         List<String> namesCopy = getNames();
+         out.writeInt(namesCopy.size());
+         for (String name : namesCopy)
+         {
+            out.writeUTF(name);
+         }
+      }
+
+      public void readExternal(ObjectInput in) throws IOException
+      {
+         depth = in.readInt();
+         if (depth < 0)
+         {
+            depth = -depth;
+            owner = in.readUTF();
+         }
+         prefix = getPrefix(depth, owner);
+         int size = in.readInt();
+         for (int i = 0; i < size; i++)
+         {
+            names.add(in.readUTF());
+         }
+      }
+
+      Object get(HttpSession realSession, String name)
+      {
+         return names.contains(name) ? realSession.getAttribute(prefix + name) : null;
+      }
+
+      Object set(HttpSession realSession, String name, Object value)
+      {
+         realSession.setAttribute(prefix + name, value);
+         if (names.add(name))
+         {
+            markChanged(realSession);
+         }
+         return null;
+      }
+
+      Object remove(HttpSession realSession, String name)
+      {
+         if (names.remove(name))
+         {
+            realSession.removeAttribute(prefix + name);
+            markChanged(realSession);
+         }
+         return null;
+      }
+
+      List<String> getNames()
+      {
+         return new ArrayList<String>(names);
+      }
+
+      boolean isSavedInRealSession()
+      {
+         return true;
+      }
+
+      // Set marker again, so container will replicate changed names
+      private void markChanged(HttpSession realSession)
+      {
+         String attributeName = getAttributeName(depth, owner);
+         if (realSession.getAttribute(attributeName) == this)
+         {
+            realSession.setAttribute(attributeName, this);
+         }
+      }
+
+      // Level 1 keeps prefix of previous versions. Prefix of level N is "_impN." and owner is appended in other web applications
+      private static String getPrefix(int depth, String owner)
+      {
+         String prefix = depth <= 1 ? REPLICATED_ATTR_PREFIX : "_imp" + depth + ".";
+         return owner == null ? prefix : prefix + owner + ".";
+      }
+   }
+}
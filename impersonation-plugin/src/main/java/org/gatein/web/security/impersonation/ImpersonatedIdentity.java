@@ -25,26 +25,446 @@ package org.gatein.web.security.impersonation;
 
 import org.exoplatform.services.security.ConversationState;
 import org.exoplatform.services.security.Identity;
+import org.exoplatform.services.security.MembershipEntry;
+import org.exoplatform.services.security.jaas.UserPrincipal;
+
+import javax.servlet.http.HttpSession;
+import java.io.Serializable;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Provides info about identity of impersonated user and encapsulates identity of "original" admin user
  *
+ * Identity is serialized in compact form (See {@link SerializedImpersonatedIdentity}), which contains just name of admin
+ * user instead of whole conversation state of admin user. Conversation state of admin user is rehydrated lazily when it's
+ * needed for the first time (usually during finish of impersonation session)
+ *
+ * Impersonation sessions can be nested, so admin user could be impersonated user of lower level. Each level knows its depth
+ * and identity of lower level is available through {@link #getParentImpersonatedIdentity()}
+ *
+ * Memberships and roles are not copied for each identity. They are kept in {@link SharedIdentitySets}, which are shared by all
+ * impersonation sessions of same user
+ *
  * @author <a href="mailto:mposolda@redhat.com">Marek Posolda</a>
  * @author <a href="mailto:ocarr@redhat.com">Oliver Carr</a>
 */
-public class ImpersonatedIdentity extends Identity
+public class ImpersonatedIdentity extends Identity implements Serializable
 {
-   private final ConversationState parentConversationState;
+   private static final long serialVersionUID = 1L;
+
+   // Identity copies given collections, so just empty ones are passed to it. Memberships and roles are in shared sets
+   private static final Collection<MembershipEntry> NO_MEMBERSHIPS = Collections.emptySet();
+   private static final Collection<String> NO_ROLES = Collections.emptySet();
+
+   /** Name of admin user. Available even if conversation state of admin user was not rehydrated yet */
+   private final String adminUserId;
+
+   /** Conversation state of admin user. Null after deserialization until it's rehydrated */
+   private volatile ConversationState parentConversationState;
+
+   /** Level of impersonation session. It's 1 if admin user is not impersonated */
+   private final int depth;
+
+   /** Principal of impersonated user. Created once, so it's not needed to create new principal for each request */
+   private final Principal userPrincipal;
+
+   /** Memberships and roles shared with other identities of same user */
+   private volatile SharedIdentitySets sets;
+
+   /** URI where admin user is redirected after impersonation session is finished */
+   private volatile String returnURI;
+
+   /** Set when impersonation session should be finished during next request */
+   private volatile boolean cancelRequested;
+
+   /** Guards that impersonation session is finished just once even if more requests try to finish it at the same time */
+   private final AtomicBoolean stopped = new AtomicBoolean();
+
+   /** Whether session is registered in index of this node. Identity deserialized here is registered during first request */
+   private final AtomicBoolean attached;
+
+   /** Time of start and last access in clock of {@link ImpersonationExpiry}. Used only if expiry is enabled */
+   private volatile long startTime;
+   private volatile long lastAccessTime;
+
+   /** Scheduled expiry of impersonation session. Null until expiry is scheduled on this node */
+   private volatile HashedTimerWheel.Timeout expiryTimeout;
+
+   /** Time since start and since last access, which session had when it was deserialized. Expiry is scheduled from them */
+   private volatile long restoredElapsedMillis;
+   private volatile long restoredIdleMillis;
+
+   /** Signed token of impersonation session. Null if stateless tokens are not enabled */
+   private volatile ImpersonationToken token;
+
+   /** Impersonator, which created or attached identity. Null for identity deserialized here until its first request */
+   private volatile Impersonator impersonator;
+
+   /** Impersonation session without HTTP session. Null if session is bound to HTTP session */
+   private volatile ImpersonatedConversation conversation;
+
+   /** Sessions of other web applications with attributes of impersonated user. See {@link ImpersonatedHttpSession} */
+   private final Set<HttpSession> foreignSessions = Collections.newSetFromMap(new ConcurrentHashMap<HttpSession, Boolean>());
    
    public ImpersonatedIdentity(Identity impersonatedIdentity, ConversationState parentConversationState)
    {
-      super(impersonatedIdentity.getUserId(), impersonatedIdentity.getMemberships(), impersonatedIdentity.getRoles());
+      super(impersonatedIdentity.getUserId(), NO_MEMBERSHIPS, NO_ROLES);
+      Identity parentIdentity = parentConversationState.getIdentity();
       this.parentConversationState = parentConversationState;
+      this.adminUserId = parentIdentity.getUserId();
+      this.depth = parentIdentity instanceof ImpersonatedIdentity ? ((ImpersonatedIdentity)parentIdentity).depth + 1 : 1;
+      this.userPrincipal = new UserPrincipal(impersonatedIdentity.getUserId());
+      this.sets = SharedIdentitySets.intern(impersonatedIdentity.getMemberships(), impersonatedIdentity.getRoles());
+      this.attached = new AtomicBoolean(true);
    }
-   
-   public ConversationState getParentConversationState() 
+
+   /**
+    * Create identity without conversation state of admin user. It will be rehydrated lazily. Used during deserialization
+    */
+   ImpersonatedIdentity(String userId, Collection<MembershipEntry> memberships, Collection<String> roles, String adminUserId)
+   {
+      super(userId, NO_MEMBERSHIPS, NO_ROLES);
+      this.adminUserId = adminUserId;
+      this.depth = 1;
+      this.userPrincipal = new UserPrincipal(userId);
+      this.sets = SharedIdentitySets.intern(memberships, roles);
+      this.attached = new AtomicBoolean();
+   }
+
+   /**
+    * Create identity of nested impersonation session. Conversation state of admin user is created from given identity of lower
+    * level. Used during deserialization
+    */
+   ImpersonatedIdentity(String userId, Collection<MembershipEntry> memberships, Collection<String> roles,
+                        ImpersonatedIdentity parentIdentity)
+   {
+      super(userId, NO_MEMBERSHIPS, NO_ROLES);
+      this.adminUserId = parentIdentity.getUserId();
+      this.parentConversationState = new ConversationState(parentIdentity);
+      this.depth = parentIdentity.depth + 1;
+      this.userPrincipal = new UserPrincipal(userId);
+      this.sets = SharedIdentitySets.intern(memberships, roles);
+      this.attached = new AtomicBoolean();
+   }
+
+   /**
+    * @return conversation state of admin user. It's rehydrated from IdentityRegistry of portal container of identity if
+    * identity was deserialized
+    */
+   public ConversationState getParentConversationState()
+   {
+      ConversationState state = parentConversationState;
+      if (state == null)
+      {
+         synchronized (this)
+         {
+            state = parentConversationState;
+            if (state == null)
+            {
+               state = getImpersonator().createParentConversationState(adminUserId);
+               parentConversationState = state;
+            }
+         }
+      }
+      return state;
+   }
+
+   /**
+    * @return name of admin user. Unlike {@link #getParentConversationState()}, it never needs rehydration
+    */
+   public String getAdminUserId()
+   {
+      return adminUserId;
+   }
+
+   /**
+    * @return level of impersonation session. It's 1 if admin user is not impersonated, 2 if admin user is impersonated user of
+    * level 1 and so on
+    */
+   public int getDepth()
+   {
+      return depth;
+   }
+
+   /**
+    * @return identity of lower level if impersonation session is nested. Null if admin user is not impersonated
+    */
+   public ImpersonatedIdentity getParentImpersonatedIdentity()
+   {
+      if (depth == 1)
+      {
+         return null;
+      }
+      // Conversation state of nested session is never rehydrated, so it's always available
+      return (ImpersonatedIdentity)parentConversationState.getIdentity();
+   }
+
+   /**
+    * @param level level of impersonation session between 1 and {@link #getDepth()}
+    * @return identity of given level of this impersonation stack
+    */
+   public ImpersonatedIdentity getLevel(int level)
+   {
+      if (level < 1 || level > depth)
+      {
+         throw new IllegalArgumentException("Level " + level + " is not between 1 and " + depth);
+      }
+      ImpersonatedIdentity identity = this;
+      while (identity.depth > level)
+      {
+         identity = identity.getParentImpersonatedIdentity();
+      }
+      return identity;
+   }
+
+   /**
+    * @return true if conversation state of admin user is available without rehydration
+    */
+   public boolean isParentConversationStateLoaded()
+   {
+      return parentConversationState != null;
+   }
+
+   /**
+    * @return cached principal of impersonated user
+    */
+   public Principal getUserPrincipal()
+   {
+      return userPrincipal;
+   }
+
+   /**
+    * @param role role to check
+    * @return true if impersonated user has given role
+    */
+   public boolean hasRole(String role)
+   {
+      return sets.getRoles().contains(role);
+   }
+
+   @Override
+   public Collection<MembershipEntry> getMemberships()
+   {
+      return sets.getMemberships();
+   }
+
+   @Override
+   public void setMemberships(Collection<MembershipEntry> memberships)
+   {
+      this.sets = SharedIdentitySets.intern(memberships, sets.getRoles());
+   }
+
+   @Override
+   public Set<String> getGroups()
+   {
+      return sets.getGroups();
+   }
+
+   @Override
+   public boolean isMemberOf(String group)
+   {
+      return sets.isMemberOf(group, MembershipEntry.ANY_TYPE);
+   }
+
+   @Override
+   public boolean isMemberOf(String group, String membershipType)
+   {
+      return sets.isMemberOf(group, membershipType);
+   }
+
+   @Override
+   public boolean isMemberOf(MembershipEntry membership)
+   {
+      return sets.getMemberships().contains(membership);
+   }
+
+   @Override
+   public Collection<String> getRoles()
+   {
+      return sets.getRoles();
+   }
+
+   /**
+    * @return URI where admin user is redirected after impersonation session is finished or null if not known
+    */
+   public String getReturnURI()
+   {
+      return returnURI;
+   }
+
+   public void setReturnURI(String returnURI)
+   {
+      this.returnURI = returnURI;
+   }
+
+   /**
+    * Request finish of impersonation session. It will be finished by {@link CancelImpersonationFilter} during next request.
+    * Session without HTTP session has no next request, so it's closed right away
+    */
+   public void requestCancel()
+   {
+      cancelRequested = true;
+      ImpersonatedConversation conversation = this.conversation;
+      if (conversation != null)
+      {
+         conversation.close();
+      }
+   }
+
+   /**
+    * @return true if finish of impersonation session was requested
+    */
+   public boolean isCancelRequested()
+   {
+      return cancelRequested;
+   }
+
+   /**
+    * @return signed token of impersonation session or null if stateless tokens are not enabled
+    */
+   public ImpersonationToken getToken()
+   {
+      return token;
+   }
+
+   public void setToken(ImpersonationToken token)
+   {
+      this.token = token;
+   }
+
+   /**
+    * @return true if impersonation session was finished already
+    */
+   public boolean isStopped()
+   {
+      return stopped.get();
+   }
+
+   /**
+    * Mark impersonation session as finished
+    *
+    * @return true if session was marked by this call. False if it was finished already
+    */
+   boolean markStopped()
+   {
+      return stopped.compareAndSet(false, true);
+   }
+
+   /**
+    * Mark identity deserialized on this node as registered here
+    *
+    * @return true if identity was marked by this call. False if it was created or marked on this node already
+    */
+   boolean markAttached()
+   {
+      return !attached.get() && attached.compareAndSet(false, true);
+   }
+
+   /**
+    * @return impersonator of portal container, where identity was created or attached. Impersonator of current portal
+    * container if identity was deserialized and it was not attached yet
+    */
+   Impersonator getImpersonator()
+   {
+      Impersonator impersonator = this.impersonator;
+      return impersonator != null ? impersonator : Impersonator.getInstance();
+   }
+
+   void setImpersonator(Impersonator impersonator)
+   {
+      this.impersonator = impersonator;
+   }
+
+   void setConversation(ImpersonatedConversation conversation)
+   {
+      this.conversation = conversation;
+   }
+
+   void addForeignSession(HttpSession session)
+   {
+      foreignSessions.add(session);
+   }
+
+   /**
+    * @return sessions of other web applications recorded until now. They are not recorded anymore
+    */
+   List<HttpSession> removeForeignSessions()
+   {
+      List<HttpSession> sessions = new ArrayList<HttpSession>(foreignSessions);
+      foreignSessions.removeAll(sessions);
+      return sessions;
+   }
+
+   long getStartTime()
+   {
+      return startTime;
+   }
+
+   long getLastAccessTime()
+   {
+      return lastAccessTime;
+   }
+
+   void setExpiryTimes(long startTime, long lastAccessTime)
+   {
+      this.startTime = startTime;
+      this.lastAccessTime = lastAccessTime;
+   }
+
+   // Time is coarse, so volatile write happens at most once per tick of expiry clock
+   void touch(long now)
+   {
+      if (lastAccessTime != now)
+      {
+         lastAccessTime = now;
+      }
+   }
+
+   long getRestoredElapsedMillis()
+   {
+      return restoredElapsedMillis;
+   }
+
+   long getRestoredIdleMillis()
+   {
+      return restoredIdleMillis;
+   }
+
+   void setRestoredExpiryTimes(long elapsedMillis, long idleMillis)
+   {
+      this.restoredElapsedMillis = elapsedMillis;
+      this.restoredIdleMillis = idleMillis;
+   }
+
+   HashedTimerWheel.Timeout getExpiryTimeout()
+   {
+      return expiryTimeout;
+   }
+
+   void setExpiryTimeout(HashedTimerWheel.Timeout expiryTimeout)
+   {
+      this.expiryTimeout = expiryTimeout;
+   }
+
+   @Override
+   public void setRoles(Collection<String> roles)
+   {
+      this.sets = SharedIdentitySets.intern(sets.getMemberships(), roles);
+   }
+
+   /**
+    * Default serialization would write whole graph of conversation state of admin user. Compact form is written instead
+    */
+   private Object writeReplace()
    {
-	   return parentConversationState;
+      return new SerializedImpersonatedIdentity(this);
    }
    
 }
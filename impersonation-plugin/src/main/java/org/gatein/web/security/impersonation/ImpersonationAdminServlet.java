@@ -0,0 +1,307 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.web.security.impersonation;
+
+import org.exoplatform.container.web.AbstractHttpServlet;
+import org.exoplatform.services.security.ConversationState;
+import org.exoplatform.services.security.Identity;
+import org.exoplatform.services.security.MembershipEntry;
+import org.gatein.common.logging.Logger;
+import org.gatein.common.logging.LoggerFactory;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * Servlet for administrators to list impersonation sessions active on this node and to terminate them.
+ *
+ * GET lists sessions as JSON. Sessions can be filtered by parameter "admin" (sessions started by given admin user), "user"
+ * (sessions where given user is impersonated) or "id".
+ *
+ * POST terminates session with given "id" or all sessions of given "user" (both as admin and as impersonated user). Sessions
+ * of user are terminated on all cluster nodes if {@link org.gatein.web.security.impersonation.cluster.ClusterBroadcaster} is
+ * configured.
+ * Terminated session is finished by {@link CancelImpersonationFilter} during next request of admin user. Each terminated
+ * session is saved to audit log.
+ *
+ * POST is accepted only from same origin. Header "Origin" (or "Referer" if browser doesn't send "Origin") must point to host
+ * of this request, so page of other site can't terminate sessions with cookies of logged administrator
+ */
+public class ImpersonationAdminServlet extends AbstractHttpServlet
+{
+   public static final String PARAM_ID = "id";
+   public static final String PARAM_ADMIN = "admin";
+   public static final String PARAM_USER = "user";
+
+   /** Init parameter with membership needed to access this servlet in format "type:group" */
+   public static final String INIT_PARAM_ADMIN_MEMBERSHIP = "adminMembership";
+
+   private static final String DEFAULT_ADMIN_MEMBERSHIP = "manager:/platform/administrators";
+
+   private static final Logger log = LoggerFactory.getLogger(ImpersonationAdminServlet.class);
+
+   private volatile MembershipEntry adminMembership = MembershipEntry.parse(DEFAULT_ADMIN_MEMBERSHIP);
+
+   @Override
+   protected void afterInit(ServletConfig config) throws ServletException
+   {
+      String membership = config.getInitParameter(INIT_PARAM_ADMIN_MEMBERSHIP);
+      if (membership != null)
+      {
+         if (membership.indexOf(':') == -1)
+         {
+            throw new ServletException("Invalid value of init parameter " + INIT_PARAM_ADMIN_MEMBERSHIP + ". Expected format is 'type:group'");
+         }
+         adminMembership = MembershipEntry.parse(membership.trim());
+      }
+   }
+
+   @Override
+   protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException
+   {
+      if (!checkPermission(req, resp))
+      {
+         return;
+      }
+
+      ImpersonationIndex index = Impersonator.getInstance(getContainer()).getIndex();
+      Collection<ActiveImpersonation> impersonations;
+      String id = req.getParameter(PARAM_ID);
+      String admin = req.getParameter(PARAM_ADMIN);
+      String user = req.getParameter(PARAM_USER);
+      if (id != null)
+      {
+         Long parsedId = parseId(id, resp);
+         if (parsedId == null)
+         {
+            return;
+         }
+         ActiveImpersonation impersonation = index.get(parsedId);
+         impersonations = impersonation != null ? Collections.singletonList(impersonation) : Collections.<ActiveImpersonation>emptyList();
+      }
+      else if (admin != null)
+      {
+         impersonations = index.getByAdmin(admin);
+      }
+      else if (user != null)
+      {
+         impersonations = index.getByImpersonatedUser(user);
+      }
+      else
+      {
+         impersonations = index.getAll();
+      }
+
+      PrintWriter writer = startJSON(resp);
+      writer.print('[');
+      boolean first = true;
+      for (ActiveImpersonation impersonation : impersonations)
+      {
+         if (!first)
+         {
+            writer.print(',');
+         }
+         first = false;
+         writer.print("{\"id\":");
+         writer.print(impersonation.getId());
+         writer.print(",\"admin\":");
+         writeString(writer, impersonation.getAdminUser());
+         writer.print(",\"user\":");
+         writeString(writer, impersonation.getImpersonatedUser());
+         writer.print(",\"startTime\":");
+         writer.print(impersonation.getStartTime());
+         writer.print(",\"remoteAddr\":");
+         writeString(writer, impersonation.getRemoteAddr());
+         writer.print(",\"terminating\":");
+         writer.print(impersonation.isTerminating());
+         writer.print('}');
+      }
+      writer.print(']');
+      writer.flush();
+   }
+
+   @Override
+   protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException
+   {
+      if (!checkPermission(req, resp))
+      {
+         return;
+      }
+
+      if (!isSameOrigin(req))
+      {
+         log.warn("Request of user " + req.getRemoteUser() + " to terminate impersonation sessions rejected. Origin "
+               + getOrigin(req) + " doesn't match host " + req.getHeader("Host"));
+         resp.sendError(HttpServletResponse.SC_FORBIDDEN);
+         return;
+      }
+
+      Impersonator impersonator = Impersonator.getInstance(getContainer());
+      String id = req.getParameter(PARAM_ID);
+      String user = req.getParameter(PARAM_USER);
+      int terminated;
+      if (id != null)
+      {
+         Long parsedId = parseId(id, resp);
+         if (parsedId == null)
+         {
+            return;
+         }
+         terminated = impersonator.terminate(parsedId, req.getRemoteUser(), req.getRemoteAddr()) ? 1 : 0;
+      }
+      else if (user != null)
+      {
+         // Sessions of user are terminated on all cluster nodes
+         terminated = impersonator.terminateUser(user, req.getRemoteUser(), req.getRemoteAddr());
+      }
+      else
+      {
+         log.debug("Parameter '" + PARAM_ID + "' or '" + PARAM_USER + "' not provided");
+         resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+         return;
+      }
+
+      log.info("User " + req.getRemoteUser() + " terminated " + terminated + " impersonation sessions ("
+            + (id != null ? PARAM_ID + "=" + id : PARAM_USER + "=" + user) + ")");
+
+      PrintWriter writer = startJSON(resp);
+      writer.print("{\"terminated\":");
+      writer.print(terminated);
+      writer.print('}');
+      writer.flush();
+   }
+
+   private boolean checkPermission(HttpServletRequest req, HttpServletResponse resp) throws IOException
+   {
+      ConversationState state = ConversationState.getCurrent();
+      Identity identity = state != null ? state.getIdentity() : null;
+
+      // Impersonated user is never allowed, even if he is administrator
+      if (identity == null || identity instanceof ImpersonatedIdentity
+            || !identity.isMemberOf(adminMembership.getGroup(), adminMembership.getMembershipType()))
+      {
+         log.debug("User " + req.getRemoteUser() + " is not allowed to manage impersonation sessions");
+         resp.sendError(HttpServletResponse.SC_FORBIDDEN);
+         return false;
+      }
+      return true;
+   }
+
+   // Browser sends Origin with each cross-origin POST. Older browsers send at least Referer
+   private static boolean isSameOrigin(HttpServletRequest req)
+   {
+      String origin = getOrigin(req);
+      String host = req.getHeader("Host");
+      if (origin == null || host == null)
+      {
+         return false;
+      }
+      int hostStart = origin.indexOf("://");
+      if (hostStart == -1)
+      {
+         return false;
+      }
+      hostStart += 3;
+      int hostEnd = origin.indexOf('/', hostStart);
+      String originHost = hostEnd == -1 ? origin.substring(hostStart) : origin.substring(hostStart, hostEnd);
+      return originHost.equalsIgnoreCase(host.trim());
+   }
+
+   private static String getOrigin(HttpServletRequest req)
+   {
+      // Value "null" sent for opaque origins (for example from sandboxed frames) is rejected, as it doesn't contain host
+      String origin = req.getHeader("Origin");
+      return origin != null ? origin : req.getHeader("Referer");
+   }
+
+   private static Long parseId(String id, HttpServletResponse resp) throws IOException
+   {
+      try
+      {
+         return Long.valueOf(id.trim());
+      }
+      catch (NumberFormatException nfe)
+      {
+         log.debug("Invalid value of parameter '" + PARAM_ID + "': " + id);
+         resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+         return null;
+      }
+   }
+
+   private static PrintWriter startJSON(HttpServletResponse resp) throws IOException
+   {
+      resp.setContentType("application/json");
+      resp.setCharacterEncoding("UTF-8");
+      resp.setHeader("Cache-Control", "no-store");
+      return resp.getWriter();
+   }
+
+   private static void writeString(PrintWriter writer, String value)
+   {
+      if (value == null)
+      {
+         writer.print("null");
+         return;
+      }
+      writer.print('"');
+      for (int i = 0; i < value.length(); i++)
+      {
+         char c = value.charAt(i);
+         switch (c)
+         {
+            case '"':
+               writer.print("\\\"");
+               break;
+            case '\\':
+               writer.print("\\\\");
+               break;
+            case '\n':
+               writer.print("\\n");
+               break;
+            case '\r':
+               writer.print("\\r");
+               break;
+            case '\t':
+               writer.print("\\t");
+               break;
+            default:
+               if (c < 0x20 || c == '<' || c == '>' || c == '&')
+               {
+                  writer.print(String.format("\\u%04x", (int)c));
+               }
+               else
+               {
+                  writer.print(c);
+               }
+         }
+      }
+      writer.print('"');
+   }
+}
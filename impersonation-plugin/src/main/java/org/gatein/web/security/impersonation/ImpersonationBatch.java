@@ -0,0 +1,95 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.web.security.impersonation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Result of {@link Impersonator#openAll}. Contains opened impersonation sessions and users, which were rejected
+ */
+public class ImpersonationBatch
+{
+   private final List<ImpersonatedConversation> conversations;
+   private final Map<String, ImpersonationException> rejections;
+
+   ImpersonationBatch(int expectedSize)
+   {
+      this.conversations = new ArrayList<ImpersonatedConversation>(expectedSize);
+      this.rejections = new LinkedHashMap<String, ImpersonationException>();
+   }
+
+   void addConversation(ImpersonatedConversation conversation)
+   {
+      conversations.add(conversation);
+   }
+
+   void addRejection(String username, ImpersonationException rejection)
+   {
+      rejections.put(username, rejection);
+   }
+
+   /**
+    * @return opened impersonation sessions in same order like usernames passed to {@link Impersonator#openAll}
+    */
+   public List<ImpersonatedConversation> getConversations()
+   {
+      return Collections.unmodifiableList(conversations);
+   }
+
+   /**
+    * @return usernames, which were not impersonated, together with reason of rejection
+    */
+   public Map<String, ImpersonationException> getRejections()
+   {
+      return Collections.unmodifiableMap(rejections);
+   }
+
+   /**
+    * Close all impersonation sessions of this batch
+    *
+    * @return count of sessions closed by this call
+    */
+   public int closeAll()
+   {
+      int closed = 0;
+      for (ImpersonatedConversation conversation : conversations)
+      {
+         if (conversation.close())
+         {
+            closed++;
+         }
+      }
+      return closed;
+   }
+
+   @Override
+   public String toString()
+   {
+      return "ImpersonationBatch[opened=" + conversations.size() + ", rejected=" + rejections.size() + "]";
+   }
+}
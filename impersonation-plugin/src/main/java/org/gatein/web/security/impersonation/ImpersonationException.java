@@ -0,0 +1,68 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.web.security.impersonation;
+
+/**
+ * Thrown when impersonation session can't be started because request was rejected. Reason of rejection is available
+ * through {@link #getReason()}
+ */
+public class ImpersonationException extends Exception
+{
+   public enum Reason
+   {
+      /** User to impersonate doesn't exist */
+      USER_NOT_FOUND,
+
+      /** Current user is already impersonated, so he can't start another impersonation session */
+      ALREADY_IMPERSONATED,
+
+      /** Identity of user to impersonate can't be created by Authenticator */
+      IDENTITY_NOT_CREATED,
+
+      /** Current user doesn't have permission to impersonate as given user */
+      FORBIDDEN,
+
+      /** Other request is starting or stopping impersonation in same HTTP session */
+      CONFLICT
+   }
+
+   private final Reason reason;
+
+   public ImpersonationException(Reason reason, String message)
+   {
+      super(message);
+      this.reason = reason;
+   }
+
+   public ImpersonationException(Reason reason, String message, Throwable cause)
+   {
+      super(message, cause);
+      this.reason = reason;
+   }
+
+   public Reason getReason()
+   {
+      return reason;
+   }
+}
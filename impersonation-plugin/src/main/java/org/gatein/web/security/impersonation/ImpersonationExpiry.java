@@ -0,0 +1,300 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.web.security.impersonation;
+
+import org.gatein.common.logging.Logger;
+import org.gatein.common.logging.LoggerFactory;
+
+import javax.servlet.http.HttpSessionBindingEvent;
+import javax.servlet.http.HttpSessionBindingListener;
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Expires impersonation sessions after max duration or after idle timeout. Expiry of each session is single timeout
+ * scheduled on {@link HashedTimerWheel}, so request threads never check expiration. Expired session is marked by
+ * {@link ImpersonatedIdentity#requestCancel()} and it's finished by {@link CancelImpersonationFilter} during next request.
+ *
+ * Idle timeout is checked lazily. Request of impersonated user just updates time of last access (at most once per tick of
+ * wheel) and timeout reschedules itself if session was accessed since it was scheduled
+ *
+ * Clock of wheel is local to this node, so serialized identity carries time since start and since last access instead. Expiry
+ * of deserialized identity is scheduled from them during its first request on this node (See {@link #scheduleRestored})
+ */
+public class ImpersonationExpiry
+{
+   private static final Logger log = LoggerFactory.getLogger(ImpersonationExpiry.class);
+
+   private static final long TICK_MILLIS = 1000;
+   private static final int TICKS_PER_WHEEL = 512;
+
+   private final HashedTimerWheel wheel;
+   private final long maxDurationMillis;
+   private final long idleTimeoutMillis;
+   private final ImpersonationMetrics metrics;
+
+   /**
+    * @param maxDurationMillis max duration of impersonation session. 0 means unlimited
+    * @param idleTimeoutMillis time after which impersonation session without requests expires. 0 means unlimited
+    * @param metrics metrics where expired sessions are counted
+    */
+   public ImpersonationExpiry(long maxDurationMillis, long idleTimeoutMillis, ImpersonationMetrics metrics)
+   {
+      this.maxDurationMillis = maxDurationMillis;
+      this.idleTimeoutMillis = idleTimeoutMillis;
+      this.metrics = metrics;
+      this.wheel = new HashedTimerWheel("ImpersonationExpiry", TICK_MILLIS, TimeUnit.MILLISECONDS, TICKS_PER_WHEEL);
+   }
+
+   public void start()
+   {
+      wheel.start();
+   }
+
+   public void stop()
+   {
+      wheel.stop();
+   }
+
+   /**
+    * Schedule expiry of impersonation session
+    *
+    * @param identity identity of impersonated user
+    * @param elapsedMillis time for which session is already running. It's not 0 for session restored on another cluster node
+    */
+   public void schedule(ImpersonatedIdentity identity, long elapsedMillis)
+   {
+      schedule(identity, elapsedMillis, 0);
+   }
+
+   /**
+    * Schedule expiry of identity, which was deserialized on this node (after failover or passivation of HTTP session). Expiry
+    * continues with times, which session had when it was serialized. Nothing is done if expiry is already scheduled
+    *
+    * @param identity identity of impersonated user
+    * @return true if expiry was scheduled by this call
+    */
+   public boolean scheduleRestored(ImpersonatedIdentity identity)
+   {
+      if (identity.getExpiryTimeout() != null || identity.isStopped())
+      {
+         return false;
+      }
+      synchronized (identity)
+      {
+         if (identity.getExpiryTimeout() != null)
+         {
+            return false;
+         }
+         schedule(identity, identity.getRestoredElapsedMillis(), identity.getRestoredIdleMillis());
+         return true;
+      }
+   }
+
+   /**
+    * Cancel expiry of finished impersonation session
+    *
+    * @param identity identity of impersonated user
+    */
+   public void cancel(ImpersonatedIdentity identity)
+   {
+      HashedTimerWheel.Timeout timeout = identity.getExpiryTimeout();
+      if (timeout != null)
+      {
+         timeout.cancel();
+      }
+   }
+
+   /**
+    * Record request of impersonated user. It's cheap, so it can be called in each request
+    *
+    * @param identity identity of impersonated user
+    */
+   public void touch(ImpersonatedIdentity identity)
+   {
+      if (idleTimeoutMillis > 0)
+      {
+         identity.touch(wheel.getCurrentTimeMillis());
+      }
+   }
+
+   /**
+    * Create session attribute, which cancels expiry of impersonation session when it's unbound. So expiry doesn't keep
+    * identity of impersonated user until timeout if HTTP session times out or it's invalidated without finish of impersonation
+    *
+    * @param identity identity of impersonated user
+    * @return value of session attribute
+    */
+   public HttpSessionBindingListener createSessionEntry(ImpersonatedIdentity identity)
+   {
+      return new SessionEntry(this, identity);
+   }
+
+   /**
+    * @param identity identity of impersonated user
+    * @return time since start of impersonation session. Restored time is returned if expiry is not scheduled on this node
+    */
+   long getElapsedMillis(ImpersonatedIdentity identity)
+   {
+      if (identity.getExpiryTimeout() == null)
+      {
+         return identity.getRestoredElapsedMillis();
+      }
+      return wheel.getCurrentTimeMillis() - identity.getStartTime();
+   }
+
+   /**
+    * @param identity identity of impersonated user
+    * @return time since last request of impersonated user. Restored time is returned if expiry is not scheduled on this node
+    */
+   long getIdleMillis(ImpersonatedIdentity identity)
+   {
+      if (identity.getExpiryTimeout() == null)
+      {
+         return identity.getRestoredIdleMillis();
+      }
+      return wheel.getCurrentTimeMillis() - identity.getLastAccessTime();
+   }
+
+   public long getMaxDurationMillis()
+   {
+      return maxDurationMillis;
+   }
+
+   public long getIdleTimeoutMillis()
+   {
+      return idleTimeoutMillis;
+   }
+
+   /**
+    * Schedule expiry of impersonation session, which was already running and accessed before
+    *
+    * @param identity identity of impersonated user
+    * @param elapsedMillis time for which session is already running
+    * @param idleMillis time since last access of session
+    */
+   public void schedule(ImpersonatedIdentity identity, long elapsedMillis, long idleMillis)
+   {
+      // Timeout of previous schedule is cancelled, so only one task checks expiry of session
+      synchronized (identity)
+      {
+         cancel(identity);
+         long now = wheel.getCurrentTimeMillis();
+         identity.setExpiryTimes(now - elapsedMillis, now - idleMillis);
+         reschedule(identity, getDeadline(identity) - now);
+      }
+   }
+
+   private void checkExpired(ImpersonatedIdentity identity)
+   {
+      if (identity.isStopped() || identity.isCancelRequested())
+      {
+         return;
+      }
+
+      long now = wheel.getCurrentTimeMillis();
+      long deadline = getDeadline(identity);
+      if (deadline <= now)
+      {
+         log.debug("Impersonation session of admin user " + identity.getAdminUserId() + " as user " + identity.getUserId()
+               + " expired");
+         identity.requestCancel();
+         metrics.recordExpired();
+      }
+      else
+      {
+         // Session was accessed since timeout was scheduled
+         reschedule(identity, deadline - now);
+      }
+   }
+
+   private long getDeadline(ImpersonatedIdentity identity)
+   {
+      long deadline = Long.MAX_VALUE;
+      if (maxDurationMillis > 0)
+      {
+         deadline = identity.getStartTime() + maxDurationMillis;
+      }
+      if (idleTimeoutMillis > 0)
+      {
+         deadline = Math.min(deadline, identity.getLastAccessTime() + idleTimeoutMillis);
+      }
+      return deadline;
+   }
+
+   private void reschedule(ImpersonatedIdentity identity, long delayMillis)
+   {
+      if (delayMillis == Long.MAX_VALUE)
+      {
+         return;
+      }
+      identity.setExpiryTimeout(wheel.schedule(new ExpiryTask(identity), delayMillis, TimeUnit.MILLISECONDS));
+   }
+
+   private class ExpiryTask implements HashedTimerWheel.Task
+   {
+      private final ImpersonatedIdentity identity;
+
+      private ExpiryTask(ImpersonatedIdentity identity)
+      {
+         this.identity = identity;
+      }
+
+      public void run(HashedTimerWheel.Timeout timeout)
+      {
+         checkExpired(identity);
+      }
+
+      @Override
+      public String toString()
+      {
+         return "ExpiryTask[user=" + identity.getUserId() + ", admin=" + identity.getAdminUserId() + "]";
+      }
+   }
+
+   private static class SessionEntry implements HttpSessionBindingListener, Serializable
+   {
+      // Entry deserialized on another node does nothing. Expiry scheduled there binds its own entry
+      private final transient ImpersonationExpiry expiry;
+      private final transient ImpersonatedIdentity identity;
+
+      private SessionEntry(ImpersonationExpiry expiry, ImpersonatedIdentity identity)
+      {
+         this.expiry = expiry;
+         this.identity = identity;
+      }
+
+      public void valueBound(HttpSessionBindingEvent event)
+      {
+      }
+
+      public void valueUnbound(HttpSessionBindingEvent event)
+      {
+         if (expiry != null)
+         {
+            expiry.cancel(identity);
+         }
+      }
+   }
+}
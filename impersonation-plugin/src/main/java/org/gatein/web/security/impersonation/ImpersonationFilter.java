@@ -3,7 +3,7 @@ package org.gatein.web.security.impersonation;
 import org.exoplatform.container.web.AbstractFilter;
 import org.exoplatform.services.security.ConversationState;
 import org.exoplatform.services.security.Identity;
-import org.exoplatform.services.security.jaas.UserPrincipal;
+import org.exoplatform.web.login.LogoutControl;
 import org.gatein.common.logging.Logger;
 import org.gatein.common.logging.LoggerFactory;
 
@@ -13,9 +13,11 @@ import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import javax.servlet.http.HttpSession;
 import java.io.IOException;
 import java.security.Principal;
-import java.util.Collection;
 
 /**
  * Filter to wrap real {@link HttpServletRequest} into wrapper, which will be treated as request of impersonated user
@@ -28,27 +30,64 @@ public class ImpersonationFilter extends AbstractFilter
 {
    private static final Logger log = LoggerFactory.getLogger(ImpersonationFilter.class);
 
+   private static final String LOGOUT_ACTION = "portal:action=Logout";
+   private static final String ENCODED_LOGOUT_ACTION = "portal%3Aaction=Logout";
+
    @Override
    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException
    {
       HttpServletRequest httpRequest = (HttpServletRequest)request;
+      HttpServletResponse httpResponse = (HttpServletResponse)response;
+
+      ConversationState currentState = ConversationState.getCurrent();
+      Identity currentIdentity = currentState.getIdentity();
+
+      // Impersonation session could be started on another cluster node. Restore it from signed token if it's enabled
+      if (!(currentIdentity instanceof ImpersonatedIdentity) && httpRequest.getRemoteUser() != null)
+      {
+         Impersonator impersonator = Impersonator.getInstance(getContainer());
+         if (impersonator.getTokenService() != null)
+         {
+            ConversationState restoredState = impersonator.restoreImpersonation(impersonator.getServices(getContainer()),
+                  httpRequest, currentState);
+            if (restoredState != null)
+            {
+               ConversationState.setCurrent(restoredState);
+               currentIdentity = restoredState.getIdentity();
+            }
+         }
+      }
+
+      // Session with signed token continues only while request carries the token and it's not revoked
+      if (currentIdentity instanceof ImpersonatedIdentity)
+      {
+         Impersonator impersonator = ((ImpersonatedIdentity)currentIdentity).getImpersonator();
+         if (impersonator.getTokenService() != null)
+         {
+            ConversationState adminState = impersonator.checkToken(impersonator.getServices(getContainer()), httpRequest,
+                  httpResponse, (ImpersonatedIdentity)currentIdentity);
+            if (adminState != null)
+            {
+               ConversationState.setCurrent(adminState);
+               currentIdentity = adminState.getIdentity();
+            }
+         }
+      }
 
-      Identity currentIdentity = ConversationState.getCurrent().getIdentity();
       if (currentIdentity instanceof ImpersonatedIdentity)
       {
          ImpersonatedIdentity impersonatedIdentity = (ImpersonatedIdentity)currentIdentity;
 
          String remoteUser = httpRequest.getRemoteUser();
          String impersonatedUser = impersonatedIdentity.getUserId();
-         String parentImpersonatedUser = impersonatedIdentity.getParentConversationState().getIdentity().getUserId();
 
          // Skip impersonation if impersonatedUser is same as remoteUser. This could theoretically happen during http request re-entrance
-         if (remoteUser.equals(impersonatedUser))
+         if (impersonatedUser.equals(remoteUser))
          {
             if (log.isTraceEnabled())
             {
                log.trace("Reentrance detected. Impersonation will be skipped. User: " + remoteUser +
-                     ", parentImpersonatedUser: " + parentImpersonatedUser + ", impersonatedUser: " + impersonatedUser);
+                     ", parentImpersonatedUser: " + impersonatedIdentity.getAdminUserId() + ", impersonatedUser: " + impersonatedUser);
             }
          }
          else
@@ -56,16 +95,24 @@ public class ImpersonationFilter extends AbstractFilter
             if (log.isTraceEnabled())
             {
                log.trace("Impersonating current HttpServletRequest. User: " + remoteUser +
-                     ", parentImpersonatedUser: " + parentImpersonatedUser + ", impersonatedUser: " + impersonatedUser);
+                     ", parentImpersonatedUser: " + impersonatedIdentity.getAdminUserId() + ", impersonatedUser: " + impersonatedUser);
             }
 
-            // Impersonate current http request
+            Impersonator impersonator = impersonatedIdentity.getImpersonator();
+            impersonator.attach(httpRequest, impersonatedIdentity);
+            impersonator.touch(httpRequest, impersonatedIdentity);
+
+            // Impersonate current http request. Response is wrapped only if logout redirect may need to be changed
+            if (isLogoutRequest(httpRequest))
+            {
+               httpResponse = new ImpersonatedHttpServletResponseWrapper(httpResponse, httpRequest, impersonatedIdentity);
+            }
             httpRequest = new ImpersonatedHttpServletRequestWrapper(httpRequest, impersonatedIdentity);
          }
       }
 
       // Continue with request in all cases
-      chain.doFilter(httpRequest, response);
+      chain.doFilter(httpRequest, httpResponse);
    }
 
    @Override
@@ -73,16 +120,48 @@ public class ImpersonationFilter extends AbstractFilter
    {
    }
 
+   // Logout is action of UIPortal component. Query string is checked directly, so encoding of request parameters is not fixed yet
+   private static boolean isLogoutRequest(HttpServletRequest request)
+   {
+      String queryString = request.getQueryString();
+      return queryString != null && (queryString.contains(LOGOUT_ACTION) || queryString.contains(ENCODED_LOGOUT_ACTION));
+   }
+
    public static class ImpersonatedHttpServletRequestWrapper extends HttpServletRequestWrapper
    {
       private final ImpersonatedIdentity identity;
 
+      // View of session for impersonated user. Created lazily during first access to session
+      private ImpersonatedHttpSession session;
+
       public ImpersonatedHttpServletRequestWrapper(HttpServletRequest request, ImpersonatedIdentity identity)
       {
          super(request);
          this.identity = identity;
       }
 
+      @Override
+      public HttpSession getSession()
+      {
+         return getSession(true);
+      }
+
+      @Override
+      public HttpSession getSession(boolean create)
+      {
+         HttpSession realSession = super.getSession(create);
+         if (realSession == null)
+         {
+            return null;
+         }
+
+         if (session == null || session.getDelegate() != realSession)
+         {
+            session = ImpersonatedHttpSession.wrap(realSession, identity, identity.getImpersonator().isSessionReplication());
+         }
+         return session;
+      }
+
       @Override
       public String getRemoteUser()
       {
@@ -92,14 +171,43 @@ public class ImpersonationFilter extends AbstractFilter
       @Override
       public boolean isUserInRole(String role)
       {
-         Collection<String> roles = this.identity.getRoles();
-         return roles.contains(role);
+         return this.identity.hasRole(role);
       }
 
       @Override
       public Principal getUserPrincipal()
       {
-         return new UserPrincipal(this.identity.getUserId());
+         return this.identity.getUserPrincipal();
+      }
+   }
+
+   /**
+    * Logout of impersonated user finishes impersonation session in same request (See {@link ImpersonationLogoutLifecycle}).
+    * Redirect sent by logout is changed, so admin user goes directly back to page where impersonation was started
+    */
+   public static class ImpersonatedHttpServletResponseWrapper extends HttpServletResponseWrapper
+   {
+      private final HttpServletRequest request;
+      private final ImpersonatedIdentity identity;
+
+      public ImpersonatedHttpServletResponseWrapper(HttpServletResponse response, HttpServletRequest request, ImpersonatedIdentity identity)
+      {
+         super(response);
+         this.request = request;
+         this.identity = identity;
+      }
+
+      @Override
+      public void sendRedirect(String location) throws IOException
+      {
+         if (LogoutControl.isLogoutRequired())
+         {
+            location = ImpersonationServlet.getReturnURI(request, identity);
+
+            // Token must not restore impersonation session again in next request
+            identity.getImpersonator().removeToken(request, (HttpServletResponse)getResponse());
+         }
+         super.sendRedirect(location);
       }
    }
 }
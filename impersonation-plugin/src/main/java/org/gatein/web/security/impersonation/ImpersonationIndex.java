@@ -0,0 +1,279 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.web.security.impersonation;
+
+import javax.servlet.http.HttpSessionBindingEvent;
+import javax.servlet.http.HttpSessionBindingListener;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Index of impersonation sessions active on this cluster node. Sessions can be looked up by admin user and by impersonated
+ * user without scanning ConversationRegistry. Lookup by user is O(1) and changes lock just sessions of one user.
+ *
+ * Session is in index while attribute created by {@link #createSessionEntry(ImpersonatedIdentity, String)} is bound to HTTP
+ * session, so it's removed when impersonation is finished or when HTTP session is destroyed. Session without HTTP session
+ * (See {@link ImpersonatedConversation}) is in index until it's closed
+ */
+public class ImpersonationIndex
+{
+   private final AtomicLong lastId = new AtomicLong();
+
+   private final ConcurrentMap<Long, ActiveImpersonation> byId = new ConcurrentHashMap<Long, ActiveImpersonation>();
+   private final ConcurrentMap<String, Bucket> byAdmin = new ConcurrentHashMap<String, Bucket>();
+   private final ConcurrentMap<String, Bucket> byUser = new ConcurrentHashMap<String, Bucket>();
+
+   /**
+    * Create session attribute, which keeps impersonation session in index while it's bound to HTTP session. Index is not
+    * replicated with session, so attribute deserialized on another cluster node doesn't add anything there. New attribute is
+    * created there during first request of the session (See {@link Impersonator#attach})
+    *
+    * @param identity identity of impersonated user
+    * @param remoteAddr address of admin user
+    * @return value of session attribute
+    */
+   public HttpSessionBindingListener createSessionEntry(ImpersonatedIdentity identity, String remoteAddr)
+   {
+      return new SessionEntry(this, new ActiveImpersonation(lastId.incrementAndGet(), identity, remoteAddr));
+   }
+
+   /**
+    * Create impersonation session, which is not bound to HTTP session. Caller adds it by {@link #add(ActiveImpersonation)} and
+    * removes it by {@link #remove(ActiveImpersonation)}
+    *
+    * @param identity identity of impersonated user
+    * @return new session
+    */
+   ActiveImpersonation createImpersonation(ImpersonatedIdentity identity)
+   {
+      return new ActiveImpersonation(lastId.incrementAndGet(), identity, null);
+   }
+
+   void add(ActiveImpersonation impersonation)
+   {
+      byId.put(impersonation.getId(), impersonation);
+      addTo(byAdmin, impersonation.getAdminUser(), impersonation);
+      addTo(byUser, impersonation.getImpersonatedUser(), impersonation);
+   }
+
+   void remove(ActiveImpersonation impersonation)
+   {
+      if (byId.remove(impersonation.getId()) != null)
+      {
+         removeFrom(byAdmin, impersonation.getAdminUser(), impersonation);
+         removeFrom(byUser, impersonation.getImpersonatedUser(), impersonation);
+      }
+   }
+
+   /**
+    * @param id identifier of impersonation session
+    * @return impersonation session or null if it's not active
+    */
+   public ActiveImpersonation get(long id)
+   {
+      return byId.get(id);
+   }
+
+   /**
+    * @param adminUser name of admin user
+    * @return impersonation sessions started by given admin user
+    */
+   public Collection<ActiveImpersonation> getByAdmin(String adminUser)
+   {
+      return view(byAdmin.get(adminUser));
+   }
+
+   /**
+    * @param impersonatedUser name of impersonated user
+    * @return impersonation sessions, where given user is impersonated
+    */
+   public Collection<ActiveImpersonation> getByImpersonatedUser(String impersonatedUser)
+   {
+      return view(byUser.get(impersonatedUser));
+   }
+
+   /**
+    * @param username name of user
+    * @return true if given user is admin or impersonated user of some session
+    */
+   public boolean contains(String username)
+   {
+      return byAdmin.containsKey(username) || byUser.containsKey(username);
+   }
+
+   /**
+    * @return all active impersonation sessions
+    */
+   public Collection<ActiveImpersonation> getAll()
+   {
+      return Collections.unmodifiableCollection(byId.values());
+   }
+
+   public int size()
+   {
+      return byId.size();
+   }
+
+   /**
+    * Terminate all impersonation sessions of given user. Both sessions, where user is admin and sessions, where user is
+    * impersonated, are terminated
+    *
+    * @param username name of user
+    * @return sessions terminated by this call
+    */
+   public List<ActiveImpersonation> terminateAll(String username)
+   {
+      List<ActiveImpersonation> terminated = new ArrayList<ActiveImpersonation>();
+      terminate(getByAdmin(username), terminated);
+      terminate(getByImpersonatedUser(username), terminated);
+      return terminated;
+   }
+
+   /**
+    * @param id identifier of impersonation session
+    * @return true if session was terminated
+    */
+   public boolean terminate(long id)
+   {
+      ActiveImpersonation impersonation = byId.get(id);
+      return impersonation != null && impersonation.terminate();
+   }
+
+   private static void terminate(Collection<ActiveImpersonation> impersonations, List<ActiveImpersonation> terminated)
+   {
+      for (ActiveImpersonation impersonation : impersonations)
+      {
+         if (impersonation.terminate())
+         {
+            terminated.add(impersonation);
+         }
+      }
+   }
+
+   private static Collection<ActiveImpersonation> view(Bucket bucket)
+   {
+      if (bucket == null)
+      {
+         return Collections.emptyList();
+      }
+      synchronized (bucket)
+      {
+         return Collections.unmodifiableList(new ArrayList<ActiveImpersonation>(bucket.impersonations));
+      }
+   }
+
+   private static void addTo(ConcurrentMap<String, Bucket> index, String key, ActiveImpersonation impersonation)
+   {
+      while (true)
+      {
+         Bucket bucket = index.get(key);
+         if (bucket == null)
+         {
+            Bucket newBucket = new Bucket();
+            bucket = index.putIfAbsent(key, newBucket);
+            if (bucket == null)
+            {
+               bucket = newBucket;
+            }
+         }
+         synchronized (bucket)
+         {
+            if (!bucket.removed)
+            {
+               bucket.impersonations.add(impersonation);
+               return;
+            }
+         }
+      }
+   }
+
+   private static void removeFrom(ConcurrentMap<String, Bucket> index, String key, ActiveImpersonation impersonation)
+   {
+      Bucket bucket = index.get(key);
+      if (bucket == null)
+      {
+         return;
+      }
+      synchronized (bucket)
+      {
+         bucket.impersonations.remove(impersonation);
+         if (bucket.impersonations.isEmpty())
+         {
+            bucket.removed = true;
+            index.remove(key, bucket);
+         }
+      }
+   }
+
+   /**
+    * Sessions of one user. Lock of bucket is held just for changes of this user. Empty bucket is removed from index and
+    * marked, so concurrent add creates new bucket instead of adding to removed one
+    */
+   private static class Bucket
+   {
+      private final Set<ActiveImpersonation> impersonations = new HashSet<ActiveImpersonation>(4);
+      private boolean removed;
+   }
+
+   private static class SessionEntry implements HttpSessionBindingListener, Serializable
+   {
+      private final transient ImpersonationIndex index;
+      private final transient ActiveImpersonation impersonation;
+
+      /** Whether session was added to index on this node */
+      private transient boolean indexed;
+
+      private SessionEntry(ImpersonationIndex index, ActiveImpersonation impersonation)
+      {
+         this.index = index;
+         this.impersonation = impersonation;
+      }
+
+      public synchronized void valueBound(HttpSessionBindingEvent event)
+      {
+         if (index != null && !indexed)
+         {
+            indexed = true;
+            index.add(impersonation);
+         }
+      }
+
+      public synchronized void valueUnbound(HttpSessionBindingEvent event)
+      {
+         if (indexed)
+         {
+            indexed = false;
+            index.remove(impersonation);
+         }
+      }
+   }
+}
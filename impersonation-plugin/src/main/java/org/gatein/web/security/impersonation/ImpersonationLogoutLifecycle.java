@@ -54,14 +54,33 @@ public class ImpersonationLogoutLifecycle extends PortalLogoutLifecycle
 
          if (currentIdentity instanceof ImpersonatedIdentity)
          {
+            ImpersonatedIdentity impersonatedIdentity = (ImpersonatedIdentity)currentIdentity;
             PortalRequestContext prContext = Util.getPortalRequestContext();
 
-            // Saved flag to session. It will be processed by CancelImpersonationFilter in next request
-            prContext.getRequest().getSession().setAttribute(CancelImpersonationFilter.ATTR_CANCEL_IMPERSONATION, true);
+            // If impersonation session can't be finished now, it will be finished by CancelImpersonationFilter in next request
+            impersonatedIdentity.requestCancel();
+
+            // Finish impersonation session in this request. Logout redirect was already changed to return URI by ImpersonationFilter
+            try
+            {
+               Impersonator impersonator = impersonatedIdentity.getImpersonator();
+               impersonator.stopImpersonation(impersonator.getServices(), prContext.getRequest(),
+                     prContext.getResponse(), impersonatedIdentity);
+            }
+            catch (Exception e)
+            {
+               log.error("Impersonation session of user " + impersonatedIdentity.getUserId() + " not finished during logout", e);
+            }
+
+            finally
+            {
+               // PortalLogoutLifecycle is skipped, so flag must be cleared here. Otherwise it stays on this thread for next requests
+               LogoutControl.cancelLogout();
+            }
 
             if (log.isTraceEnabled())
             {
-               log.trace("Triggered cancel of impersonation session. Saved flag " + CancelImpersonationFilter.ATTR_CANCEL_IMPERSONATION);
+               log.trace("Impersonation session of user " + impersonatedIdentity.getUserId() + " finished during logout");
             }
          }
          else
@@ -0,0 +1,302 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.web.security.impersonation;
+
+import org.gatein.common.logging.Logger;
+import org.gatein.common.logging.LoggerFactory;
+
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.servlet.http.HttpSessionBindingEvent;
+import javax.servlet.http.HttpSessionBindingListener;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Metrics of impersonation exposed through JMX. All recording methods are lock-free
+ */
+public class ImpersonationMetrics implements ImpersonationMetricsMXBean
+{
+   /** Name under which metrics are registered in platform MBean server. Key "context" with name of web application is added */
+   public static final String OBJECT_NAME = "gatein.impersonation:type=ImpersonationMetrics";
+
+   private static final Logger log = LoggerFactory.getLogger(ImpersonationMetrics.class);
+
+   private final LatencyHistogram startImpersonation = new LatencyHistogram();
+   private final LatencyHistogram stopImpersonation = new LatencyHistogram();
+   private final LatencyHistogram createIdentity = new LatencyHistogram();
+   private final LatencyHistogram findUserByName = new LatencyHistogram();
+
+   private final AtomicLong activeSessions = new AtomicLong();
+   private final AtomicLong rejectedBadRequest = new AtomicLong();
+   private final AtomicLong rejectedForbidden = new AtomicLong();
+   private final AtomicLong rejectedIdentityNotCreated = new AtomicLong();
+   private final AtomicLong rejectedConflict = new AtomicLong();
+   private final AtomicLong expiredSessions = new AtomicLong();
+
+   // Name under which these metrics are registered. Null if they are not registered
+   private volatile ObjectName registeredName;
+
+   public void recordStartImpersonation(long nanos)
+   {
+      startImpersonation.record(nanos);
+   }
+
+   public void recordStopImpersonation(long nanos)
+   {
+      stopImpersonation.record(nanos);
+   }
+
+   public void recordCreateIdentity(long nanos)
+   {
+      createIdentity.record(nanos);
+   }
+
+   public void recordFindUserByName(long nanos)
+   {
+      findUserByName.record(nanos);
+   }
+
+   public void recordRejection(ImpersonationException.Reason reason)
+   {
+      switch (reason)
+      {
+         case FORBIDDEN:
+            rejectedForbidden.incrementAndGet();
+            break;
+         case IDENTITY_NOT_CREATED:
+            rejectedIdentityNotCreated.incrementAndGet();
+            break;
+         case CONFLICT:
+            rejectedConflict.incrementAndGet();
+            break;
+         default:
+            rejectedBadRequest.incrementAndGet();
+      }
+   }
+
+   /**
+    * Record request rejected because of invalid parameters
+    */
+   public void recordBadRequest()
+   {
+      rejectedBadRequest.incrementAndGet();
+   }
+
+   /**
+    * Record impersonation session expired because of max duration or idle timeout
+    */
+   public void recordExpired()
+   {
+      expiredSessions.incrementAndGet();
+   }
+
+   public void sessionStarted()
+   {
+      activeSessions.incrementAndGet();
+   }
+
+   public void sessionFinished()
+   {
+      activeSessions.decrementAndGet();
+   }
+
+   /**
+    * Create session attribute, which keeps count of active sessions. Session is counted as active until attribute is removed
+    * or session is invalidated or expired
+    *
+    * @return attribute value to save in HTTP session
+    */
+   public Object createActiveSessionMarker()
+   {
+      return new ActiveSessionMarker(this);
+   }
+
+   public LatencySnapshot getStartImpersonation()
+   {
+      return startImpersonation.getSnapshot();
+   }
+
+   public LatencySnapshot getStopImpersonation()
+   {
+      return stopImpersonation.getSnapshot();
+   }
+
+   public LatencySnapshot getCreateIdentity()
+   {
+      return createIdentity.getSnapshot();
+   }
+
+   public LatencySnapshot getFindUserByName()
+   {
+      return findUserByName.getSnapshot();
+   }
+
+   public long getActiveSessions()
+   {
+      return activeSessions.get();
+   }
+
+   public long getRejectedBadRequest()
+   {
+      return rejectedBadRequest.get();
+   }
+
+   public long getRejectedForbidden()
+   {
+      return rejectedForbidden.get();
+   }
+
+   public long getRejectedIdentityNotCreated()
+   {
+      return rejectedIdentityNotCreated.get();
+   }
+
+   public long getRejectedConflict()
+   {
+      return rejectedConflict.get();
+   }
+
+   public long getExpiredSessions()
+   {
+      return expiredSessions.get();
+   }
+
+   public void reset()
+   {
+      startImpersonation.reset();
+      stopImpersonation.reset();
+      createIdentity.reset();
+      findUserByName.reset();
+      rejectedBadRequest.set(0);
+      rejectedForbidden.set(0);
+      rejectedIdentityNotCreated.set(0);
+      rejectedConflict.set(0);
+      expiredSessions.set(0);
+   }
+
+   /**
+    * Register metrics in platform MBean server under {@link #getObjectName(String)}. Metrics of other instance (for example
+    * of other portal container or of web application, which wasn't undeployed yet) are not replaced
+    *
+    * @param context name of web application
+    * @return true if metrics were registered
+    */
+   public boolean register(String context)
+   {
+      try
+      {
+         MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+         ObjectName name = getObjectName(context);
+         if (server.isRegistered(name))
+         {
+            log.warn("Impersonation metrics not registered. MBean " + name + " is registered already by other instance");
+            return false;
+         }
+         server.registerMBean(this, name);
+         registeredName = name;
+         return true;
+      }
+      catch (Exception e)
+      {
+         log.warn("Unable to register impersonation metrics in MBean server", e);
+         return false;
+      }
+   }
+
+   /**
+    * Unregister metrics from platform MBean server if they were registered by {@link #register(String)}
+    */
+   public void unregister()
+   {
+      ObjectName name = registeredName;
+      if (name == null)
+      {
+         return;
+      }
+      registeredName = null;
+      try
+      {
+         ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+      }
+      catch (Exception e)
+      {
+         log.warn("Unable to unregister impersonation metrics from MBean server", e);
+      }
+   }
+
+   /**
+    * @param context name of web application
+    * @return name of MBean with metrics of given web application
+    * @throws MalformedObjectNameException if name can't be created
+    */
+   public static ObjectName getObjectName(String context) throws MalformedObjectNameException
+   {
+      return new ObjectName(OBJECT_NAME + ",context=" + ObjectName.quote(context));
+   }
+
+   @Override
+   public String toString()
+   {
+      return "ImpersonationMetrics[activeSessions=" + getActiveSessions() + ", start={" + getStartImpersonation()
+            + "}, stop={" + getStopImpersonation() + "}]";
+   }
+
+   /**
+    * Counts session as active while it's bound to HTTP session. Metrics are not replicated with session, so session
+    * deserialized on another cluster node is not counted there
+    */
+   private static class ActiveSessionMarker implements HttpSessionBindingListener, Serializable
+   {
+      private final transient ImpersonationMetrics metrics;
+
+      /** Whether session was counted as active on this node */
+      private transient boolean counted;
+
+      private ActiveSessionMarker(ImpersonationMetrics metrics)
+      {
+         this.metrics = metrics;
+      }
+
+      public synchronized void valueBound(HttpSessionBindingEvent event)
+      {
+         if (metrics != null && !counted)
+         {
+            counted = true;
+            metrics.sessionStarted();
+         }
+      }
+
+      public synchronized void valueUnbound(HttpSessionBindingEvent event)
+      {
+         if (counted)
+         {
+            counted = false;
+            metrics.sessionFinished();
+         }
+      }
+   }
+}
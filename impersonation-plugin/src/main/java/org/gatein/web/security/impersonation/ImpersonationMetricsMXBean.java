@@ -0,0 +1,73 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.web.security.impersonation;
+
+/**
+ * Management interface of {@link ImpersonationMetrics}
+ */
+public interface ImpersonationMetricsMXBean
+{
+   LatencySnapshot getStartImpersonation();
+
+   LatencySnapshot getStopImpersonation();
+
+   LatencySnapshot getCreateIdentity();
+
+   LatencySnapshot getFindUserByName();
+
+   /**
+    * @return count of impersonation sessions, which are currently active on this node
+    */
+   long getActiveSessions();
+
+   /**
+    * @return count of requests rejected because of invalid parameters, not existing user or already impersonated user
+    */
+   long getRejectedBadRequest();
+
+   /**
+    * @return count of requests rejected because of missing permission
+    */
+   long getRejectedForbidden();
+
+   /**
+    * @return count of requests rejected because identity of impersonated user was not created
+    */
+   long getRejectedIdentityNotCreated();
+
+   /**
+    * @return count of requests rejected because other request was starting or stopping impersonation in same HTTP session
+    */
+   long getRejectedConflict();
+
+   /**
+    * @return count of impersonation sessions expired because of max duration or idle timeout
+    */
+   long getExpiredSessions();
+
+   /**
+    * Reset all counters and histograms. Count of active sessions is not changed
+    */
+   void reset();
+}
@@ -0,0 +1,538 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.web.security.impersonation;
+
+import org.exoplatform.portal.config.UserACL;
+import org.exoplatform.services.organization.Group;
+import org.exoplatform.services.organization.GroupEventListener;
+import org.exoplatform.services.organization.Membership;
+import org.exoplatform.services.organization.MembershipEventListener;
+import org.exoplatform.services.organization.OrganizationService;
+import org.exoplatform.services.security.Identity;
+import org.exoplatform.services.security.MembershipEntry;
+import org.gatein.common.logging.Logger;
+import org.gatein.common.logging.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Policy, which decides which users can impersonate which other users. Policy is configured by rules separated by ';' or new line.
+ * Each rule has format:
+ *
+ * <pre>
+ * adminExpression[, adminExpression]* =&gt; targetExpression[, targetExpression]*
+ * </pre>
+ *
+ * Expression is either '*' (any user), 'membershipType:/group' or 'membershipType:/group/*' (group and all its subgroups).
+ * Membership type could be '*' for any membership type. Target expression with prefix '!' is exclusion. For example rule:
+ *
+ * <pre>
+ * manager:/platform/administrators =&gt; *:/platform/users, !*:/platform/administrators
+ * </pre>
+ *
+ * allows managers of group /platform/administrators to impersonate all users from /platform/users except administrators.
+ * User can impersonate other user if at least one rule allows it.
+ *
+ * Super user of portal (See {@link UserACL#getSuperUser()}) is allowed to impersonate anyone regardless of rules.
+ *
+ * Rules are compiled once into hash based matchers. Rules applicable to particular admin user and rules allowing particular target
+ * user are memoized. Change of memberships invalidates memo of just the affected user. Whole memo is invalidated by generation
+ * counter when rules are changed or group is deleted. Memo is bounded by {@link #MAX_GRANTS}
+ */
+public class ImpersonationPolicy
+{
+   /** Default policy, which allows managers of /platform/administrators to impersonate anyone */
+   public static final String DEFAULT_RULES = "manager:/platform/administrators => *";
+
+   private static final Logger log = LoggerFactory.getLogger(ImpersonationPolicy.class);
+
+   private static final String ANY = "*";
+
+   /** Max count of memoized decisions. Memo is cleared when it's full */
+   static final int MAX_GRANTS = 10000;
+
+   // Portal super user can impersonate anyone, like he could with UserACL.hasPermission used before rules were introduced
+   private static final Rule[] SUPER_USER_RULES = parseRules(ANY + " => " + ANY).toArray(new Rule[1]);
+
+   private volatile List<Rule> rules;
+
+   // Incremented when rules are changed or when memberships of many users could be changed
+   private final AtomicLong generation = new AtomicLong();
+
+   // Incremented when memberships of single user are changed, so memo computed concurrently with the change is not saved
+   private final AtomicLong invalidationCounter = new AtomicLong();
+
+   // Rules applicable to admin user with given username
+   private final ConcurrentMap<String, Grant> grants = new ConcurrentHashMap<String, Grant>();
+
+   // Rules, which allow to impersonate target user with given username
+   private final ConcurrentMap<String, Grant> targetGrants = new ConcurrentHashMap<String, Grant>();
+
+   /** Access control of portal. Null if super user of portal is not known */
+   private volatile UserACL userACL;
+
+   private final MembershipEventListener membershipListener = new MembershipEventListener()
+   {
+      @Override
+      public void postSave(Membership membership, boolean isNew) throws Exception
+      {
+         invalidate(membership.getUserName());
+      }
+
+      @Override
+      public void postDelete(Membership membership) throws Exception
+      {
+         invalidate(membership.getUserName());
+      }
+   };
+
+   private final GroupEventListener groupListener = new GroupEventListener()
+   {
+      @Override
+      public void postDelete(Group group) throws Exception
+      {
+         invalidateAll();
+      }
+   };
+
+   /**
+    * @param rules rules in format described in {@link ImpersonationPolicy}
+    * @throws IllegalArgumentException if rules have invalid format
+    */
+   public ImpersonationPolicy(String rules)
+   {
+      this.rules = parseRules(rules);
+   }
+
+   /**
+    * Replace rules of this policy. All memoized decisions are invalidated
+    *
+    * @param rules rules in format described in {@link ImpersonationPolicy}
+    * @throws IllegalArgumentException if rules have invalid format
+    */
+   public void setRules(String rules)
+   {
+      this.rules = parseRules(rules);
+      invalidateAll();
+   }
+
+   /**
+    * @param userACL access control of portal. Its super user is allowed to impersonate anyone regardless of rules
+    */
+   public void setUserACL(UserACL userACL)
+   {
+      this.userACL = userACL;
+   }
+
+   /**
+    * @param admin identity of user, who wants to impersonate
+    * @param target identity of user to impersonate
+    * @return true if admin is allowed to impersonate as target user
+    */
+   public boolean isAllowed(Identity admin, Identity target)
+   {
+      Rule[] applicableRules = getApplicableRules(admin);
+      if (applicableRules.length == 0)
+      {
+         return false;
+      }
+      if (applicableRules == SUPER_USER_RULES)
+      {
+         return true;
+      }
+
+      // Both arrays keep order of rules and they are usually very short
+      Rule[] allowingRules = getAllowingRules(target);
+      for (Rule rule : applicableRules)
+      {
+         for (Rule allowingRule : allowingRules)
+         {
+            if (rule == allowingRule)
+            {
+               return true;
+            }
+         }
+      }
+      return false;
+   }
+
+   /**
+    * @param admin identity of user
+    * @return true if given user is allowed to impersonate at least some users
+    */
+   public boolean canImpersonate(Identity admin)
+   {
+      return getApplicableRules(admin).length > 0;
+   }
+
+   /**
+    * @param admin identity of user
+    * @return true if given user is allowed to impersonate all users, so candidates don't need to be checked one by one
+    */
+   public boolean canImpersonateAnyone(Identity admin)
+   {
+      for (Rule rule : getApplicableRules(admin))
+      {
+         if (rule.allowsAll())
+         {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   /**
+    * Invalidate memoized decisions of given user
+    *
+    * @param username user
+    */
+   public void invalidate(String username)
+   {
+      // Increment counter too, so decision computed concurrently with this invalidation won't be saved
+      invalidationCounter.incrementAndGet();
+      grants.remove(username);
+      targetGrants.remove(username);
+   }
+
+   /**
+    * Invalidate all memoized decisions
+    */
+   public void invalidateAll()
+   {
+      generation.incrementAndGet();
+      grants.clear();
+      targetGrants.clear();
+   }
+
+   /**
+    * Register listeners to given organization service, so memoized decisions are invalidated when memberships are changed
+    *
+    * @param organizationService organization service
+    */
+   public void registerListeners(OrganizationService organizationService)
+   {
+      organizationService.getMembershipHandler().addMembershipEventListener(membershipListener);
+      organizationService.getGroupHandler().addGroupEventListener(groupListener);
+   }
+
+   /**
+    * Unregister listeners registered by {@link #registerListeners(OrganizationService)}
+    *
+    * @param organizationService organization service
+    */
+   public void unregisterListeners(OrganizationService organizationService)
+   {
+      organizationService.getMembershipHandler().removeMembershipEventListener(membershipListener);
+      organizationService.getGroupHandler().removeGroupEventListener(groupListener);
+   }
+
+   private Rule[] getApplicableRules(Identity admin)
+   {
+      UserACL userACL = this.userACL;
+      if (userACL != null && admin.getUserId().equals(userACL.getSuperUser()))
+      {
+         return SUPER_USER_RULES;
+      }
+
+      long currentGeneration = generation.get();
+      Grant grant = grants.get(admin.getUserId());
+      if (grant != null && grant.generation == currentGeneration)
+      {
+         return grant.rules;
+      }
+
+      long counter = invalidationCounter.get();
+      List<Rule> applicable = new ArrayList<Rule>();
+      for (Rule rule : rules)
+      {
+         if (rule.admins.matches(admin))
+         {
+            applicable.add(rule);
+         }
+      }
+
+      grant = new Grant(currentGeneration, applicable.toArray(new Rule[applicable.size()]));
+      save(grants, admin.getUserId(), grant, counter);
+      return grant.rules;
+   }
+
+   private Rule[] getAllowingRules(Identity target)
+   {
+      long currentGeneration = generation.get();
+      Grant grant = targetGrants.get(target.getUserId());
+      if (grant != null && grant.generation == currentGeneration)
+      {
+         return grant.rules;
+      }
+
+      long counter = invalidationCounter.get();
+      List<Rule> allowing = new ArrayList<Rule>();
+      for (Rule rule : rules)
+      {
+         if (rule.allows(target))
+         {
+            allowing.add(rule);
+         }
+      }
+
+      grant = new Grant(currentGeneration, allowing.toArray(new Rule[allowing.size()]));
+      save(targetGrants, target.getUserId(), grant, counter);
+      return grant.rules;
+   }
+
+   private void save(ConcurrentMap<String, Grant> memo, String username, Grant grant, long counter)
+   {
+      if (memo.size() >= MAX_GRANTS)
+      {
+         // Decisions are cheap to compute again, so memo of many users is simply dropped
+         memo.clear();
+      }
+
+      // Memberships of some user could change while grant was computed. Grant is just returned then
+      if (counter == invalidationCounter.get())
+      {
+         memo.put(username, grant);
+      }
+   }
+
+   private static List<Rule> parseRules(String rules)
+   {
+      List<Rule> result = new ArrayList<Rule>();
+      for (String ruleString : rules.split("[;\n]"))
+      {
+         ruleString = ruleString.trim();
+         if (ruleString.length() == 0)
+         {
+            continue;
+         }
+
+         int arrowIndex = ruleString.indexOf("=>");
+         if (arrowIndex == -1)
+         {
+            throw new IllegalArgumentException("Invalid impersonation rule '" + ruleString + "'. Expected format is 'admins => targets'");
+         }
+
+         List<String> admins = new ArrayList<String>();
+         List<String> targets = new ArrayList<String>();
+         List<String> exclusions = new ArrayList<String>();
+         for (String expression : splitExpressions(ruleString.substring(0, arrowIndex)))
+         {
+            admins.add(expression);
+         }
+         for (String expression : splitExpressions(ruleString.substring(arrowIndex + 2)))
+         {
+            if (expression.startsWith("!"))
+            {
+               exclusions.add(expression.substring(1).trim());
+            }
+            else
+            {
+               targets.add(expression);
+            }
+         }
+
+         if (admins.isEmpty() || targets.isEmpty())
+         {
+            throw new IllegalArgumentException("Invalid impersonation rule '" + ruleString + "'. Admins and targets must be specified");
+         }
+
+         result.add(new Rule(new MembershipMatcher(admins), new MembershipMatcher(targets), new MembershipMatcher(exclusions)));
+      }
+
+      if (log.isTraceEnabled())
+      {
+         log.trace("Compiled " + result.size() + " impersonation rules from: " + rules);
+      }
+      return Collections.unmodifiableList(result);
+   }
+
+   private static List<String> splitExpressions(String expressions)
+   {
+      List<String> result = new ArrayList<String>();
+      for (String expression : expressions.split(","))
+      {
+         expression = expression.trim();
+         if (expression.length() > 0)
+         {
+            result.add(expression);
+         }
+      }
+      return result;
+   }
+
+   private static class Grant
+   {
+      private final long generation;
+      private final Rule[] rules;
+
+      private Grant(long generation, Rule[] rules)
+      {
+         this.generation = generation;
+         this.rules = rules;
+      }
+   }
+
+   private static class Rule
+   {
+      private final MembershipMatcher admins;
+      private final MembershipMatcher targets;
+      private final MembershipMatcher exclusions;
+
+      private Rule(MembershipMatcher admins, MembershipMatcher targets, MembershipMatcher exclusions)
+      {
+         this.admins = admins;
+         this.targets = targets;
+         this.exclusions = exclusions;
+      }
+
+      private boolean allows(Identity target)
+      {
+         return targets.matches(target) && !exclusions.matches(target);
+      }
+
+      private boolean allowsAll()
+      {
+         return targets.matchesAll && exclusions.isEmpty();
+      }
+   }
+
+   /**
+    * Compiled set of membership expressions. Identity matches if at least one of its memberships matches some expression
+    */
+   static class MembershipMatcher
+   {
+      private final boolean matchesAll;
+
+      // Membership types for exact group. Type '*' matches all types
+      private final Map<String, Set<String>> groups = new HashMap<String, Set<String>>();
+
+      // Membership types for group prefixes (expressions ending with '/*')
+      private final List<String> prefixes = new ArrayList<String>();
+      private final List<String> prefixTypes = new ArrayList<String>();
+
+      MembershipMatcher(Collection<String> expressions)
+      {
+         boolean all = false;
+         for (String expression : expressions)
+         {
+            if (ANY.equals(expression))
+            {
+               all = true;
+               continue;
+            }
+
+            int colonIndex = expression.indexOf(':');
+            if (colonIndex <= 0 || colonIndex == expression.length() - 1)
+            {
+               throw new IllegalArgumentException("Invalid membership expression '" + expression + "'. Expected format is 'type:/group'");
+            }
+
+            String type = expression.substring(0, colonIndex).trim();
+            String group = expression.substring(colonIndex + 1).trim();
+            if (group.endsWith("/*"))
+            {
+               // Prefix with trailing '/' matches subgroups. Group itself is added as exact group
+               String parent = group.substring(0, group.length() - 2);
+               prefixes.add(parent + "/");
+               prefixTypes.add(type);
+               addGroup(parent, type);
+            }
+            else
+            {
+               addGroup(group, type);
+            }
+         }
+         this.matchesAll = all;
+      }
+
+      private void addGroup(String group, String type)
+      {
+         Set<String> types = groups.get(group);
+         if (types == null)
+         {
+            types = new HashSet<String>();
+            groups.put(group, types);
+         }
+         types.add(type);
+      }
+
+      boolean isEmpty()
+      {
+         return !matchesAll && groups.isEmpty();
+      }
+
+      boolean matches(Identity identity)
+      {
+         if (matchesAll)
+         {
+            return true;
+         }
+         if (groups.isEmpty())
+         {
+            return false;
+         }
+
+         for (MembershipEntry membership : identity.getMemberships())
+         {
+            String group = membership.getGroup();
+            String type = membership.getMembershipType();
+
+            Set<String> types = groups.get(group);
+            if (types != null && matchesType(types, type))
+            {
+               return true;
+            }
+
+            for (int i = 0; i < prefixes.size(); i++)
+            {
+               if (group.startsWith(prefixes.get(i)) && matchesType(prefixTypes.get(i), type))
+               {
+                  return true;
+               }
+            }
+         }
+         return false;
+      }
+
+      private static boolean matchesType(Set<String> types, String type)
+      {
+         return types.contains(ANY) || types.contains(type) || (ANY.equals(type) && !types.isEmpty());
+      }
+
+      private static boolean matchesType(String expectedType, String type)
+      {
+         return ANY.equals(expectedType) || ANY.equals(type) || expectedType.equals(type);
+      }
+   }
+}
@@ -0,0 +1,112 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.web.security.impersonation;
+
+import org.exoplatform.container.ExoContainer;
+import org.exoplatform.portal.config.UserACL;
+import org.exoplatform.services.organization.OrganizationService;
+import org.exoplatform.services.security.Authenticator;
+import org.exoplatform.services.security.ConversationRegistry;
+import org.exoplatform.services.security.IdentityRegistry;
+
+/**
+ * Holder of eXo services needed during impersonation. Services are resolved from container just once, so start and stop of
+ * impersonation session don't need to lookup components in container. Holder remembers container from which it was resolved,
+ * so callers are able to detect restart of portal container and resolve services again
+ */
+public class ImpersonationServices
+{
+   private final ExoContainer container;
+   private final OrganizationService organizationService;
+   private final UserACL userACL;
+   private final Authenticator authenticator;
+   private final ConversationRegistry conversationRegistry;
+   private final IdentityRegistry identityRegistry;
+
+   public ImpersonationServices(ExoContainer container, OrganizationService organizationService, UserACL userACL,
+                                Authenticator authenticator, ConversationRegistry conversationRegistry, IdentityRegistry identityRegistry)
+   {
+      this.container = container;
+      this.organizationService = organizationService;
+      this.userACL = userACL;
+      this.authenticator = authenticator;
+      this.conversationRegistry = conversationRegistry;
+      this.identityRegistry = identityRegistry;
+   }
+
+   /**
+    * Lookup all needed services in given container
+    *
+    * @param container eXo container
+    * @return holder with resolved services
+    */
+   public static ImpersonationServices resolve(ExoContainer container)
+   {
+      return new ImpersonationServices(container,
+            (OrganizationService)container.getComponentInstanceOfType(OrganizationService.class),
+            (UserACL)container.getComponentInstanceOfType(UserACL.class),
+            (Authenticator)container.getComponentInstanceOfType(Authenticator.class),
+            (ConversationRegistry)container.getComponentInstanceOfType(ConversationRegistry.class),
+            (IdentityRegistry)container.getComponentInstanceOfType(IdentityRegistry.class));
+   }
+
+   /**
+    * @param currentContainer container used by current request
+    * @return true if services were resolved from different container (For example portal container was restarted meanwhile)
+    */
+   public boolean isStale(ExoContainer currentContainer)
+   {
+      return container != currentContainer;
+   }
+
+   public ExoContainer getContainer()
+   {
+      return container;
+   }
+
+   public OrganizationService getOrganizationService()
+   {
+      return organizationService;
+   }
+
+   public UserACL getUserACL()
+   {
+      return userACL;
+   }
+
+   public Authenticator getAuthenticator()
+   {
+      return authenticator;
+   }
+
+   public ConversationRegistry getConversationRegistry()
+   {
+      return conversationRegistry;
+   }
+
+   public IdentityRegistry getIdentityRegistry()
+   {
+      return identityRegistry;
+   }
+}
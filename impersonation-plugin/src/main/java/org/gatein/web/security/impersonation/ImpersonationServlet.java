@@ -1,25 +1,23 @@
 package org.gatein.web.security.impersonation;
 
+import org.exoplatform.container.ExoContainer;
 import org.exoplatform.container.web.AbstractHttpServlet;
-import org.exoplatform.portal.config.UserACL;
-import org.exoplatform.services.organization.OrganizationService;
-import org.exoplatform.services.organization.User;
-import org.exoplatform.services.security.Authenticator;
-import org.exoplatform.services.security.ConversationRegistry;
 import org.exoplatform.services.security.ConversationState;
 import org.exoplatform.services.security.Identity;
-import org.exoplatform.services.security.IdentityRegistry;
-import org.exoplatform.services.security.StateKey;
-import org.exoplatform.services.security.web.HttpSessionStateKey;
 import org.gatein.common.logging.Logger;
 import org.gatein.common.logging.LoggerFactory;
+import org.gatein.web.security.impersonation.audit.ImpersonationAuditLog;
+import org.gatein.web.security.impersonation.cluster.ClusterBroadcaster;
+import org.gatein.web.security.impersonation.cluster.ClusterChannel;
 
+import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.servlet.http.HttpSession;
+import java.io.File;
 import java.io.IOException;
-import java.util.Enumeration;
+import java.io.UnsupportedEncodingException;
+import java.util.UUID;
 
 /**
  * Servlet, which handles impersonation and impersonalization (de-impersonation) of users
@@ -33,6 +31,9 @@ public class ImpersonationServlet extends AbstractHttpServlet
    public static final String PARAM_ACTION_START_IMPERSONATION = "startImpersonation";
    public static final String PARAM_ACTION_STOP_IMPERSONATION = "stopImpersonation";
 
+   /** Request parameter to finish all levels of nested impersonation session instead of just current level */
+   public static final String PARAM_STOP_ALL = "_impersonationStopAll";
+
    /** Request parameter with name of user, who will be impersonated */
    public static final String PARAM_USERNAME = "_impersonationUsername";
 
@@ -42,17 +43,180 @@ public class ImpersonationServlet extends AbstractHttpServlet
     * */
    public static final String PARAM_RETURN_IMPERSONATION_URI = "_returnImpersonationURI";
 
-   /** Session attribute where return impersonation URI will be saved */
-   public static final String ATTR_RETURN_IMPERSONATION_URI = "_returnImpersonationURI";
+   /** Request parameter with URI where admin user is redirected after start of impersonation. Portal context is used by default */
+   public static final String PARAM_TARGET_URI = "_impersonationTargetURI";
 
    /** Impersonation suffix (Actually path of this servlet) */
    public static final String IMPERSONATE_URL_SUFIX = "/impersonate";
 
-   /** Prefix of session attributes, which will be used to backup existing session of root user */
-   private static final String BACKUP_ATTR_PREFIX = "_bck.";
+   /** Init parameter with max count of identities cached in {@link IdentityCache}. Value 0 disables the cache */
+   public static final String INIT_PARAM_IDENTITY_CACHE_SIZE = "identityCacheSize";
+
+   /** Init parameter with time in seconds after which identity cached in {@link IdentityCache} expires */
+   public static final String INIT_PARAM_IDENTITY_CACHE_TTL = "identityCacheTimeToLive";
+
+   /**
+    * Init parameter to enable replication friendly session. Each session attribute of impersonated user is then saved
+    * separately, so servlet container in cluster replicates just changed attributes. See {@link ImpersonatedHttpSession}
+    */
+   public static final String INIT_PARAM_SESSION_REPLICATION = "sessionReplication";
+
+   /**
+    * Init parameter with rules of {@link ImpersonationPolicy}, which decides who can impersonate whom.
+    * Default is {@link ImpersonationPolicy#DEFAULT_RULES}
+    */
+   public static final String INIT_PARAM_IMPERSONATION_POLICY = "impersonationPolicy";
+
+   /** Init parameter with directory of audit log. Audit log is disabled if it's not provided */
+   public static final String INIT_PARAM_AUDIT_LOG_DIRECTORY = "auditLogDirectory";
+
+   /** Init parameter with size of audit file in megabytes after which file is rotated */
+   public static final String INIT_PARAM_AUDIT_LOG_MAX_FILE_SIZE = "auditLogMaxFileSize";
+
+   /** Init parameter with count of kept audit files including current one */
+   public static final String INIT_PARAM_AUDIT_LOG_MAX_FILES = "auditLogMaxFiles";
+
+   /** Init parameter with max count of audit events waiting for write */
+   public static final String INIT_PARAM_AUDIT_LOG_BUFFER_SIZE = "auditLogBufferSize";
+
+   /** Init parameter with policy applied when buffer of audit log is full. See {@link ImpersonationAuditLog.OverflowPolicy} */
+   public static final String INIT_PARAM_AUDIT_LOG_OVERFLOW_POLICY = "auditLogOverflowPolicy";
+
+   /**
+    * Init parameter with secret shared by all cluster nodes. If it's provided, impersonation session is saved in signed token
+    * too, so any node can restore it without replicated {@link ImpersonatedIdentity}. See {@link ImpersonationTokenService}
+    */
+   public static final String INIT_PARAM_TOKEN_SECRET = "impersonationTokenSecret";
+
+   /** Init parameter with time in seconds after which token of impersonation session expires */
+   public static final String INIT_PARAM_TOKEN_TTL = "impersonationTokenTimeToLive";
+
+   /**
+    * Init parameter with max level of nested impersonation sessions. Default is {@link Impersonator#DEFAULT_MAX_DEPTH}, so
+    * impersonated user can't impersonate anyone
+    */
+   public static final String INIT_PARAM_MAX_DEPTH = "maxImpersonationDepth";
+
+   /** Init parameter with max duration of impersonation session in seconds. Sessions don't expire by default */
+   public static final String INIT_PARAM_MAX_DURATION = "maxImpersonationDuration";
+
+   /** Init parameter with time in seconds after which impersonation session without requests expires. Disabled by default */
+   public static final String INIT_PARAM_IDLE_TIMEOUT = "impersonationIdleTimeout";
+
+   /**
+    * Init parameter with class name of {@link ClusterChannel} used to broadcast termination of sessions and changes of policy
+    * to other cluster nodes. Events are not broadcasted by default
+    */
+   public static final String INIT_PARAM_CLUSTER_CHANNEL = "clusterChannel";
+
+   /** Init parameter with time in milliseconds for which events wait before they are broadcasted in batch */
+   public static final String INIT_PARAM_CLUSTER_FLUSH_INTERVAL = "clusterFlushInterval";
+
+   /** Init parameter with identifier of this cluster node. Random identifier is used by default */
+   public static final String INIT_PARAM_CLUSTER_NODE_ID = "clusterNodeId";
+
+   /**
+    * Init parameter with count of threads prefetching identities of users, whose names are typed in impersonation portlet.
+    * Value 0 disables prefetch. See {@link IdentityPrefetcher}
+    */
+   public static final String INIT_PARAM_PREFETCH_THREADS = "identityPrefetchThreads";
+
+   /** Init parameter with max count of users, whose identities are prefetched or wait for start of impersonation */
+   public static final String INIT_PARAM_PREFETCH_CAPACITY = "identityPrefetchCapacity";
+
+   /**
+    * Init parameter with max count of warm-ups of portal for impersonated users running at once. Value 0 disables warm-up.
+    * See {@link ImpersonationWarmUp}
+    */
+   public static final String INIT_PARAM_WARM_UP_CONCURRENCY = "warmUpConcurrency";
+
+   /** Init parameter with max count of warm-ups waiting for free thread */
+   public static final String INIT_PARAM_WARM_UP_QUEUE_SIZE = "warmUpQueueSize";
+
+   private static final int DEFAULT_WARM_UP_QUEUE_SIZE = 100;
+
+   private static final int DEFAULT_PREFETCH_THREADS = 2;
+   private static final int DEFAULT_PREFETCH_CAPACITY = 100;
+   private static final long PREFETCH_TTL_MILLIS = 30 * 1000L;
+
+   private static final int DEFAULT_CLUSTER_FLUSH_INTERVAL = 50;
+   private static final int CLUSTER_MAX_BATCH_SIZE = 500;
+
+   private static final int DEFAULT_TOKEN_TTL = 8 * 60 * 60;
+
+   private static final int DEFAULT_AUDIT_LOG_MAX_FILE_SIZE = 10;
+   private static final int DEFAULT_AUDIT_LOG_MAX_FILES = 10;
+   private static final int DEFAULT_AUDIT_LOG_BUFFER_SIZE = 8192;
 
    private static final Logger log = LoggerFactory.getLogger(ImpersonationServlet.class);
 
+   /** Performs checks and creates identities of impersonated users */
+   private volatile Impersonator impersonator;
+
+   @Override
+   protected void afterInit(ServletConfig config) throws ServletException
+   {
+      int cacheSize = getIntInitParameter(config, INIT_PARAM_IDENTITY_CACHE_SIZE, Impersonator.DEFAULT_IDENTITY_CACHE_SIZE);
+      int cacheTTL = getIntInitParameter(config, INIT_PARAM_IDENTITY_CACHE_TTL, Impersonator.DEFAULT_IDENTITY_CACHE_TTL);
+      IdentityCache identityCache = new IdentityCache(cacheSize, cacheTTL * 1000L);
+
+      String policyRules = config.getInitParameter(INIT_PARAM_IMPERSONATION_POLICY);
+      ImpersonationPolicy policy;
+      try
+      {
+         policy = new ImpersonationPolicy(policyRules != null ? policyRules : ImpersonationPolicy.DEFAULT_RULES);
+      }
+      catch (IllegalArgumentException iae)
+      {
+         throw new ServletException("Invalid value of init parameter " + INIT_PARAM_IMPERSONATION_POLICY, iae);
+      }
+
+      impersonator = new Impersonator(identityCache, policy);
+      impersonator.setSessionReplication(Boolean.parseBoolean(config.getInitParameter(INIT_PARAM_SESSION_REPLICATION)));
+      impersonator.setTokenService(createTokenService(config));
+      int warmUpConcurrency = getIntInitParameter(config, INIT_PARAM_WARM_UP_CONCURRENCY, 0);
+      if (warmUpConcurrency > 0)
+      {
+         int warmUpQueueSize = Math.max(getIntInitParameter(config, INIT_PARAM_WARM_UP_QUEUE_SIZE, DEFAULT_WARM_UP_QUEUE_SIZE), 1);
+         impersonator.setWarmUp(new ImpersonationWarmUp(warmUpConcurrency, warmUpQueueSize));
+      }
+      int prefetchThreads = getIntInitParameter(config, INIT_PARAM_PREFETCH_THREADS, DEFAULT_PREFETCH_THREADS);
+      if (prefetchThreads > 0)
+      {
+         int prefetchCapacity = Math.max(getIntInitParameter(config, INIT_PARAM_PREFETCH_CAPACITY, DEFAULT_PREFETCH_CAPACITY), 1);
+         impersonator.setPrefetcher(new IdentityPrefetcher(prefetchThreads, prefetchCapacity, PREFETCH_TTL_MILLIS));
+      }
+      try
+      {
+         impersonator.setMaxDepth(getIntInitParameter(config, INIT_PARAM_MAX_DEPTH, Impersonator.DEFAULT_MAX_DEPTH));
+      }
+      catch (IllegalArgumentException iae)
+      {
+         throw new ServletException("Invalid value of init parameter " + INIT_PARAM_MAX_DEPTH, iae);
+      }
+      int maxDuration = getIntInitParameter(config, INIT_PARAM_MAX_DURATION, 0);
+      int idleTimeout = getIntInitParameter(config, INIT_PARAM_IDLE_TIMEOUT, 0);
+      if (maxDuration > 0 || idleTimeout > 0)
+      {
+         ImpersonationExpiry expiry = new ImpersonationExpiry(maxDuration * 1000L, idleTimeout * 1000L, impersonator.getMetrics());
+         expiry.start();
+         impersonator.setExpiry(expiry);
+      }
+      impersonator.setAuditLog(createAuditLog(config));
+      impersonator.setBroadcaster(createBroadcaster(config, impersonator));
+      impersonator.getAuditLog().start();
+      Impersonator.setInstance(config.getServletContext(), impersonator);
+      String contextPath = config.getServletContext().getContextPath();
+      impersonator.getMetrics().register(contextPath.length() > 0 ? contextPath : "/");
+
+      // Portal container may not be fully started yet during init. Services will be resolved lazily in this case
+      ExoContainer container = getContainer();
+      if (container != null)
+      {
+         impersonator.getServices(container);
+      }
+   }
+
    @Override
    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException
    {
@@ -60,11 +224,20 @@ public class ImpersonationServlet extends AbstractHttpServlet
       if (action == null)
       {
          log.error("Parameter '" + PARAM_ACTION + "' not provided");
+         getMetrics().recordBadRequest();
          resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
       }
       else if (PARAM_ACTION_START_IMPERSONATION.equals(action))
       {
-         startImpersonation(req, resp);
+         long start = System.nanoTime();
+         try
+         {
+            startImpersonation(req, resp);
+         }
+         finally
+         {
+            getMetrics().recordStartImpersonation(System.nanoTime() - start);
+         }
       }
       else if (PARAM_ACTION_STOP_IMPERSONATION.equals(action))
       {
@@ -73,10 +246,43 @@ public class ImpersonationServlet extends AbstractHttpServlet
       else
       {
          log.error("Unknown impersonation action: " + action);
+         getMetrics().recordBadRequest();
          resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
       }
    }
 
+   @Override
+   public void destroy()
+   {
+      impersonator.getMetrics().unregister();
+      impersonator.getAuditLog().stop();
+      ImpersonationExpiry expiry = impersonator.getExpiry();
+      if (expiry != null)
+      {
+         expiry.stop();
+      }
+      ClusterBroadcaster broadcaster = impersonator.getBroadcaster();
+      if (broadcaster != null)
+      {
+         broadcaster.stop();
+      }
+      IdentityPrefetcher prefetcher = impersonator.getPrefetcher();
+      if (prefetcher != null)
+      {
+         prefetcher.stop();
+      }
+      ImpersonationWarmUp warmUp = impersonator.getWarmUp();
+      if (warmUp != null)
+      {
+         warmUp.stop();
+      }
+
+      // Unregister listeners from organization service
+      impersonator.setServices(null);
+      Impersonator.setInstance(getServletContext(), null);
+      super.destroy();
+   }
+
 
    protected void startImpersonation(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException
    {
@@ -85,156 +291,126 @@ public class ImpersonationServlet extends AbstractHttpServlet
       if (usernameToImpersonate == null)
       {
          log.error("Parameter '" + PARAM_USERNAME + "' not provided");
+         getMetrics().recordBadRequest();
          resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
          return;
       }
 
-      // Find user to impersonate
-      OrganizationService orgService = (OrganizationService)getContainer().getComponentInstanceOfType(OrganizationService.class);
-      User userToImpersonate;
-      try
+      // Repeated request (for example double click) just redirects to target page. Request coming during start or stop of
+      // impersonation in same HTTP session is rejected without waiting for it
+      ImpersonationSessionState sessionState = impersonator.getSessionState(getServices(), req);
+      if (sessionState.isStartedAs(usernameToImpersonate))
       {
-         userToImpersonate = orgService.getUserHandler().findUserByName(usernameToImpersonate);
+         resp.sendRedirect(getLocalURI(req, PARAM_TARGET_URI));
+         return;
       }
-      catch (Exception e)
+      ImpersonationSessionState.Phase phase = sessionState.getPhase();
+      if (phase == ImpersonationSessionState.Phase.STARTING || phase == ImpersonationSessionState.Phase.STOPPING)
       {
-         throw new ServletException(e);
+         log.debug("Impersonation as user " + usernameToImpersonate + " rejected. Session is in state " + sessionState);
+         getMetrics().recordRejection(ImpersonationException.Reason.CONFLICT);
+         resp.sendError(HttpServletResponse.SC_CONFLICT);
+         return;
       }
 
-      if (userToImpersonate == null)
+      // Find user to impersonate, check permission and create identity for him
+      ImpersonatedIdentity impersonatedIdentity;
+      try
       {
-         log.error("User '" + usernameToImpersonate + "' not found!");
-         resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
-         return;
+         impersonatedIdentity = impersonator.createImpersonatedIdentity(getServices(), ConversationState.getCurrent(), usernameToImpersonate);
       }
-
-      ConversationState currentConversationState = ConversationState.getCurrent();
-      Identity currentIdentity = currentConversationState.getIdentity();
-      if (currentIdentity instanceof ImpersonatedIdentity)
+      catch (ImpersonationException ie)
       {
-         log.error("Already impersonated as identity: " + currentIdentity);
-         resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+         if (ie.getCause() != null)
+         {
+            log.error(ie.getMessage(), ie.getCause());
+         }
+         else
+         {
+            log.error(ie.getMessage());
+         }
+         resp.sendError(getStatusCode(ie.getReason()));
          return;
       }
-
-      if (!checkPermission(currentIdentity, userToImpersonate))
+      catch (Exception e)
       {
-         log.error("Current user represented by identity " + currentIdentity.getUserId() + " doesn't have permission to impersonate as " + userToImpersonate);
-         resp.sendError(HttpServletResponse.SC_FORBIDDEN);
-         return;
+         throw new ServletException(e);
       }
 
       log.debug("Going to impersonate as user: " + usernameToImpersonate);
 
-      // Backup and clear current HTTP session
-      backupAndClearCurrentSession(req);
-
-      // Obtain URI where we need to redirect after finish impersonation session. Save it to current HTTP session
-      String returnImpersonationURI = req.getParameter(PARAM_RETURN_IMPERSONATION_URI);
-      if (returnImpersonationURI == null)
-      {
-         returnImpersonationURI = req.getContextPath();
-      }
-      req.getSession().setAttribute(ATTR_RETURN_IMPERSONATION_URI, returnImpersonationURI);
+      // Obtain URI where we need to redirect after finish impersonation session
+      String returnImpersonationURI = getLocalURI(req, PARAM_RETURN_IMPERSONATION_URI);
+      impersonatedIdentity.setReturnURI(returnImpersonationURI);
       if (log.isTraceEnabled())
       {
          log.trace("Saved URI " + returnImpersonationURI + " which will be used after finish of impersonation");
       }
 
-      // Real impersonation done here
-      boolean success = impersonate(req, currentConversationState, usernameToImpersonate);
-      if (success)
+      // Real impersonation done here. Concurrent duplicate of this request doesn't start it again
+      boolean started;
+      try
       {
-         // Redirect to portal for now
-         resp.sendRedirect(req.getContextPath());
+         started = impersonator.startImpersonation(getServices(), req, resp, impersonatedIdentity);
       }
-      else
+      catch (ImpersonationException ie)
+      {
+         log.debug(ie.getMessage());
+         resp.sendError(getStatusCode(ie.getReason()));
+         return;
+      }
+
+      // Redirect to target page or to portal if it's not provided. Portal is warmed up for impersonated user meanwhile
+      String targetURI = getLocalURI(req, PARAM_TARGET_URI);
+      if (started)
       {
-         resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+         impersonator.warmUp(getServices(), impersonatedIdentity, req, targetURI);
       }
+      resp.sendRedirect(targetURI);
    }
 
 
    /**
-    * Check if current user has permission to impersonate as user 'userToImpersonate'
-    *
-    * @param currentIdentity Identity of current user
-    * @param userToImpersonate user to check
-    * @return true if current user has permission to impersonate as user 'userToImpersonate'
+    * @param reason reason why impersonation was rejected
+    * @return HTTP status code sent to client
     */
-   protected boolean checkPermission(Identity currentIdentity, User userToImpersonate)
+   protected int getStatusCode(ImpersonationException.Reason reason)
    {
-      UserACL userACL = (UserACL)getContainer().getComponentInstanceOfType(UserACL.class);
-
-      // For now hardcode permission here and allow manager:/platform/administrators to impersonate
-      return userACL.hasPermission(currentIdentity, "manager:/platform/administrators");
+      switch (reason)
+      {
+         case FORBIDDEN:
+            return HttpServletResponse.SC_FORBIDDEN;
+         case IDENTITY_NOT_CREATED:
+            return HttpServletResponse.SC_SERVICE_UNAVAILABLE;
+         case CONFLICT:
+            return HttpServletResponse.SC_CONFLICT;
+         default:
+            return HttpServletResponse.SC_BAD_REQUEST;
+      }
    }
 
-
    /**
-    * Backup all session attributes of admin user as we will have new session for "impersonated" user
-    *
-    * @param req http servlet request
+    * @return impersonator used to check permission of impersonation and create identities of impersonated users
     */
-   protected void backupAndClearCurrentSession(HttpServletRequest req)
+   protected Impersonator getImpersonator()
    {
-      HttpSession session = req.getSession(false);
-      if (session != null)
-      {
-         Enumeration attrNames = session.getAttributeNames();
-         while (attrNames.hasMoreElements())
-         {
-            String attrName = (String)attrNames.nextElement();
-            Object attrValue = session.getAttribute(attrName);
-
-            // Backup attribute and clear old
-            String backupAttrName =  BACKUP_ATTR_PREFIX + attrName;
-            session.setAttribute(backupAttrName, attrValue);
-            session.removeAttribute(attrName);
-
-            if (log.isTraceEnabled())
-            {
-               log.trace("Finished backup of attribute: " + attrName);
-            }
-         }
-      }
-
-      // TODO: save URL to redirect after impersonation will be finished
+      return impersonator;
    }
 
    /**
-    * Start impersonation session and update ConversationRegistry with new impersonated Identity
-    *
-    * @param req servlet request
-    * @param currentConvState current Conversation State. It will be wrapped inside impersonated identity, so we can later restore it
-    * @param usernameToImpersonate
-    * @return true if impersonation was successful
+    * @return metrics of impersonation exposed through JMX
     */
-   protected boolean impersonate(HttpServletRequest req, ConversationState currentConvState, String usernameToImpersonate)
+   protected ImpersonationMetrics getMetrics()
    {
-      // Create new identity for user, who will be impersonated
-      Identity newIdentity = createIdentity(usernameToImpersonate);
-      if (newIdentity == null)
-      {
-         return false;
-      }
-
-      ImpersonatedIdentity impersonatedIdentity = new ImpersonatedIdentity(newIdentity, currentConvState);
-
-      // Create new entry to ConversationState
-      log.debug("Set ConversationState with current session. Admin user "
-            + impersonatedIdentity.getParentConversationState().getIdentity().getUserId()
-            + " will use identity of user " + impersonatedIdentity.getUserId());
-
-      ConversationState impersonatedConversationState = new ConversationState(impersonatedIdentity);
-
-      registerConversationState(req, impersonatedConversationState);
-      return true;
+      return impersonator.getMetrics();
    }
 
 
    /**
-    * Stop impersonation session and restore previous Conversation State
+    * Stop impersonation session and restore previous Conversation State. Impersonation session is usually finished during
+    * logout request already (See {@link ImpersonationLogoutLifecycle}), so this is needed just if admin user wants to finish
+    * impersonation session explicitly. Just current level of nested impersonation session is finished, unless parameter
+    * {@link #PARAM_STOP_ALL} is true
     *
     * @param req servlet request
     * @param resp servlet response
@@ -245,24 +421,34 @@ public class ImpersonationServlet extends AbstractHttpServlet
       if (!(currentIdentity instanceof ImpersonatedIdentity))
       {
          log.error("Can't stop impersonation session. Current identity is not instance of Impersonated Identity! Current identity: " + currentIdentity);
+         getMetrics().recordBadRequest();
          resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
          return;
       }
 
       ImpersonatedIdentity impersonatedIdentity = (ImpersonatedIdentity)currentIdentity;
+      if (Boolean.parseBoolean(req.getParameter(PARAM_STOP_ALL)))
+      {
+         impersonator.unwindImpersonation(getServices(), req, resp, impersonatedIdentity, 1);
+         impersonatedIdentity = impersonatedIdentity.getLevel(1);
+      }
+      else
+      {
+         impersonator.stopImpersonation(getServices(), req, resp, impersonatedIdentity);
+      }
 
-      log.debug("Cancel impersonation session. Impersonated user was: " + impersonatedIdentity.getUserId()
-            + ", Admin user is: " + impersonatedIdentity.getParentConversationState().getIdentity().getUserId());
-
-      // Restore old conversation state
-      restoreConversationState(req, impersonatedIdentity);
-
-      // Restore return URI from session
-      String returnURI = getReturnURI(req);
-
-      // Restore session attributes of root user
-      restoreOldSessionAttributes(req);
+      // Other request is starting or stopping impersonation in same HTTP session, so session was not finished. Duplicate stop
+      // request is redirected like the first one
+      if (!impersonatedIdentity.isStopped())
+      {
+         log.debug("Impersonation session as user " + impersonatedIdentity.getUserId() + " not finished. Session is in state "
+               + impersonator.getSessionState(getServices(), req));
+         getMetrics().recordRejection(ImpersonationException.Reason.CONFLICT);
+         resp.sendError(HttpServletResponse.SC_CONFLICT);
+         return;
+      }
 
+      String returnURI = getReturnURI(req, impersonatedIdentity);
       if (log.isTraceEnabled())
       {
          log.trace("Impersonation finished. Redirecting to " + returnURI);
@@ -270,103 +456,148 @@ public class ImpersonationServlet extends AbstractHttpServlet
       resp.sendRedirect(returnURI);
    }
 
-   protected void restoreConversationState(HttpServletRequest req, ImpersonatedIdentity impersonatedIdentity)
+   /**
+    * Obtain services needed for impersonation. They are resolved from container just once and resolved again only if
+    * portal container was restarted
+    *
+    * @return holder with resolved services
+    */
+   protected ImpersonationServices getServices()
    {
-      ConversationState adminConvState = impersonatedIdentity.getParentConversationState();
-      registerConversationState(req, adminConvState);
+      return impersonator.getServices(getContainer());
+   }
 
-      // Possibly restore identity if it's not available anymore in IdentityRegistry. This could happen during parallel logout of admin user from another session
-      IdentityRegistry identityRegistry = (IdentityRegistry)getContainer().getComponentInstanceOfType(IdentityRegistry.class);
-      String adminUsername = adminConvState.getIdentity().getUserId();
-      Identity adminIdentity = identityRegistry.getIdentity(adminUsername);
-      if (adminIdentity == null)
+   private static ClusterBroadcaster createBroadcaster(ServletConfig config, Impersonator impersonator) throws ServletException
+   {
+      String channelClass = config.getInitParameter(INIT_PARAM_CLUSTER_CHANNEL);
+      if (channelClass == null)
+      {
+         return null;
+      }
+
+      String nodeId = config.getInitParameter(INIT_PARAM_CLUSTER_NODE_ID);
+      if (nodeId == null)
+      {
+         nodeId = UUID.randomUUID().toString();
+      }
+      int flushInterval = getIntInitParameter(config, INIT_PARAM_CLUSTER_FLUSH_INTERVAL, DEFAULT_CLUSTER_FLUSH_INTERVAL);
+
+      try
+      {
+         ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+         ClusterChannel channel = (ClusterChannel)Class.forName(channelClass.trim(), true, classLoader).newInstance();
+         ClusterBroadcaster broadcaster = new ClusterBroadcaster(channel, impersonator, nodeId, flushInterval, CLUSTER_MAX_BATCH_SIZE);
+         broadcaster.start();
+         log.debug("Impersonation events are broadcasted through " + channelClass + " as node " + nodeId);
+         return broadcaster;
+      }
+      catch (Exception e)
       {
-         log.debug("Restore of identity of user " + adminUsername + " in IdentityRegistry");
-         adminIdentity = createIdentity(adminUsername);
-         identityRegistry.register(adminIdentity);
+         throw new ServletException("Unable to start cluster channel configured by init parameter " + INIT_PARAM_CLUSTER_CHANNEL, e);
       }
    }
 
-   protected void restoreOldSessionAttributes(HttpServletRequest req)
+   private static ImpersonationTokenService createTokenService(ServletConfig config) throws ServletException
    {
-      HttpSession session = req.getSession(false);
-      if (session != null)
+      String secret = config.getInitParameter(INIT_PARAM_TOKEN_SECRET);
+      if (secret == null)
       {
-         int prefixLength = BACKUP_ATTR_PREFIX.length();
+         return null;
+      }
 
-         // Remove all session attributes of current (impersonated) user. Restore attributes of admin user
-         Enumeration attrNames = session.getAttributeNames();
-         while (attrNames.hasMoreElements())
-         {
-            String attrName = (String)attrNames.nextElement();
-
-            // Remove attribute of impersonated user
-            if (!attrName.startsWith(BACKUP_ATTR_PREFIX))
-            {
-               session.removeAttribute(attrName);
-               if (log.isTraceEnabled())
-               {
-                  log.trace("Removed attribute: " + attrName);
-               }
-            }
-            else
-            {
-               // Restore attribute as it's one of the attributes of admin user, which was backup-ed
-               Object attrValue = session.getAttribute(attrName);
-
-               String restoredAttributeName = attrName.substring(prefixLength);
-               session.setAttribute(restoredAttributeName, attrValue);
-               session.removeAttribute(attrName);
-
-               if (log.isTraceEnabled())
-               {
-                  log.trace("Finished restore of attribute: " + attrName);
-               }
-            }
-         }
+      int tokenTTL = getIntInitParameter(config, INIT_PARAM_TOKEN_TTL, DEFAULT_TOKEN_TTL);
+      try
+      {
+         return new ImpersonationTokenService(secret.trim().getBytes("UTF-8"), tokenTTL * 1000L);
+      }
+      catch (IllegalArgumentException iae)
+      {
+         throw new ServletException("Invalid value of init parameter " + INIT_PARAM_TOKEN_SECRET, iae);
+      }
+      catch (UnsupportedEncodingException uee)
+      {
+         throw new ServletException(uee);
       }
    }
 
-   // Register given conversationState into ConversationRegistry. Key will be current Http session
-   private void registerConversationState(HttpServletRequest req, ConversationState conversationState)
+   private static ImpersonationAuditLog createAuditLog(ServletConfig config) throws ServletException
    {
-      // Obtain stateKey of current HttpSession
-      HttpSession httpSession = req.getSession();
-      StateKey stateKey = new HttpSessionStateKey(httpSession);
+      String directory = config.getInitParameter(INIT_PARAM_AUDIT_LOG_DIRECTORY);
+      if (directory == null)
+      {
+         return ImpersonationAuditLog.DISABLED;
+      }
 
-      // Update conversationRegistry
-      ConversationRegistry conversationRegistry = (ConversationRegistry)getContainer().getComponentInstanceOfType(ConversationRegistry.class);
-      conversationRegistry.register(stateKey, conversationState);
+      int maxFileSize = getIntInitParameter(config, INIT_PARAM_AUDIT_LOG_MAX_FILE_SIZE, DEFAULT_AUDIT_LOG_MAX_FILE_SIZE);
+      int maxFiles = getIntInitParameter(config, INIT_PARAM_AUDIT_LOG_MAX_FILES, DEFAULT_AUDIT_LOG_MAX_FILES);
+      int bufferSize = getIntInitParameter(config, INIT_PARAM_AUDIT_LOG_BUFFER_SIZE, DEFAULT_AUDIT_LOG_BUFFER_SIZE);
+
+      ImpersonationAuditLog.OverflowPolicy overflowPolicy = ImpersonationAuditLog.OverflowPolicy.LOG;
+      String overflowPolicyParam = config.getInitParameter(INIT_PARAM_AUDIT_LOG_OVERFLOW_POLICY);
+      if (overflowPolicyParam != null)
+      {
+         try
+         {
+            overflowPolicy = ImpersonationAuditLog.OverflowPolicy.valueOf(overflowPolicyParam.trim().toUpperCase());
+         }
+         catch (IllegalArgumentException iae)
+         {
+            throw new ServletException("Invalid value of init parameter " + INIT_PARAM_AUDIT_LOG_OVERFLOW_POLICY, iae);
+         }
+      }
+
+      log.debug("Audit log of impersonation sessions will be saved to " + directory);
+      return new ImpersonationAuditLog(new File(directory), maxFileSize * 1024L * 1024L, maxFiles, bufferSize, overflowPolicy);
    }
 
-   private Identity createIdentity(String username)
+   private static int getIntInitParameter(ServletConfig config, String name, int defaultValue)
    {
-      Authenticator authenticator = (Authenticator) getContainer().getComponentInstanceOfType(Authenticator.class);
+      String value = config.getInitParameter(name);
+      if (value == null)
+      {
+         return defaultValue;
+      }
+
       try
       {
-         return authenticator.createIdentity(username);
+         return Integer.parseInt(value.trim());
       }
-      catch (Exception e)
+      catch (NumberFormatException nfe)
       {
-         log.error("New identity for user: " + username + " not created.", e);
-         return null;
+         log.warn("Invalid value '" + value + "' of init parameter " + name + ". Using default value " + defaultValue);
+         return defaultValue;
       }
    }
 
-   private String getReturnURI(HttpServletRequest req)
+   /**
+    * @param req current request
+    * @param paramName name of parameter with URI
+    * @return URI from given parameter or portal context if parameter is missing or if it doesn't point to this server
+    */
+   private static String getLocalURI(HttpServletRequest req, String paramName)
    {
-      String returnURI = null;
-      HttpSession session = req.getSession(false);
-      if (session != null)
-      {
-         returnURI = (String)session.getAttribute(ATTR_RETURN_IMPERSONATION_URI);
-      }
+      String uri = req.getParameter(paramName);
 
-      if (returnURI == null)
+      // Don't allow redirect to another server
+      if (uri == null || !uri.startsWith("/") || uri.startsWith("//") || uri.startsWith("/\\"))
       {
-         returnURI = req.getContextPath();
+         if (uri != null)
+         {
+            log.warn("Ignored value '" + uri + "' of parameter " + paramName + ". It's not local URI");
+         }
+         return req.getContextPath();
       }
+      return uri;
+   }
 
-      return returnURI;
+   /**
+    * @param req current request
+    * @param impersonatedIdentity identity of impersonated user
+    * @return URI where admin user is redirected after impersonation session is finished
+    */
+   static String getReturnURI(HttpServletRequest req, ImpersonatedIdentity impersonatedIdentity)
+   {
+      String returnURI = impersonatedIdentity.getReturnURI();
+      return returnURI != null ? returnURI : req.getContextPath();
    }
 }
@@ -0,0 +1,407 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.web.security.impersonation;
+
+import org.exoplatform.services.security.ConversationRegistry;
+import org.exoplatform.services.security.ConversationState;
+import org.exoplatform.services.security.Identity;
+import org.exoplatform.services.security.StateKey;
+import org.exoplatform.services.security.web.HttpSessionStateKey;
+
+import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpSessionBindingEvent;
+import javax.servlet.http.HttpSessionBindingListener;
+import java.io.Serializable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * State of impersonation in one HTTP session. Start and stop of impersonation session change state from NORMAL through
+ * STARTING to IMPERSONATING and through STOPPING back to NORMAL. Every change is done by compare-and-set, so just one request
+ * can start or stop impersonation in the session at the same time. Other requests (For example double click or second browser
+ * tab) don't wait. They are either recognized as duplicate of running change or rejected immediately.
+ *
+ * Nested impersonation sessions are levels on top of IMPERSONATING state. Each state remembers stable state of level below
+ * it, so stop of nested level returns to state of previous level. Every change creates new snapshot, even if it returns to
+ * previous level, so compare-and-set never succeeds with snapshot, which was replaced meanwhile.
+ *
+ * State is saved in HTTP session again after each finished change, so it's replicated with session in cluster. Stable state
+ * is reconciled with conversation state of the session whenever it's obtained, so it can't stay behind levels, which were
+ * started or finished without it (for example when state was seeded from markers left in session or when session was
+ * replicated before its last change).
+ */
+public class ImpersonationSessionState implements HttpSessionBindingListener, Serializable
+{
+   private static final long serialVersionUID = 1L;
+
+   /** Session attribute with state of impersonation */
+   public static final String ATTR_SESSION_STATE = "_impersonationSessionState";
+
+   public enum Phase
+   {
+      /** Admin user is not impersonated */
+      NORMAL,
+
+      /** Impersonation session is being started */
+      STARTING,
+
+      /** Admin user is impersonated */
+      IMPERSONATING,
+
+      /** Impersonation session is being finished */
+      STOPPING
+   }
+
+   /**
+    * Result of attempt to change state
+    */
+   public enum Transition
+   {
+      /** State was changed by caller, who must finish or abort the change */
+      ACQUIRED,
+
+      /** Same change is running or it's done already. Caller should do nothing */
+      DUPLICATE,
+
+      /** Different change is running. Caller should reject the request */
+      CONFLICT
+   }
+
+   private static final Snapshot NORMAL = new Snapshot(Phase.NORMAL, 0, null, null);
+
+   private final AtomicReference<Snapshot> state;
+
+   // Node-local states used for atomic creation of state. Not replicated
+   private final transient ConcurrentMap<String, ImpersonationSessionState> registry;
+
+   private final transient String sessionId;
+
+   ImpersonationSessionState(ConcurrentMap<String, ImpersonationSessionState> registry, String sessionId, int activeLevels)
+   {
+      this.registry = registry;
+      this.sessionId = sessionId;
+
+      // Levels started before state was tracked. Their users are not known
+      Snapshot initial = NORMAL;
+      for (int depth = 1; depth <= activeLevels; depth++)
+      {
+         initial = new Snapshot(Phase.IMPERSONATING, depth, null, initial);
+      }
+      this.state = new AtomicReference<Snapshot>(initial);
+   }
+
+   /**
+    * Obtain state of given session. State is created if session doesn't have it yet. If more requests create state of same
+    * session at the same time, all of them obtain same instance
+    *
+    * @param session real HTTP session of admin user
+    * @param registry node-local states of sessions
+    * @param conversationRegistry registry with conversation state of the session or null if state is not reconciled
+    * @return state of given session
+    */
+   static ImpersonationSessionState get(HttpSession session, ConcurrentMap<String, ImpersonationSessionState> registry,
+                                        ConversationRegistry conversationRegistry)
+   {
+      ImpersonationSessionState sessionState = (ImpersonationSessionState)session.getAttribute(ATTR_SESSION_STATE);
+      if (sessionState == null)
+      {
+         int activeLevels = 0;
+         while (session.getAttribute(ImpersonatedHttpSession.getLevelAttributeName(Impersonator.ATTR_ACTIVE_SESSION,
+               activeLevels + 1)) != null)
+         {
+            activeLevels++;
+         }
+         ImpersonationSessionState newState = new ImpersonationSessionState(registry, session.getId(), activeLevels);
+         sessionState = registry.putIfAbsent(session.getId(), newState);
+         if (sessionState == null)
+         {
+            sessionState = newState;
+            session.setAttribute(ATTR_SESSION_STATE, sessionState);
+         }
+      }
+
+      if (conversationRegistry != null)
+      {
+         sessionState.reconcile(session, conversationRegistry);
+      }
+      return sessionState;
+   }
+
+   /**
+    * Try to start impersonation session of given level
+    *
+    * @param depth level of started impersonation session
+    * @param username name of impersonated user
+    * @return {@link Transition#ACQUIRED} if caller should start impersonation session and then call {@link #finishStart} or
+    * {@link #abortStart}. {@link Transition#DUPLICATE} if given user is already impersonated or being impersonated at this
+    * level. {@link Transition#CONFLICT} if other change is running or if session is at different level
+    */
+   public Transition tryStart(int depth, String username)
+   {
+      while (true)
+      {
+         Snapshot current = state.get();
+         if ((current.phase == Phase.STARTING || current.phase == Phase.IMPERSONATING) && current.depth == depth
+               && username.equals(current.username))
+         {
+            return Transition.DUPLICATE;
+         }
+         if (!current.isStable() || current.depth != depth - 1)
+         {
+            return Transition.CONFLICT;
+         }
+         if (state.compareAndSet(current, new Snapshot(Phase.STARTING, depth, username, current)))
+         {
+            return Transition.ACQUIRED;
+         }
+      }
+   }
+
+   /**
+    * Finish start acquired by {@link #tryStart}
+    *
+    * @param session real HTTP session of admin user
+    * @param depth level of started impersonation session
+    */
+   public void finishStart(HttpSession session, int depth)
+   {
+      Snapshot current = expect(Phase.STARTING, depth);
+      state.set(new Snapshot(Phase.IMPERSONATING, depth, current.username, current.below));
+      save(session);
+   }
+
+   /**
+    * Return to previous state after failed start acquired by {@link #tryStart}
+    *
+    * @param session real HTTP session of admin user
+    * @param depth level of impersonation session, which was not started
+    */
+   public void abortStart(HttpSession session, int depth)
+   {
+      state.set(expect(Phase.STARTING, depth).below.copy());
+      save(session);
+   }
+
+   /**
+    * Try to stop impersonation session of given level
+    *
+    * @param depth level of finished impersonation session
+    * @return {@link Transition#ACQUIRED} if caller should stop impersonation session and then call {@link #finishStop}.
+    * {@link Transition#DUPLICATE} if this level is being stopped or it's stopped already. {@link Transition#CONFLICT} if other
+    * change is running or if there are active levels above given level
+    */
+   public Transition tryStop(int depth)
+   {
+      while (true)
+      {
+         Snapshot current = state.get();
+         if (current.depth < depth || (current.phase == Phase.STOPPING && current.depth == depth))
+         {
+            return Transition.DUPLICATE;
+         }
+         if (current.phase != Phase.IMPERSONATING || current.depth != depth)
+         {
+            return Transition.CONFLICT;
+         }
+         if (state.compareAndSet(current, new Snapshot(Phase.STOPPING, depth, current.username, current.below)))
+         {
+            return Transition.ACQUIRED;
+         }
+      }
+   }
+
+   /**
+    * Finish stop acquired by {@link #tryStop}. State returns to level below
+    *
+    * @param session real HTTP session of admin user
+    * @param depth level of finished impersonation session
+    */
+   public void finishStop(HttpSession session, int depth)
+   {
+      state.set(expect(Phase.STOPPING, depth).below.copy());
+      save(session);
+   }
+
+   /**
+    * Return to previous state if stop acquired by {@link #tryStop} was not done. It happens if request stops identity of
+    * impersonation session, which was already replaced by other session on same level
+    *
+    * @param session real HTTP session of admin user
+    * @param depth level of impersonation session, which was not stopped
+    */
+   public void abortStop(HttpSession session, int depth)
+   {
+      Snapshot current = expect(Phase.STOPPING, depth);
+      state.set(new Snapshot(Phase.IMPERSONATING, depth, current.username, current.below));
+      save(session);
+   }
+
+   public Phase getPhase()
+   {
+      return state.get().phase;
+   }
+
+   /**
+    * @return level of impersonation session, which is active or being started or stopped. 0 if admin user is not impersonated
+    */
+   public int getDepth()
+   {
+      return state.get().depth;
+   }
+
+   /**
+    * @param username name of user
+    * @return true if given user is impersonated on top level or if impersonation as him is being started
+    */
+   public boolean isStartedAs(String username)
+   {
+      Snapshot current = state.get();
+      return (current.phase == Phase.STARTING || current.phase == Phase.IMPERSONATING) && username.equals(current.username);
+   }
+
+   /**
+    * @param depth level of impersonation session
+    * @return true if given level is active or being started
+    */
+   public boolean isActive(int depth)
+   {
+      Snapshot current = state.get();
+      return current.depth > depth || (current.depth == depth && current.phase != Phase.STOPPING);
+   }
+
+   public void valueBound(HttpSessionBindingEvent event)
+   {
+   }
+
+   public void valueUnbound(HttpSessionBindingEvent event)
+   {
+      if (registry != null)
+      {
+         registry.remove(sessionId, this);
+      }
+   }
+
+   @Override
+   public String toString()
+   {
+      Snapshot current = state.get();
+      return "ImpersonationSessionState[" + current.phase + ", depth=" + current.depth + ", user=" + current.username + "]";
+   }
+
+   // Running change is never reconciled. Its owner updates conversation state only while change is running, so conversation
+   // state read after stable snapshot belongs to that snapshot if the snapshot is still current during compare-and-set
+   private void reconcile(HttpSession session, ConversationRegistry conversationRegistry)
+   {
+      StateKey stateKey = new HttpSessionStateKey(session);
+      while (true)
+      {
+         Snapshot current = state.get();
+         if (!current.isStable())
+         {
+            return;
+         }
+         ConversationState liveState = conversationRegistry.getState(stateKey);
+         if (liveState == null)
+         {
+            return;
+         }
+         Identity liveIdentity = liveState.getIdentity();
+         ImpersonatedIdentity impersonatedIdentity =
+               liveIdentity instanceof ImpersonatedIdentity ? (ImpersonatedIdentity)liveIdentity : null;
+         int liveDepth = impersonatedIdentity != null ? impersonatedIdentity.getDepth() : 0;
+         if (current.depth == liveDepth && (liveDepth == 0 || liveIdentity.getUserId().equals(current.username)))
+         {
+            return;
+         }
+
+         Snapshot live = NORMAL;
+         for (int level = 1; level <= liveDepth; level++)
+         {
+            live = new Snapshot(Phase.IMPERSONATING, level, impersonatedIdentity.getLevel(level).getUserId(), live);
+         }
+         if (state.compareAndSet(current, live))
+         {
+            save(session);
+            return;
+         }
+      }
+   }
+
+   // State is changed in place, so it's saved again to let container replicate it
+   private void save(HttpSession session)
+   {
+      try
+      {
+         session.setAttribute(ATTR_SESSION_STATE, this);
+      }
+      catch (IllegalStateException ise)
+      {
+         // Session was invalidated meanwhile
+      }
+   }
+
+   // Only owner of change calls this, so state can't be changed by anyone else meanwhile
+   private Snapshot expect(Phase phase, int depth)
+   {
+      Snapshot current = state.get();
+      if (current.phase != phase || current.depth != depth)
+      {
+         throw new IllegalStateException("Expected " + phase + " of level " + depth + " but state is " + this);
+      }
+      return current;
+   }
+
+   /**
+    * Immutable state. Stable states are NORMAL and IMPERSONATING
+    */
+   private static class Snapshot implements Serializable
+   {
+      private static final long serialVersionUID = 1L;
+
+      private final Phase phase;
+      private final int depth;
+      private final String username;
+
+      /** Stable state of level below */
+      private final Snapshot below;
+
+      Snapshot(Phase phase, int depth, String username, Snapshot below)
+      {
+         this.phase = phase;
+         this.depth = depth;
+         this.username = username;
+         this.below = below;
+      }
+
+      boolean isStable()
+      {
+         return phase == Phase.NORMAL || phase == Phase.IMPERSONATING;
+      }
+
+      Snapshot copy()
+      {
+         return new Snapshot(phase, depth, username, below);
+      }
+   }
+}
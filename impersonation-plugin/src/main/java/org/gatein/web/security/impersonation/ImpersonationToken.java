@@ -0,0 +1,121 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.web.security.impersonation;
+
+import java.io.Serializable;
+
+/**
+ * Content of token signed by {@link ImpersonationTokenService}. Token contains everything needed to restore impersonation
+ * session on any cluster node
+ */
+public class ImpersonationToken implements Serializable
+{
+   private static final long serialVersionUID = 1L;
+
+   private final String adminUser;
+   private final String impersonatedUser;
+   private final long expiration;
+   private final long nonce;
+   private final String returnURI;
+
+   // Signed form of this token last seen in cookie. Request with same cookie doesn't need to verify signature again
+   private transient volatile String encoded;
+
+   // Time when cookie was checked last time. Cookies are not parsed again in requests shortly after that
+   private transient volatile long cookieCheckTime;
+
+   public ImpersonationToken(String adminUser, String impersonatedUser, long expiration, long nonce)
+   {
+      this(adminUser, impersonatedUser, expiration, nonce, null);
+   }
+
+   public ImpersonationToken(String adminUser, String impersonatedUser, long expiration, long nonce, String returnURI)
+   {
+      this.adminUser = adminUser;
+      this.impersonatedUser = impersonatedUser;
+      this.expiration = expiration;
+      this.nonce = nonce;
+      this.returnURI = returnURI;
+   }
+
+   public String getAdminUser()
+   {
+      return adminUser;
+   }
+
+   public String getImpersonatedUser()
+   {
+      return impersonatedUser;
+   }
+
+   /**
+    * @return time in milliseconds after which token is not valid
+    */
+   public long getExpiration()
+   {
+      return expiration;
+   }
+
+   /**
+    * @return random number, which identifies token
+    */
+   public long getNonce()
+   {
+      return nonce;
+   }
+
+   /**
+    * @return URI where admin user returns after impersonation session is finished or null if it's not known
+    */
+   public String getReturnURI()
+   {
+      return returnURI;
+   }
+
+   String getEncoded()
+   {
+      return encoded;
+   }
+
+   void setEncoded(String encoded)
+   {
+      this.encoded = encoded;
+   }
+
+   long getCookieCheckTime()
+   {
+      return cookieCheckTime;
+   }
+
+   void setCookieCheckTime(long cookieCheckTime)
+   {
+      this.cookieCheckTime = cookieCheckTime;
+   }
+
+   @Override
+   public String toString()
+   {
+      return "ImpersonationToken[admin=" + adminUser + ", user=" + impersonatedUser + ", expiration=" + expiration + "]";
+   }
+}
@@ -0,0 +1,684 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.web.security.impersonation;
+
+import org.gatein.common.logging.Logger;
+import org.gatein.common.logging.LoggerFactory;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Creates and verifies HMAC signed tokens of impersonation sessions. Token is saved in cookie, so any cluster node with same
+ * secret is able to restore impersonation session without replicated {@link ImpersonatedIdentity}.
+ *
+ * Token has format base64url(payload) + "." + base64url(mac) where payload contains version, expiration, nonce, admin user,
+ * impersonated user and return URI. Mac is HMAC-SHA256 of payload truncated to 128 bits. Verification reuses {@link Mac}
+ * instance and buffers of current thread, so it doesn't allocate anything for invalid token.
+ *
+ * Cookie with token is HttpOnly (and Secure for HTTPS requests), so it's not available to scripts of portal pages
+ */
+public class ImpersonationTokenService
+{
+   /** Name of cookie with token */
+   public static final String COOKIE_NAME = "_impersonationToken";
+
+   /** Cookie of impersonated session is parsed at most once per this interval */
+   public static final long COOKIE_CHECK_INTERVAL_MILLIS = 1000;
+
+   private static final String ALGORITHM = "HmacSHA256";
+   private static final byte VERSION = 2;
+   private static final int MAC_LENGTH = 16;
+   private static final int MAX_TOKEN_LENGTH = 1024;
+
+   /** Longer return URI is not saved in token and admin user returns to portal root */
+   private static final int MAX_RETURN_URI_LENGTH = 256;
+   private static final char SEPARATOR = '.';
+
+   private static final char[] BASE64_CHARS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+   private static final int[] BASE64_VALUES = new int[128];
+
+   static
+   {
+      Arrays.fill(BASE64_VALUES, -1);
+      for (int i = 0; i < BASE64_CHARS.length; i++)
+      {
+         BASE64_VALUES[BASE64_CHARS[i]] = i;
+      }
+   }
+
+   private static final Logger log = LoggerFactory.getLogger(ImpersonationTokenService.class);
+
+   private final SecretKeySpec key;
+   private final long timeToLiveMillis;
+   private final SecureRandom random = new SecureRandom();
+
+   /** Tokens of finished sessions, which can't be used anymore */
+   private final RevokedTokens revoked;
+
+   /** Users whose sessions were terminated. Tokens issued before time of termination are not valid */
+   private final Map<String, Long> revokedUsers = new ConcurrentHashMap<String, Long>();
+
+   private final ThreadLocal<Verifier> verifiers = new ThreadLocal<Verifier>()
+   {
+      @Override
+      protected Verifier initialValue()
+      {
+         return new Verifier(createMac());
+      }
+   };
+
+   /**
+    * @param secret secret shared by all cluster nodes
+    * @param timeToLiveMillis time after which token expires
+    */
+   public ImpersonationTokenService(byte[] secret, long timeToLiveMillis)
+   {
+      if (secret == null || secret.length < 16)
+      {
+         throw new IllegalArgumentException("Secret of impersonation token must have at least 16 bytes");
+      }
+      this.key = new SecretKeySpec(secret.clone(), ALGORITHM);
+      this.timeToLiveMillis = timeToLiveMillis;
+      this.revoked = new RevokedTokens(timeToLiveMillis);
+
+      // Fail fast if algorithm is not available
+      createMac();
+   }
+
+   /**
+    * Create new token
+    *
+    * @param adminUser name of admin user
+    * @param impersonatedUser name of impersonated user
+    * @return content of token
+    */
+   public ImpersonationToken createToken(String adminUser, String impersonatedUser)
+   {
+      return createToken(adminUser, impersonatedUser, null);
+   }
+
+   /**
+    * Create new token
+    *
+    * @param adminUser name of admin user
+    * @param impersonatedUser name of impersonated user
+    * @param returnURI URI where admin user returns after impersonation session is finished. Could be null
+    * @return content of token
+    */
+   public ImpersonationToken createToken(String adminUser, String impersonatedUser, String returnURI)
+   {
+      if (returnURI != null && returnURI.length() > MAX_RETURN_URI_LENGTH)
+      {
+         returnURI = null;
+      }
+      return new ImpersonationToken(adminUser, impersonatedUser, System.currentTimeMillis() + timeToLiveMillis, random.nextLong(),
+            returnURI);
+   }
+
+   /**
+    * @param token content of token
+    * @return signed token in format suitable for cookie
+    */
+   public String encode(ImpersonationToken token)
+   {
+      byte[] admin = toUTF8(token.getAdminUser());
+      byte[] user = toUTF8(token.getImpersonatedUser());
+      byte[] returnURI = toUTF8(token.getReturnURI() != null ? token.getReturnURI() : "");
+      byte[] payload = new byte[1 + 8 + 8 + 2 + admin.length + 2 + user.length + 2 + returnURI.length];
+      int offset = 0;
+      payload[offset++] = VERSION;
+      offset = putLong(payload, offset, token.getExpiration());
+      offset = putLong(payload, offset, token.getNonce());
+      offset = putBytes(payload, offset, admin);
+      offset = putBytes(payload, offset, user);
+      putBytes(payload, offset, returnURI);
+
+      Verifier verifier = verifiers.get();
+      byte[] mac = verifier.sign(payload, payload.length);
+
+      StringBuilder builder = new StringBuilder((payload.length + MAC_LENGTH) * 4 / 3 + 4);
+      encodeBase64(payload, payload.length, builder);
+      builder.append(SEPARATOR);
+      encodeBase64(mac, MAC_LENGTH, builder);
+      return builder.toString();
+   }
+
+   /**
+    * Verify signature and expiration of token
+    *
+    * @param token signed token
+    * @return content of token or null if token is invalid, expired or revoked
+    */
+   public ImpersonationToken verify(String token)
+   {
+      if (token == null || token.length() > MAX_TOKEN_LENGTH)
+      {
+         return null;
+      }
+
+      int separator = token.indexOf(SEPARATOR);
+      if (separator < 0)
+      {
+         return null;
+      }
+
+      Verifier verifier = verifiers.get();
+      int payloadLength = decodeBase64(token, 0, separator, verifier.payload);
+      int macLength = decodeBase64(token, separator + 1, token.length(), verifier.expected);
+      if (payloadLength < 1 + 8 + 8 + 2 + 2 + 2 || macLength != MAC_LENGTH || verifier.payload[0] != VERSION)
+      {
+         return null;
+      }
+
+      if (!verifier.verify(payloadLength))
+      {
+         log.warn("Impersonation token with invalid signature received");
+         return null;
+      }
+
+      byte[] payload = verifier.payload;
+      long expiration = getLong(payload, 1);
+      long nonce = getLong(payload, 9);
+      if (expiration < System.currentTimeMillis() || revoked.contains(nonce))
+      {
+         return null;
+      }
+
+      int adminLength = getShort(payload, 17);
+      int userOffset = 19 + adminLength;
+      if (userOffset + 2 > payloadLength)
+      {
+         return null;
+      }
+      int userLength = getShort(payload, userOffset);
+      int returnURIOffset = userOffset + 2 + userLength;
+      if (returnURIOffset + 2 > payloadLength)
+      {
+         return null;
+      }
+      int returnURILength = getShort(payload, returnURIOffset);
+      if (returnURIOffset + 2 + returnURILength != payloadLength)
+      {
+         return null;
+      }
+
+      ImpersonationToken result = new ImpersonationToken(fromUTF8(payload, 19, adminLength), fromUTF8(payload, userOffset + 2, userLength),
+            expiration, nonce, returnURILength > 0 ? fromUTF8(payload, returnURIOffset + 2, returnURILength) : null);
+      if (isRevokedUser(result))
+      {
+         return null;
+      }
+      result.setEncoded(token);
+      return result;
+   }
+
+   /**
+    * Check that current request still carries cookie with given token and that token didn't expire and was not revoked
+    * meanwhile (for example because impersonation session was finished on other cluster node). It's called for each request
+    * of impersonated user, so cookie is checked at most once per {@link #COOKIE_CHECK_INTERVAL_MILLIS} and signature is
+    * verified again only if cookie differs from the last one seen with the token. Expiration and revocation are checked always
+    *
+    * @param req current request
+    * @param token token of impersonation session
+    * @return true if request can continue in impersonation session of given token
+    */
+   public boolean isValid(HttpServletRequest req, ImpersonationToken token)
+   {
+      long now = System.currentTimeMillis();
+      if (now - token.getCookieCheckTime() >= COOKIE_CHECK_INTERVAL_MILLIS)
+      {
+         String cookie = getTokenCookie(req);
+         if (cookie == null)
+         {
+            return false;
+         }
+         if (!cookie.equals(token.getEncoded()))
+         {
+            ImpersonationToken verified = verify(cookie);
+            if (verified == null || verified.getNonce() != token.getNonce())
+            {
+               return false;
+            }
+            token.setEncoded(cookie);
+         }
+         token.setCookieCheckTime(now);
+      }
+      return token.getExpiration() >= now && !revoked.contains(token.getNonce()) && !isRevokedUser(token);
+   }
+
+   /**
+    * Token of finished session can't be used on this node anymore. Caller is responsible to broadcast revocation to other
+    * nodes (See {@link #revoke(long, long)})
+    *
+    * @param token token to revoke
+    * @return true if token was revoked by this call. False if it was revoked already
+    */
+   public boolean revoke(ImpersonationToken token)
+   {
+      return revoke(token.getNonce(), token.getExpiration());
+   }
+
+   /**
+    * @param nonce nonce of revoked token
+    * @param expiration expiration of revoked token. Token is forgotten after it
+    * @return true if token was revoked by this call. False if it was revoked already
+    */
+   public boolean revoke(long nonce, long expiration)
+   {
+      return revoked.add(nonce, expiration, System.currentTimeMillis());
+   }
+
+   /**
+    * Revoke all tokens of given user (as admin or as impersonated user) issued until now
+    *
+    * @param username name of user
+    */
+   public void revokeUser(String username)
+   {
+      long now = System.currentTimeMillis();
+      for (Iterator<Long> iterator = revokedUsers.values().iterator(); iterator.hasNext(); )
+      {
+         // Tokens issued before this time are expired anyway
+         if (iterator.next() < now - timeToLiveMillis)
+         {
+            iterator.remove();
+         }
+      }
+      revokedUsers.put(username, now);
+   }
+
+   /**
+    * @param req current request
+    * @return value of token cookie or null if request doesn't have it
+    */
+   public String getTokenCookie(HttpServletRequest req)
+   {
+      Cookie[] cookies = req.getCookies();
+      if (cookies != null)
+      {
+         for (Cookie cookie : cookies)
+         {
+            if (COOKIE_NAME.equals(cookie.getName()))
+            {
+               return cookie.getValue();
+            }
+         }
+      }
+      return null;
+   }
+
+   public void addTokenCookie(HttpServletRequest req, HttpServletResponse resp, ImpersonationToken token)
+   {
+      String encoded = encode(token);
+      token.setEncoded(encoded);
+      addCookieHeader(req, resp, encoded, (int)(timeToLiveMillis / 1000));
+   }
+
+   public void removeTokenCookie(HttpServletRequest req, HttpServletResponse resp)
+   {
+      addCookieHeader(req, resp, "", 0);
+   }
+
+   public long getTimeToLiveMillis()
+   {
+      return timeToLiveMillis;
+   }
+
+   private boolean isRevokedUser(ImpersonationToken token)
+   {
+      if (revokedUsers.isEmpty())
+      {
+         return false;
+      }
+      long issued = token.getExpiration() - timeToLiveMillis;
+      return isRevoked(token.getAdminUser(), issued) || isRevoked(token.getImpersonatedUser(), issued);
+   }
+
+   private boolean isRevoked(String username, long issued)
+   {
+      Long revoked = revokedUsers.get(username);
+      return revoked != null && revoked >= issued;
+   }
+
+   // Servlet 2.5 API doesn't support HttpOnly cookies, so header is created directly
+   private static void addCookieHeader(HttpServletRequest req, HttpServletResponse resp, String value, int maxAge)
+   {
+      SimpleDateFormat expiresFormat = new SimpleDateFormat("EEE, dd-MMM-yyyy HH:mm:ss 'GMT'", Locale.US);
+      expiresFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+      StringBuilder header = new StringBuilder(COOKIE_NAME.length() + value.length() + 128);
+      header.append(COOKIE_NAME).append('=').append(value)
+            .append("; Path=").append(getCookiePath(req))
+            .append("; Max-Age=").append(maxAge)
+            .append("; Expires=").append(expiresFormat.format(new Date(maxAge > 0 ? System.currentTimeMillis() + maxAge * 1000L : 0)));
+      if (req.isSecure())
+      {
+         header.append("; Secure");
+      }
+      header.append("; HttpOnly");
+      resp.addHeader("Set-Cookie", header.toString());
+   }
+
+   private static String getCookiePath(HttpServletRequest req)
+   {
+      String path = req.getContextPath();
+      return path.length() == 0 ? "/" : path;
+   }
+
+   private Mac createMac()
+   {
+      try
+      {
+         Mac mac = Mac.getInstance(ALGORITHM);
+         mac.init(key);
+         return mac;
+      }
+      catch (GeneralSecurityException e)
+      {
+         throw new IllegalStateException("Unable to create " + ALGORITHM, e);
+      }
+   }
+
+   private static int putLong(byte[] target, int offset, long value)
+   {
+      for (int i = 7; i >= 0; i--)
+      {
+         target[offset++] = (byte)(value >>> (i * 8));
+      }
+      return offset;
+   }
+
+   private static long getLong(byte[] source, int offset)
+   {
+      long value = 0;
+      for (int i = 0; i < 8; i++)
+      {
+         value = (value << 8) | (source[offset + i] & 0xFF);
+      }
+      return value;
+   }
+
+   private static int putBytes(byte[] target, int offset, byte[] bytes)
+   {
+      target[offset++] = (byte)(bytes.length >>> 8);
+      target[offset++] = (byte)bytes.length;
+      System.arraycopy(bytes, 0, target, offset, bytes.length);
+      return offset + bytes.length;
+   }
+
+   private static int getShort(byte[] source, int offset)
+   {
+      return ((source[offset] & 0xFF) << 8) | (source[offset + 1] & 0xFF);
+   }
+
+   private static byte[] toUTF8(String value)
+   {
+      try
+      {
+         byte[] bytes = value.getBytes("UTF-8");
+         if (bytes.length > 0xFFFF)
+         {
+            throw new IllegalArgumentException("Value too long: " + value.length());
+         }
+         return bytes;
+      }
+      catch (UnsupportedEncodingException e)
+      {
+         throw new IllegalStateException(e);
+      }
+   }
+
+   private static String fromUTF8(byte[] source, int offset, int length)
+   {
+      try
+      {
+         return new String(source, offset, length, "UTF-8");
+      }
+      catch (UnsupportedEncodingException e)
+      {
+         throw new IllegalStateException(e);
+      }
+   }
+
+   private static void encodeBase64(byte[] source, int length, StringBuilder target)
+   {
+      int i = 0;
+      for (; i + 2 < length; i += 3)
+      {
+         int bits = ((source[i] & 0xFF) << 16) | ((source[i + 1] & 0xFF) << 8) | (source[i + 2] & 0xFF);
+         target.append(BASE64_CHARS[bits >>> 18]).append(BASE64_CHARS[(bits >>> 12) & 0x3F])
+               .append(BASE64_CHARS[(bits >>> 6) & 0x3F]).append(BASE64_CHARS[bits & 0x3F]);
+      }
+      if (length - i == 1)
+      {
+         int bits = (source[i] & 0xFF) << 16;
+         target.append(BASE64_CHARS[bits >>> 18]).append(BASE64_CHARS[(bits >>> 12) & 0x3F]);
+      }
+      else if (length - i == 2)
+      {
+         int bits = ((source[i] & 0xFF) << 16) | ((source[i + 1] & 0xFF) << 8);
+         target.append(BASE64_CHARS[bits >>> 18]).append(BASE64_CHARS[(bits >>> 12) & 0x3F])
+               .append(BASE64_CHARS[(bits >>> 6) & 0x3F]);
+      }
+   }
+
+   /**
+    * Decode base64url without padding into given buffer
+    *
+    * @return count of decoded bytes or -1 if input is invalid or buffer is too small
+    */
+   private static int decodeBase64(String source, int start, int end, byte[] target)
+   {
+      int length = end - start;
+      if (length % 4 == 1 || length * 3 / 4 > target.length)
+      {
+         return -1;
+      }
+
+      int bits = 0;
+      int count = 0;
+      int written = 0;
+      for (int i = start; i < end; i++)
+      {
+         char c = source.charAt(i);
+         int value = c < 128 ? BASE64_VALUES[c] : -1;
+         if (value < 0)
+         {
+            return -1;
+         }
+         bits = (bits << 6) | value;
+         if (++count == 4)
+         {
+            target[written++] = (byte)(bits >>> 16);
+            target[written++] = (byte)(bits >>> 8);
+            target[written++] = (byte)bits;
+            bits = 0;
+            count = 0;
+         }
+      }
+      if (count == 2)
+      {
+         target[written++] = (byte)(bits >>> 4);
+      }
+      else if (count == 3)
+      {
+         target[written++] = (byte)(bits >>> 10);
+         target[written++] = (byte)(bits >>> 2);
+      }
+      return written;
+   }
+
+   /**
+    * Nonces of revoked tokens grouped into buckets by expiration. Each bucket has sorted array of nonces, which is replaced when
+    * nonce is added to the bucket, so revocation copies just nonces expiring in same time range. Lookup during verification of
+    * token doesn't lock or box nonce. Bucket is dropped as whole once all its tokens expired
+    */
+   private static class RevokedTokens
+   {
+      private static final int BUCKETS_PER_TIME_TO_LIVE = 16;
+      private static final long MIN_BUCKET_MILLIS = 1000;
+
+      private final long bucketMillis;
+
+      // Buckets ordered by end of their time range. Array is replaced by writers, which are synchronized
+      private volatile Bucket[] buckets = new Bucket[0];
+
+      private RevokedTokens(long timeToLiveMillis)
+      {
+         this.bucketMillis = Math.max(timeToLiveMillis / BUCKETS_PER_TIME_TO_LIVE, MIN_BUCKET_MILLIS);
+      }
+
+      private boolean contains(long nonce)
+      {
+         for (Bucket bucket : buckets)
+         {
+            if (Arrays.binarySearch(bucket.nonces, nonce) >= 0)
+            {
+               return true;
+            }
+         }
+         return false;
+      }
+
+      private synchronized boolean add(long nonce, long expiration, long now)
+      {
+         if (contains(nonce))
+         {
+            return false;
+         }
+
+         // All tokens of bucket expire before its end
+         long end = (expiration / bucketMillis + 1) * bucketMillis;
+         Bucket[] current = buckets;
+         List<Bucket> updated = new ArrayList<Bucket>(current.length + 1);
+         boolean added = false;
+         for (Bucket bucket : current)
+         {
+            if (bucket.end <= now)
+            {
+               continue;
+            }
+            if (!added && bucket.end >= end)
+            {
+               updated.add(bucket.end == end ? bucket.with(nonce) : new Bucket(end, new long[]{nonce}));
+               added = true;
+               if (bucket.end == end)
+               {
+                  continue;
+               }
+            }
+            updated.add(bucket);
+         }
+         if (!added)
+         {
+            updated.add(new Bucket(end, new long[]{nonce}));
+         }
+         buckets = updated.toArray(new Bucket[updated.size()]);
+         return true;
+      }
+   }
+
+   private static class Bucket
+   {
+      private final long end;
+      private final long[] nonces;
+
+      private Bucket(long end, long[] nonces)
+      {
+         this.end = end;
+         this.nonces = nonces;
+      }
+
+      private Bucket with(long nonce)
+      {
+         int index = -Arrays.binarySearch(nonces, nonce) - 1;
+         long[] newNonces = new long[nonces.length + 1];
+         System.arraycopy(nonces, 0, newNonces, 0, index);
+         newNonces[index] = nonce;
+         System.arraycopy(nonces, index, newNonces, index + 1, nonces.length - index);
+         return new Bucket(end, newNonces);
+      }
+   }
+
+   /**
+    * Mac and buffers of single thread
+    */
+   private static class Verifier
+   {
+      private final Mac mac;
+      private final byte[] payload = new byte[MAX_TOKEN_LENGTH];
+      private final byte[] expected = new byte[MAX_TOKEN_LENGTH / 4];
+      private final byte[] computed;
+
+      private Verifier(Mac mac)
+      {
+         this.mac = mac;
+         this.computed = new byte[mac.getMacLength()];
+      }
+
+      private byte[] sign(byte[] source, int length)
+      {
+         mac.update(source, 0, length);
+         return mac.doFinal();
+      }
+
+      private boolean verify(int payloadLength)
+      {
+         mac.update(payload, 0, payloadLength);
+         try
+         {
+            mac.doFinal(computed, 0);
+         }
+         catch (ShortBufferException e)
+         {
+            throw new IllegalStateException(e);
+         }
+
+         // Constant time comparison, so time doesn't tell how many bytes of signature are valid
+         int result = 0;
+         for (int i = 0; i < MAC_LENGTH; i++)
+         {
+            result |= computed[i] ^ expected[i];
+         }
+         return result == 0;
+      }
+   }
+}
@@ -0,0 +1,292 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.web.security.impersonation;
+
+import org.exoplatform.container.ExoContainer;
+import org.exoplatform.container.component.RequestLifeCycle;
+import org.exoplatform.portal.config.DataStorage;
+import org.exoplatform.portal.config.UserPortalConfig;
+import org.exoplatform.portal.config.UserPortalConfigService;
+import org.exoplatform.portal.config.model.Page;
+import org.exoplatform.portal.mop.navigation.Scope;
+import org.exoplatform.portal.mop.user.UserNavigation;
+import org.exoplatform.portal.mop.user.UserNode;
+import org.exoplatform.portal.mop.user.UserPortal;
+import org.exoplatform.portal.mop.user.UserPortalContext;
+import org.exoplatform.services.security.ConversationState;
+import org.gatein.common.logging.Logger;
+import org.gatein.common.logging.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Locale;
+import java.util.ResourceBundle;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads navigations and page of impersonated user into portal caches while browser of admin user follows redirect after
+ * start of impersonation. First request of impersonated user then doesn't need to load his user site, navigations of his
+ * groups and target page from scratch.
+ *
+ * Warm-ups run on executor with fixed count of threads, which limits how many of them run at once. Warm-up is skipped if
+ * its queue is full or if same user is being warmed up already, as it's just optimization
+ */
+public class ImpersonationWarmUp
+{
+   private static final Logger log = LoggerFactory.getLogger(ImpersonationWarmUp.class);
+
+   /** Labels of nodes are not needed for warm-up, so bundles are not loaded */
+   private static final UserPortalContext WARM_UP_CONTEXT = new UserPortalContext()
+   {
+      public ResourceBundle getBundle(UserNavigation navigation)
+      {
+         return null;
+      }
+
+      public Locale getUserLocale()
+      {
+         return Locale.getDefault();
+      }
+   };
+
+   private final ThreadPoolExecutor executor;
+
+   // Users, which are being warmed up now
+   private final Set<String> inProgress = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+   private final AtomicLong scheduled = new AtomicLong();
+   private final AtomicLong skipped = new AtomicLong();
+   private final AtomicLong completed = new AtomicLong();
+   private final AtomicLong failed = new AtomicLong();
+
+   /**
+    * @param concurrency max count of warm-ups running at once
+    * @param queueSize max count of warm-ups waiting for free thread
+    */
+   public ImpersonationWarmUp(int concurrency, int queueSize)
+   {
+      this.executor = new ThreadPoolExecutor(concurrency, concurrency, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory()
+      {
+         private final AtomicInteger counter = new AtomicInteger();
+
+         public Thread newThread(Runnable runnable)
+         {
+            Thread thread = new Thread(runnable, "ImpersonationWarmUp-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+         }
+      });
+      this.executor.allowCoreThreadTimeOut(true);
+   }
+
+   public void stop()
+   {
+      executor.shutdownNow();
+   }
+
+   /**
+    * Schedule warm-up of portal for impersonated user
+    *
+    * @param services services with container of portal
+    * @param impersonatedIdentity identity of impersonated user
+    * @param contextPath context path of portal
+    * @param targetURI URI where admin user is redirected after start of impersonation. Page of this URI is warmed up. Default
+    * site of portal is warmed up if URI doesn't point to portal site
+    * @return true if warm-up was scheduled
+    */
+   public boolean warmUp(ImpersonationServices services, final ImpersonatedIdentity impersonatedIdentity, String contextPath,
+                         String targetURI)
+   {
+      final ExoContainer container = services.getContainer();
+      final String username = impersonatedIdentity.getUserId();
+      if (container == null || !inProgress.add(username))
+      {
+         skipped.incrementAndGet();
+         return false;
+      }
+
+      String[] siteAndPath = parseURI(contextPath, targetURI);
+      final String siteName = siteAndPath[0];
+      final String path = siteAndPath[1];
+      try
+      {
+         executor.execute(new Runnable()
+         {
+            public void run()
+            {
+               try
+               {
+                  long start = System.currentTimeMillis();
+                  doWarmUp(container, impersonatedIdentity, siteName, path);
+                  completed.incrementAndGet();
+                  if (log.isTraceEnabled())
+                  {
+                     log.trace("Portal warmed up for user " + username + " in " + (System.currentTimeMillis() - start) + " ms");
+                  }
+               }
+               catch (Exception e)
+               {
+                  failed.incrementAndGet();
+                  log.debug("Warm-up of portal for user " + username + " failed", e);
+               }
+               finally
+               {
+                  inProgress.remove(username);
+               }
+            }
+         });
+      }
+      catch (RejectedExecutionException ree)
+      {
+         inProgress.remove(username);
+         skipped.incrementAndGet();
+         return false;
+      }
+
+      scheduled.incrementAndGet();
+      return true;
+   }
+
+   public long getScheduled()
+   {
+      return scheduled.get();
+   }
+
+   public long getSkipped()
+   {
+      return skipped.get();
+   }
+
+   public long getCompleted()
+   {
+      return completed.get();
+   }
+
+   public long getFailed()
+   {
+      return failed.get();
+   }
+
+   @Override
+   public String toString()
+   {
+      return "ImpersonationWarmUp[scheduled=" + getScheduled() + ", skipped=" + getSkipped() + ", completed=" + getCompleted()
+            + ", failed=" + getFailed() + "]";
+   }
+
+   private void doWarmUp(ExoContainer container, ImpersonatedIdentity impersonatedIdentity, String siteName, String path) throws Exception
+   {
+      UserPortalConfigService configService = (UserPortalConfigService)container.getComponentInstanceOfType(UserPortalConfigService.class);
+      DataStorage dataStorage = (DataStorage)container.getComponentInstanceOfType(DataStorage.class);
+
+      // Access of portal is checked with current identity, so it's identity of impersonated user during warm-up
+      ConversationState previousState = ConversationState.getCurrent();
+      ConversationState.setCurrent(new ConversationState(impersonatedIdentity));
+      RequestLifeCycle.begin(container);
+      try
+      {
+         String portalName = siteName != null ? siteName : configService.getDefaultPortal();
+         UserPortalConfig config = configService.getUserPortalConfig(portalName, impersonatedIdentity.getUserId(), WARM_UP_CONTEXT);
+         if (config == null)
+         {
+            // User doesn't have access to this site
+            return;
+         }
+
+         // Navigations of user site, portal site and group sites with levels rendered by menus
+         UserPortal userPortal = config.getUserPortal();
+         for (UserNavigation navigation : userPortal.getNavigations())
+         {
+            userPortal.getNode(navigation, Scope.GRANDCHILDREN, null, null);
+         }
+
+         UserNode node = path.length() > 0 ? userPortal.resolvePath(null, path) : userPortal.getDefaultPath(null);
+         if (node != null && node.getPageRef() != null)
+         {
+            Page page = dataStorage.getPage(node.getPageRef().format());
+            if (page == null)
+            {
+               log.debug("Page " + node.getPageRef().format() + " of path " + path + " not found during warm-up");
+            }
+         }
+      }
+      finally
+      {
+         RequestLifeCycle.end();
+         ConversationState.setCurrent(previousState);
+      }
+   }
+
+   /**
+    * @return name of portal site (or null for default site) and path of node in URI like "/portal/classic/home"
+    */
+   static String[] parseURI(String contextPath, String uri)
+   {
+      String path = uri == null ? "" : uri;
+      int end = indexOfAny(path, "?#");
+      if (end >= 0)
+      {
+         path = path.substring(0, end);
+      }
+      if (contextPath != null && path.startsWith(contextPath))
+      {
+         path = path.substring(contextPath.length());
+      }
+      while (path.startsWith("/"))
+      {
+         path = path.substring(1);
+      }
+
+      int slash = path.indexOf('/');
+      String siteName = slash >= 0 ? path.substring(0, slash) : path;
+      String nodePath = slash >= 0 ? path.substring(slash + 1) : "";
+
+      // Group and user sites ("/portal/g/..." and "/portal/u/...") are not warmed up. Default portal site is used instead
+      if (siteName.length() == 0 || "g".equals(siteName) || "u".equals(siteName))
+      {
+         return new String[] {null, ""};
+      }
+      return new String[] {siteName, nodePath};
+   }
+
+   private static int indexOfAny(String value, String chars)
+   {
+      for (int i = 0; i < value.length(); i++)
+      {
+         if (chars.indexOf(value.charAt(i)) >= 0)
+         {
+            return i;
+         }
+      }
+      return -1;
+   }
+}
@@ -0,0 +1,1672 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.web.security.impersonation;
+
+import org.exoplatform.container.ExoContainer;
+import org.exoplatform.container.ExoContainerContext;
+import org.exoplatform.container.PortalContainer;
+import org.exoplatform.container.component.RequestLifeCycle;
+import org.exoplatform.services.organization.Group;
+import org.exoplatform.services.organization.GroupEventListener;
+import org.exoplatform.services.organization.Membership;
+import org.exoplatform.services.organization.MembershipEventListener;
+import org.exoplatform.services.organization.OrganizationService;
+import org.exoplatform.services.organization.User;
+import org.exoplatform.services.security.ConversationState;
+import org.exoplatform.services.security.Identity;
+import org.exoplatform.services.security.IdentityRegistry;
+import org.exoplatform.services.security.StateKey;
+import org.exoplatform.services.security.web.HttpSessionStateKey;
+import org.gatein.web.security.impersonation.audit.ImpersonationAuditLog;
+import org.gatein.web.security.impersonation.cluster.ClusterBroadcaster;
+import org.gatein.web.security.impersonation.cluster.ClusterEvent;
+import org.gatein.web.security.impersonation.cluster.ClusterEventHandler;
+import org.gatein.common.logging.Logger;
+import org.gatein.common.logging.LoggerFactory;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Performs checks needed before start of impersonation session and creates identity of impersonated user. It's used by
+ * {@link ImpersonationServlet} for the browser flow and it can be used directly to open impersonation sessions programmatically
+ * (for example by load generator, which needs to act as many users with credentials of single admin user). Both ways are
+ * gated by same {@link ImpersonationPolicy}.
+ *
+ * Impersonated user can start nested impersonation session if {@link #setMaxDepth(int)} allows it. For example support engineer
+ * impersonates delegated admin and then one of users managed by him. Levels form stack. Each level has its own view of HTTP
+ * session and its own conversation state, so start and finish of level don't depend on count of attributes of other levels
+ *
+ * Each portal container has its own instance configured by {@link ImpersonationServlet} of the portal. It's saved in servlet
+ * context of the portal, so other web applications of same portal container find it through {@link #getInstance(ExoContainer)}
+ */
+public class Impersonator implements ClusterEventHandler
+{
+   /** Session attribute, which counts impersonation session as active in {@link ImpersonationMetrics} */
+   public static final String ATTR_ACTIVE_SESSION = "_impersonationActiveSession";
+
+   /** Session attribute, which pins identity of admin user in {@link AdminIdentityPins} */
+   public static final String ATTR_ADMIN_IDENTITY_PIN = "_impersonationAdminIdentityPin";
+
+   /** Session attribute, which keeps impersonation session in {@link ImpersonationIndex} */
+   public static final String ATTR_INDEX_ENTRY = "_impersonationIndexEntry";
+
+   /** Session attribute, which cancels expiry of impersonation session in {@link ImpersonationExpiry} when it's unbound */
+   public static final String ATTR_EXPIRY_ENTRY = "_impersonationExpiryEntry";
+
+   /** Attribute of servlet context of portal, where impersonator of portal container is saved */
+   public static final String ATTR_IMPERSONATOR = "org.gatein.web.security.impersonation.Impersonator";
+
+   /** Default max level of impersonation session. Nested impersonation sessions are not allowed by default */
+   public static final int DEFAULT_MAX_DEPTH = 1;
+
+   static final int DEFAULT_IDENTITY_CACHE_SIZE = 500;
+   static final int DEFAULT_IDENTITY_CACHE_TTL = 300;
+
+   private static final Logger log = LoggerFactory.getLogger(Impersonator.class);
+
+   // Used only outside of portal container, for example by embedded server without eXo container
+   private static final Impersonator standalone = createDefault();
+
+   // Guards creation of default impersonator in servlet context of portal
+   private static final Object instanceLock = new Object();
+
+   private final IdentityCache identityCache;
+   private final ImpersonationPolicy policy;
+   private final ImpersonationMetrics metrics = new ImpersonationMetrics();
+   private final AdminIdentityPins adminIdentityPins = new AdminIdentityPins();
+   private final ImpersonationIndex index = new ImpersonationIndex();
+
+   // States of HTTP sessions on this node. Used just for atomic creation of state, which is saved in session
+   private final ConcurrentMap<String, ImpersonationSessionState> sessionStates = new ConcurrentHashMap<String, ImpersonationSessionState>();
+
+   /** Audit log of impersonation sessions. Disabled by default */
+   private volatile ImpersonationAuditLog auditLog = ImpersonationAuditLog.DISABLED;
+
+   /** Whether attributes of impersonated user are saved in replication friendly way */
+   private volatile boolean sessionReplication;
+
+   /** Service for signed tokens of impersonation sessions. Null if stateless tokens are not enabled */
+   private volatile ImpersonationTokenService tokenService;
+
+   /** Expiry of impersonation sessions. Null if sessions don't expire */
+   private volatile ImpersonationExpiry expiry;
+
+   /** Broadcaster of events to other cluster nodes. Null if events are not broadcasted */
+   private volatile ClusterBroadcaster broadcaster;
+
+   /** Prefetcher of identities of users, who will be likely impersonated. Null if identities are not prefetched */
+   private volatile IdentityPrefetcher prefetcher;
+
+   /** Warm-up of portal for impersonated users. Null if portal is not warmed up */
+   private volatile ImpersonationWarmUp warmUp;
+
+   /** Max level of impersonation session */
+   private volatile int maxDepth = DEFAULT_MAX_DEPTH;
+
+   /** Services resolved from eXo container */
+   private volatile ImpersonationServices services;
+
+   // Guards resolution of services, so listeners are registered just once for each portal container
+   private final Object servicesLock = new Object();
+
+   // Organization service and prefetcher with registered listeners. Guarded by servicesLock
+   private OrganizationService listenedOrganizationService;
+   private IdentityPrefetcher listenedPrefetcher;
+
+   // Changes of memberships revoke impersonation sessions, which are not allowed anymore, on all nodes
+   private final MembershipEventListener policyMembershipListener = new MembershipEventListener()
+   {
+      @Override
+      public void postSave(Membership membership, boolean isNew) throws Exception
+      {
+         policyChangedLater(membership.getUserName());
+      }
+
+      @Override
+      public void postDelete(Membership membership) throws Exception
+      {
+         policyChangedLater(membership.getUserName());
+      }
+   };
+
+   private final GroupEventListener policyGroupListener = new GroupEventListener()
+   {
+      @Override
+      public void postDelete(Group group) throws Exception
+      {
+         policyChangedLater(null);
+      }
+   };
+
+   // Re-checks sessions after change of memberships if broadcaster is not configured. Thread is started on demand
+   private final ThreadPoolExecutor policyWorker;
+
+   public Impersonator(IdentityCache identityCache, ImpersonationPolicy policy)
+   {
+      this.identityCache = identityCache;
+      this.policy = policy;
+      this.policyWorker = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory()
+            {
+               public Thread newThread(Runnable runnable)
+               {
+                  Thread thread = new Thread(runnable, "ImpersonationPolicyWorker");
+                  thread.setDaemon(true);
+                  return thread;
+               }
+            });
+      this.policyWorker.allowCoreThreadTimeOut(true);
+   }
+
+   /**
+    * @return impersonator of portal container of current thread. See {@link #getInstance(ExoContainer)}
+    */
+   public static Impersonator getInstance()
+   {
+      return getInstance(ExoContainerContext.getCurrentContainerIfPresent());
+   }
+
+   /**
+    * @param container portal container of current request
+    * @return impersonator configured by {@link ImpersonationServlet} of given portal container or impersonator with default
+    * configuration if servlet was not initialized yet. Impersonator shared by code running without portal container is
+    * returned if container is not portal container
+    */
+   public static Impersonator getInstance(ExoContainer container)
+   {
+      if (container instanceof PortalContainer)
+      {
+         ServletContext portalContext = ((PortalContainer)container).getPortalContext();
+         if (portalContext != null)
+         {
+            return getInstance(portalContext);
+         }
+      }
+      return standalone;
+   }
+
+   /**
+    * @param portalContext servlet context of portal
+    * @return impersonator saved in given servlet context. Impersonator with default configuration is saved there if servlet
+    * was not initialized yet
+    */
+   public static Impersonator getInstance(ServletContext portalContext)
+   {
+      Impersonator impersonator = (Impersonator)portalContext.getAttribute(ATTR_IMPERSONATOR);
+      if (impersonator == null)
+      {
+         synchronized (instanceLock)
+         {
+            impersonator = (Impersonator)portalContext.getAttribute(ATTR_IMPERSONATOR);
+            if (impersonator == null)
+            {
+               impersonator = createDefault();
+               portalContext.setAttribute(ATTR_IMPERSONATOR, impersonator);
+            }
+         }
+      }
+      return impersonator;
+   }
+
+   /**
+    * @param portalContext servlet context of portal
+    * @param impersonator impersonator of portal container or null to remove it
+    */
+   static void setInstance(ServletContext portalContext, Impersonator impersonator)
+   {
+      synchronized (instanceLock)
+      {
+         if (impersonator != null)
+         {
+            portalContext.setAttribute(ATTR_IMPERSONATOR, impersonator);
+         }
+         else
+         {
+            portalContext.removeAttribute(ATTR_IMPERSONATOR);
+         }
+      }
+   }
+
+   private static Impersonator createDefault()
+   {
+      return new Impersonator(new IdentityCache(DEFAULT_IDENTITY_CACHE_SIZE, DEFAULT_IDENTITY_CACHE_TTL * 1000L),
+            new ImpersonationPolicy(ImpersonationPolicy.DEFAULT_RULES));
+   }
+
+   /**
+    * Obtain services needed for impersonation. They are resolved from container just once and resolved again only if
+    * portal container was restarted. Listeners registered for previous container are unregistered in this case
+    *
+    * @param container portal container of current request
+    * @return holder with resolved services
+    */
+   public ImpersonationServices getServices(ExoContainer container)
+   {
+      ImpersonationServices current = services;
+      if (current != null && !current.isStale(container))
+      {
+         return current;
+      }
+
+      synchronized (servicesLock)
+      {
+         current = services;
+         if (current == null || current.isStale(container))
+         {
+            current = resolveServices(container);
+            services = current;
+         }
+         return current;
+      }
+   }
+
+   /**
+    * Obtain services for code, which doesn't run in request of portal (for example logout lifecycle or background threads).
+    * Current container of such thread could be root container, so services already resolved for portal container are used
+    *
+    * @return holder with resolved services
+    */
+   public ImpersonationServices getServices()
+   {
+      ImpersonationServices current = services;
+      return current != null ? current : getServices(PortalContainer.getInstance());
+   }
+
+   /**
+    * Use given services instead of resolving them from container. They are used until services are requested with different
+    * container than container of given services. It's useful when impersonation runs outside of eXo container
+    *
+    * @param services services to use
+    */
+   public void setServices(ImpersonationServices services)
+   {
+      synchronized (servicesLock)
+      {
+         unregisterListeners();
+         policy.setUserACL(services != null ? services.getUserACL() : null);
+         this.services = services;
+      }
+   }
+
+   /**
+    * Create identity of given user or obtain it from {@link IdentityCache}
+    *
+    * @param services services to use
+    * @param username name of user
+    * @return identity of user or null if authenticator was not able to create it
+    * @throws Exception if creation of identity failed
+    */
+   public Identity createIdentity(ImpersonationServices services, String username) throws Exception
+   {
+      long start = System.nanoTime();
+      try
+      {
+         return identityCache.getIdentity(username, services.getAuthenticator());
+      }
+      finally
+      {
+         metrics.recordCreateIdentity(System.nanoTime() - start);
+      }
+   }
+
+   /**
+    * Check if admin user represented by 'adminState' can impersonate as user 'username' and create identity for impersonated
+    * user. Identity of admin user is wrapped inside, so it can be restored after impersonation session is finished
+    *
+    * @param services services to use
+    * @param adminState conversation state of admin user
+    * @param username name of user to impersonate
+    * @return identity of impersonated user
+    * @throws ImpersonationException if impersonation is not allowed
+    * @throws Exception if some service failed during checks
+    */
+   public ImpersonatedIdentity createImpersonatedIdentity(ImpersonationServices services, ConversationState adminState,
+                                                          String username) throws Exception
+   {
+      try
+      {
+         return doCreateImpersonatedIdentity(services, adminState, username);
+      }
+      catch (ImpersonationException ie)
+      {
+         metrics.recordRejection(ie.getReason());
+         auditLog.rejected(adminState.getIdentity().getUserId(), username, null, ie.getReason().name());
+         throw ie;
+      }
+   }
+
+   private ImpersonatedIdentity doCreateImpersonatedIdentity(ImpersonationServices services, ConversationState adminState,
+                                                             String username) throws Exception
+   {
+      // User and identity could be loaded already while admin user was typing name of user
+      IdentityPrefetcher prefetcher = this.prefetcher;
+      IdentityPrefetcher.Prefetched prefetched = prefetcher != null ? prefetcher.take(username) : null;
+
+      User userToImpersonate = prefetched != null ? prefetched.getUser() : findUserByName(services, username);
+      if (userToImpersonate == null)
+      {
+         throw new ImpersonationException(ImpersonationException.Reason.USER_NOT_FOUND, "User '" + username + "' not found!");
+      }
+
+      Identity adminIdentity = adminState.getIdentity();
+      checkCanNest(adminIdentity);
+      checkNotInStack(adminIdentity, username);
+
+      // Create new identity for user, who will be impersonated. It's needed for permission check too
+      Identity newIdentity;
+      try
+      {
+         newIdentity = prefetched != null ? prefetched.getIdentity() : createIdentity(services, username);
+      }
+      catch (Exception e)
+      {
+         throw new ImpersonationException(ImpersonationException.Reason.IDENTITY_NOT_CREATED,
+               "New identity for user: " + username + " not created.", e);
+      }
+      if (newIdentity == null)
+      {
+         throw new ImpersonationException(ImpersonationException.Reason.IDENTITY_NOT_CREATED,
+               "New identity for user: " + username + " not created.");
+      }
+
+      if (!policy.isAllowed(adminIdentity, newIdentity))
+      {
+         throw new ImpersonationException(ImpersonationException.Reason.FORBIDDEN, "Current user represented by identity "
+               + adminIdentity.getUserId() + " doesn't have permission to impersonate as " + username);
+      }
+
+      ImpersonatedIdentity impersonatedIdentity = new ImpersonatedIdentity(newIdentity, adminState);
+      impersonatedIdentity.setImpersonator(this);
+      return impersonatedIdentity;
+   }
+
+   /**
+    * Start loading of user and identity of given user in background, as admin user is likely to impersonate him soon.
+    * Loaded identity is used by next {@link #createImpersonatedIdentity} for same user. Nothing is loaded if prefetch is
+    * disabled or if admin user can't impersonate anyone
+    *
+    * @param services services to use
+    * @param adminState conversation state of admin user
+    * @param username name of user, who will be likely impersonated
+    * @return true if identity is loaded now or it was loaded already
+    */
+   public boolean prefetchIdentity(final ImpersonationServices services, ConversationState adminState, final String username)
+   {
+      IdentityPrefetcher prefetcher = this.prefetcher;
+      if (prefetcher == null)
+      {
+         return false;
+      }
+
+      // Prefetch must not allow users without permission to generate directory lookups
+      Identity adminIdentity = adminState.getIdentity();
+      try
+      {
+         checkCanNest(adminIdentity);
+      }
+      catch (ImpersonationException ie)
+      {
+         return false;
+      }
+      if (!policy.canImpersonate(adminIdentity))
+      {
+         return false;
+      }
+
+      return prefetcher.prefetch(username, new Callable<IdentityPrefetcher.Prefetched>()
+      {
+         public IdentityPrefetcher.Prefetched call() throws Exception
+         {
+            if (services.getContainer() != null)
+            {
+               RequestLifeCycle.begin(services.getContainer());
+            }
+            try
+            {
+               User user = findUserByName(services, username);
+               return new IdentityPrefetcher.Prefetched(user, user != null ? createIdentity(services, username) : null);
+            }
+            finally
+            {
+               if (services.getContainer() != null)
+               {
+                  RequestLifeCycle.end();
+               }
+            }
+         }
+      });
+   }
+
+   /**
+    * Start impersonation session in HTTP session of given request. Attributes of admin user stay in real session and impersonated
+    * user will see just his own attributes through {@link ImpersonatedHttpSession}. ConversationRegistry is updated with
+    * impersonated identity. If stateless tokens are enabled, signed token of session is added to response
+    *
+    * Only one request can start or stop impersonation in HTTP session at the same time (See {@link ImpersonationSessionState}).
+    * Repeated start as same user is ignored and start during other change of the session is rejected without waiting
+    *
+    * @param services services to use
+    * @param req current request of admin user
+    * @param resp current response. Could be null if token should not be issued
+    * @param impersonatedIdentity identity created by {@link #createImpersonatedIdentity}
+    * @return true if session was started by this call. False if same impersonation session is started already
+    * @throws ImpersonationException with reason {@link ImpersonationException.Reason#CONFLICT} if other request is starting or
+    * stopping impersonation in same HTTP session
+    */
+   public boolean startImpersonation(ImpersonationServices services, HttpServletRequest req, HttpServletResponse resp,
+                                     ImpersonatedIdentity impersonatedIdentity) throws ImpersonationException
+   {
+      int depth = impersonatedIdentity.getDepth();
+      HttpSession session = ImpersonatedHttpSession.getRealSession(req, true);
+      ImpersonationSessionState sessionState = getSessionState(services, session);
+      ImpersonationSessionState.Transition transition = sessionState.tryStart(depth, impersonatedIdentity.getUserId());
+      if (transition == ImpersonationSessionState.Transition.DUPLICATE)
+      {
+         log.debug("Impersonation session as user " + impersonatedIdentity.getUserId() + " is already started in session "
+               + session.getId());
+         return false;
+      }
+      else if (transition == ImpersonationSessionState.Transition.CONFLICT)
+      {
+         metrics.recordRejection(ImpersonationException.Reason.CONFLICT);
+         throw new ImpersonationException(ImpersonationException.Reason.CONFLICT, "Impersonation session as user "
+               + impersonatedIdentity.getUserId() + " not started. Session " + session.getId() + " is in state " + sessionState);
+      }
+
+      boolean started = false;
+      try
+      {
+         doStartImpersonation(services, req, resp, session, impersonatedIdentity);
+         started = true;
+      }
+      finally
+      {
+         if (started)
+         {
+            sessionState.finishStart(session, depth);
+         }
+         else
+         {
+            sessionState.abortStart(session, depth);
+         }
+      }
+      return true;
+   }
+
+   // Steps done before failure are undone in reverse order, so failed start leaves nothing in HTTP session and registries
+   private void doStartImpersonation(ImpersonationServices services, HttpServletRequest req, HttpServletResponse resp,
+                                     HttpSession session, ImpersonatedIdentity impersonatedIdentity)
+   {
+      int depth = impersonatedIdentity.getDepth();
+      String adminUsername = impersonatedIdentity.getAdminUserId();
+      ImpersonationExpiry expiry = this.expiry;
+      ImpersonationTokenService tokenService = this.tokenService;
+      boolean levelStarted = false;
+      boolean stateRegistered = false;
+      boolean adminPinned = false;
+      boolean indexed = false;
+      boolean expiryScheduled = false;
+      ImpersonationToken token = null;
+      boolean started = false;
+      try
+      {
+         levelStarted = true;
+         ImpersonatedHttpSession.start(session, sessionReplication, depth);
+         session.setAttribute(getLevelAttributeName(ATTR_ACTIVE_SESSION, depth), metrics.createActiveSessionMarker());
+
+         if (log.isTraceEnabled())
+         {
+            log.trace("Created session attributes for impersonated user in session " + session.getId());
+         }
+
+         log.debug("Set ConversationState with current session. Admin user " + adminUsername
+               + " will use identity of user " + impersonatedIdentity.getUserId());
+         stateRegistered = true;
+         registerConversationState(services, session, new ConversationState(impersonatedIdentity));
+         if (depth == 1)
+         {
+            adminPinned = true;
+            pinAdminIdentity(services, session, impersonatedIdentity);
+         }
+         indexed = true;
+         session.setAttribute(getLevelAttributeName(ATTR_INDEX_ENTRY, depth),
+               index.createSessionEntry(impersonatedIdentity, req.getRemoteAddr()));
+
+         if (expiry != null)
+         {
+            expiryScheduled = true;
+            expiry.schedule(impersonatedIdentity, 0);
+            session.setAttribute(getLevelAttributeName(ATTR_EXPIRY_ENTRY, depth), expiry.createSessionEntry(impersonatedIdentity));
+         }
+
+         // Token restores just level 1. Nested levels are available only on node, which has them in HTTP session
+         if (tokenService != null && resp != null && depth == 1)
+         {
+            token = tokenService.createToken(adminUsername, impersonatedIdentity.getUserId(), impersonatedIdentity.getReturnURI());
+            impersonatedIdentity.setToken(token);
+            tokenService.addTokenCookie(req, resp, token);
+         }
+
+         auditLog.started(adminUsername, impersonatedIdentity.getUserId(), req.getRemoteAddr());
+         started = true;
+      }
+      finally
+      {
+         if (!started)
+         {
+            log.debug("Start of impersonation session of admin user " + adminUsername + " as user "
+                  + impersonatedIdentity.getUserId() + " failed. Finished steps are undone");
+            impersonatedIdentity.markStopped();
+            try
+            {
+               if (token != null)
+               {
+                  revokeToken(adminUsername, token);
+                  if (!resp.isCommitted())
+                  {
+                     tokenService.removeTokenCookie(req, resp);
+                  }
+               }
+               if (expiryScheduled)
+               {
+                  expiry.cancel(impersonatedIdentity);
+                  session.removeAttribute(getLevelAttributeName(ATTR_EXPIRY_ENTRY, depth));
+               }
+               if (indexed)
+               {
+                  session.removeAttribute(getLevelAttributeName(ATTR_INDEX_ENTRY, depth));
+               }
+               if (adminPinned)
+               {
+                  session.removeAttribute(ATTR_ADMIN_IDENTITY_PIN);
+               }
+               if (stateRegistered)
+               {
+                  registerConversationState(services, session, impersonatedIdentity.getParentConversationState());
+               }
+               if (levelStarted)
+               {
+                  ImpersonatedHttpSession.stop(session, impersonatedIdentity);
+                  session.removeAttribute(getLevelAttributeName(ATTR_ACTIVE_SESSION, depth));
+               }
+            }
+            catch (RuntimeException e)
+            {
+               // Original failure is propagated
+               log.error("Unable to undo start of impersonation session of admin user " + adminUsername + " as user "
+                     + impersonatedIdentity.getUserId(), e);
+            }
+         }
+      }
+   }
+
+   /**
+    * @param services services to use
+    * @param req current request
+    * @return state of impersonation in HTTP session of given request. Session is created if it doesn't exist
+    */
+   public ImpersonationSessionState getSessionState(ImpersonationServices services, HttpServletRequest req)
+   {
+      return getSessionState(services, ImpersonatedHttpSession.getRealSession(req, true));
+   }
+
+   // State is reconciled with conversation state registered for the session. Conversation state of current thread could be
+   // older, as it's obtained at the beginning of request
+   private ImpersonationSessionState getSessionState(ImpersonationServices services, HttpSession session)
+   {
+      return ImpersonationSessionState.get(session, sessionStates, services.getConversationRegistry());
+   }
+
+   /**
+    * Start loading of navigations and target page of impersonated user in background, so they are in portal caches when
+    * browser of admin user comes to target page. Nothing is done if warm-up is disabled
+    *
+    * @param services services to use
+    * @param impersonatedIdentity identity of impersonated user. Impersonation session should be started already
+    * @param req current request of admin user
+    * @param targetURI URI where admin user is redirected
+    */
+   public void warmUp(ImpersonationServices services, ImpersonatedIdentity impersonatedIdentity, HttpServletRequest req,
+                      String targetURI)
+   {
+      ImpersonationWarmUp warmUp = this.warmUp;
+      if (warmUp != null)
+      {
+         warmUp.warmUp(services, impersonatedIdentity, req.getContextPath(), targetURI);
+      }
+   }
+
+   /**
+    * Finish impersonation session in HTTP session of given request. Conversation state of admin user is restored and attributes
+    * of impersonated user are removed. It can be called during any request of impersonated user. If more requests try to finish
+    * same session at the same time, it's finished just once. If impersonation session is nested, just its level is finished and
+    * conversation state of lower level is restored. Session is not finished if other request is starting or stopping
+    * impersonation in same HTTP session (See {@link ImpersonationSessionState}). Identity is not marked as stopped in this case
+    *
+    * @param services services to use
+    * @param req current request
+    * @param resp current response. Could be null or committed if token cookie should not be removed
+    * @param impersonatedIdentity identity of impersonated user
+    * @return true if session was finished by this call. False if it was finished already or if it can't be finished now
+    */
+   public boolean stopImpersonation(ImpersonationServices services, HttpServletRequest req, HttpServletResponse resp,
+                                    ImpersonatedIdentity impersonatedIdentity)
+   {
+      int depth = impersonatedIdentity.getDepth();
+      HttpSession session = ImpersonatedHttpSession.getRealSession(req, true);
+      ImpersonationSessionState sessionState = getSessionState(services, session);
+      ImpersonationSessionState.Transition transition = sessionState.tryStop(depth);
+      if (transition != ImpersonationSessionState.Transition.ACQUIRED)
+      {
+         if (transition == ImpersonationSessionState.Transition.CONFLICT)
+         {
+            log.debug("Impersonation session as user " + impersonatedIdentity.getUserId() + " not finished now. Session "
+                  + session.getId() + " is in state " + sessionState);
+         }
+         return false;
+      }
+
+      // Identity of older session on this level, which was replaced by current one. Current session stays active
+      if (!impersonatedIdentity.markStopped())
+      {
+         sessionState.abortStop(session, depth);
+         return false;
+      }
+
+      try
+      {
+         return doStopImpersonation(services, req, resp, session, impersonatedIdentity);
+      }
+      finally
+      {
+         sessionState.finishStop(session, depth);
+      }
+   }
+
+   private boolean doStopImpersonation(ImpersonationServices services, HttpServletRequest req, HttpServletResponse resp,
+                                       HttpSession session, ImpersonatedIdentity impersonatedIdentity)
+   {
+      long start = System.nanoTime();
+      ImpersonationExpiry expiry = this.expiry;
+      if (expiry != null)
+      {
+         expiry.cancel(impersonatedIdentity);
+      }
+
+      ConversationState adminConvState = impersonatedIdentity.getParentConversationState();
+      String adminUsername = impersonatedIdentity.getAdminUserId();
+      int depth = impersonatedIdentity.getDepth();
+      log.debug("Cancel impersonation session. Impersonated user was: " + impersonatedIdentity.getUserId()
+            + ", Admin user is: " + adminUsername + ", Level: " + depth);
+
+      // Restore old conversation state
+      registerConversationState(services, session, adminConvState);
+
+      // Remove all session attributes of impersonated user. Attributes of admin user were not changed during impersonation
+      ImpersonatedHttpSession.stop(session, impersonatedIdentity);
+      session.removeAttribute(getLevelAttributeName(ATTR_ACTIVE_SESSION, depth));
+      session.removeAttribute(getLevelAttributeName(ATTR_INDEX_ENTRY, depth));
+      session.removeAttribute(getLevelAttributeName(ATTR_EXPIRY_ENTRY, depth));
+      if (log.isTraceEnabled())
+      {
+         log.trace("Removed session attributes of impersonated user from session " + session.getId());
+      }
+
+      if (depth == 1)
+      {
+         restoreAdminIdentity(services, session, adminUsername);
+
+         // Token can't be used to restore finished session on any node. Node, which restored it already, finishes it too
+         ImpersonationToken token = impersonatedIdentity.getToken();
+         if (token != null)
+         {
+            revokeToken(adminUsername, token);
+         }
+         removeToken(req, resp);
+      }
+
+      auditLog.stopped(adminUsername, impersonatedIdentity.getUserId(), req.getRemoteAddr());
+      metrics.recordStopImpersonation(System.nanoTime() - start);
+      return true;
+   }
+
+   /**
+    * Finish given impersonation session and all levels above given level. Levels are finished from top, so conversation state
+    * of level below given level is restored at the end
+    *
+    * @param services services to use
+    * @param req current request
+    * @param resp current response. Could be null or committed if token cookie should not be removed
+    * @param impersonatedIdentity identity of top level of impersonation stack
+    * @param level lowest level, which is finished. Value 1 finishes whole stack
+    * @return count of levels finished by this call
+    */
+   public int unwindImpersonation(ImpersonationServices services, HttpServletRequest req, HttpServletResponse resp,
+                                  ImpersonatedIdentity impersonatedIdentity, int level)
+   {
+      int stopped = 0;
+      ImpersonatedIdentity current = impersonatedIdentity;
+      while (current != null && current.getDepth() >= level)
+      {
+         if (stopImpersonation(services, req, resp, current))
+         {
+            stopped++;
+         }
+         current = current.getParentImpersonatedIdentity();
+      }
+      return stopped;
+   }
+
+   // Revocation is broadcasted only by node, which revoked the token first
+   private void revokeToken(String adminUsername, ImpersonationToken token)
+   {
+      ImpersonationTokenService tokenService = this.tokenService;
+      if (tokenService != null && tokenService.revoke(token))
+      {
+         ClusterBroadcaster broadcaster = this.broadcaster;
+         if (broadcaster != null)
+         {
+            broadcaster.publishRevokeToken(adminUsername, token.getNonce(), token.getExpiration());
+         }
+      }
+   }
+
+   // Possibly restore identity if it's not available anymore in IdentityRegistry. This could happen during parallel logout of admin user from another session
+   private void restoreAdminIdentity(ImpersonationServices services, HttpSession session, String adminUsername)
+   {
+      Identity pinnedIdentity = adminIdentityPins.getPinned(adminUsername);
+      session.removeAttribute(ATTR_ADMIN_IDENTITY_PIN);
+      IdentityRegistry identityRegistry = services.getIdentityRegistry();
+      if (identityRegistry.getIdentity(adminUsername) == null)
+      {
+         log.debug("Restore of identity of user " + adminUsername + " in IdentityRegistry");
+         if (pinnedIdentity != null)
+         {
+            identityRegistry.register(pinnedIdentity);
+         }
+         else
+         {
+            // Identity is not pinned on this node. For example impersonation session was started on another cluster node
+            try
+            {
+               Identity adminIdentity = createIdentity(services, adminUsername);
+               if (adminIdentity != null)
+               {
+                  identityRegistry.register(adminIdentity);
+               }
+            }
+            catch (Exception e)
+            {
+               log.error("New identity for user: " + adminUsername + " not created.", e);
+            }
+         }
+      }
+   }
+
+   /**
+    * Restore impersonation session from signed token in cookie of current request. It's used when impersonation session was
+    * started on another cluster node, so ConversationRegistry of this node contains just conversation state of admin user.
+    * Identity of impersonated user is obtained from {@link IdentityCache}
+    *
+    * @param services services to use
+    * @param req current request of admin user
+    * @param adminState current conversation state of admin user
+    * @return conversation state of impersonated user, which is registered for current session or null if request doesn't
+    * contain valid token of given admin user
+    */
+   public ConversationState restoreImpersonation(ImpersonationServices services, HttpServletRequest req, ConversationState adminState)
+   {
+      ImpersonationTokenService tokenService = this.tokenService;
+      if (tokenService == null)
+      {
+         return null;
+      }
+      String tokenCookie = tokenService.getTokenCookie(req);
+      if (tokenCookie == null)
+      {
+         return null;
+      }
+
+      ImpersonationToken token = tokenService.verify(tokenCookie);
+      Identity adminIdentity = adminState.getIdentity();
+      if (token == null || !token.getAdminUser().equals(adminIdentity.getUserId()) || adminIdentity instanceof ImpersonatedIdentity)
+      {
+         log.debug("Impersonation token of current request is not valid for user " + adminIdentity.getUserId());
+         return null;
+      }
+
+      Identity newIdentity;
+      try
+      {
+         newIdentity = createIdentity(services, token.getImpersonatedUser());
+      }
+      catch (Exception e)
+      {
+         log.error("New identity for user: " + token.getImpersonatedUser() + " not created.", e);
+         return null;
+      }
+
+      // Permission could be revoked since token was issued
+      if (newIdentity == null || !policy.isAllowed(adminIdentity, newIdentity))
+      {
+         return null;
+      }
+
+      ImpersonatedIdentity impersonatedIdentity = new ImpersonatedIdentity(newIdentity, adminState);
+      impersonatedIdentity.setImpersonator(this);
+      impersonatedIdentity.setToken(token);
+      impersonatedIdentity.setReturnURI(token.getReturnURI());
+
+      // Session state could be replicated with HTTP session already. Otherwise it's restored like start of impersonation
+      HttpSession session = ImpersonatedHttpSession.getRealSession(req, true);
+      ImpersonationSessionState sessionState = getSessionState(services, session);
+      ImpersonationSessionState.Transition transition = sessionState.tryStart(1, token.getImpersonatedUser());
+      if (transition == ImpersonationSessionState.Transition.CONFLICT)
+      {
+         log.debug("Impersonation session not restored from token. Session " + session.getId() + " is in state " + sessionState);
+         return null;
+      }
+      else if (transition == ImpersonationSessionState.Transition.DUPLICATE)
+      {
+         // Session is restored already. It's set up again only if its conversation state is missing on this node
+         ConversationState registeredState = services.getConversationRegistry().getState(new HttpSessionStateKey(session));
+         if (registeredState != null && registeredState.getIdentity() instanceof ImpersonatedIdentity
+               && token.getImpersonatedUser().equals(registeredState.getIdentity().getUserId()))
+         {
+            return registeredState;
+         }
+      }
+
+      // Start is finished only after conversation state is registered, so state of session never gets ahead of it
+      ConversationState state = new ConversationState(impersonatedIdentity);
+      boolean restored = false;
+      try
+      {
+         if (session.getAttribute(ATTR_ACTIVE_SESSION) == null)
+         {
+            session.setAttribute(ATTR_ACTIVE_SESSION, metrics.createActiveSessionMarker());
+         }
+         registerConversationState(services, session, state);
+         pinAdminIdentity(services, session, impersonatedIdentity);
+         session.setAttribute(ATTR_INDEX_ENTRY, index.createSessionEntry(impersonatedIdentity, req.getRemoteAddr()));
+
+         ImpersonationExpiry expiry = this.expiry;
+         if (expiry != null)
+         {
+            // Session is running since token was issued. Requests of impersonated user access HTTP session of admin user, so
+            // its last access is last access of impersonation session unless session was created on this node right now
+            long now = System.currentTimeMillis();
+            long elapsed = Math.max(tokenService.getTimeToLiveMillis() - (token.getExpiration() - now), 0);
+            long idle = session.isNew() ? 0 : Math.min(Math.max(now - session.getLastAccessedTime(), 0), elapsed);
+            expiry.schedule(impersonatedIdentity, elapsed, idle);
+            session.setAttribute(ATTR_EXPIRY_ENTRY, expiry.createSessionEntry(impersonatedIdentity));
+         }
+         restored = true;
+      }
+      finally
+      {
+         if (transition == ImpersonationSessionState.Transition.ACQUIRED)
+         {
+            if (restored)
+            {
+               sessionState.finishStart(session, 1);
+            }
+            else
+            {
+               sessionState.abortStart(session, 1);
+            }
+         }
+      }
+
+      log.debug("Impersonation session of admin user " + token.getAdminUser() + " as user " + token.getImpersonatedUser()
+            + " restored from token");
+      return state;
+   }
+
+   /**
+    * Check that impersonation session with signed token can continue in current request. Request must carry cookie with the
+    * token and the token must not be expired or revoked (for example because session was finished on other cluster node).
+    * Otherwise whole impersonation stack is finished on this node too, so token of finished session can't be replayed here
+    *
+    * @param services services to use
+    * @param req current request
+    * @param resp current response
+    * @param impersonatedIdentity identity of current impersonated user
+    * @return null if request can continue as impersonated user. Otherwise conversation state of admin user, which must be
+    * used by current request
+    */
+   public ConversationState checkToken(ImpersonationServices services, HttpServletRequest req, HttpServletResponse resp,
+                                       ImpersonatedIdentity impersonatedIdentity)
+   {
+      ImpersonationTokenService tokenService = this.tokenService;
+      ImpersonatedIdentity firstLevel = impersonatedIdentity.getLevel(1);
+      ImpersonationToken token = firstLevel.getToken();
+      if (tokenService == null || token == null || tokenService.isValid(req, token))
+      {
+         return null;
+      }
+
+      log.debug("Token of impersonation session of admin user " + firstLevel.getAdminUserId() + " as user "
+            + firstLevel.getUserId() + " is not valid in current request. Impersonation session is finished");
+      unwindImpersonation(services, req, resp, impersonatedIdentity, 1);
+      return firstLevel.getParentConversationState();
+   }
+
+   /**
+    * Terminate impersonation session active on this node. Session is finished by {@link CancelImpersonationFilter} during next
+    * request. Termination is saved to audit log
+    *
+    * @param id identifier of session in {@link ImpersonationIndex}
+    * @param terminatedBy name of administrator, who terminated session
+    * @param source address of administrator
+    * @return true if session was terminated by this call
+    */
+   public boolean terminate(long id, String terminatedBy, String source)
+   {
+      ActiveImpersonation impersonation = index.get(id);
+      if (impersonation == null || !impersonation.terminate())
+      {
+         return false;
+      }
+      auditLog.terminated(impersonation.getAdminUser(), impersonation.getImpersonatedUser(), source, terminatedBy);
+      return true;
+   }
+
+   /**
+    * Terminate all impersonation sessions of given user (as admin and as impersonated user) on all cluster nodes. Sessions
+    * are finished by {@link CancelImpersonationFilter} during next request. Tokens issued for user until now are revoked
+    *
+    * @param username name of user
+    * @return count of sessions terminated on this node
+    */
+   public int terminateUser(String username)
+   {
+      return terminateUser(username, null, null);
+   }
+
+   /**
+    * Same as {@link #terminateUser(String)}. Each session terminated on this node is saved to audit log with given
+    * administrator
+    *
+    * @param username name of user
+    * @param terminatedBy name of administrator, who terminated sessions
+    * @param source address of administrator
+    * @return count of sessions terminated on this node
+    */
+   public int terminateUser(String username, String terminatedBy, String source)
+   {
+      int terminated = applyTerminateUser(username, terminatedBy, source);
+      ClusterBroadcaster broadcaster = this.broadcaster;
+      if (broadcaster != null)
+      {
+         broadcaster.publish(ClusterEvent.Type.TERMINATE_USER, username);
+      }
+      return terminated;
+   }
+
+   /**
+    * Notify all cluster nodes that memberships of given user or rules of impersonation were changed. Cached decisions are
+    * invalidated and sessions, which are not allowed anymore, are terminated
+    *
+    * @param username name of user or null if change affects all users
+    * @return count of sessions terminated on this node
+    */
+   public int policyChanged(String username)
+   {
+      int terminated = applyPolicyChanged(username);
+      ClusterBroadcaster broadcaster = this.broadcaster;
+      if (broadcaster != null)
+      {
+         broadcaster.publish(ClusterEvent.Type.POLICY_CHANGED, username);
+      }
+      return terminated;
+   }
+
+   /**
+    * Same as {@link #policyChanged(String)}, but sessions are re-checked in background. It's used by listeners of organization
+    * service, so save of membership doesn't wait for lookups of identities and it doesn't fail because of them. Caches are
+    * invalidated by their own listeners
+    *
+    * @param username name of user or null if change affects all users
+    */
+   void policyChangedLater(final String username)
+   {
+      // Pinned identity with old memberships must not be registered again when impersonation session is finished
+      if (username != null)
+      {
+         adminIdentityPins.invalidate(username);
+      }
+      else
+      {
+         adminIdentityPins.invalidateAll();
+      }
+
+      ClusterBroadcaster broadcaster = this.broadcaster;
+      if (broadcaster != null)
+      {
+         broadcaster.publish(ClusterEvent.Type.POLICY_CHANGED, username);
+      }
+
+      // Change of user, who is neither admin nor impersonated user on this node, doesn't affect any session here. Other nodes
+      // check their own sessions when they receive published change
+      if (username != null && !index.contains(username))
+      {
+         return;
+      }
+
+      if (broadcaster != null && broadcaster.applyPolicyChangeLater(username))
+      {
+         return;
+      }
+      policyWorker.execute(new Runnable()
+      {
+         public void run()
+         {
+            try
+            {
+               applyPolicyChanged(username);
+            }
+            catch (Exception e)
+            {
+               log.error("Impersonation sessions not checked after change of memberships of user " + username, e);
+            }
+         }
+      });
+   }
+
+   public void onTerminateUser(String username)
+   {
+      applyTerminateUser(username, null, null);
+   }
+
+   public void onPolicyChanged(String username)
+   {
+      applyPolicyChanged(username);
+   }
+
+   public void onRevokeToken(long nonce, long expiration)
+   {
+      ImpersonationTokenService tokenService = this.tokenService;
+      if (tokenService != null)
+      {
+         tokenService.revoke(nonce, expiration);
+      }
+   }
+
+   private int applyTerminateUser(String username, String terminatedBy, String source)
+   {
+      ImpersonationTokenService tokenService = this.tokenService;
+      if (tokenService != null)
+      {
+         tokenService.revokeUser(username);
+      }
+      List<ActiveImpersonation> terminated = index.terminateAll(username);
+      for (ActiveImpersonation impersonation : terminated)
+      {
+         auditLog.terminated(impersonation.getAdminUser(), impersonation.getImpersonatedUser(), source, terminatedBy);
+      }
+      log.debug("Terminated " + terminated.size() + " impersonation sessions of user " + username);
+      return terminated.size();
+   }
+
+   private int applyPolicyChanged(String username)
+   {
+      List<ActiveImpersonation> affected;
+      IdentityPrefetcher prefetcher = this.prefetcher;
+      if (prefetcher != null)
+      {
+         prefetcher.invalidateAll();
+      }
+
+      if (username == null)
+      {
+         identityCache.invalidateAll();
+         policy.invalidateAll();
+         adminIdentityPins.invalidateAll();
+         affected = new ArrayList<ActiveImpersonation>(index.getAll());
+      }
+      else
+      {
+         identityCache.invalidate(username);
+         policy.invalidate(username);
+         adminIdentityPins.invalidate(username);
+         affected = new ArrayList<ActiveImpersonation>(index.getByAdmin(username));
+         affected.addAll(index.getByImpersonatedUser(username));
+      }
+
+      ImpersonationServices services = this.services;
+      if (services == null || affected.isEmpty())
+      {
+         return 0;
+      }
+
+      int terminated = 0;
+      for (ActiveImpersonation impersonation : affected)
+      {
+         if (!impersonation.isTerminating() && !isStillAllowed(services, impersonation) && impersonation.terminate())
+         {
+            terminated++;
+         }
+      }
+      if (terminated > 0)
+      {
+         log.debug("Terminated " + terminated + " impersonation sessions, which are not allowed anymore");
+      }
+      return terminated;
+   }
+
+   // Identities are created again, because memberships in conversation state of admin user could be outdated
+   private boolean isStillAllowed(ImpersonationServices services, ActiveImpersonation impersonation)
+   {
+      try
+      {
+         Identity adminIdentity = createIdentity(services, impersonation.getAdminUser());
+         Identity impersonatedIdentity = createIdentity(services, impersonation.getImpersonatedUser());
+         return adminIdentity != null && impersonatedIdentity != null && policy.isAllowed(adminIdentity, impersonatedIdentity);
+      }
+      catch (Exception e)
+      {
+         // Session, which can't be verified, is terminated
+         log.error("Unable to check permission of impersonation session " + impersonation, e);
+         return false;
+      }
+   }
+
+   /**
+    * Register impersonation session, which was deserialized on this node (after failover or passivation of HTTP session), in
+    * {@link ImpersonationIndex}, so it can be listed and terminated here. Index entry of session is not replicated. All levels
+    * of impersonation stack are registered during first request, which sees them on this node
+    *
+    * @param req current request
+    * @param impersonatedIdentity identity of impersonated user
+    */
+   public void attach(HttpServletRequest req, ImpersonatedIdentity impersonatedIdentity)
+   {
+      for (ImpersonatedIdentity level = impersonatedIdentity; level != null; level = level.getParentImpersonatedIdentity())
+      {
+         if (level.markAttached() && !level.isStopped())
+         {
+            level.setImpersonator(this);
+            HttpSession session = ImpersonatedHttpSession.getRealSession(req, false);
+            if (session == null)
+            {
+               return;
+            }
+            log.debug("Impersonation session of admin user " + level.getAdminUserId() + " as user " + level.getUserId()
+                  + " registered in index after deserialization");
+            session.setAttribute(getLevelAttributeName(ATTR_INDEX_ENTRY, level.getDepth()),
+                  index.createSessionEntry(level, req.getRemoteAddr()));
+         }
+      }
+   }
+
+   /**
+    * Record request of impersonated user for idle timeout of impersonation session. If identity was deserialized on this node,
+    * its expiry is scheduled during first request here
+    *
+    * @param req current request
+    * @param impersonatedIdentity identity of impersonated user
+    */
+   public void touch(HttpServletRequest req, ImpersonatedIdentity impersonatedIdentity)
+   {
+      ImpersonationExpiry expiry = this.expiry;
+      if (expiry != null)
+      {
+         if (expiry.scheduleRestored(impersonatedIdentity))
+         {
+            HttpSession session = ImpersonatedHttpSession.getRealSession(req, false);
+            if (session != null)
+            {
+               session.setAttribute(getLevelAttributeName(ATTR_EXPIRY_ENTRY, impersonatedIdentity.getDepth()),
+                     expiry.createSessionEntry(impersonatedIdentity));
+            }
+         }
+         expiry.touch(impersonatedIdentity);
+      }
+   }
+
+   /**
+    * Create conversation state of admin user for deserialized {@link ImpersonatedIdentity}. Identity registered in
+    * IdentityRegistry is used if admin user is still logged. Otherwise identity is created through {@link IdentityCache}
+    *
+    * @param adminUserId name of admin user
+    * @return new conversation state of admin user
+    */
+   ConversationState createParentConversationState(String adminUserId)
+   {
+      ImpersonationServices services = getServices();
+      Identity adminIdentity = adminIdentityPins.getPinned(adminUserId);
+      if (adminIdentity == null)
+      {
+         adminIdentity = services.getIdentityRegistry().getIdentity(adminUserId);
+      }
+      if (adminIdentity == null)
+      {
+         try
+         {
+            adminIdentity = createIdentity(services, adminUserId);
+         }
+         catch (Exception e)
+         {
+            throw new IllegalStateException("Identity of admin user " + adminUserId + " not created", e);
+         }
+         if (adminIdentity == null)
+         {
+            throw new IllegalStateException("Identity of admin user " + adminUserId + " not created");
+         }
+      }
+
+      log.debug("Rehydrated conversation state of admin user " + adminUserId);
+      return new ConversationState(adminIdentity);
+   }
+
+   /**
+    * Remove cookie with token of impersonation session if request has it
+    *
+    * @param req current request
+    * @param resp current response. Nothing is done if it's null or committed
+    */
+   public void removeToken(HttpServletRequest req, HttpServletResponse resp)
+   {
+      ImpersonationTokenService tokenService = this.tokenService;
+      if (tokenService != null && resp != null && !resp.isCommitted() && tokenService.getTokenCookie(req) != null)
+      {
+         tokenService.removeTokenCookie(req, resp);
+      }
+   }
+
+   /**
+    * Open impersonation session for given user without HTTP session. Services are resolved from current container
+    *
+    * @param adminState conversation state of admin user
+    * @param username name of user to impersonate
+    * @return opened impersonation session, which needs to be closed by caller
+    * @throws ImpersonationException if impersonation is not allowed
+    * @throws Exception if some service failed during checks
+    */
+   public ImpersonatedConversation open(ConversationState adminState, String username) throws Exception
+   {
+      return open(getServices(), adminState, username);
+   }
+
+   public ImpersonatedConversation open(ImpersonationServices services, ConversationState adminState, String username) throws Exception
+   {
+      ImpersonatedIdentity identity = createImpersonatedIdentity(services, adminState, username);
+      ImpersonatedConversation conversation = new ImpersonatedConversation(identity, services.getConversationRegistry(), this);
+      auditLog.started(adminState.getIdentity().getUserId(), username, conversation.getStateKey().toString());
+      return conversation;
+   }
+
+   /**
+    * Open impersonation sessions for all given users without HTTP session. Users, which can't be impersonated, are reported
+    * in {@link ImpersonationBatch#getRejections()}. Services are resolved from current container
+    *
+    * @param adminState conversation state of admin user
+    * @param usernames names of users to impersonate
+    * @return batch with opened sessions, which need to be closed by caller
+    * @throws ImpersonationException if admin user is not able to impersonate anyone
+    * @throws Exception if some service failed. Sessions opened by this call are closed in this case
+    */
+   public ImpersonationBatch openAll(ConversationState adminState, Collection<String> usernames) throws Exception
+   {
+      return openAll(getServices(), adminState, usernames);
+   }
+
+   public ImpersonationBatch openAll(ImpersonationServices services, ConversationState adminState, Collection<String> usernames) throws Exception
+   {
+      Identity adminIdentity = adminState.getIdentity();
+      try
+      {
+         checkCanNest(adminIdentity);
+
+         // Fail fast instead of creating identities of all users just to reject them one by one
+         if (!policy.canImpersonate(adminIdentity))
+         {
+            throw new ImpersonationException(ImpersonationException.Reason.FORBIDDEN,
+                  "User " + adminIdentity.getUserId() + " doesn't have permission to impersonate");
+         }
+      }
+      catch (ImpersonationException ie)
+      {
+         metrics.recordRejection(ie.getReason());
+         auditLog.rejected(adminIdentity.getUserId(), null, null, ie.getReason().name());
+         throw ie;
+      }
+
+      ImpersonationBatch batch = new ImpersonationBatch(usernames.size());
+      try
+      {
+         for (String username : usernames)
+         {
+            try
+            {
+               batch.addConversation(open(services, adminState, username));
+            }
+            catch (ImpersonationException ie)
+            {
+               batch.addRejection(username, ie);
+            }
+         }
+      }
+      catch (Exception e)
+      {
+         batch.closeAll();
+         throw e;
+      }
+
+      log.debug("Admin user " + adminIdentity.getUserId() + " opened impersonation sessions: " + batch);
+      return batch;
+   }
+
+   /**
+    * @return cache of identities created during impersonation
+    */
+   public IdentityCache getIdentityCache()
+   {
+      return identityCache;
+   }
+
+   /**
+    * @return policy used to check permission of impersonation
+    */
+   public ImpersonationPolicy getPolicy()
+   {
+      return policy;
+   }
+
+   /**
+    * @return pins of identities of admin users, who are in the middle of impersonation session
+    */
+   public AdminIdentityPins getAdminIdentityPins()
+   {
+      return adminIdentityPins;
+   }
+
+   /**
+    * @return index of impersonation sessions active on this node
+    */
+   public ImpersonationIndex getIndex()
+   {
+      return index;
+   }
+
+   /**
+    * @return metrics of impersonation
+    */
+   public ImpersonationMetrics getMetrics()
+   {
+      return metrics;
+   }
+
+   /**
+    * @return audit log of impersonation sessions
+    */
+   public ImpersonationAuditLog getAuditLog()
+   {
+      return auditLog;
+   }
+
+   public void setAuditLog(ImpersonationAuditLog auditLog)
+   {
+      this.auditLog = auditLog;
+   }
+
+   /**
+    * @return service for signed tokens or null if stateless tokens are not enabled
+    */
+   public ImpersonationTokenService getTokenService()
+   {
+      return tokenService;
+   }
+
+   /**
+    * @param tokenService service for signed tokens, which allow to restore impersonation session on any cluster node. Null
+    * disables tokens
+    */
+   public void setTokenService(ImpersonationTokenService tokenService)
+   {
+      this.tokenService = tokenService;
+   }
+
+   /**
+    * @return expiry of impersonation sessions or null if sessions don't expire
+    */
+   public ImpersonationExpiry getExpiry()
+   {
+      return expiry;
+   }
+
+   public void setExpiry(ImpersonationExpiry expiry)
+   {
+      this.expiry = expiry;
+   }
+
+   /**
+    * @return broadcaster of events to other cluster nodes or null if events are not broadcasted
+    */
+   public ClusterBroadcaster getBroadcaster()
+   {
+      return broadcaster;
+   }
+
+   public void setBroadcaster(ClusterBroadcaster broadcaster)
+   {
+      this.broadcaster = broadcaster;
+   }
+
+   /**
+    * @return prefetcher of identities or null if identities are not prefetched
+    */
+   public IdentityPrefetcher getPrefetcher()
+   {
+      return prefetcher;
+   }
+
+   public void setPrefetcher(IdentityPrefetcher prefetcher)
+   {
+      this.prefetcher = prefetcher;
+   }
+
+   /**
+    * @return warm-up of portal or null if portal is not warmed up for impersonated users
+    */
+   public ImpersonationWarmUp getWarmUp()
+   {
+      return warmUp;
+   }
+
+   public void setWarmUp(ImpersonationWarmUp warmUp)
+   {
+      this.warmUp = warmUp;
+   }
+
+   /**
+    * @return max level of impersonation session. Value 1 means that impersonated user can't impersonate anyone
+    */
+   public int getMaxDepth()
+   {
+      return maxDepth;
+   }
+
+   public void setMaxDepth(int maxDepth)
+   {
+      if (maxDepth < 1)
+      {
+         throw new IllegalArgumentException("Max depth of impersonation must be at least 1: " + maxDepth);
+      }
+      this.maxDepth = maxDepth;
+   }
+
+   public boolean isSessionReplication()
+   {
+      return sessionReplication;
+   }
+
+   /**
+    * @param sessionReplication true if each session attribute of impersonated user should be saved separately, so servlet
+    * container in cluster replicates just changed attributes. See {@link ImpersonatedHttpSession}
+    */
+   public void setSessionReplication(boolean sessionReplication)
+   {
+      this.sessionReplication = sessionReplication;
+   }
+
+   // Register given conversationState into ConversationRegistry. Key will be given Http session
+   private void registerConversationState(ImpersonationServices services, HttpSession session, ConversationState conversationState)
+   {
+      StateKey stateKey = new HttpSessionStateKey(session);
+      services.getConversationRegistry().register(stateKey, conversationState);
+   }
+
+   // Keep identity of admin user until impersonation session is finished
+   private void pinAdminIdentity(ImpersonationServices services, HttpSession session, ImpersonatedIdentity impersonatedIdentity)
+   {
+      Identity adminIdentity = impersonatedIdentity.getParentConversationState().getIdentity();
+      session.setAttribute(ATTR_ADMIN_IDENTITY_PIN, adminIdentityPins.createSessionPin(adminIdentity, services.getIdentityRegistry()));
+   }
+
+   private User findUserByName(ImpersonationServices services, String username) throws Exception
+   {
+      long start = System.nanoTime();
+      try
+      {
+         return services.getOrganizationService().getUserHandler().findUserByName(username);
+      }
+      finally
+      {
+         metrics.recordFindUserByName(System.nanoTime() - start);
+      }
+   }
+
+   private void checkCanNest(Identity identity) throws ImpersonationException
+   {
+      if (identity instanceof ImpersonatedIdentity)
+      {
+         ImpersonatedIdentity impersonatedIdentity = (ImpersonatedIdentity)identity;
+         if (impersonatedIdentity.getDepth() >= maxDepth || impersonatedIdentity.isStopped())
+         {
+            throw new ImpersonationException(ImpersonationException.Reason.ALREADY_IMPERSONATED,
+                  "Already impersonated as identity: " + identity);
+         }
+      }
+   }
+
+   // User already present in impersonation stack can't be impersonated again
+   private void checkNotInStack(Identity identity, String username) throws ImpersonationException
+   {
+      ImpersonatedIdentity level = identity instanceof ImpersonatedIdentity ? (ImpersonatedIdentity)identity : null;
+      while (level != null)
+      {
+         if (username.equals(level.getUserId()) || username.equals(level.getAdminUserId()))
+         {
+            throw new ImpersonationException(ImpersonationException.Reason.ALREADY_IMPERSONATED,
+                  "User " + username + " is already part of impersonation stack of identity: " + identity);
+         }
+         level = level.getParentImpersonatedIdentity();
+      }
+   }
+
+   private static String getLevelAttributeName(String name, int depth)
+   {
+      return ImpersonatedHttpSession.getLevelAttributeName(name, depth);
+   }
+
+   // Called with servicesLock
+   private ImpersonationServices resolveServices(ExoContainer container)
+   {
+      ImpersonationServices resolved = ImpersonationServices.resolve(container);
+      log.debug("Resolved services for impersonation from container " + container);
+      unregisterListeners();
+      policy.setUserACL(resolved.getUserACL());
+
+      // Identities and decisions from previous container are not valid anymore
+      identityCache.invalidateAll();
+      policy.invalidateAll();
+      IdentityPrefetcher prefetcher = this.prefetcher;
+      if (prefetcher != null)
+      {
+         prefetcher.invalidateAll();
+      }
+      try
+      {
+         OrganizationService organizationService = resolved.getOrganizationService();
+         identityCache.registerListeners(organizationService);
+         policy.registerListeners(organizationService);
+         if (prefetcher != null)
+         {
+            prefetcher.registerListeners(organizationService);
+         }
+         organizationService.getMembershipHandler().addMembershipEventListener(policyMembershipListener);
+         organizationService.getGroupHandler().addGroupEventListener(policyGroupListener);
+         listenedOrganizationService = organizationService;
+         listenedPrefetcher = prefetcher;
+      }
+      catch (Exception e)
+      {
+         log.warn("Unable to register listeners for invalidation of identity cache and impersonation policy", e);
+      }
+      return resolved;
+   }
+
+   // Listeners of services, which are replaced, would keep invalidating caches. Called with servicesLock
+   private void unregisterListeners()
+   {
+      OrganizationService organizationService = listenedOrganizationService;
+      if (organizationService == null)
+      {
+         return;
+      }
+      listenedOrganizationService = null;
+      try
+      {
+         identityCache.unregisterListeners(organizationService);
+         policy.unregisterListeners(organizationService);
+         if (listenedPrefetcher != null)
+         {
+            listenedPrefetcher.unregisterListeners(organizationService);
+         }
+         organizationService.getMembershipHandler().removeMembershipEventListener(policyMembershipListener);
+         organizationService.getGroupHandler().removeGroupEventListener(policyGroupListener);
+      }
+      catch (Exception e)
+      {
+         log.warn("Unable to unregister listeners from previous organization service", e);
+      }
+      listenedPrefetcher = null;
+   }
+
+}
@@ -0,0 +1,140 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.web.security.impersonation;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies. Buckets have exponential size, bucket with index i contains latencies from 2^i to 2^(i+1)
+ * microseconds. Recording is lock-free, so it can be called from many request threads at once. Reading is not atomic with
+ * recording, so snapshot could be slightly inconsistent under load
+ */
+public class LatencyHistogram
+{
+   private static final int BUCKETS = 40;
+
+   private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+   private final AtomicLong count = new AtomicLong();
+   private final AtomicLong totalNanos = new AtomicLong();
+   private final AtomicLong maxNanos = new AtomicLong();
+
+   /**
+    * @param nanos latency in nanoseconds
+    */
+   public void record(long nanos)
+   {
+      if (nanos < 0)
+      {
+         nanos = 0;
+      }
+
+      buckets.incrementAndGet(getBucket(nanos / 1000));
+      count.incrementAndGet();
+      totalNanos.addAndGet(nanos);
+
+      long max = maxNanos.get();
+      while (nanos > max && !maxNanos.compareAndSet(max, nanos))
+      {
+         max = maxNanos.get();
+      }
+   }
+
+   public long getCount()
+   {
+      return count.get();
+   }
+
+   /**
+    * @param percentile percentile between 0 and 100
+    * @return upper bound of bucket containing given percentile in milliseconds
+    */
+   public double getPercentileMillis(double percentile)
+   {
+      long[] counts = new long[BUCKETS];
+      long total = 0;
+      for (int i = 0; i < BUCKETS; i++)
+      {
+         counts[i] = buckets.get(i);
+         total += counts[i];
+      }
+      if (total == 0)
+      {
+         return 0;
+      }
+
+      long rank = (long)Math.ceil(total * percentile / 100);
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++)
+      {
+         seen += counts[i];
+         if (seen >= rank && counts[i] > 0)
+         {
+            // Don't report more than real maximum for highest bucket
+            return Math.min((1L << (i + 1)) / 1000d, getMaxMillis());
+         }
+      }
+      return getMaxMillis();
+   }
+
+   public double getMeanMillis()
+   {
+      long c = count.get();
+      return c == 0 ? 0 : totalNanos.get() / (c * 1000000d);
+   }
+
+   public double getMaxMillis()
+   {
+      return maxNanos.get() / 1000000d;
+   }
+
+   /**
+    * @return snapshot of current values
+    */
+   public LatencySnapshot getSnapshot()
+   {
+      return new LatencySnapshot(getCount(), getMeanMillis(), getPercentileMillis(50), getPercentileMillis(99), getMaxMillis());
+   }
+
+   public void reset()
+   {
+      for (int i = 0; i < BUCKETS; i++)
+      {
+         buckets.set(i, 0);
+      }
+      count.set(0);
+      totalNanos.set(0);
+      maxNanos.set(0);
+   }
+
+   private static int getBucket(long micros)
+   {
+      int bucket = 63 - Long.numberOfLeadingZeros(micros);
+      if (bucket < 0)
+      {
+         return 0;
+      }
+      return bucket < BUCKETS ? bucket : BUCKETS - 1;
+   }
+}
@@ -0,0 +1,80 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.web.security.impersonation;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Values of {@link LatencyHistogram} at some point in time. Exposed through JMX as composite data
+ */
+public class LatencySnapshot
+{
+   private final long count;
+   private final double meanMillis;
+   private final double medianMillis;
+   private final double percentile99Millis;
+   private final double maxMillis;
+
+   @ConstructorProperties({"count", "meanMillis", "medianMillis", "percentile99Millis", "maxMillis"})
+   public LatencySnapshot(long count, double meanMillis, double medianMillis, double percentile99Millis, double maxMillis)
+   {
+      this.count = count;
+      this.meanMillis = meanMillis;
+      this.medianMillis = medianMillis;
+      this.percentile99Millis = percentile99Millis;
+      this.maxMillis = maxMillis;
+   }
+
+   public long getCount()
+   {
+      return count;
+   }
+
+   public double getMeanMillis()
+   {
+      return meanMillis;
+   }
+
+   public double getMedianMillis()
+   {
+      return medianMillis;
+   }
+
+   public double getPercentile99Millis()
+   {
+      return percentile99Millis;
+   }
+
+   public double getMaxMillis()
+   {
+      return maxMillis;
+   }
+
+   @Override
+   public String toString()
+   {
+      return "count=" + count + ", mean=" + meanMillis + "ms, median=" + medianMillis + "ms, 99%=" + percentile99Millis
+            + "ms, max=" + maxMillis + "ms";
+   }
+}
@@ -0,0 +1,239 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.web.security.impersonation;
+
+import org.exoplatform.services.security.MembershipEntry;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.ObjectStreamException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact serialized form of {@link ImpersonatedIdentity}. It contains name, memberships and roles of impersonated user, name
+ * of admin user and state of impersonation session. Conversation state of admin user is not written, so its attributes and
+ * identity don't need to be serialized each time when HTTP session is replicated or passivated. Membership types and groups
+ * repeated in more memberships are written just once. Identity of nested impersonation session is followed by identity of
+ * lower level, as it can't be rehydrated from name of admin user
+ *
+ * Time since start and since last access of session is written together with time of serialization, so expiry continues on
+ * node, where identity is deserialized, including time for which session was passivated or in transfer
+ */
+class SerializedImpersonatedIdentity implements Externalizable
+{
+   private static final long serialVersionUID = 1L;
+
+   private static final byte VERSION = 2;
+
+   // Version without times of expiry. Deserialized session expires as if it was started during deserialization
+   private static final byte VERSION_1 = 1;
+
+   private static final int FLAG_STOPPED = 1;
+   private static final int FLAG_CANCEL_REQUESTED = 1 << 1;
+   private static final int FLAG_RETURN_URI = 1 << 2;
+   private static final int FLAG_TOKEN = 1 << 3;
+   private static final int FLAG_NESTED = 1 << 4;
+
+   private ImpersonatedIdentity identity;
+
+   /**
+    * Used by deserialization
+    */
+   public SerializedImpersonatedIdentity()
+   {
+   }
+
+   SerializedImpersonatedIdentity(ImpersonatedIdentity identity)
+   {
+      this.identity = identity;
+   }
+
+   public void writeExternal(ObjectOutput out) throws IOException
+   {
+      out.writeByte(VERSION);
+      out.writeUTF(identity.getUserId());
+      out.writeUTF(identity.getAdminUserId());
+
+      String returnURI = identity.getReturnURI();
+      ImpersonationToken token = identity.getToken();
+      ImpersonatedIdentity parentIdentity = identity.getParentImpersonatedIdentity();
+      int flags = (identity.isStopped() ? FLAG_STOPPED : 0) | (identity.isCancelRequested() ? FLAG_CANCEL_REQUESTED : 0)
+            | (returnURI != null ? FLAG_RETURN_URI : 0) | (token != null ? FLAG_TOKEN : 0)
+            | (parentIdentity != null ? FLAG_NESTED : 0);
+      out.writeByte(flags);
+      if (returnURI != null)
+      {
+         out.writeUTF(returnURI);
+      }
+      if (token != null)
+      {
+         out.writeLong(token.getExpiration());
+         out.writeLong(token.getNonce());
+      }
+
+      ImpersonationExpiry expiry = identity.getImpersonator().getExpiry();
+      out.writeLong(expiry != null ? expiry.getElapsedMillis(identity) : identity.getRestoredElapsedMillis());
+      out.writeLong(expiry != null ? expiry.getIdleMillis(identity) : identity.getRestoredIdleMillis());
+      out.writeLong(System.currentTimeMillis());
+
+      Collection<MembershipEntry> memberships = identity.getMemberships();
+      Map<String, Integer> strings = new HashMap<String, Integer>();
+      out.writeInt(memberships.size());
+      for (MembershipEntry membership : memberships)
+      {
+         writeString(out, membership.getMembershipType(), strings);
+         writeString(out, membership.getGroup(), strings);
+      }
+
+      Collection<String> roles = identity.getRoles();
+      out.writeInt(roles.size());
+      for (String role : roles)
+      {
+         writeString(out, role, strings);
+      }
+
+      if (parentIdentity != null)
+      {
+         out.writeObject(parentIdentity);
+      }
+   }
+
+   public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException
+   {
+      byte version = in.readByte();
+      if (version != VERSION && version != VERSION_1)
+      {
+         throw new InvalidObjectException("Unsupported version of serialized impersonated identity: " + version);
+      }
+      String userId = in.readUTF();
+      String adminUserId = in.readUTF();
+
+      int flags = in.readByte();
+      String returnURI = (flags & FLAG_RETURN_URI) != 0 ? in.readUTF() : null;
+      ImpersonationToken token = null;
+      if ((flags & FLAG_TOKEN) != 0)
+      {
+         long expiration = in.readLong();
+         long nonce = in.readLong();
+         token = new ImpersonationToken(adminUserId, userId, expiration, nonce);
+      }
+      long elapsedMillis = 0;
+      long idleMillis = 0;
+      if (version != VERSION_1)
+      {
+         elapsedMillis = in.readLong();
+         idleMillis = in.readLong();
+         // Clocks of nodes could differ, so time since serialization is never negative
+         long serializedMillis = Math.max(System.currentTimeMillis() - in.readLong(), 0);
+         elapsedMillis += serializedMillis;
+         idleMillis += serializedMillis;
+      }
+
+      List<String> strings = new ArrayList<String>();
+      int membershipsCount = in.readInt();
+      List<MembershipEntry> memberships = new ArrayList<MembershipEntry>(membershipsCount);
+      for (int i = 0; i < membershipsCount; i++)
+      {
+         String type = readString(in, strings);
+         String group = readString(in, strings);
+         memberships.add(new MembershipEntry(group, type));
+      }
+
+      int rolesCount = in.readInt();
+      List<String> roles = new ArrayList<String>(rolesCount);
+      for (int i = 0; i < rolesCount; i++)
+      {
+         roles.add(readString(in, strings));
+      }
+
+      if ((flags & FLAG_NESTED) != 0)
+      {
+         Object parentIdentity = in.readObject();
+         if (!(parentIdentity instanceof ImpersonatedIdentity))
+         {
+            throw new InvalidObjectException("Invalid identity of lower level: " + parentIdentity);
+         }
+         identity = new ImpersonatedIdentity(userId, memberships, roles, (ImpersonatedIdentity)parentIdentity);
+      }
+      else
+      {
+         identity = new ImpersonatedIdentity(userId, memberships, roles, adminUserId);
+      }
+      identity.setReturnURI(returnURI);
+      identity.setToken(token);
+      identity.setRestoredExpiryTimes(elapsedMillis, idleMillis);
+      if ((flags & FLAG_CANCEL_REQUESTED) != 0)
+      {
+         identity.requestCancel();
+      }
+      if ((flags & FLAG_STOPPED) != 0)
+      {
+         identity.markStopped();
+      }
+   }
+
+   private Object readResolve() throws ObjectStreamException
+   {
+      return identity;
+   }
+
+   // String is written just once. Next occurrences are written as index of first occurrence
+   private static void writeString(ObjectOutput out, String value, Map<String, Integer> strings) throws IOException
+   {
+      Integer index = strings.get(value);
+      if (index != null)
+      {
+         out.writeInt(index);
+      }
+      else
+      {
+         strings.put(value, strings.size());
+         out.writeInt(-1);
+         out.writeUTF(value);
+      }
+   }
+
+   private static String readString(ObjectInput in, List<String> strings) throws IOException
+   {
+      int index = in.readInt();
+      if (index < 0)
+      {
+         String value = in.readUTF();
+         strings.add(value);
+         return value;
+      }
+      if (index >= strings.size())
+      {
+         throw new InvalidObjectException("Invalid index of string: " + index);
+      }
+      return strings.get(index);
+   }
+}
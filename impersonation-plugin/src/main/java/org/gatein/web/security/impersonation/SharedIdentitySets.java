@@ -0,0 +1,196 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.web.security.impersonation;
+
+import org.exoplatform.services.security.MembershipEntry;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Immutable memberships, groups and roles shared by all {@link ImpersonatedIdentity} instances with same content. Many admin
+ * users often impersonate same user (for example user of large tenant), so each of their sessions would otherwise keep its own
+ * copy of same membership graph.
+ *
+ * Sets are interned by content, so identities of same user share sets until his memberships or roles are changed. Interned
+ * sets are referenced weakly and their entry is removed when no identity uses them anymore. Interning is lock-free
+ */
+public final class SharedIdentitySets
+{
+   private static final ConcurrentMap<Key, SetsReference> interned = new ConcurrentHashMap<Key, SetsReference>();
+   private static final ReferenceQueue<SharedIdentitySets> collected = new ReferenceQueue<SharedIdentitySets>();
+
+   private final Set<MembershipEntry> memberships;
+   private final Set<String> groups;
+   private final Set<String> roles;
+
+   private SharedIdentitySets(Collection<MembershipEntry> memberships, Set<String> roles)
+   {
+      Set<MembershipEntry> membershipSet = new HashSet<MembershipEntry>(memberships);
+      Set<String> groupSet = new HashSet<String>();
+      for (MembershipEntry membership : membershipSet)
+      {
+         groupSet.add(membership.getGroup());
+      }
+      this.memberships = Collections.unmodifiableSet(membershipSet);
+      this.groups = Collections.unmodifiableSet(groupSet);
+      this.roles = roles;
+   }
+
+   /**
+    * Return shared sets with given content. New sets are created only if no identity uses sets with same content now
+    *
+    * @param memberships memberships of user
+    * @param roles roles of user
+    * @return shared immutable sets
+    */
+   public static SharedIdentitySets intern(Collection<MembershipEntry> memberships, Collection<String> roles)
+   {
+      expungeCollected();
+
+      Key key = new Key(memberships, roles);
+      while (true)
+      {
+         SetsReference reference = interned.get(key);
+         SharedIdentitySets sets = reference != null ? reference.get() : null;
+         if (sets != null)
+         {
+            return sets;
+         }
+
+         // Key of existing entry already contains same roles, so only new entry needs its own copy
+         sets = new SharedIdentitySets(memberships, key.roles);
+         SetsReference newReference = new SetsReference(sets, key);
+         if (reference == null ? interned.putIfAbsent(key, newReference) == null : interned.replace(key, reference, newReference))
+         {
+            return sets;
+         }
+      }
+   }
+
+   /**
+    * @return count of distinct sets used by identities now. Sets collected since last call of {@link #intern} could be counted
+    */
+   public static int getInternedCount()
+   {
+      expungeCollected();
+      return interned.size();
+   }
+
+   public Set<MembershipEntry> getMemberships()
+   {
+      return memberships;
+   }
+
+   public Set<String> getGroups()
+   {
+      return groups;
+   }
+
+   public Set<String> getRoles()
+   {
+      return roles;
+   }
+
+   /**
+    * @param group group
+    * @param membershipType membership type or {@link MembershipEntry#ANY_TYPE}
+    * @return true if user has given membership
+    */
+   public boolean isMemberOf(String group, String membershipType)
+   {
+      return memberships.contains(new MembershipEntry(group, membershipType));
+   }
+
+   private static void expungeCollected()
+   {
+      SetsReference reference;
+      while ((reference = (SetsReference)collected.poll()) != null)
+      {
+         interned.remove(reference.key, reference);
+      }
+   }
+
+   private static class SetsReference extends WeakReference<SharedIdentitySets>
+   {
+      private final Key key;
+
+      private SetsReference(SharedIdentitySets sets, Key key)
+      {
+         super(sets, collected);
+         this.key = key;
+      }
+   }
+
+   /**
+    * Content of sets. Memberships are compared by exact type and group, as {@link MembershipEntry#equals(Object)} treats
+    * {@link MembershipEntry#ANY_TYPE} as wildcard
+    */
+   private static class Key
+   {
+      private final Set<String> memberships;
+      private final Set<String> roles;
+      private final int hash;
+
+      private Key(Collection<MembershipEntry> memberships, Collection<String> roles)
+      {
+         Set<String> membershipSet = new HashSet<String>();
+         for (MembershipEntry membership : memberships)
+         {
+            membershipSet.add(membership.getMembershipType() + ":" + membership.getGroup());
+         }
+         this.memberships = membershipSet;
+         this.roles = roles == null || roles.isEmpty() ? Collections.<String>emptySet()
+               : Collections.unmodifiableSet(new HashSet<String>(roles));
+         this.hash = 31 * membershipSet.hashCode() + this.roles.hashCode();
+      }
+
+      @Override
+      public boolean equals(Object o)
+      {
+         if (this == o)
+         {
+            return true;
+         }
+         if (!(o instanceof Key))
+         {
+            return false;
+         }
+         Key other = (Key)o;
+         return hash == other.hash && memberships.equals(other.memberships) && roles.equals(other.roles);
+      }
+
+      @Override
+      public int hashCode()
+      {
+         return hash;
+      }
+   }
+}
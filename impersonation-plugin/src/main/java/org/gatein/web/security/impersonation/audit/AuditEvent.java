@@ -0,0 +1,230 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.web.security.impersonation.audit;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * Single record of audit log. Event is saved as one line with tab separated fields:
+ * time, type, admin user, impersonated user, source and detail. Source is
+ * address of client for HTTP requests or key of conversation state for sessions opened programmatically
+ */
+public class AuditEvent
+{
+   public enum Type
+   {
+      /** Impersonation session was started */
+      STARTED,
+
+      /** Impersonation session was finished */
+      STOPPED,
+
+      /** Request to start impersonation was rejected. Detail contains reason */
+      REJECTED,
+
+      /**
+       * Impersonation session was terminated by administrator. Source is address of administrator and detail contains his
+       * name. Both are empty if session was terminated by event from other cluster node
+       */
+      TERMINATED,
+
+      /** Some events were not saved because buffer was full. Detail contains count of lost events */
+      DROPPED
+   }
+
+   private static final String TIME_FORMAT = "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'";
+
+   private final long timestamp;
+   private final Type type;
+   private final String adminUser;
+   private final String impersonatedUser;
+   private final String source;
+   private final String detail;
+
+   public AuditEvent(long timestamp, Type type, String adminUser, String impersonatedUser, String source, String detail)
+   {
+      this.timestamp = timestamp;
+      this.type = type;
+      this.adminUser = adminUser;
+      this.impersonatedUser = impersonatedUser;
+      this.source = source;
+      this.detail = detail;
+   }
+
+   public long getTimestamp()
+   {
+      return timestamp;
+   }
+
+   public Type getType()
+   {
+      return type;
+   }
+
+   public String getAdminUser()
+   {
+      return adminUser;
+   }
+
+   public String getImpersonatedUser()
+   {
+      return impersonatedUser;
+   }
+
+   public String getSource()
+   {
+      return source;
+   }
+
+   public String getDetail()
+   {
+      return detail;
+   }
+
+   /**
+    * @return date format used for time in audit log. Returned instance is not thread-safe
+    */
+   static SimpleDateFormat createDateFormat()
+   {
+      SimpleDateFormat format = new SimpleDateFormat(TIME_FORMAT);
+      format.setTimeZone(TimeZone.getTimeZone("UTC"));
+      return format;
+   }
+
+   /**
+    * Append event as single line to given builder
+    *
+    * @param builder target builder
+    * @param format format created by {@link #createDateFormat()}
+    */
+   void appendLine(StringBuilder builder, SimpleDateFormat format)
+   {
+      builder.append(format.format(new Date(timestamp))).append('\t').append(type);
+      appendField(builder, adminUser);
+      appendField(builder, impersonatedUser);
+      appendField(builder, source);
+      appendField(builder, detail);
+      builder.append('\n');
+   }
+
+   /**
+    * Parse line of audit log
+    *
+    * @param line line created by {@link #appendLine(StringBuilder, SimpleDateFormat)}
+    * @param format format created by {@link #createDateFormat()}
+    * @return parsed event
+    * @throws ParseException if line has invalid format
+    */
+   static AuditEvent parse(String line, SimpleDateFormat format) throws ParseException
+   {
+      List<String> fields = new ArrayList<String>(6);
+      StringBuilder field = new StringBuilder();
+      for (int i = 0; i < line.length(); i++)
+      {
+         char c = line.charAt(i);
+         if (c == '\t')
+         {
+            fields.add(field.toString());
+            field.setLength(0);
+         }
+         else if (c == '\\' && i + 1 < line.length())
+         {
+            char escaped = line.charAt(++i);
+            field.append(escaped == 't' ? '\t' : escaped == 'n' ? '\n' : escaped == 'r' ? '\r' : escaped);
+         }
+         else
+         {
+            field.append(c);
+         }
+      }
+      fields.add(field.toString());
+
+      if (fields.size() != 6)
+      {
+         throw new ParseException("Invalid count of fields in line: " + line, 0);
+      }
+
+      Type type;
+      try
+      {
+         type = Type.valueOf(fields.get(1));
+      }
+      catch (IllegalArgumentException iae)
+      {
+         throw new ParseException("Invalid type of event in line: " + line, 0);
+      }
+
+      return new AuditEvent(format.parse(fields.get(0)).getTime(), type, emptyToNull(fields.get(2)),
+            emptyToNull(fields.get(3)), emptyToNull(fields.get(4)), emptyToNull(fields.get(5)));
+   }
+
+   @Override
+   public String toString()
+   {
+      StringBuilder builder = new StringBuilder();
+      appendLine(builder, createDateFormat());
+      return builder.substring(0, builder.length() - 1);
+   }
+
+   private static void appendField(StringBuilder builder, String value)
+   {
+      builder.append('\t');
+      if (value == null)
+      {
+         return;
+      }
+
+      for (int i = 0; i < value.length(); i++)
+      {
+         char c = value.charAt(i);
+         switch (c)
+         {
+            case '\t':
+               builder.append("\\t");
+               break;
+            case '\n':
+               builder.append("\\n");
+               break;
+            case '\r':
+               builder.append("\\r");
+               break;
+            case '\\':
+               builder.append("\\\\");
+               break;
+            default:
+               builder.append(c);
+         }
+      }
+   }
+
+   private static String emptyToNull(String value)
+   {
+      return value.length() == 0 ? null : value;
+   }
+}
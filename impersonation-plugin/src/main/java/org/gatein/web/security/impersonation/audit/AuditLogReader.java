@@ -0,0 +1,140 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.web.security.impersonation.audit;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Search in audit log written by {@link ImpersonationAuditLog}. Rotated files are read too, from the oldest one.
+ * Last line of file, which can't be parsed, is skipped. It's record torn by crash of server
+ */
+public class AuditLogReader
+{
+   private final File directory;
+
+   public AuditLogReader(File directory)
+   {
+      this.directory = directory;
+   }
+
+   /**
+    * @return existing audit files from the oldest one
+    */
+   public List<File> getFiles()
+   {
+      List<File> files = new ArrayList<File>();
+      for (int i = 1; ; i++)
+      {
+         File file = new File(directory, AuditLogWriter.FILE_NAME + "." + i);
+         if (!file.exists())
+         {
+            break;
+         }
+         files.add(0, file);
+      }
+
+      File current = new File(directory, AuditLogWriter.FILE_NAME);
+      if (current.exists())
+      {
+         files.add(current);
+      }
+      return files;
+   }
+
+   /**
+    * Find events matching all given criteria
+    *
+    * @param adminUser name of admin user or null for any user
+    * @param impersonatedUser name of impersonated user or null for any user
+    * @param type type of event or null for any type
+    * @param from time in milliseconds from which events are returned (inclusive)
+    * @param to time in milliseconds until which events are returned (exclusive)
+    * @return matching events from the oldest one
+    * @throws IOException if some file can't be read
+    */
+   public List<AuditEvent> search(String adminUser, String impersonatedUser, AuditEvent.Type type, long from, long to) throws IOException
+   {
+      SimpleDateFormat format = AuditEvent.createDateFormat();
+      List<AuditEvent> result = new ArrayList<AuditEvent>();
+      for (File file : getFiles())
+      {
+         BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+         try
+         {
+            String line;
+            String invalidLine = null;
+            while ((line = reader.readLine()) != null)
+            {
+               if (line.length() == 0)
+               {
+                  continue;
+               }
+
+               // Invalid line is error only if it's not the last one
+               if (invalidLine != null)
+               {
+                  throw new IOException("Invalid line in audit file " + file + ": " + invalidLine);
+               }
+
+               AuditEvent event;
+               try
+               {
+                  event = AuditEvent.parse(line, format);
+               }
+               catch (ParseException pe)
+               {
+                  invalidLine = line;
+                  continue;
+               }
+
+               if (matches(adminUser, event.getAdminUser()) && matches(impersonatedUser, event.getImpersonatedUser())
+                     && (type == null || type == event.getType())
+                     && event.getTimestamp() >= from && event.getTimestamp() < to)
+               {
+                  result.add(event);
+               }
+            }
+         }
+         finally
+         {
+            reader.close();
+         }
+      }
+      return result;
+   }
+
+   private static boolean matches(String expected, String value)
+   {
+      return expected == null || expected.equals(value);
+   }
+
+}
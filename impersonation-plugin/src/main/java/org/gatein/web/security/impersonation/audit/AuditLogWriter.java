@@ -0,0 +1,260 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.web.security.impersonation.audit;
+
+import org.gatein.common.logging.Logger;
+import org.gatein.common.logging.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Background writer, which takes events from ring buffer and appends them to audit file in batches. Each batch is written
+ * by single write to file channel and forced to disk. File is rotated when it exceeds max size. Rotated files have
+ * suffix .1, .2 etc. where higher number means older file
+ */
+class AuditLogWriter implements Runnable
+{
+   static final String FILE_NAME = "impersonation-audit.log";
+
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+   private static final int MAX_BATCH_SIZE = 1024;
+   private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+   private static final Logger log = LoggerFactory.getLogger(AuditLogWriter.class);
+
+   private final AuditRingBuffer<AuditEvent> buffer;
+   private final AtomicLong dropped;
+   private final File directory;
+   private final long maxFileSize;
+   private final int maxFiles;
+
+   private final SimpleDateFormat dateFormat = AuditEvent.createDateFormat();
+   private final List<AuditEvent> batch = new ArrayList<AuditEvent>(MAX_BATCH_SIZE);
+   private final StringBuilder lines = new StringBuilder(MAX_BATCH_SIZE * 64);
+
+   private volatile boolean running = true;
+   private FileChannel channel;
+   private long fileSize;
+
+   AuditLogWriter(AuditRingBuffer<AuditEvent> buffer, AtomicLong dropped, File directory, long maxFileSize, int maxFiles)
+   {
+      this.buffer = buffer;
+      this.dropped = dropped;
+      this.directory = directory;
+      this.maxFileSize = maxFileSize;
+      this.maxFiles = maxFiles;
+   }
+
+   public void run()
+   {
+      try
+      {
+         while (running || !buffer.isEmpty())
+         {
+            batch.clear();
+            long lost = dropped.getAndSet(0);
+            if (lost > 0)
+            {
+               batch.add(new AuditEvent(System.currentTimeMillis(), AuditEvent.Type.DROPPED, null, null, null, String.valueOf(lost)));
+            }
+
+            if (buffer.drainTo(batch, MAX_BATCH_SIZE) == 0 && batch.isEmpty())
+            {
+               if (running)
+               {
+                  LockSupport.parkNanos(IDLE_PARK_NANOS);
+               }
+               else
+               {
+                  // Producer claimed slot, but didn't publish event yet
+                  Thread.yield();
+               }
+               continue;
+            }
+
+            try
+            {
+               write(batch);
+            }
+            catch (RuntimeException e)
+            {
+               // Writer must keep running, otherwise buffer fills up and all following events are dropped
+               log.error("Unable to write " + batch.size() + " events to audit log in " + directory, e);
+               close();
+            }
+         }
+      }
+      finally
+      {
+         close();
+      }
+   }
+
+   /**
+    * Stop writer after all events in buffer are written
+    */
+   void stop()
+   {
+      running = false;
+   }
+
+   private void write(List<AuditEvent> events)
+   {
+      lines.setLength(0);
+      for (AuditEvent event : events)
+      {
+         event.appendLine(lines, dateFormat);
+      }
+      ByteBuffer bytes = UTF8.encode(lines.toString());
+
+      try
+      {
+         if (channel == null || (fileSize > 0 && fileSize + bytes.remaining() > maxFileSize))
+         {
+            rotate();
+         }
+
+         int written = 0;
+         while (bytes.hasRemaining())
+         {
+            written += channel.write(bytes);
+         }
+         channel.force(false);
+         fileSize += written;
+      }
+      catch (IOException e)
+      {
+         log.error("Unable to write " + events.size() + " events to audit log in " + directory + ". Events: " + lines, e);
+         close();
+      }
+   }
+
+   private void rotate() throws IOException
+   {
+      File current = new File(directory, FILE_NAME);
+      if (channel != null)
+      {
+         close();
+
+         // Shift older files, the oldest one is removed
+         new File(directory, FILE_NAME + "." + (maxFiles - 1)).delete();
+         for (int i = maxFiles - 2; i >= 1; i--)
+         {
+            File file = new File(directory, FILE_NAME + "." + i);
+            if (file.exists() && !file.renameTo(new File(directory, FILE_NAME + "." + (i + 1))))
+            {
+               log.warn("Unable to rotate audit log file " + file);
+            }
+         }
+         if (maxFiles > 1 && !current.renameTo(new File(directory, FILE_NAME + ".1")))
+         {
+            log.warn("Unable to rotate audit log file " + current);
+         }
+         else if (maxFiles <= 1)
+         {
+            current.delete();
+         }
+      }
+
+      if (!directory.exists() && !directory.mkdirs())
+      {
+         throw new IOException("Unable to create directory " + directory);
+      }
+
+      if (current.length() > 0)
+      {
+         truncateTornRecord(current);
+      }
+
+      // Append mode, so existing records are never overwritten
+      channel = new FileOutputStream(current, true).getChannel();
+      fileSize = channel.size();
+   }
+
+   // Record torn by crash of server is removed, so next record doesn't continue on its line
+   private static void truncateTornRecord(File file) throws IOException
+   {
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try
+      {
+         byte[] chunk = new byte[4096];
+         long length = raf.length();
+         long position = length;
+         while (position > 0)
+         {
+            int count = (int)Math.min(chunk.length, position);
+            raf.seek(position - count);
+            raf.readFully(chunk, 0, count);
+            for (int i = count - 1; i >= 0; i--)
+            {
+               if (chunk[i] == '\n')
+               {
+                  long end = position - count + i + 1;
+                  if (end < length)
+                  {
+                     log.warn("Removed incomplete record from end of audit log file " + file);
+                     raf.setLength(end);
+                  }
+                  return;
+               }
+            }
+            position -= count;
+         }
+         log.warn("Removed incomplete record from audit log file " + file);
+         raf.setLength(0);
+      }
+      finally
+      {
+         raf.close();
+      }
+   }
+
+   private void close()
+   {
+      if (channel != null)
+      {
+         try
+         {
+            channel.close();
+         }
+         catch (IOException e)
+         {
+            log.warn("Unable to close audit log file", e);
+         }
+         channel = null;
+      }
+   }
+}
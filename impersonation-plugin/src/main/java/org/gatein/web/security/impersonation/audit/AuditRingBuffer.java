@@ -0,0 +1,138 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.web.security.impersonation.audit;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free ring buffer with many producers and single consumer. Producers never block. If buffer is full,
+ * {@link #offer(Object)} returns false immediately
+ */
+public class AuditRingBuffer<E>
+{
+   private final AtomicReferenceArray<E> slots;
+   private final int mask;
+
+   /** Sequence of next slot claimed by producer */
+   private final AtomicLong tail = new AtomicLong();
+
+   /** Sequence of next slot read by consumer */
+   private final AtomicLong head = new AtomicLong();
+
+   /**
+    * @param capacity requested capacity. It's rounded up to power of two
+    */
+   public AuditRingBuffer(int capacity)
+   {
+      if (capacity < 1)
+      {
+         throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+      }
+      int size = Integer.highestOneBit(capacity);
+      if (size < capacity)
+      {
+         size <<= 1;
+      }
+      this.slots = new AtomicReferenceArray<E>(size);
+      this.mask = size - 1;
+   }
+
+   /**
+    * Add element to buffer. Can be called from many threads at once
+    *
+    * @param element element to add
+    * @return false if buffer is full and element was not added
+    */
+   public boolean offer(E element)
+   {
+      if (element == null)
+      {
+         throw new NullPointerException("Element can't be null");
+      }
+
+      while (true)
+      {
+         long current = tail.get();
+         if (current - head.get() >= slots.length())
+         {
+            return false;
+         }
+         if (tail.compareAndSet(current, current + 1))
+         {
+            // Slot is free as consumer clears it before moving head. Consumer waits until element is published here
+            slots.set((int)current & mask, element);
+            return true;
+         }
+      }
+   }
+
+   /**
+    * Move available elements to given list. Must be called just from single consumer thread
+    *
+    * @param target list where elements will be added
+    * @param maxElements max count of elements to move
+    * @return count of moved elements
+    */
+   public int drainTo(List<? super E> target, int maxElements)
+   {
+      long current = head.get();
+      int drained = 0;
+      while (drained < maxElements)
+      {
+         int index = (int)current & mask;
+         E element = slots.get(index);
+         if (element == null)
+         {
+            // Empty buffer or producer claimed slot, but didn't publish element yet
+            break;
+         }
+         slots.set(index, null);
+         target.add(element);
+         current++;
+         drained++;
+         head.lazySet(current);
+      }
+      return drained;
+   }
+
+   /**
+    * @return approximate count of elements in buffer
+    */
+   public int size()
+   {
+      return (int)Math.max(0, tail.get() - head.get());
+   }
+
+   public boolean isEmpty()
+   {
+      return size() == 0;
+   }
+
+   public int capacity()
+   {
+      return slots.length();
+   }
+}
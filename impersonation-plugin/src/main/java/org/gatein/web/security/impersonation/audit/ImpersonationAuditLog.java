@@ -0,0 +1,167 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.web.security.impersonation.audit;
+
+import org.gatein.common.logging.Logger;
+import org.gatein.common.logging.LoggerFactory;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Audit log of impersonation sessions. Request threads only publish events to {@link AuditRingBuffer} and never block.
+ * Events are written to append-only file by background thread. See {@link AuditLogReader} for searching in the log
+ */
+public class ImpersonationAuditLog
+{
+   /** What to do with event when buffer is full */
+   public enum OverflowPolicy
+   {
+      /** Write event to server log instead of audit log */
+      LOG,
+
+      /** Drop event. Count of dropped events is written to audit log as {@link AuditEvent.Type#DROPPED} event */
+      DROP
+   }
+
+   /** Audit log, which ignores all events */
+   public static final ImpersonationAuditLog DISABLED = new ImpersonationAuditLog();
+
+   private static final Logger log = LoggerFactory.getLogger(ImpersonationAuditLog.class);
+
+   private final AuditRingBuffer<AuditEvent> buffer;
+   private final OverflowPolicy overflowPolicy;
+   private final AtomicLong dropped = new AtomicLong();
+   private final AuditLogWriter writer;
+   private final Thread writerThread;
+
+   /**
+    * @param directory directory with audit files
+    * @param maxFileSize size in bytes after which file is rotated
+    * @param maxFiles count of kept files including current file
+    * @param bufferSize max count of events waiting for write
+    * @param overflowPolicy what to do with event when buffer is full
+    */
+   public ImpersonationAuditLog(File directory, long maxFileSize, int maxFiles, int bufferSize, OverflowPolicy overflowPolicy)
+   {
+      this.buffer = new AuditRingBuffer<AuditEvent>(bufferSize);
+      this.overflowPolicy = overflowPolicy;
+      this.writer = new AuditLogWriter(buffer, dropped, directory, maxFileSize, Math.max(1, maxFiles));
+      this.writerThread = new Thread(writer, "ImpersonationAuditLogWriter");
+      this.writerThread.setDaemon(true);
+   }
+
+   private ImpersonationAuditLog()
+   {
+      this.buffer = null;
+      this.overflowPolicy = OverflowPolicy.DROP;
+      this.writer = null;
+      this.writerThread = null;
+   }
+
+   public boolean isEnabled()
+   {
+      return writer != null;
+   }
+
+   /**
+    * Start background writer
+    */
+   public void start()
+   {
+      if (isEnabled())
+      {
+         writerThread.start();
+      }
+   }
+
+   /**
+    * Stop background writer. Events published before this call are written before writer is stopped
+    */
+   public void stop()
+   {
+      if (isEnabled())
+      {
+         writer.stop();
+         try
+         {
+            writerThread.join(TimeUnit.SECONDS.toMillis(10));
+         }
+         catch (InterruptedException e)
+         {
+            Thread.currentThread().interrupt();
+         }
+      }
+   }
+
+   public void started(String adminUser, String impersonatedUser, String source)
+   {
+      publish(AuditEvent.Type.STARTED, adminUser, impersonatedUser, source, null);
+   }
+
+   public void stopped(String adminUser, String impersonatedUser, String source)
+   {
+      publish(AuditEvent.Type.STOPPED, adminUser, impersonatedUser, source, null);
+   }
+
+   public void rejected(String adminUser, String impersonatedUser, String source, String reason)
+   {
+      publish(AuditEvent.Type.REJECTED, adminUser, impersonatedUser, source, reason);
+   }
+
+   public void terminated(String adminUser, String impersonatedUser, String source, String terminatedBy)
+   {
+      publish(AuditEvent.Type.TERMINATED, adminUser, impersonatedUser, source, terminatedBy);
+   }
+
+   /**
+    * @return count of events waiting for write
+    */
+   public int getPendingEvents()
+   {
+      return isEnabled() ? buffer.size() : 0;
+   }
+
+   private void publish(AuditEvent.Type type, String adminUser, String impersonatedUser, String source, String detail)
+   {
+      if (!isEnabled())
+      {
+         return;
+      }
+
+      AuditEvent event = new AuditEvent(System.currentTimeMillis(), type, adminUser, impersonatedUser, source, detail);
+      if (!buffer.offer(event))
+      {
+         if (overflowPolicy == OverflowPolicy.LOG)
+         {
+            log.warn("Audit log buffer is full. Event: " + event);
+         }
+         else
+         {
+            dropped.incrementAndGet();
+         }
+      }
+   }
+}
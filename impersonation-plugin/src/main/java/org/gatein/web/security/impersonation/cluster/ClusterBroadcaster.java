@@ -0,0 +1,436 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.web.security.impersonation.cluster;
+
+import org.gatein.common.logging.Logger;
+import org.gatein.common.logging.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Broadcasts impersonation events to all cluster nodes through pluggable {@link ClusterChannel} and applies events received
+ * from other nodes by {@link ClusterEventHandler}.
+ *
+ * Published events are not sent immediately. They wait for flush, which happens once per flush interval in background
+ * thread, and all waiting events are sent in batches. Events with same type and user waiting for flush are coalesced into one
+ * and change of policy for all users makes waiting changes for single users redundant. Batch, which was not sent, is sent
+ * again with next flush
+ *
+ * Received changes of policy re-check impersonation sessions, which can need lookups of identities, so they are applied by
+ * background worker instead of thread of channel. Changes waiting for worker are coalesced in the same way as published
+ * events. Other received events are cheap and they are applied immediately. Changes made on this node can be applied by the
+ * worker too (See {@link #applyPolicyChangeLater(String)})
+ */
+public class ClusterBroadcaster implements ClusterChannel.Receiver
+{
+   private static final Logger log = LoggerFactory.getLogger(ClusterBroadcaster.class);
+
+   private final ClusterChannel channel;
+   private final ClusterEventHandler handler;
+   private final String nodeId;
+   private final long flushIntervalNanos;
+   private final int maxBatchSize;
+
+   /** Events waiting for flush by key */
+   private final Map<String, ClusterEvent> pending = new ConcurrentHashMap<String, ClusterEvent>();
+
+   /** Received changes of policy waiting for worker by key */
+   private final Map<String, ClusterEvent> receivedPolicyChanges = new ConcurrentHashMap<String, ClusterEvent>();
+
+   /** Whether worker has task, which will apply received changes of policy */
+   private final AtomicBoolean policyChangesScheduled = new AtomicBoolean();
+
+   private final AtomicLong publishedEvents = new AtomicLong();
+   private final AtomicLong coalescedEvents = new AtomicLong();
+   private final AtomicLong sentEvents = new AtomicLong();
+   private final AtomicLong sentBatches = new AtomicLong();
+   private final AtomicLong failedBatches = new AtomicLong();
+   private final AtomicLong receivedEvents = new AtomicLong();
+
+   private volatile boolean running;
+   private Thread flusher;
+   private volatile ExecutorService worker;
+
+   /**
+    * @param channel transport of events
+    * @param handler handler of events received from other nodes
+    * @param nodeId identifier of this node
+    * @param flushIntervalMillis how long events wait for flush
+    * @param maxBatchSize max count of events in one batch
+    */
+   public ClusterBroadcaster(ClusterChannel channel, ClusterEventHandler handler, String nodeId, long flushIntervalMillis,
+                             int maxBatchSize)
+   {
+      this.channel = channel;
+      this.handler = handler;
+      this.nodeId = nodeId;
+      this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+      this.maxBatchSize = maxBatchSize;
+   }
+
+   public synchronized void start() throws Exception
+   {
+      if (flusher != null)
+      {
+         return;
+      }
+      worker = Executors.newSingleThreadExecutor(new ThreadFactory()
+      {
+         public Thread newThread(Runnable runnable)
+         {
+            Thread thread = new Thread(runnable, "ImpersonationClusterEventWorker");
+            thread.setDaemon(true);
+            return thread;
+         }
+      });
+      channel.start(this);
+      running = true;
+      flusher = new Thread(new Runnable()
+      {
+         public void run()
+         {
+            while (running)
+            {
+               LockSupport.parkNanos(this, flushIntervalNanos);
+               try
+               {
+                  flush();
+               }
+               catch (Throwable t)
+               {
+                  // Flusher must survive, otherwise no event is sent anymore
+                  log.error("Flush of impersonation events failed", t);
+               }
+            }
+         }
+      }, "ImpersonationClusterBroadcaster");
+      flusher.setDaemon(true);
+      flusher.start();
+      log.debug("Cluster broadcaster of node " + nodeId + " started with channel " + channel);
+   }
+
+   /**
+    * Stop flushing. Events waiting for flush are sent before channel is disconnected
+    */
+   public synchronized void stop()
+   {
+      if (flusher == null)
+      {
+         return;
+      }
+      running = false;
+      LockSupport.unpark(flusher);
+      try
+      {
+         flusher.join(TimeUnit.SECONDS.toMillis(10));
+      }
+      catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+      }
+      flusher = null;
+      flush();
+      channel.stop();
+      worker.shutdown();
+   }
+
+   /**
+    * Publish event to all other nodes. Caller is responsible to apply event on this node
+    *
+    * @param type type of event
+    * @param username name of user or null for change of policy affecting all users
+    */
+   public void publish(ClusterEvent.Type type, String username)
+   {
+      publish(new ClusterEvent(type, username, nodeId));
+   }
+
+   /**
+    * Publish revocation of token of finished impersonation session to all other nodes
+    *
+    * @param username name of admin user
+    * @param nonce nonce of token
+    * @param expiration expiration of token
+    */
+   public void publishRevokeToken(String username, long nonce, long expiration)
+   {
+      publish(new ClusterEvent(ClusterEvent.Type.REVOKE_TOKEN, username, nonce, expiration, nodeId));
+   }
+
+   private void publish(ClusterEvent event)
+   {
+      publishedEvents.incrementAndGet();
+      if (pending.put(event.getKey(), event) != null)
+      {
+         coalescedEvents.incrementAndGet();
+      }
+   }
+
+   /**
+    * Send all events waiting for flush. It's called periodically by background thread
+    */
+   public void flush()
+   {
+      if (pending.isEmpty())
+      {
+         return;
+      }
+
+      List<ClusterEvent> events = new ArrayList<ClusterEvent>(pending.size());
+      for (Iterator<ClusterEvent> iterator = pending.values().iterator(); iterator.hasNext(); )
+      {
+         events.add(iterator.next());
+         iterator.remove();
+      }
+      events = coalesce(events);
+
+      for (int from = 0; from < events.size(); from += maxBatchSize)
+      {
+         List<ClusterEvent> batch = events.subList(from, Math.min(from + maxBatchSize, events.size()));
+         try
+         {
+            channel.send(new ArrayList<ClusterEvent>(batch));
+            sentBatches.incrementAndGet();
+            sentEvents.addAndGet(batch.size());
+         }
+         catch (Exception e)
+         {
+            failedBatches.incrementAndGet();
+            log.error("Batch of " + batch.size() + " impersonation events not sent. It will be sent again", e);
+
+            // Newer events published meanwhile have priority
+            for (ClusterEvent event : batch)
+            {
+               if (pending.get(event.getKey()) == null)
+               {
+                  pending.put(event.getKey(), event);
+               }
+            }
+         }
+      }
+   }
+
+   public void receive(List<ClusterEvent> events)
+   {
+      for (ClusterEvent event : events)
+      {
+         if (nodeId.equals(event.getOrigin()))
+         {
+            continue;
+         }
+         receivedEvents.incrementAndGet();
+
+         try
+         {
+            switch (event.getType())
+            {
+               case TERMINATE_USER:
+                  handler.onTerminateUser(event.getUsername());
+                  break;
+               case POLICY_CHANGED:
+                  applyPolicyChangeLater(event);
+                  break;
+               case REVOKE_TOKEN:
+                  handler.onRevokeToken(event.getTokenNonce(), event.getTokenExpiration());
+                  break;
+            }
+         }
+         catch (Exception e)
+         {
+            log.error("Impersonation event " + event + " not applied", e);
+         }
+      }
+   }
+
+   /**
+    * Apply change of policy made on this node by background worker. Change is coalesced with changes waiting for worker
+    *
+    * @param username name of user or null for change of policy affecting all users
+    * @return false if broadcaster is not running, so change was not accepted
+    */
+   public boolean applyPolicyChangeLater(String username)
+   {
+      return worker != null && applyPolicyChangeLater(new ClusterEvent(ClusterEvent.Type.POLICY_CHANGED, username, nodeId));
+   }
+
+   private boolean applyPolicyChangeLater(ClusterEvent event)
+   {
+      receivedPolicyChanges.put(event.getKey(), event);
+      ExecutorService worker = this.worker;
+      if (worker != null && policyChangesScheduled.compareAndSet(false, true))
+      {
+         try
+         {
+            worker.execute(new Runnable()
+            {
+               public void run()
+               {
+                  applyPolicyChanges();
+               }
+            });
+         }
+         catch (RejectedExecutionException ree)
+         {
+            // Broadcaster is stopped
+            policyChangesScheduled.set(false);
+            return false;
+         }
+      }
+      return true;
+   }
+
+   // Called by worker. Change for all users makes changes for single users redundant
+   private void applyPolicyChanges()
+   {
+      // Changes received from now are applied by next task
+      policyChangesScheduled.set(false);
+
+      List<ClusterEvent> events = new ArrayList<ClusterEvent>(receivedPolicyChanges.size());
+      for (Iterator<ClusterEvent> iterator = receivedPolicyChanges.values().iterator(); iterator.hasNext(); )
+      {
+         events.add(iterator.next());
+         iterator.remove();
+      }
+      boolean policyChangedForAll = false;
+      for (ClusterEvent event : events)
+      {
+         if (event.getUsername() == null)
+         {
+            policyChangedForAll = true;
+            break;
+         }
+      }
+
+      for (ClusterEvent event : events)
+      {
+         if (policyChangedForAll && event.getUsername() != null)
+         {
+            continue;
+         }
+         try
+         {
+            handler.onPolicyChanged(event.getUsername());
+         }
+         catch (Exception e)
+         {
+            log.error("Impersonation event " + event + " not applied", e);
+         }
+      }
+   }
+
+   public String getNodeId()
+   {
+      return nodeId;
+   }
+
+   public ClusterChannel getChannel()
+   {
+      return channel;
+   }
+
+   /**
+    * @return count of events waiting for flush
+    */
+   public int getPendingEvents()
+   {
+      return pending.size();
+   }
+
+   public long getPublishedEvents()
+   {
+      return publishedEvents.get();
+   }
+
+   /**
+    * @return count of published events, which were merged with another event waiting for flush
+    */
+   public long getCoalescedEvents()
+   {
+      return coalescedEvents.get();
+   }
+
+   public long getSentEvents()
+   {
+      return sentEvents.get();
+   }
+
+   public long getSentBatches()
+   {
+      return sentBatches.get();
+   }
+
+   public long getFailedBatches()
+   {
+      return failedBatches.get();
+   }
+
+   public long getReceivedEvents()
+   {
+      return receivedEvents.get();
+   }
+
+   // Change of policy for all users covers changes for single users
+   private List<ClusterEvent> coalesce(List<ClusterEvent> events)
+   {
+      boolean policyChangedForAll = false;
+      for (ClusterEvent event : events)
+      {
+         if (event.getType() == ClusterEvent.Type.POLICY_CHANGED && event.getUsername() == null)
+         {
+            policyChangedForAll = true;
+            break;
+         }
+      }
+      if (!policyChangedForAll)
+      {
+         return events;
+      }
+
+      List<ClusterEvent> result = new ArrayList<ClusterEvent>(events.size());
+      for (ClusterEvent event : events)
+      {
+         if (event.getType() == ClusterEvent.Type.POLICY_CHANGED && event.getUsername() != null)
+         {
+            coalescedEvents.incrementAndGet();
+         }
+         else
+         {
+            result.add(event);
+         }
+      }
+      return result;
+   }
+}
@@ -0,0 +1,63 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.web.security.impersonation.cluster;
+
+import java.util.List;
+
+/**
+ * Transport used by {@link ClusterBroadcaster} to deliver batches of events to all cluster nodes. Implementation can use
+ * any group communication (JGroups, JMS, shared cache etc.). Implementation configured in ImpersonationServlet needs public
+ * constructor without arguments. See {@link LoopbackChannel} for in-JVM implementation
+ */
+public interface ClusterChannel
+{
+   /**
+    * Connect to cluster
+    *
+    * @param receiver receiver of batches sent by other nodes
+    * @throws Exception if channel can't be connected
+    */
+   void start(Receiver receiver) throws Exception;
+
+   /**
+    * Send batch of events to all nodes. Delivery to sending node is optional, because events of own node are ignored
+    *
+    * @param events events to send
+    * @throws Exception if batch was not sent. Events will be sent again with next batch
+    */
+   void send(List<ClusterEvent> events) throws Exception;
+
+   /**
+    * Disconnect from cluster
+    */
+   void stop();
+
+   /**
+    * Receiver of events sent by other nodes
+    */
+   interface Receiver
+   {
+      void receive(List<ClusterEvent> events);
+   }
+}
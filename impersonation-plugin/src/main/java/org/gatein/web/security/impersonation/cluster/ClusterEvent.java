@@ -0,0 +1,131 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.web.security.impersonation.cluster;
+
+import java.io.Serializable;
+
+/**
+ * Event broadcasted to all cluster nodes by {@link ClusterBroadcaster}
+ */
+public class ClusterEvent implements Serializable
+{
+   private static final long serialVersionUID = 1L;
+
+   public enum Type
+   {
+      /** All impersonation sessions of user (as admin or as impersonated user) must be terminated */
+      TERMINATE_USER,
+
+      /** Memberships of user or impersonation rules were changed, so impersonation sessions must be checked again */
+      POLICY_CHANGED,
+
+      /** Impersonation session was finished, so its token can't be used on any node */
+      REVOKE_TOKEN
+   }
+
+   private final Type type;
+   private final String username;
+   private final String origin;
+   private final long timestamp;
+   private final long tokenNonce;
+   private final long tokenExpiration;
+
+   /**
+    * @param type type of event
+    * @param username name of user. Could be null for {@link Type#POLICY_CHANGED}, which means change affecting all users
+    * @param origin identifier of node, which created event
+    */
+   public ClusterEvent(Type type, String username, String origin)
+   {
+      this(type, username, 0, 0, origin);
+   }
+
+   /**
+    * @param type type of event
+    * @param username name of user
+    * @param tokenNonce nonce of revoked token. Used by {@link Type#REVOKE_TOKEN}
+    * @param tokenExpiration expiration of revoked token. Used by {@link Type#REVOKE_TOKEN}
+    * @param origin identifier of node, which created event
+    */
+   public ClusterEvent(Type type, String username, long tokenNonce, long tokenExpiration, String origin)
+   {
+      this.type = type;
+      this.username = username;
+      this.tokenNonce = tokenNonce;
+      this.tokenExpiration = tokenExpiration;
+      this.origin = origin;
+      this.timestamp = System.currentTimeMillis();
+   }
+
+   public Type getType()
+   {
+      return type;
+   }
+
+   public String getUsername()
+   {
+      return username;
+   }
+
+   public String getOrigin()
+   {
+      return origin;
+   }
+
+   public long getTokenNonce()
+   {
+      return tokenNonce;
+   }
+
+   public long getTokenExpiration()
+   {
+      return tokenExpiration;
+   }
+
+   /**
+    * @return time in milliseconds when event was created
+    */
+   public long getTimestamp()
+   {
+      return timestamp;
+   }
+
+   /**
+    * @return key of event. Events with same key waiting for broadcast are coalesced into one
+    */
+   String getKey()
+   {
+      if (type == Type.REVOKE_TOKEN)
+      {
+         return type.name() + ':' + tokenNonce;
+      }
+      return type.name() + ':' + (username != null ? username : "*");
+   }
+
+   @Override
+   public String toString()
+   {
+      return "ClusterEvent[type=" + type + ", username=" + username + ", origin=" + origin + "]";
+   }
+}
@@ -0,0 +1,46 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.web.security.impersonation.cluster;
+
+/**
+ * Applies events received from other cluster nodes
+ */
+public interface ClusterEventHandler
+{
+   /**
+    * @param username user whose impersonation sessions must be terminated
+    */
+   void onTerminateUser(String username);
+
+   /**
+    * @param username user whose memberships were changed or null if change affects all users
+    */
+   void onPolicyChanged(String username);
+
+   /**
+    * @param nonce nonce of token, which can't be used anymore
+    * @param expiration expiration of the token
+    */
+   void onRevokeToken(long nonce, long expiration);
+}
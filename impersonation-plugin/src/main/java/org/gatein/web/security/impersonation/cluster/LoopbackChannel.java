@@ -0,0 +1,143 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.web.security.impersonation.cluster;
+
+import org.gatein.common.logging.Logger;
+import org.gatein.common.logging.LoggerFactory;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ClusterChannel} connecting nodes inside single JVM through {@link Hub}. It's useful for tests and simulations.
+ * Each channel delivers batches to its receiver in own thread after latency configured in hub, so receiving nodes don't
+ * block sender
+ */
+public class LoopbackChannel implements ClusterChannel
+{
+   private static final Logger log = LoggerFactory.getLogger(LoopbackChannel.class);
+
+   private final Hub hub;
+   private volatile Receiver receiver;
+   private volatile ScheduledExecutorService executor;
+
+   /**
+    * Create channel connected to {@link Hub#DEFAULT}
+    */
+   public LoopbackChannel()
+   {
+      this(Hub.DEFAULT);
+   }
+
+   public LoopbackChannel(Hub hub)
+   {
+      this.hub = hub;
+   }
+
+   public void start(Receiver receiver)
+   {
+      this.receiver = receiver;
+      this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+      {
+         public Thread newThread(Runnable runnable)
+         {
+            Thread thread = new Thread(runnable, "ImpersonationLoopbackChannel");
+            thread.setDaemon(true);
+            return thread;
+         }
+      });
+      hub.members.add(this);
+   }
+
+   public void send(List<ClusterEvent> events)
+   {
+      List<ClusterEvent> batch = Collections.unmodifiableList(events);
+      for (LoopbackChannel member : hub.members)
+      {
+         if (member != this)
+         {
+            member.deliver(batch, hub.latencyMillis);
+         }
+      }
+   }
+
+   public void stop()
+   {
+      hub.members.remove(this);
+      ScheduledExecutorService executor = this.executor;
+      if (executor != null)
+      {
+         executor.shutdown();
+      }
+   }
+
+   private void deliver(final List<ClusterEvent> batch, long latencyMillis)
+   {
+      try
+      {
+         executor.schedule(new Runnable()
+         {
+            public void run()
+            {
+               receiver.receive(batch);
+            }
+         }, latencyMillis, TimeUnit.MILLISECONDS);
+      }
+      catch (RuntimeException e)
+      {
+         // Member was stopped meanwhile
+         log.debug("Batch not delivered to stopped channel", e);
+      }
+   }
+
+   /**
+    * Group of connected channels
+    */
+   public static class Hub
+   {
+      /** Hub used by channels created by constructor without arguments */
+      public static final Hub DEFAULT = new Hub(0);
+
+      private final List<LoopbackChannel> members = new CopyOnWriteArrayList<LoopbackChannel>();
+      private final long latencyMillis;
+
+      /**
+       * @param latencyMillis simulated latency of network
+       */
+      public Hub(long latencyMillis)
+      {
+         this.latencyMillis = latencyMillis;
+      }
+
+      public int size()
+      {
+         return members.size();
+      }
+   }
+}
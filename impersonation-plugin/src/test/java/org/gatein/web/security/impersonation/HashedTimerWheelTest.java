@@ -0,0 +1,175 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.web.security.impersonation;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test of scheduling of timeouts on {@link HashedTimerWheel}. Wheel has just 4 buckets, so longer delays need more rounds
+ */
+public class HashedTimerWheelTest
+{
+   private static final long TICK_MILLIS = 10;
+
+   private HashedTimerWheel wheel;
+
+   @Before
+   public void setUp()
+   {
+      wheel = new HashedTimerWheel("TestTimerWheel", TICK_MILLIS, TimeUnit.MILLISECONDS, 3);
+      wheel.start();
+   }
+
+   @After
+   public void tearDown()
+   {
+      wheel.stop();
+   }
+
+   @Test
+   public void testTimeoutsNotExpiredBeforeDeadline() throws Exception
+   {
+      long[] delays = {0, 5, 25, 45, 90, 170};
+      CountDownLatch latch = new CountDownLatch(delays.length);
+      List<RecordingTask> tasks = new ArrayList<RecordingTask>();
+      List<HashedTimerWheel.Timeout> timeouts = new ArrayList<HashedTimerWheel.Timeout>();
+      for (long delay : delays)
+      {
+         RecordingTask task = new RecordingTask(delay, latch);
+         tasks.add(task);
+         timeouts.add(wheel.schedule(task, delay, TimeUnit.MILLISECONDS));
+      }
+
+      assertTrue("Timeouts not expired in time", latch.await(5, TimeUnit.SECONDS));
+      for (int i = 0; i < delays.length; i++)
+      {
+         RecordingTask task = tasks.get(i);
+         assertTrue("Task with delay " + task.delayMillis + " expired after " + task.getElapsedMillis() + " ms",
+               task.getElapsedMillis() >= task.delayMillis);
+         assertEquals(1, task.runs);
+         assertTrue(timeouts.get(i).isExpired());
+         assertFalse(timeouts.get(i).cancel());
+      }
+   }
+
+   @Test
+   public void testExpirationOrder() throws Exception
+   {
+      // Delays differ by more than one tick, so each timeout is in later tick than previous one
+      long[] delays = {95, 5, 65, 35};
+      CountDownLatch latch = new CountDownLatch(delays.length);
+      final List<Long> expired = Collections.synchronizedList(new ArrayList<Long>());
+      for (final long delay : delays)
+      {
+         wheel.schedule(new RecordingTask(delay, latch)
+         {
+            @Override
+            public void run(HashedTimerWheel.Timeout timeout)
+            {
+               expired.add(delay);
+               super.run(timeout);
+            }
+         }, delay, TimeUnit.MILLISECONDS);
+      }
+
+      assertTrue(latch.await(5, TimeUnit.SECONDS));
+      assertEquals(Arrays.asList(5L, 35L, 65L, 95L), expired);
+   }
+
+   @Test
+   public void testCancel() throws Exception
+   {
+      CountDownLatch latch = new CountDownLatch(1);
+      RecordingTask cancelledTask = new RecordingTask(30, new CountDownLatch(1));
+      HashedTimerWheel.Timeout cancelled = wheel.schedule(cancelledTask, 30, TimeUnit.MILLISECONDS);
+      wheel.schedule(new RecordingTask(100, latch), 100, TimeUnit.MILLISECONDS);
+
+      assertTrue(cancelled.cancel());
+      assertFalse(cancelled.cancel());
+      assertTrue(cancelled.isCancelled());
+
+      assertTrue(latch.await(5, TimeUnit.SECONDS));
+      assertEquals(0, cancelledTask.runs);
+      assertFalse(cancelled.isExpired());
+   }
+
+   @Test
+   public void testCurrentTime() throws Exception
+   {
+      CountDownLatch latch = new CountDownLatch(1);
+      wheel.schedule(new RecordingTask(50, latch), 50, TimeUnit.MILLISECONDS);
+      assertTrue(latch.await(5, TimeUnit.SECONDS));
+
+      // Clock of wheel moves by whole ticks
+      long currentTime = wheel.getCurrentTimeMillis();
+      assertTrue(currentTime >= 50);
+      assertEquals(0, currentTime % TICK_MILLIS);
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void testInvalidTickDuration()
+   {
+      new HashedTimerWheel("InvalidTimerWheel", 0, TimeUnit.MILLISECONDS, 4);
+   }
+
+   private static class RecordingTask implements HashedTimerWheel.Task
+   {
+      private final long delayMillis;
+      private final CountDownLatch latch;
+      private final long scheduled = System.nanoTime();
+      private volatile long expired;
+      private volatile int runs;
+
+      private RecordingTask(long delayMillis, CountDownLatch latch)
+      {
+         this.delayMillis = delayMillis;
+         this.latch = latch;
+      }
+
+      public void run(HashedTimerWheel.Timeout timeout)
+      {
+         expired = System.nanoTime();
+         runs++;
+         latch.countDown();
+      }
+
+      private long getElapsedMillis()
+      {
+         return TimeUnit.NANOSECONDS.toMillis(expired - scheduled);
+      }
+   }
+}
@@ -0,0 +1,177 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.web.security.impersonation;
+
+import org.exoplatform.services.security.Identity;
+import org.exoplatform.services.security.MembershipEntry;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test of parsing and evaluation of rules of {@link ImpersonationPolicy}
+ */
+public class ImpersonationPolicyTest
+{
+   @Test
+   public void testDefaultRules()
+   {
+      ImpersonationPolicy policy = new ImpersonationPolicy(ImpersonationPolicy.DEFAULT_RULES);
+      Identity root = createIdentity("root", "manager:/platform/administrators");
+      Identity member = createIdentity("john", "member:/platform/administrators");
+      Identity mary = createIdentity("mary", "member:/platform/users");
+
+      assertTrue(policy.isAllowed(root, mary));
+      assertTrue(policy.isAllowed(root, member));
+      assertTrue(policy.canImpersonateAnyone(root));
+      assertFalse(policy.canImpersonate(member));
+      assertFalse(policy.isAllowed(member, mary));
+   }
+
+   @Test
+   public void testExclusion()
+   {
+      ImpersonationPolicy policy = new ImpersonationPolicy(
+            "manager:/platform/administrators => *:/platform/users, !*:/platform/administrators");
+      Identity root = createIdentity("root", "manager:/platform/administrators", "member:/platform/users");
+      Identity john = createIdentity("john", "member:/platform/users", "member:/platform/administrators");
+      Identity mary = createIdentity("mary", "member:/platform/users");
+      Identity guest = createIdentity("guest", "member:/platform/guests");
+
+      assertTrue(policy.canImpersonate(root));
+      assertFalse(policy.canImpersonateAnyone(root));
+      assertTrue(policy.isAllowed(root, mary));
+      assertFalse(policy.isAllowed(root, john));
+      assertFalse(policy.isAllowed(root, guest));
+   }
+
+   @Test
+   public void testSubgroups()
+   {
+      ImpersonationPolicy policy = new ImpersonationPolicy("manager:/organization/* => *:/organization/*");
+      Identity manager = createIdentity("manager", "manager:/organization/hr");
+      Identity employee = createIdentity("employee", "member:/organization/hr/payroll");
+      Identity topLevel = createIdentity("top", "member:/organization");
+      Identity similar = createIdentity("similar", "member:/organizationx");
+
+      assertTrue(policy.isAllowed(manager, employee));
+      assertTrue(policy.isAllowed(manager, topLevel));
+      assertFalse(policy.isAllowed(manager, similar));
+      assertFalse(policy.canImpersonate(createIdentity("other", "member:/organization/hr")));
+   }
+
+   @Test
+   public void testMoreRules()
+   {
+      ImpersonationPolicy policy = new ImpersonationPolicy(
+            "manager:/support => *:/customers;\n manager:/qa, *:/dev => member:/testers\n\n");
+      Identity support = createIdentity("support", "manager:/support");
+      Identity developer = createIdentity("developer", "member:/dev");
+      Identity customer = createIdentity("customer", "member:/customers");
+      Identity tester = createIdentity("tester", "member:/testers");
+
+      assertTrue(policy.isAllowed(support, customer));
+      assertFalse(policy.isAllowed(support, tester));
+      assertTrue(policy.isAllowed(developer, tester));
+      assertFalse(policy.isAllowed(developer, customer));
+   }
+
+   @Test
+   public void testInvalidRules()
+   {
+      String[] invalidRules = {"manager:/platform/administrators", "=> *", "manager:/platform/administrators =>",
+            "/platform/administrators => *", "manager: => *", "* => !*:/platform/users"};
+      for (String rules : invalidRules)
+      {
+         try
+         {
+            new ImpersonationPolicy(rules);
+            throw new AssertionError("Rules should be rejected: " + rules);
+         }
+         catch (IllegalArgumentException expected)
+         {
+         }
+      }
+   }
+
+   @Test
+   public void testSetRules()
+   {
+      ImpersonationPolicy policy = new ImpersonationPolicy(ImpersonationPolicy.DEFAULT_RULES);
+      Identity root = createIdentity("root", "manager:/platform/administrators");
+      Identity mary = createIdentity("mary", "member:/platform/users");
+      assertTrue(policy.isAllowed(root, mary));
+
+      policy.setRules("manager:/platform/administrators => *:/platform/guests");
+      assertFalse(policy.isAllowed(root, mary));
+
+      try
+      {
+         policy.setRules("invalid");
+         throw new AssertionError("Invalid rules should be rejected");
+      }
+      catch (IllegalArgumentException expected)
+      {
+      }
+      assertFalse(policy.isAllowed(root, mary));
+   }
+
+   @Test
+   public void testInvalidateUser()
+   {
+      ImpersonationPolicy policy = new ImpersonationPolicy("manager:/platform/administrators => *:/platform/users");
+      Identity root = createIdentity("root", "manager:/platform/administrators");
+      Identity john = createIdentity("john", "manager:/platform/administrators");
+      Identity mary = createIdentity("mary", "member:/platform/users");
+      assertTrue(policy.isAllowed(root, mary));
+      assertTrue(policy.isAllowed(john, mary));
+
+      // Decisions are memoized by username until memberships of user are changed
+      Identity formerAdmin = createIdentity("root", "member:/platform/users");
+      assertTrue(policy.canImpersonate(formerAdmin));
+      policy.invalidate("root");
+      assertFalse(policy.canImpersonate(formerAdmin));
+      assertTrue(policy.canImpersonate(john));
+
+      Identity formerUser = createIdentity("mary", "member:/platform/guests");
+      assertTrue(policy.isAllowed(john, formerUser));
+      policy.invalidate("mary");
+      assertFalse(policy.isAllowed(john, formerUser));
+   }
+
+   private static Identity createIdentity(String username, String... memberships)
+   {
+      List<MembershipEntry> entries = new ArrayList<MembershipEntry>();
+      for (String membership : memberships)
+      {
+         int colonIndex = membership.indexOf(':');
+         entries.add(new MembershipEntry(membership.substring(colonIndex + 1), membership.substring(0, colonIndex)));
+      }
+      return new Identity(username, entries);
+   }
+}
@@ -0,0 +1,248 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.web.security.impersonation;
+
+import org.gatein.web.security.impersonation.ImpersonationSessionState.Phase;
+import org.gatein.web.security.impersonation.ImpersonationSessionState.Transition;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.servlet.http.HttpSession;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test of transitions of {@link ImpersonationSessionState}
+ */
+public class ImpersonationSessionStateTest
+{
+   private ConcurrentMap<String, ImpersonationSessionState> registry;
+   private Map<String, Object> attributes;
+   private HttpSession session;
+
+   @Before
+   public void setUp()
+   {
+      registry = new ConcurrentHashMap<String, ImpersonationSessionState>();
+      attributes = new HashMap<String, Object>();
+      session = createSession("session1", attributes);
+   }
+
+   @Test
+   public void testStartAndStop()
+   {
+      ImpersonationSessionState state = ImpersonationSessionState.get(session, registry, null);
+      assertEquals(Phase.NORMAL, state.getPhase());
+      assertEquals(0, state.getDepth());
+      assertSame(state, attributes.get(ImpersonationSessionState.ATTR_SESSION_STATE));
+      assertSame(state, registry.get("session1"));
+      assertSame(state, ImpersonationSessionState.get(session, registry, null));
+
+      assertEquals(Transition.ACQUIRED, state.tryStart(1, "mary"));
+      assertEquals(Phase.STARTING, state.getPhase());
+      assertEquals(Transition.DUPLICATE, state.tryStart(1, "mary"));
+      assertEquals(Transition.CONFLICT, state.tryStart(1, "john"));
+      assertEquals(Transition.CONFLICT, state.tryStop(1));
+      assertTrue(state.isActive(1));
+
+      attributes.clear();
+      state.finishStart(session, 1);
+      assertEquals(Phase.IMPERSONATING, state.getPhase());
+      assertTrue(state.isStartedAs("mary"));
+      assertSame("State should be saved again for replication", state, attributes.get(ImpersonationSessionState.ATTR_SESSION_STATE));
+      assertEquals(Transition.DUPLICATE, state.tryStart(1, "mary"));
+      assertEquals(Transition.CONFLICT, state.tryStart(1, "john"));
+
+      assertEquals(Transition.ACQUIRED, state.tryStop(1));
+      assertEquals(Phase.STOPPING, state.getPhase());
+      assertFalse(state.isActive(1));
+      assertEquals(Transition.DUPLICATE, state.tryStop(1));
+      assertEquals(Transition.CONFLICT, state.tryStart(1, "john"));
+
+      state.finishStop(session, 1);
+      assertEquals(Phase.NORMAL, state.getPhase());
+      assertEquals(0, state.getDepth());
+      assertFalse(state.isStartedAs("mary"));
+      assertEquals(Transition.DUPLICATE, state.tryStop(1));
+   }
+
+   @Test
+   public void testNestedLevels()
+   {
+      ImpersonationSessionState state = ImpersonationSessionState.get(session, registry, null);
+      assertEquals(Transition.ACQUIRED, state.tryStart(1, "mary"));
+      state.finishStart(session, 1);
+
+      assertEquals(Transition.CONFLICT, state.tryStart(3, "john"));
+      assertEquals(Transition.ACQUIRED, state.tryStart(2, "john"));
+      state.finishStart(session, 2);
+      assertEquals(2, state.getDepth());
+      assertTrue(state.isActive(1));
+      assertTrue(state.isStartedAs("john"));
+
+      // Lower level can't be stopped while level above it is active
+      assertEquals(Transition.CONFLICT, state.tryStop(1));
+
+      assertEquals(Transition.ACQUIRED, state.tryStop(2));
+      state.finishStop(session, 2);
+      assertEquals(1, state.getDepth());
+      assertEquals(Phase.IMPERSONATING, state.getPhase());
+      assertTrue(state.isStartedAs("mary"));
+   }
+
+   @Test
+   public void testAbort()
+   {
+      ImpersonationSessionState state = ImpersonationSessionState.get(session, registry, null);
+      assertEquals(Transition.ACQUIRED, state.tryStart(1, "mary"));
+      state.abortStart(session, 1);
+      assertEquals(Phase.NORMAL, state.getPhase());
+      assertEquals(0, state.getDepth());
+
+      assertEquals(Transition.ACQUIRED, state.tryStart(1, "john"));
+      state.finishStart(session, 1);
+      assertEquals(Transition.ACQUIRED, state.tryStop(1));
+      state.abortStop(session, 1);
+      assertEquals(Phase.IMPERSONATING, state.getPhase());
+      assertTrue(state.isStartedAs("john"));
+   }
+
+   @Test(expected = IllegalStateException.class)
+   public void testFinishWithoutStart()
+   {
+      ImpersonationSessionState.get(session, registry, null).finishStart(session, 1);
+   }
+
+   @Test
+   public void testSeededFromSessionMarkers()
+   {
+      attributes.put(ImpersonatedHttpSession.getLevelAttributeName(Impersonator.ATTR_ACTIVE_SESSION, 1), Boolean.TRUE);
+      attributes.put(ImpersonatedHttpSession.getLevelAttributeName(Impersonator.ATTR_ACTIVE_SESSION, 2), Boolean.TRUE);
+
+      ImpersonationSessionState state = ImpersonationSessionState.get(session, registry, null);
+      assertEquals(Phase.IMPERSONATING, state.getPhase());
+      assertEquals(2, state.getDepth());
+
+      assertEquals(Transition.ACQUIRED, state.tryStop(2));
+      state.finishStop(session, 2);
+      assertEquals(1, state.getDepth());
+   }
+
+   @Test
+   public void testUnbound()
+   {
+      ImpersonationSessionState state = ImpersonationSessionState.get(session, registry, null);
+      state.valueUnbound(null);
+      assertTrue(registry.isEmpty());
+   }
+
+   @Test
+   public void testConcurrentStart() throws Exception
+   {
+      final ImpersonationSessionState state = ImpersonationSessionState.get(session, registry, null);
+      final CountDownLatch start = new CountDownLatch(1);
+      final AtomicInteger acquired = new AtomicInteger();
+      final AtomicInteger duplicates = new AtomicInteger();
+      Thread[] threads = new Thread[8];
+      for (int i = 0; i < threads.length; i++)
+      {
+         threads[i] = new Thread()
+         {
+            @Override
+            public void run()
+            {
+               try
+               {
+                  start.await();
+               }
+               catch (InterruptedException e)
+               {
+                  return;
+               }
+               Transition transition = state.tryStart(1, "mary");
+               if (transition == Transition.ACQUIRED)
+               {
+                  acquired.incrementAndGet();
+               }
+               else if (transition == Transition.DUPLICATE)
+               {
+                  duplicates.incrementAndGet();
+               }
+            }
+         };
+         threads[i].start();
+      }
+      start.countDown();
+      for (Thread thread : threads)
+      {
+         thread.join();
+      }
+
+      assertEquals(1, acquired.get());
+      assertEquals(threads.length - 1, duplicates.get());
+   }
+
+   private static HttpSession createSession(final String id, final Map<String, Object> attributes)
+   {
+      return (HttpSession)Proxy.newProxyInstance(ImpersonationSessionStateTest.class.getClassLoader(),
+            new Class<?>[] {HttpSession.class}, new InvocationHandler()
+      {
+         public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+         {
+            String name = method.getName();
+            if ("getId".equals(name))
+            {
+               return id;
+            }
+            else if ("getAttribute".equals(name))
+            {
+               return attributes.get((String)args[0]);
+            }
+            else if ("setAttribute".equals(name))
+            {
+               attributes.put((String)args[0], args[1]);
+               return null;
+            }
+            else if ("removeAttribute".equals(name))
+            {
+               attributes.remove((String)args[0]);
+               return null;
+            }
+            throw new UnsupportedOperationException(name);
+         }
+      });
+   }
+}
@@ -0,0 +1,164 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.web.security.impersonation;
+
+import org.junit.Test;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test of signing, verification and revocation of tokens by {@link ImpersonationTokenService}
+ */
+public class ImpersonationTokenServiceTest
+{
+   private static final byte[] SECRET = "0123456789abcdef-secret".getBytes();
+
+   private final ImpersonationTokenService tokenService = new ImpersonationTokenService(SECRET, 60000);
+
+   @Test
+   public void testEncodeAndVerify()
+   {
+      ImpersonationToken token = tokenService.createToken("root", "mary-\u017e", "/portal/classic/administration");
+      ImpersonationToken verified = tokenService.verify(tokenService.encode(token));
+
+      assertNotNull(verified);
+      assertEquals("root", verified.getAdminUser());
+      assertEquals("mary-\u017e", verified.getImpersonatedUser());
+      assertEquals("/portal/classic/administration", verified.getReturnURI());
+      assertEquals(token.getExpiration(), verified.getExpiration());
+      assertEquals(token.getNonce(), verified.getNonce());
+
+      ImpersonationToken withoutReturnURI = tokenService.verify(tokenService.encode(tokenService.createToken("root", "john")));
+      assertNotNull(withoutReturnURI);
+      assertNull(withoutReturnURI.getReturnURI());
+   }
+
+   @Test
+   public void testInvalidTokens()
+   {
+      String encoded = tokenService.encode(tokenService.createToken("root", "mary"));
+
+      ImpersonationTokenService otherService = new ImpersonationTokenService("another-secret-0123456".getBytes(), 60000);
+      assertNull(otherService.verify(encoded));
+
+      char[] tampered = encoded.toCharArray();
+      tampered[5] = tampered[5] == 'A' ? 'B' : 'A';
+      assertNull(tokenService.verify(new String(tampered)));
+
+      assertNull(tokenService.verify(null));
+      assertNull(tokenService.verify(""));
+      assertNull(tokenService.verify("...."));
+      assertNull(tokenService.verify("abc.def"));
+      assertNull(tokenService.verify(encoded.substring(0, encoded.length() - 1)));
+
+      ImpersonationTokenService expiredService = new ImpersonationTokenService(SECRET, -1);
+      assertNull(tokenService.verify(expiredService.encode(expiredService.createToken("root", "mary"))));
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void testShortSecret()
+   {
+      new ImpersonationTokenService("short".getBytes(), 60000);
+   }
+
+   @Test
+   public void testRevoke()
+   {
+      ImpersonationToken token = tokenService.createToken("root", "mary");
+      String encoded = tokenService.encode(token);
+      ImpersonationToken other = tokenService.createToken("root", "john");
+
+      assertTrue(tokenService.revoke(token));
+      assertFalse(tokenService.revoke(token));
+      assertNull(tokenService.verify(encoded));
+      assertNotNull(tokenService.verify(tokenService.encode(other)));
+
+      // Revocation of other node is received just with nonce and expiration
+      assertTrue(tokenService.revoke(other.getNonce(), other.getExpiration()));
+      assertNull(tokenService.verify(tokenService.encode(other)));
+   }
+
+   @Test
+   public void testRevokeUser() throws Exception
+   {
+      String maryToken = tokenService.encode(tokenService.createToken("root", "mary"));
+      String adminToken = tokenService.encode(tokenService.createToken("john", "root"));
+      String otherToken = tokenService.encode(tokenService.createToken("john", "mary"));
+
+      tokenService.revokeUser("root");
+      assertNull(tokenService.verify(maryToken));
+      assertNull(tokenService.verify(adminToken));
+      assertNotNull(tokenService.verify(otherToken));
+
+      // Tokens issued after revocation are valid
+      Thread.sleep(5);
+      assertNotNull(tokenService.verify(tokenService.encode(tokenService.createToken("root", "mary"))));
+   }
+
+   @Test
+   public void testRequestCookie()
+   {
+      String encoded = tokenService.encode(tokenService.createToken("root", "mary"));
+      ImpersonationToken token = tokenService.verify(encoded);
+
+      assertFalse(tokenService.isValid(createRequest(), token));
+      assertFalse(tokenService.isValid(createRequest(new Cookie(ImpersonationTokenService.COOKIE_NAME,
+            tokenService.encode(tokenService.createToken("root", "mary")))), token));
+
+      HttpServletRequest request = createRequest(new Cookie("JSESSIONID", "1"),
+            new Cookie(ImpersonationTokenService.COOKIE_NAME, encoded));
+      assertEquals(encoded, tokenService.getTokenCookie(request));
+      assertTrue(tokenService.isValid(request, token));
+
+      // Revocation is checked in each request, even if cookie is not parsed again
+      tokenService.revoke(token);
+      assertFalse(tokenService.isValid(request, token));
+   }
+
+   private static HttpServletRequest createRequest(final Cookie... cookies)
+   {
+      return (HttpServletRequest)Proxy.newProxyInstance(ImpersonationTokenServiceTest.class.getClassLoader(),
+            new Class<?>[] {HttpServletRequest.class}, new InvocationHandler()
+      {
+         public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+         {
+            if ("getCookies".equals(method.getName()))
+            {
+               return cookies.length > 0 ? cookies : null;
+            }
+            throw new UnsupportedOperationException(method.getName());
+         }
+      });
+   }
+}
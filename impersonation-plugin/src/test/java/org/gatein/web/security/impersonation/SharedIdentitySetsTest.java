@@ -0,0 +1,105 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.web.security.impersonation;
+
+import org.exoplatform.services.security.MembershipEntry;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test of interning of {@link SharedIdentitySets}
+ */
+public class SharedIdentitySetsTest
+{
+   @Test
+   public void testSameContentShared()
+   {
+      List<MembershipEntry> memberships = Arrays.asList(new MembershipEntry("/platform/users", "member"),
+            new MembershipEntry("/organization/hr", "manager"));
+      SharedIdentitySets sets = SharedIdentitySets.intern(memberships, Arrays.asList("users"));
+
+      // Content is compared regardless of order and type of collections
+      List<MembershipEntry> reversed = new ArrayList<MembershipEntry>(memberships);
+      Collections.reverse(reversed);
+      assertSame(sets, SharedIdentitySets.intern(reversed, new HashSet<String>(Arrays.asList("users"))));
+
+      assertNotSame(sets, SharedIdentitySets.intern(memberships, Arrays.asList("users", "administrators")));
+      assertNotSame(sets, SharedIdentitySets.intern(memberships.subList(0, 1), Arrays.asList("users")));
+
+      // Any type is wildcard in MembershipEntry.equals, but sets with it have different content
+      List<MembershipEntry> anyType = Arrays.asList(new MembershipEntry("/platform/users", MembershipEntry.ANY_TYPE),
+            new MembershipEntry("/organization/hr", "manager"));
+      assertNotSame(sets, SharedIdentitySets.intern(anyType, Arrays.asList("users")));
+   }
+
+   @Test
+   public void testContent()
+   {
+      SharedIdentitySets sets = SharedIdentitySets.intern(Arrays.asList(new MembershipEntry("/platform/users", "member"),
+            new MembershipEntry("/platform/users", "manager"), new MembershipEntry("/organization/hr", "member")),
+            Arrays.asList("users"));
+
+      assertEquals(3, sets.getMemberships().size());
+      assertEquals(new HashSet<String>(Arrays.asList("/platform/users", "/organization/hr")), sets.getGroups());
+      assertEquals(new HashSet<String>(Arrays.asList("users")), sets.getRoles());
+      assertTrue(sets.isMemberOf("/platform/users", "manager"));
+      assertTrue(sets.isMemberOf("/organization/hr", MembershipEntry.ANY_TYPE));
+      assertFalse(sets.isMemberOf("/organization/hr", "manager"));
+      assertFalse(sets.isMemberOf("/platform/administrators", MembershipEntry.ANY_TYPE));
+   }
+
+   @Test
+   public void testImmutable()
+   {
+      SharedIdentitySets sets = SharedIdentitySets.intern(Arrays.asList(new MembershipEntry("/platform/users", "member")),
+            Arrays.asList("users"));
+      assertUnmodifiable(sets.getGroups(), "/platform/administrators");
+      assertUnmodifiable(sets.getRoles(), "administrators");
+      assertUnmodifiable(sets.getMemberships(), new MembershipEntry("/platform/administrators", "manager"));
+   }
+
+   private static <T> void assertUnmodifiable(Collection<T> collection, T element)
+   {
+      try
+      {
+         collection.add(element);
+         throw new AssertionError("Collection should be unmodifiable");
+      }
+      catch (UnsupportedOperationException expected)
+      {
+      }
+   }
+}
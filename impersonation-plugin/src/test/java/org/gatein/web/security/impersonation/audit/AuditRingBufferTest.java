@@ -0,0 +1,158 @@
+/*
+ * JBoss, a division of Red Hat
+ * Copyright 2013, Red Hat Middleware, LLC, and individual
+ * contributors as indicated by the @authors tag. See the
+ * copyright.txt in the distribution for a full listing of
+ * individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.gatein.web.security.impersonation.audit;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test of {@link AuditRingBuffer}
+ */
+public class AuditRingBufferTest
+{
+   @Test
+   public void testCapacity()
+   {
+      assertEquals(1, new AuditRingBuffer<String>(1).capacity());
+      assertEquals(8, new AuditRingBuffer<String>(5).capacity());
+      assertEquals(8, new AuditRingBuffer<String>(8).capacity());
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void testInvalidCapacity()
+   {
+      new AuditRingBuffer<String>(0);
+   }
+
+   @Test(expected = NullPointerException.class)
+   public void testNullElement()
+   {
+      new AuditRingBuffer<String>(4).offer(null);
+   }
+
+   @Test
+   public void testOfferAndDrain()
+   {
+      AuditRingBuffer<String> buffer = new AuditRingBuffer<String>(4);
+      assertTrue(buffer.isEmpty());
+      assertTrue(buffer.offer("a"));
+      assertTrue(buffer.offer("b"));
+      assertTrue(buffer.offer("c"));
+      assertTrue(buffer.offer("d"));
+      assertFalse("Full buffer should reject element", buffer.offer("e"));
+      assertEquals(4, buffer.size());
+
+      List<String> drained = new ArrayList<String>();
+      assertEquals(3, buffer.drainTo(drained, 3));
+      assertEquals(Arrays.asList("a", "b", "c"), drained);
+      assertEquals(1, buffer.size());
+
+      // Slots are reused after they are drained
+      assertTrue(buffer.offer("e"));
+      assertTrue(buffer.offer("f"));
+      assertTrue(buffer.offer("g"));
+      assertFalse(buffer.offer("h"));
+
+      drained.clear();
+      assertEquals(4, buffer.drainTo(drained, 10));
+      assertEquals(Arrays.asList("d", "e", "f", "g"), drained);
+      assertTrue(buffer.isEmpty());
+      assertEquals(0, buffer.drainTo(drained, 10));
+   }
+
+   @Test
+   public void testConcurrentProducers() throws Exception
+   {
+      final int producers = 4;
+      final int elementsPerProducer = 20000;
+      final AuditRingBuffer<int[]> buffer = new AuditRingBuffer<int[]>(64);
+      final CountDownLatch start = new CountDownLatch(1);
+
+      List<Thread> threads = new ArrayList<Thread>();
+      for (int i = 0; i < producers; i++)
+      {
+         final int producer = i;
+         Thread thread = new Thread()
+         {
+            @Override
+            public void run()
+            {
+               try
+               {
+                  start.await();
+               }
+               catch (InterruptedException e)
+               {
+                  return;
+               }
+               for (int sequence = 0; sequence < elementsPerProducer; sequence++)
+               {
+                  while (!buffer.offer(new int[] {producer, sequence}))
+                  {
+                     Thread.yield();
+                  }
+               }
+            }
+         };
+         thread.start();
+         threads.add(thread);
+      }
+      start.countDown();
+
+      // Each producer's elements must come in order and none may be lost or duplicated
+      int[] nextSequence = new int[producers];
+      int received = 0;
+      List<int[]> drained = new ArrayList<int[]>();
+      long deadline = System.currentTimeMillis() + 30000;
+      while (received < producers * elementsPerProducer && System.currentTimeMillis() < deadline)
+      {
+         drained.clear();
+         if (buffer.drainTo(drained, 32) == 0)
+         {
+            Thread.yield();
+         }
+         for (int[] element : drained)
+         {
+            assertEquals(nextSequence[element[0]], element[1]);
+            nextSequence[element[0]]++;
+            received++;
+         }
+      }
+
+      for (Thread thread : threads)
+      {
+         thread.join();
+      }
+      assertEquals(producers * elementsPerProducer, received);
+      assertTrue(buffer.isEmpty());
+   }
+}